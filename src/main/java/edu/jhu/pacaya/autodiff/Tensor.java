@@ -23,6 +23,8 @@ public class Tensor implements MVec, Serializable {
     protected int[] strides;
     protected double[] values;
     protected final Algebra s;
+    /** Whether the values array is shared with other tensors, and must be copied before it is modified. */
+    protected boolean sharedValues = false;
     
     /**
      * Standard constructor of multi-dimensional array.
@@ -105,6 +107,7 @@ public class Tensor implements MVec, Serializable {
      * @return The previous value.
      */
     public double set(int[] indices, double val) {
+        ensureOwnValues();
         checkIndices(indices);
         int c = getConfigIdx(indices);
         double prev = values[c];
@@ -119,6 +122,7 @@ public class Tensor implements MVec, Serializable {
      * @return The previous value.
      */
     public double add(int[] indices, double val) {
+        ensureOwnValues();
         checkIndices(indices);
         int c = getConfigIdx(indices);
         double prev = values[c];
@@ -133,6 +137,7 @@ public class Tensor implements MVec, Serializable {
      * @return The previous value.
      */
     public double subtract(int[] indices, double val) {
+        ensureOwnValues();
         checkIndices(indices);
         int c = getConfigIdx(indices);
         double prev = values[c];
@@ -229,6 +234,7 @@ public class Tensor implements MVec, Serializable {
      * Sets the value of the idx'th entry.
      */
     public double setValue(int idx, double val) {
+        ensureOwnValues();
         double prev = values[idx];
         values[idx] = val;
         return prev;
@@ -238,6 +244,7 @@ public class Tensor implements MVec, Serializable {
      * Adds the value to the idx'th entry.
      */
     public void addValue(int idx, double val) {
+        ensureOwnValues();
         values[idx] = s.plus(values[idx], val); 
     }
 
@@ -245,6 +252,7 @@ public class Tensor implements MVec, Serializable {
      * Subtracts the value from the idx'th entry.
      */
     public void subtractValue(int idx, double val) {
+        ensureOwnValues();
         values[idx] = s.minus(values[idx], val); 
     }
 
@@ -252,6 +260,7 @@ public class Tensor implements MVec, Serializable {
      * Multiplies the value with the idx'th entry.
      */
     public void multiplyValue(int idx, double val) {
+        ensureOwnValues();
         values[idx] = s.times(values[idx], val); 
     }
 
@@ -259,9 +268,31 @@ public class Tensor implements MVec, Serializable {
      * Divides the value from the idx'th entry.
      */
     public void divideValue(int idx, double val) {
+        ensureOwnValues();
         values[idx] = s.divide(values[idx], val); 
     }
     
+    /**
+     * Makes the values array shared with other tensors. It will be copied before this tensor is modified.
+     * 
+     * @param values The values, which must not be modified while they are shared.
+     */
+    protected void setSharedValues(double[] values) {
+        if (values.length != this.values.length) {
+            throw new IllegalArgumentException("The shared values must be the same size as this tensor.");
+        }
+        this.values = values;
+        this.sharedValues = true;
+    }
+
+    /** Copies the values array before it is modified, if it is shared with other tensors. */
+    protected void ensureOwnValues() {
+        if (sharedValues) {
+            values = DoubleArrays.copyOf(values);
+            sharedValues = false;
+        }
+    }
+
     /* --------------------- Scalar Operations --------------------- */
     
     /** Add the addend to each value. */    
@@ -293,6 +324,7 @@ public class Tensor implements MVec, Serializable {
 
     /** Set all the values to the given value. */
     public void fill(double val) {
+        ensureOwnValues();
         Arrays.fill(values, val);
     }
 
@@ -363,12 +395,14 @@ public class Tensor implements MVec, Serializable {
      * @throws IllegalArgumentException If the two tensors have different sizes.
      */
     public void elemApply(Lambda.FnIntDoubleToDouble fn) {
+        ensureOwnValues();
         for (int c=0; c<this.values.length; c++) {
             this.values[c] = fn.call(c, this.values[c]);
         }
     }
 
     public void elemOp(Tensor other, Lambda.LambdaBinOpDouble fn) {
+        ensureOwnValues();
         checkEqualSize(this, other);
         for (int c=0; c<this.values.length; c++) {
             this.values[c] = fn.call(this.values[c], other.values[c]);
@@ -377,6 +411,7 @@ public class Tensor implements MVec, Serializable {
 
     /** Take the exp of each entry. */
     public void exp() {
+        ensureOwnValues();
         for (int c=0; c<this.values.length; c++) {
             this.values[c] = s.exp(this.values[c]);
         }
@@ -384,6 +419,7 @@ public class Tensor implements MVec, Serializable {
 
     /** Take the log of each entry. */
     public void log() {
+        ensureOwnValues();
         for (int c=0; c<this.values.length; c++) {
             this.values[c] = s.log(this.values[c]);
         }
@@ -391,6 +427,7 @@ public class Tensor implements MVec, Serializable {
 
     /** Normalizes the values so that they sum to 1 */
     public double normalize() {
+        ensureOwnValues();
         double propSum = this.getSum();
         if (propSum == s.zero()) {
             this.fill(s.divide(s.one(), s.fromReal(values.length)));
@@ -495,12 +532,14 @@ public class Tensor implements MVec, Serializable {
      * Assumes that the size of the two vectors are equal.
      */
     public void set(Tensor other) {
+        ensureOwnValues();
         checkEqualSize(this, other);
         this.dims = IntArrays.copyOf(other.dims);
         DoubleArrays.copy(other.values, this.values);
     }
 
     public void setValuesOnly(Tensor other) {
+        ensureOwnValues();
         checkEqualSize(this, other);
         DoubleArrays.copy(other.values, this.values);
     }
@@ -686,7 +725,8 @@ public class Tensor implements MVec, Serializable {
         return t;
     }
 
-    protected void setFromDiffAlgebra(Tensor other) {       
+    protected void setFromDiffAlgebra(Tensor other) {
+        ensureOwnValues();       
         for (int c=0; c<this.values.length; c++) {
             this.values[c] = Algebras.convertAlgebra(other.values[c], other.s, this.s);
         }
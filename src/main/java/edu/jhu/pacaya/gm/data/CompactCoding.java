@@ -0,0 +1,201 @@
+package edu.jhu.pacaya.gm.data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import edu.jhu.pacaya.gm.feat.FeatureVector;
+import edu.jhu.prim.sort.IntDoubleSort;
+
+/**
+ * Compact binary encodings shared by {@link FgExampleFeatureCache} and {@link FgExampleCodec}: varints, and feature
+ * vectors whose indices are sorted and delta encoded as varints. If every value of a feature vector is 1.0 the values
+ * are omitted, if every value is exactly a float they are stored as floats, and otherwise as doubles (or as floats, if
+ * quantizing).
+ *
+ * @author mgormley
+ */
+final class CompactCoding {
+
+    // The flags for the values of a feature vector in the encoding.
+    private static final byte VALS_ONES = 0;
+    private static final byte VALS_FLOAT = 1;
+    private static final byte VALS_DOUBLE = 2;
+
+    private CompactCoding() {
+        // Private constructor.
+    }
+
+    /**
+     * Writes a feature vector.
+     *
+     * @param fv The feature vector.
+     * @param quantize Whether to store the values as floats, even if some are not exactly floats.
+     * @param out The output.
+     */
+    static void writeFeatures(FeatureVector fv, boolean quantize, ByteOut out) {
+        int n = fv.getUsed();
+        int[] idx = Arrays.copyOf(fv.getInternalIndices(), n);
+        double[] vals = Arrays.copyOf(fv.getInternalValues(), n);
+        IntDoubleSort.sortIndexAsc(idx, vals);
+        byte valsType = VALS_ONES;
+        for (int j=0; j<n; j++) {
+            if (vals[j] != 1.0) {
+                valsType = (quantize || (double) (float) vals[j] == vals[j]) ? VALS_FLOAT : VALS_DOUBLE;
+                if (valsType == VALS_DOUBLE) {
+                    break;
+                }
+            }
+        }
+        out.writeVarInt(n);
+        out.writeByte(valsType);
+        int prev = 0;
+        for (int j=0; j<n; j++) {
+            if (j == 0) {
+                // The first index may be negative, so zig-zag encode it.
+                out.writeVarInt((idx[0] << 1) ^ (idx[0] >> 31));
+            } else {
+                out.writeVarInt(idx[j] - prev);
+            }
+            prev = idx[j];
+        }
+        if (valsType == VALS_FLOAT) {
+            for (int j=0; j<n; j++) {
+                out.writeInt(Float.floatToIntBits((float) vals[j]));
+            }
+        } else if (valsType == VALS_DOUBLE) {
+            for (int j=0; j<n; j++) {
+                out.writeDouble(vals[j]);
+            }
+        }
+    }
+
+    /** Reads a feature vector written by {@link #writeFeatures(FeatureVector, boolean, ByteOut)}. */
+    static FeatureVector readFeatures(ByteIn in) {
+        int n = in.readVarInt();
+        byte valsType = in.readByte();
+        int[] idx = new int[n];
+        double[] vals = new double[n];
+        int prev = 0;
+        for (int j=0; j<n; j++) {
+            if (j == 0) {
+                int z = in.readVarInt();
+                idx[0] = (z >>> 1) ^ -(z & 1);
+            } else {
+                idx[j] = prev + in.readVarInt();
+            }
+            prev = idx[j];
+        }
+        if (valsType == VALS_ONES) {
+            Arrays.fill(vals, 1.0);
+        } else if (valsType == VALS_FLOAT) {
+            for (int j=0; j<n; j++) {
+                vals[j] = Float.intBitsToFloat(in.readInt());
+            }
+        } else {
+            for (int j=0; j<n; j++) {
+                vals[j] = in.readDouble();
+            }
+        }
+        return new FeatureVector(idx, vals).freeze();
+    }
+
+    /** A growable byte buffer. */
+    static class ByteOut {
+        byte[] buf = new byte[256];
+        int size = 0;
+
+        void writeByte(int b) {
+            if (size == buf.length) {
+                buf = Arrays.copyOf(buf, 2 * buf.length);
+            }
+            buf[size++] = (byte) b;
+        }
+
+        void writeVarInt(int v) {
+            while ((v & ~0x7f) != 0) {
+                writeByte((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            writeByte(v);
+        }
+
+        void writeInt(int v) {
+            writeByte(v >>> 24);
+            writeByte(v >>> 16);
+            writeByte(v >>> 8);
+            writeByte(v);
+        }
+
+        void writeDouble(double d) {
+            long bits = Double.doubleToLongBits(d);
+            writeInt((int) (bits >>> 32));
+            writeInt((int) bits);
+        }
+
+        /** Writes a string, which may be null, as its UTF-8 length plus one (or 0 if null) followed by its bytes. */
+        void writeString(String str) {
+            if (str == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length + 1);
+            for (byte b : bytes) {
+                writeByte(b);
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+    }
+
+    /** A reader over a byte array. */
+    static class ByteIn {
+        private final byte[] buf;
+        private int pos;
+
+        ByteIn(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        byte readByte() {
+            return buf[pos++];
+        }
+
+        int readVarInt() {
+            int v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                v |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return v;
+        }
+
+        int readInt() {
+            return ((buf[pos++] & 0xff) << 24) | ((buf[pos++] & 0xff) << 16) | ((buf[pos++] & 0xff) << 8)
+                    | (buf[pos++] & 0xff);
+        }
+
+        double readDouble() {
+            long hi = readInt();
+            long lo = readInt() & 0xffffffffL;
+            return Double.longBitsToDouble((hi << 32) | lo);
+        }
+
+        String readString() {
+            int len = readVarInt() - 1;
+            if (len < 0) {
+                return null;
+            }
+            String str = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return str;
+        }
+    }
+
+}
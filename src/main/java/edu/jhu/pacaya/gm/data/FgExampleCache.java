@@ -1,10 +1,13 @@
 package edu.jhu.pacaya.gm.data;
 
+import java.util.Collections;
 import java.util.Map;
 
 import org.apache.commons.collections.map.LRUMap;
 import org.apache.commons.collections.map.ReferenceMap;
 
+import edu.jhu.pacaya.util.cache.Codec;
+import edu.jhu.pacaya.util.cache.Codecs;
 import edu.jhu.pacaya.util.cache.GzipMap;
 
 /**
@@ -12,7 +15,8 @@ import edu.jhu.pacaya.util.cache.GzipMap;
  * 
  * This implementation assumes that the given examplesFactory requires some slow
  * computation for each call to get(i). Accordingly, a cache is placed in front
- * of the factory to reduce the number of calls.
+ * of the factory to reduce the number of calls. The cache is threadsafe, and
+ * is not locked while an example is constructed.
  * 
  * @author mgormley
  * 
@@ -34,8 +38,19 @@ public class FgExampleCache implements FgExampleList {
      * @param maxEntriesInMemory The maximum number of entries to keep in the
      *            in-memory cache or -1 to use a SoftReference cache.
      */
-    @SuppressWarnings("unchecked")
     public FgExampleCache(FgExampleList exampleFactory, int maxEntriesInMemory, boolean gzipOnSerialize) {
+        this(exampleFactory, maxEntriesInMemory, gzipOnSerialize ? Codecs.get(true) : null);
+    }
+
+    /**
+     * Constructor with LRU cache.
+     * @param maxEntriesInMemory The maximum number of entries to keep in the
+     *            in-memory cache or -1 to use a SoftReference cache.
+     * @param codec The codec with which to encode the cached examples, or null
+     *            to cache the examples themselves.
+     */
+    @SuppressWarnings("unchecked")
+    public FgExampleCache(FgExampleList exampleFactory, int maxEntriesInMemory, Codec codec) {
         this.exampleFactory = exampleFactory;
         @SuppressWarnings("rawtypes")
         Map tmp;
@@ -44,24 +59,30 @@ public class FgExampleCache implements FgExampleList {
         } else {
             tmp = new LRUMap(maxEntriesInMemory);
         }
-        if (gzipOnSerialize) {
-            cache = new GzipMap<Integer, LFgExample>(tmp);
+        tmp = Collections.synchronizedMap(tmp);
+        if (codec != null) {
+            cache = new GzipMap<Integer, LFgExample>(tmp, codec);
         } else {
             cache = tmp;
         }
     }
 
+    /**
+     * Constructor with a given cache, such as a byte-bounded
+     * {@link edu.jhu.pacaya.util.cache.WeightedCache}.
+     * @param cache The cache, which must be threadsafe.
+     */
+    public FgExampleCache(FgExampleList exampleFactory, Map<Integer, LFgExample> cache) {
+        this.exampleFactory = exampleFactory;
+        this.cache = cache;
+    }
+
     /** Gets the i'th example. */
     public LFgExample get(int i) {
-        LFgExample ex;
-        synchronized (cache) {
-            ex = cache.get(i);
-        }
+        LFgExample ex = cache.get(i);
         if (ex == null) {            
             ex = exampleFactory.get(i);
-            synchronized (cache) {
-                cache.put(i, ex);
-            }
+            cache.put(i, ex);
         }
         return ex;
     }
@@ -71,6 +92,11 @@ public class FgExampleCache implements FgExampleList {
         return exampleFactory.size();
     }
     
+    /** Gets the cache. */
+    public Map<Integer, LFgExample> getCache() {
+        return cache;
+    }
+
     /** removes all cached FgExamples */
     public synchronized void clear() {
         cache.clear();
@@ -0,0 +1,424 @@
+package edu.jhu.pacaya.gm.data;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.jhu.pacaya.gm.data.CompactCoding.ByteIn;
+import edu.jhu.pacaya.gm.data.CompactCoding.ByteOut;
+import edu.jhu.pacaya.gm.feat.FactorTemplateList;
+import edu.jhu.pacaya.gm.feat.ObsFeExpFamFactor;
+import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner;
+import edu.jhu.pacaya.gm.model.ClampFactor;
+import edu.jhu.pacaya.gm.model.ExplicitFactor;
+import edu.jhu.pacaya.gm.model.Factor;
+import edu.jhu.pacaya.gm.model.FactorGraph;
+import edu.jhu.pacaya.gm.model.FeExpFamFactor;
+import edu.jhu.pacaya.gm.model.Var;
+import edu.jhu.pacaya.gm.model.Var.VarType;
+import edu.jhu.pacaya.gm.model.VarConfig;
+import edu.jhu.pacaya.gm.model.VarSet;
+import edu.jhu.pacaya.util.cache.Codec;
+import edu.jhu.pacaya.util.cache.Codecs;
+import edu.jhu.pacaya.util.cache.Codecs.JavaCodec;
+import edu.jhu.pacaya.util.semiring.RealAlgebra;
+
+/**
+ * A compact structural encoding of the examples (i.e. {@link LabeledFgExample}s and {@link UnlabeledFgExample}s). Java
+ * serialization writes every variable name, VarSet and factor class of each example, along with the feature conjoiner
+ * (and its templates) and the feature extractor referenced by each factor. This codec instead writes:
+ * <ul>
+ * <li>the variables, as their types, numbers of states and names, with each distinct list of state names written
+ * once;</li>
+ * <li>each factor, as a type code and the ids of its variables, followed by its table (for an
+ * {@link ExplicitFactor}), its clamped state (for a {@link ClampFactor}), or its feature vectors (for an
+ * {@link ObsFeExpFamFactor}, by template id, or a {@link FeExpFamFactor});</li>
+ * <li>the gold assignment and weight of a labeled example.</li>
+ * </ul>
+ * The variable ids, numbers of states and feature indices are varints (see {@link CompactCoding}).
+ *
+ * The decoded factors of every example reference one shared {@link ObsFeatureConjoiner}: the one given at construction
+ * or else the first one encoded. The conjoiner is not serialized with the codec, since the decoded factors must
+ * share the live conjoiner of the model rather than a copy: a codec deserialized to reopen a store must be given
+ * that conjoiner with {@link #setConjoiner(ObsFeatureConjoiner)} (see {@link #find(Codec)}). The decoded factors
+ * have no feature extractors, since their features are already extracted, and the scores of the exponential family
+ * factors are not stored, since they are recomputed from the model.
+ *
+ * An example with any other type of factor, or with factors which reference another conjoiner, is encoded with Java
+ * serialization.
+ *
+ * @author mgormley
+ */
+public class FgExampleCodec implements Codec {
+
+    private static final long serialVersionUID = 1L;
+
+    // The formats of an encoded example.
+    private static final byte FORMAT_JAVA = 0;
+    private static final byte FORMAT_UNLABELED = 1;
+    private static final byte FORMAT_LABELED = 2;
+    // The kinds of factor in the encoding.
+    private static final byte KIND_EXPLICIT = 0;
+    private static final byte KIND_CLAMP = 1;
+    private static final byte KIND_OBS_FE = 2;
+    private static final byte KIND_FE = 3;
+    // The flags for the values of a table in the encoding.
+    private static final byte TABLE_CONSTANT = 0;
+    private static final byte TABLE_FLOAT = 1;
+    private static final byte TABLE_DOUBLE = 2;
+
+    private final JavaCodec java = new JavaCodec();
+    // The conjoiner shared by the decoded factors, which is not serialized.
+    private transient volatile ObsFeatureConjoiner ofc;
+
+    /** Constructor, whose conjoiner is the first one encoded. */
+    public FgExampleCodec() {
+        this(null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param ofc The conjoiner to be shared by the decoded factors, or null to use the first one encoded.
+     */
+    public FgExampleCodec(ObsFeatureConjoiner ofc) {
+        this.ofc = ofc;
+    }
+
+    @Override
+    public byte[] encode(Serializable obj) {
+        if (obj.getClass() == LabeledFgExample.class || obj.getClass() == UnlabeledFgExample.class) {
+            ByteOut out = new ByteOut();
+            if (encodeCompact((LFgExample) obj, out)) {
+                return out.toByteArray();
+            }
+        }
+        byte[] bytes = java.encode(obj);
+        byte[] encoded = new byte[bytes.length + 1];
+        encoded[0] = FORMAT_JAVA;
+        System.arraycopy(bytes, 0, encoded, 1, bytes.length);
+        return encoded;
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+        if (bytes[0] == FORMAT_JAVA) {
+            return java.decode(Arrays.copyOfRange(bytes, 1, bytes.length));
+        }
+        return decodeCompact(new ByteIn(bytes, 0));
+    }
+
+    /** Gets the conjoiner shared by the decoded factors, or null if none has been given or encoded. */
+    public ObsFeatureConjoiner getConjoiner() {
+        return ofc;
+    }
+
+    /**
+     * Sets the conjoiner shared by the decoded factors. A codec deserialized to reopen a store must be given the live
+     * conjoiner before it decodes any example with an {@link ObsFeExpFamFactor}.
+     */
+    public void setConjoiner(ObsFeatureConjoiner ofc) {
+        this.ofc = ofc;
+    }
+
+    /**
+     * Finds the FgExampleCodec of a codec: the codec itself or the base of a compressing codec (see
+     * {@link Codecs#getBase(Codec)}).
+     *
+     * @return The FgExampleCodec, or null if there is none.
+     */
+    public static FgExampleCodec find(Codec codec) {
+        while (codec != null && !(codec instanceof FgExampleCodec)) {
+            codec = Codecs.getBase(codec);
+        }
+        return (FgExampleCodec) codec;
+    }
+
+    /** Encodes the example, or returns false if it cannot be encoded compactly. */
+    private boolean encodeCompact(LFgExample ex, ByteOut out) {
+        boolean labeled = (ex instanceof LabeledFgExample);
+        FactorGraph fg = ex.getFactorGraph();
+        if (!canEncode(fg)) {
+            return false;
+        }
+        VarConfig gold = labeled ? ex.getGoldConfig() : null;
+        if (labeled) {
+            for (Var v : gold.getVars()) {
+                if (!isVarOf(fg, v)) {
+                    return false;
+                }
+            }
+        }
+        out.writeByte(labeled ? FORMAT_LABELED : FORMAT_UNLABELED);
+        encodeVars(fg, out);
+        out.writeVarInt(fg.getNumFactors());
+        for (Factor f : fg.getFactors()) {
+            encodeFactor(f, out);
+        }
+        if (labeled) {
+            out.writeDouble(ex.getWeight());
+            out.writeVarInt(gold.size());
+            for (Var v : gold.getVars()) {
+                out.writeVarInt(v.getId());
+                out.writeVarInt(gold.getState(v));
+            }
+        }
+        return true;
+    }
+
+    /** Whether every factor of the factor graph has a compact encoding. */
+    private boolean canEncode(FactorGraph fg) {
+        for (Factor f : fg.getFactors()) {
+            Class<?> c = f.getClass();
+            if (c == ExplicitFactor.class) {
+                if (!(((ExplicitFactor) f).getAlgebra() instanceof RealAlgebra)) {
+                    return false;
+                }
+            } else if (c == ObsFeExpFamFactor.class) {
+                ObsFeExpFamFactor obsFef = (ObsFeExpFamFactor) f;
+                int t = obsFef.getTemplateId();
+                if (!shareConjoiner(obsFef.getConjoiner()) || t < 0 || t >= ofc.getTemplates().size()
+                        || !ofc.getTemplates().get(t).getKey().equals(obsFef.getTemplateKey())) {
+                    return false;
+                }
+            } else if (c != ClampFactor.class && c != FeExpFamFactor.class) {
+                return false;
+            }
+            for (Var v : f.getVars()) {
+                if (!isVarOf(fg, v)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isVarOf(FactorGraph fg, Var v) {
+        return v.getId() >= 0 && v.getId() < fg.getNumVars() && fg.getVar(v.getId()) == v;
+    }
+
+    /** Whether the conjoiner is the shared one, which it becomes if there is none yet. */
+    private synchronized boolean shareConjoiner(ObsFeatureConjoiner other) {
+        if (ofc == null) {
+            ofc = other;
+        }
+        return ofc == other;
+    }
+
+    private static void encodeVars(FactorGraph fg, ByteOut out) {
+        int n = fg.getNumVars();
+        out.writeVarInt(n);
+        // Each distinct list of state names is written once, where it is first used.
+        Map<List<String>, Integer> stateNamesIds = new IdentityHashMap<>();
+        for (Var v : fg.getVars()) {
+            out.writeByte(v.getType().ordinal());
+            out.writeVarInt(v.getNumStates());
+            out.writeString(v.getName());
+            List<String> stateNames = v.getStateNames();
+            if (stateNames == null) {
+                out.writeVarInt(0);
+            } else if (stateNamesIds.containsKey(stateNames)) {
+                out.writeVarInt(stateNamesIds.get(stateNames));
+            } else {
+                stateNamesIds.put(stateNames, stateNamesIds.size() + 2);
+                out.writeVarInt(1);
+                for (String name : stateNames) {
+                    out.writeString(name);
+                }
+            }
+        }
+        // The variables of a VarSet are ordered by their creation, so they are decoded in the same relative order.
+        Var[] sorted = fg.getVars().toArray(new Var[n]);
+        Arrays.sort(sorted);
+        boolean inIdOrder = true;
+        for (int r=0; r<n; r++) {
+            inIdOrder &= (sorted[r].getId() == r);
+        }
+        out.writeByte(inIdOrder ? 1 : 0);
+        if (!inIdOrder) {
+            for (int r=0; r<n; r++) {
+                out.writeVarInt(sorted[r].getId());
+            }
+        }
+    }
+
+    private static void encodeFactor(Factor f, ByteOut out) {
+        Class<?> c = f.getClass();
+        if (c == ExplicitFactor.class) {
+            out.writeByte(KIND_EXPLICIT);
+            encodeVarIds(f.getVars(), out);
+            encodeTable((ExplicitFactor) f, out);
+        } else if (c == ClampFactor.class) {
+            out.writeByte(KIND_CLAMP);
+            out.writeVarInt(f.getVars().get(0).getId());
+            out.writeVarInt(((ClampFactor) f).getState());
+        } else if (c == ObsFeExpFamFactor.class) {
+            ObsFeExpFamFactor obsFef = (ObsFeExpFamFactor) f;
+            out.writeByte(KIND_OBS_FE);
+            encodeVarIds(f.getVars(), out);
+            out.writeVarInt(obsFef.getTemplateId());
+            CompactCoding.writeFeatures(obsFef.getObsFeatures(), false, out);
+        } else {
+            FeExpFamFactor fef = (FeExpFamFactor) f;
+            out.writeByte(KIND_FE);
+            encodeVarIds(f.getVars(), out);
+            int numConfigs = f.getVars().calcNumConfigs();
+            for (int config=0; config<numConfigs; config++) {
+                CompactCoding.writeFeatures(fef.getFeatures(config), false, out);
+            }
+        }
+    }
+
+    private static void encodeVarIds(VarSet vars, ByteOut out) {
+        out.writeVarInt(vars.size());
+        for (Var v : vars) {
+            out.writeVarInt(v.getId());
+        }
+    }
+
+    private static void encodeTable(ExplicitFactor f, ByteOut out) {
+        int n = f.size();
+        byte type = TABLE_CONSTANT;
+        for (int c=0; c<n; c++) {
+            double val = f.getValue(c);
+            if (Double.doubleToLongBits(val) != Double.doubleToLongBits(f.getValue(0))) {
+                type = TABLE_FLOAT;
+            }
+            if ((double) (float) val != val && !Double.isNaN(val)) {
+                type = TABLE_DOUBLE;
+                break;
+            }
+        }
+        out.writeByte(type);
+        if (type == TABLE_CONSTANT) {
+            out.writeDouble(n == 0 ? 0 : f.getValue(0));
+        } else if (type == TABLE_FLOAT) {
+            for (int c=0; c<n; c++) {
+                out.writeInt(Float.floatToIntBits((float) f.getValue(c)));
+            }
+        } else {
+            for (int c=0; c<n; c++) {
+                out.writeDouble(f.getValue(c));
+            }
+        }
+    }
+
+    private LFgExample decodeCompact(ByteIn in) {
+        byte format = in.readByte();
+        FactorGraph fg = new FactorGraph();
+        Var[] vars = decodeVars(in);
+        for (Var v : vars) {
+            fg.addVar(v);
+        }
+        int numFactors = in.readVarInt();
+        for (int a=0; a<numFactors; a++) {
+            fg.addFactor(decodeFactor(in, vars));
+        }
+        if (format == FORMAT_UNLABELED) {
+            return new UnlabeledFgExample(fg);
+        }
+        double weight = in.readDouble();
+        int numGold = in.readVarInt();
+        VarConfig gold = new VarConfig();
+        for (int i=0; i<numGold; i++) {
+            Var v = vars[in.readVarInt()];
+            gold.put(v, in.readVarInt());
+        }
+        LabeledFgExample ex = new LabeledFgExample(fg, gold);
+        ex.setWeight(weight);
+        return ex;
+    }
+
+    private static Var[] decodeVars(ByteIn in) {
+        int n = in.readVarInt();
+        VarType[] types = new VarType[n];
+        int[] numStates = new int[n];
+        String[] names = new String[n];
+        List<List<String>> stateNamesLists = new ArrayList<>();
+        List<List<String>> stateNames = new ArrayList<>(n);
+        for (int i=0; i<n; i++) {
+            types[i] = VarType.values()[in.readByte()];
+            numStates[i] = in.readVarInt();
+            names[i] = in.readString();
+            int ref = in.readVarInt();
+            if (ref == 0) {
+                stateNames.add(null);
+            } else if (ref == 1) {
+                List<String> list = new ArrayList<>(numStates[i]);
+                for (int s=0; s<numStates[i]; s++) {
+                    list.add(in.readString());
+                }
+                stateNamesLists.add(list);
+                stateNames.add(list);
+            } else {
+                stateNames.add(stateNamesLists.get(ref - 2));
+            }
+        }
+        // Create the variables in their original relative order.
+        boolean inIdOrder = (in.readByte() == 1);
+        Var[] vars = new Var[n];
+        for (int r=0; r<n; r++) {
+            int i = inIdOrder ? r : in.readVarInt();
+            vars[i] = new Var(types[i], numStates[i], names[i], stateNames.get(i));
+        }
+        return vars;
+    }
+
+    private Factor decodeFactor(ByteIn in, Var[] vars) {
+        byte kind = in.readByte();
+        if (kind == KIND_CLAMP) {
+            Var v = vars[in.readVarInt()];
+            return new ClampFactor(v, in.readVarInt());
+        }
+        Var[] fvars = new Var[in.readVarInt()];
+        for (int i=0; i<fvars.length; i++) {
+            fvars[i] = vars[in.readVarInt()];
+        }
+        VarSet vs = new VarSet(fvars);
+        if (kind == KIND_EXPLICIT) {
+            ExplicitFactor f = new ExplicitFactor(vs);
+            decodeTable(in, f);
+            return f;
+        } else if (kind == KIND_OBS_FE) {
+            if (ofc == null) {
+                throw new IllegalStateException("No feature conjoiner for the decoded factors. A deserialized "
+                        + "codec must be given the live conjoiner with setConjoiner().");
+            }
+            int t = in.readVarInt();
+            FactorTemplateList fts = ofc.getTemplates();
+            ObsFeExpFamFactor f = new ObsFeExpFamFactor(vs, fts.get(t).getKey(), ofc, null);
+            f.setTemplateId(t);
+            f.setObsFeatures(CompactCoding.readFeatures(in));
+            return f;
+        } else if (kind == KIND_FE) {
+            FeExpFamFactor f = new FeExpFamFactor(vs, null);
+            int numConfigs = vs.calcNumConfigs();
+            for (int config=0; config<numConfigs; config++) {
+                f.setFeatures(config, CompactCoding.readFeatures(in));
+            }
+            return f;
+        } else {
+            throw new IllegalStateException("Unknown kind of factor: " + kind);
+        }
+    }
+
+    private static void decodeTable(ByteIn in, ExplicitFactor f) {
+        byte type = in.readByte();
+        int n = f.size();
+        if (type == TABLE_CONSTANT) {
+            f.fill(in.readDouble());
+        } else if (type == TABLE_FLOAT) {
+            for (int c=0; c<n; c++) {
+                f.setValue(c, Float.intBitsToFloat(in.readInt()));
+            }
+        } else {
+            for (int c=0; c<n; c++) {
+                f.setValue(c, in.readDouble());
+            }
+        }
+    }
+
+}
@@ -2,45 +2,163 @@ package edu.jhu.pacaya.gm.data;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 
-import edu.jhu.pacaya.util.cache.CachedFastDiskStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.pacaya.util.cache.CachedConcurrentFastDiskStore;
+import edu.jhu.pacaya.util.cache.Codec;
+import edu.jhu.pacaya.util.cache.Codecs;
+import edu.jhu.pacaya.util.cache.ConcurrentFastDiskStore;
+import edu.jhu.pacaya.util.cache.ConcurrentFastDiskStore.ReadMode;
 
 /**
  * A disk-backed mutable collection of instances for a graphical model.
  * 
+ * Examples can be read by many threads concurrently: only additions are
+ * serialized.
+ * 
+ * A store may also be persistent: it is written to a given path and, once
+ * finished, can be reopened read-only by later runs so that the examples need
+ * not be constructed again.
+ * 
  * @author mgormley
  * 
  */
 public class FgExampleDiskStore implements FgExampleStore {
 
-    private CachedFastDiskStore<Integer, LFgExample> examples;
+    private static final Logger log = LoggerFactory.getLogger(FgExampleDiskStore.class);
+
+    private CachedConcurrentFastDiskStore<Integer, LFgExample> examples;
+    // Whether the examples were read from a previous run.
+    private boolean reopened = false;
+    // The content hash to write when the store is finished.
+    private String contentHash = null;
+    // The temporary file of a store which is not persistent, or null.
+    private File tempPath = null;
 
     public FgExampleDiskStore() {
         this(new File("."), true, -1);
     }
 
     public FgExampleDiskStore(File cacheDir, boolean gzipped, int maxEntriesInMemory) {
+        this(cacheDir, gzipped, maxEntriesInMemory, ReadMode.CHANNEL);
+    }
+
+    public FgExampleDiskStore(File cacheDir, boolean gzipped, int maxEntriesInMemory, ReadMode readMode) {
+        this(cacheDir, Codecs.get(gzipped), CachedConcurrentFastDiskStore.<Integer, LFgExample>newCache(
+                maxEntriesInMemory), readMode);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param cacheDir The directory in which to create a temporary file for
+     *            the store, which is deleted by {@link #close()} (or on exit).
+     * @param codec The codec with which to encode the examples.
+     * @param cache The in-memory cache, which must be threadsafe.
+     * @param readMode How to read the examples from disk.
+     */
+    public FgExampleDiskStore(File cacheDir, Codec codec, Map<Integer, LFgExample> cache, ReadMode readMode) {
         try {
             File cachePath = File.createTempFile("cache", ".binary.gz", cacheDir);
-            this.examples = new CachedFastDiskStore<Integer, LFgExample>(cachePath, gzipped, maxEntriesInMemory);
-            // TODO: cachePath.deleteOnExit();
+            cachePath.deleteOnExit();
+            this.examples = new CachedConcurrentFastDiskStore<Integer, LFgExample>(cachePath, codec, cache,
+                    readMode);
+            this.tempPath = cachePath;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Constructs a persistent store. If the path holds a finished store with
+     * the given content hash, it is reopened read-only (see
+     * {@link #isReopened()}). Otherwise, a new store is created at the path,
+     * which should be finished with {@link #finish()} after the examples are
+     * added.
+     * 
+     * @param cachePath The file for the store.
+     * @param codec The codec with which to encode the examples of a new store.
+     *            The reopened codec of a finished store is given the feature
+     *            conjoiner of this codec (see {@link FgExampleCodec}), since
+     *            the conjoiner is not serialized.
+     * @param cache The in-memory cache, which must be threadsafe.
+     * @param readMode How to read the examples from disk.
+     * @param contentHash A hash of the source data and the feature
+     *            configuration (see
+     *            {@link edu.jhu.pacaya.util.cache.ContentHash}), which must
+     *            match for a store to be reopened. Required, so that a store
+     *            built from other data is never silently reused.
+     */
+    public FgExampleDiskStore(File cachePath, Codec codec, Map<Integer, LFgExample> cache, ReadMode readMode,
+            String contentHash) {
+        if (contentHash == null) {
+            throw new IllegalArgumentException("A content hash is required for a persistent disk store: " + cachePath);
+        }
+        try {
+            if (ConcurrentFastDiskStore.isReopenable(cachePath, contentHash)) {
+                this.examples = new CachedConcurrentFastDiskStore<Integer, LFgExample>(cachePath, cache, readMode);
+                FgExampleCodec reopenedCodec = FgExampleCodec.find(examples.getCodec());
+                FgExampleCodec givenCodec = FgExampleCodec.find(codec);
+                if (reopenedCodec != null && givenCodec != null) {
+                    reopenedCodec.setConjoiner(givenCodec.getConjoiner());
+                }
+                this.reopened = true;
+                log.info("Reopened " + examples.size() + " examples from disk store: " + cachePath);
+            } else {
+                if (cachePath.exists()) {
+                    log.info("Overwriting stale or unfinished disk store: " + cachePath);
+                }
+                this.examples = new CachedConcurrentFastDiskStore<Integer, LFgExample>(cachePath, codec, cache,
+                        readMode);
+            }
+            this.contentHash = contentHash;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes the index of the examples to disk, so that the store can be
+     * reopened by a later run. The store is read-only afterwards.
+     */
+    public synchronized void finish() {
+        if (!examples.isFinished()) {
+            examples.finish(contentHash);
+        }
+    }
+
+    /** Whether the examples were reopened from a store finished by a previous run. */
+    public boolean isReopened() {
+        return reopened;
+    }
+
+    /** Closes the file, and deletes it if it is temporary. */
+    public void close() {
+        try {
+            examples.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (tempPath != null && !tempPath.delete()) {
+            log.warn("Unable to delete cache file: " + tempPath);
+        }
+    }
+
     /** Adds an example. */
     public synchronized void add(LFgExample example) {
         examples.put(examples.size(), example);
     }
 
     /** Gets the i'th example. */
-    public synchronized LFgExample get(int i) {
+    public LFgExample get(int i) {
         return examples.get(i);
     }
 
     /** Gets the number of examples. */
-    public synchronized int size() {
+    public int size() {
         return examples.size();
     }
 
@@ -0,0 +1,187 @@
+package edu.jhu.pacaya.gm.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.pacaya.gm.feat.ObsFeExpFamFactor;
+import edu.jhu.pacaya.gm.model.Factor;
+import edu.jhu.pacaya.gm.model.FactorGraph;
+import edu.jhu.pacaya.gm.data.CompactCoding.ByteIn;
+import edu.jhu.pacaya.gm.data.CompactCoding.ByteOut;
+import edu.jhu.pacaya.gm.model.FeExpFamFactor;
+import edu.jhu.pacaya.util.OrderedGrowth;
+
+/**
+ * An immutable collection of instances for a graphical model, which caches only the feature vectors of each example.
+ *
+ * The first call to get(i) extracts the feature vectors of the {@link ObsFeExpFamFactor}s and {@link FeExpFamFactor}s
+ * and stores them in a compact form. Later calls rebuild the factor graph with the given example factory, and fill in
+ * the cached feature vectors, so that the feature extractors are not run again. This is intended to be wrapped by an
+ * {@link FgExampleCache} with a bounded cache, so that evicted examples can be rebuilt cheaply. An example got by a
+ * task of a merging {@link OrderedGrowth} is not cached, since encoding it would extract its features under
+ * provisional ids; it is cached by a later call instead.
+ *
+ * Each feature vector is stored with its indices sorted and delta encoded as varints. If every value is 1.0 the values
+ * are omitted, if every value is exactly a float they are stored as floats, and otherwise as doubles (or as floats, if
+ * quantizing). The encoded examples are appended to fixed-size pages of bytes.
+ *
+ * @author mgormley
+ */
+public class FgExampleFeatureCache implements FgExampleList {
+
+    private static final Logger log = LoggerFactory.getLogger(FgExampleFeatureCache.class);
+
+    private static final int PAGE_SIZE = 1 << 20;
+    // The kinds of factor in the encoding.
+    private static final byte KIND_OTHER = 0;
+    private static final byte KIND_OBS_FE = 1;
+    private static final byte KIND_FE = 2;
+
+    private FgExampleList exampleFactory;
+    private boolean quantize;
+    // The pages, and the page and offset of each example's encoding (or -1 if not cached).
+    private List<byte[]> pages = new ArrayList<>();
+    private int[] exPage;
+    private int[] exOffset;
+    // The page being filled and the next free offset in it.
+    private int curPage = -1;
+    private int curOffset = 0;
+    private long numBytes = 0;
+    private long numVectors = 0;
+
+    /**
+     * Constructs a feature cache.
+     * @param exampleFactory The examples from which to extract the features.
+     * @param quantize Whether to store the values as floats, even if some are not exactly floats.
+     */
+    public FgExampleFeatureCache(FgExampleList exampleFactory, boolean quantize) {
+        this.exampleFactory = exampleFactory;
+        this.quantize = quantize;
+        int n = exampleFactory.size();
+        exPage = new int[n];
+        exOffset = new int[n];
+        Arrays.fill(exPage, -1);
+    }
+
+    /** Gets the i'th example. */
+    @Override
+    public LFgExample get(int i) {
+        LFgExample ex = exampleFactory.get(i);
+        FactorGraph fg = ex.getFactorGraph();
+        byte[] page;
+        int offset;
+        synchronized (this) {
+            page = (exPage[i] == -1) ? null : pages.get(exPage[i]);
+            offset = exOffset[i];
+        }
+        if (page != null) {
+            decode(fg, page, offset);
+        } else if (!OrderedGrowth.isMerging()) {
+            ByteOut out = new ByteOut();
+            int numVecs = encode(fg, out);
+            store(i, out, numVecs);
+        }
+        return ex;
+    }
+
+    /** Gets the number of examples. */
+    @Override
+    public int size() {
+        return exampleFactory.size();
+    }
+
+    /** Gets the number of bytes of encoded feature vectors. */
+    public synchronized long getNumBytes() {
+        return numBytes;
+    }
+
+    /** Gets the number of cached feature vectors. */
+    public synchronized long getNumVectors() {
+        return numVectors;
+    }
+
+    /** Logs the size of the cache. */
+    public synchronized void report() {
+        log.info(String.format("Feature cache: vectors = %d bytes = %d avg bytes/vector = %.1f", numVectors,
+                numBytes, (double) numBytes / Math.max(1, numVectors)));
+    }
+
+    private synchronized void store(int i, ByteOut out, int numVecs) {
+        if (exPage[i] != -1) {
+            // Another thread cached this example first.
+            return;
+        }
+        if (out.size > PAGE_SIZE) {
+            // Give a large example its own page, but keep filling the current page.
+            pages.add(Arrays.copyOf(out.buf, out.size));
+            exPage[i] = pages.size() - 1;
+            exOffset[i] = 0;
+        } else {
+            if (curPage == -1 || curOffset + out.size > PAGE_SIZE) {
+                pages.add(new byte[PAGE_SIZE]);
+                curPage = pages.size() - 1;
+                curOffset = 0;
+            }
+            System.arraycopy(out.buf, 0, pages.get(curPage), curOffset, out.size);
+            exPage[i] = curPage;
+            exOffset[i] = curOffset;
+            curOffset += out.size;
+        }
+        numBytes += out.size;
+        numVectors += numVecs;
+    }
+
+    /** Encodes the feature vectors of a factor graph, and returns the number of vectors encoded. */
+    private int encode(FactorGraph fg, ByteOut out) {
+        int numVecs = 0;
+        out.writeVarInt(fg.getNumFactors());
+        for (int a=0; a<fg.getNumFactors(); a++) {
+            Factor f = fg.getFactor(a);
+            if (f instanceof ObsFeExpFamFactor) {
+                out.writeByte(KIND_OBS_FE);
+                CompactCoding.writeFeatures(((ObsFeExpFamFactor) f).getObsFeatures(), quantize, out);
+                numVecs++;
+            } else if (f instanceof FeExpFamFactor) {
+                FeExpFamFactor fef = (FeExpFamFactor) f;
+                int numConfigs = fef.getVars().calcNumConfigs();
+                out.writeByte(KIND_FE);
+                out.writeVarInt(numConfigs);
+                for (int c=0; c<numConfigs; c++) {
+                    CompactCoding.writeFeatures(fef.getFeatures(c), quantize, out);
+                }
+                numVecs += numConfigs;
+            } else {
+                out.writeByte(KIND_OTHER);
+            }
+        }
+        return numVecs;
+    }
+
+    /** Sets the cached feature vectors on the factors of a factor graph. */
+    private static void decode(FactorGraph fg, byte[] page, int offset) {
+        ByteIn in = new ByteIn(page, offset);
+        int numFactors = in.readVarInt();
+        if (numFactors != fg.getNumFactors()) {
+            throw new IllegalStateException("Cached features do not match the factor graph: " + numFactors + " "
+                    + fg.getNumFactors());
+        }
+        for (int a=0; a<numFactors; a++) {
+            Factor f = fg.getFactor(a);
+            byte kind = in.readByte();
+            if (kind == KIND_OBS_FE) {
+                ((ObsFeExpFamFactor) f).setObsFeatures(CompactCoding.readFeatures(in));
+            } else if (kind == KIND_FE) {
+                FeExpFamFactor fef = (FeExpFamFactor) f;
+                int numConfigs = in.readVarInt();
+                for (int c=0; c<numConfigs; c++) {
+                    fef.setFeatures(c, CompactCoding.readFeatures(in));
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,222 @@
+package edu.jhu.pacaya.gm.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner;
+import edu.jhu.pacaya.util.cache.Codec;
+import edu.jhu.pacaya.util.cache.Codecs.JavaCodec;
+
+/**
+ * A file of encoded examples, which is read sequentially: each call to {@link #iterator()} starts a new pass over the
+ * file. Unlike the example stores, the examples are never held in memory all at once.
+ *
+ * The file holds the examples in order, each as its number of bytes followed by its bytes, and then a length of -1, so
+ * that a truncated file can be detected. It ends with the serialized codec of the examples and its number of bytes.
+ * The feature conjoiner of an {@link FgExampleCodec} is not serialized, so a file of examples with observation
+ * feature factors must be opened with the live conjoiner.
+ *
+ * @author mgormley
+ */
+public class FgExampleFileSource implements Iterable<LFgExample> {
+
+    private static final long MAGIC = 0x7061636146675346L;
+    private static final int END = -1;
+    private static final int SIZE_OF_INT = Integer.SIZE / 8;
+    private static final int SIZE_OF_LONG = Long.SIZE / 8;
+    // The size of the read-ahead buffer of each pass.
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final File path;
+    private final Codec codec;
+    // The position of the first example in the file.
+    private final long start;
+    // The number of examples, or -1 if not yet counted.
+    private int size = -1;
+
+    /**
+     * Opens a file written by {@link #write(File, Iterator, Codec)}, whose examples have no factors which reference a
+     * feature conjoiner.
+     *
+     * @param path The file.
+     */
+    public FgExampleFileSource(File path) {
+        this(path, null);
+    }
+
+    /**
+     * Opens a file written by {@link #write(File, Iterator, Codec)}.
+     *
+     * @param path The file.
+     * @param ofc The live conjoiner to be shared by the decoded factors (see {@link FgExampleCodec}), or null if none.
+     */
+    public FgExampleFileSource(File path, ObsFeatureConjoiner ofc) {
+        this.path = path;
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+            if (raf.length() < SIZE_OF_LONG + 2 * SIZE_OF_INT || raf.readLong() != MAGIC) {
+                throw new IllegalArgumentException("Not a file of examples: " + path);
+            }
+            raf.seek(raf.length() - SIZE_OF_INT);
+            int codecLength = raf.readInt();
+            if (codecLength < 0 || codecLength > raf.length() - SIZE_OF_LONG - 2 * SIZE_OF_INT) {
+                throw new IllegalStateException("Truncated file of examples: " + path);
+            }
+            byte[] codecBytes = new byte[codecLength];
+            raf.seek(raf.length() - SIZE_OF_INT - codecLength);
+            raf.readFully(codecBytes);
+            this.codec = (Codec) new JavaCodec().decode(codecBytes);
+            FgExampleCodec fgCodec = FgExampleCodec.find(codec);
+            if (fgCodec != null && ofc != null) {
+                fgCodec.setConjoiner(ofc);
+            }
+            this.start = SIZE_OF_LONG;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes the examples to a file.
+     *
+     * @param path The file.
+     * @param examples The examples.
+     * @param codec The codec with which to encode the examples.
+     * @return The number of examples written.
+     */
+    public static int write(File path, Iterator<LFgExample> examples, Codec codec) {
+        if (path.getParentFile() != null) {
+            path.getParentFile().mkdirs();
+        }
+        int n = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path),
+                BUFFER_SIZE))) {
+            out.writeLong(MAGIC);
+            while (examples.hasNext()) {
+                byte[] bytes = codec.encode(examples.next());
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                n++;
+            }
+            out.writeInt(END);
+            byte[] codecBytes = new JavaCodec().encode(codec);
+            out.write(codecBytes);
+            out.writeInt(codecBytes.length);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return n;
+    }
+
+    /** Gets the number of examples, counting them (without decoding them) on the first call. */
+    public synchronized int size() {
+        if (size < 0) {
+            try (RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+                int n = 0;
+                long pos = start;
+                raf.seek(pos);
+                int len;
+                while ((len = raf.readInt()) != END) {
+                    pos += SIZE_OF_INT + len;
+                    raf.seek(pos);
+                    n++;
+                }
+                size = n;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return size;
+    }
+
+    /** Gets the file. */
+    public File getPath() {
+        return path;
+    }
+
+    /**
+     * Starts a new pass over the examples. The file is closed when the pass is finished, or when the iterator is
+     * closed.
+     */
+    @Override
+    public Iterator<LFgExample> iterator() {
+        return new FileIterator();
+    }
+
+    /** Reads the examples of one pass over the file. */
+    private class FileIterator implements Iterator<LFgExample>, Closeable {
+
+        private DataInputStream in;
+        // The bytes of the next example, or null if there are none.
+        private byte[] next;
+
+        public FileIterator() {
+            try {
+                FileInputStream fis = new FileInputStream(path);
+                fis.getChannel().position(start);
+                in = new DataInputStream(new BufferedInputStream(fis, BUFFER_SIZE));
+                readNext();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void readNext() throws IOException {
+            int len;
+            try {
+                len = in.readInt();
+            } catch (EOFException e) {
+                throw new IllegalStateException("Truncated file of examples: " + path);
+            }
+            if (len == END) {
+                next = null;
+                close();
+            } else {
+                next = new byte[len];
+                in.readFully(next);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public LFgExample next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            byte[] bytes = next;
+            try {
+                readNext();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return (LFgExample) codec.decode(bytes);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            next = null;
+            in.close();
+        }
+
+    }
+
+}
@@ -1,11 +1,30 @@
 package edu.jhu.pacaya.gm.data;
 
 import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.jhu.pacaya.gm.feat.FeatureExtractionProfiler;
+import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner;
+import edu.jhu.pacaya.util.OrderedGrowth;
 import edu.jhu.pacaya.util.Prm;
+import edu.jhu.pacaya.util.Threads;
+import edu.jhu.pacaya.util.cache.CachedConcurrentFastDiskStore;
+import edu.jhu.pacaya.util.cache.Codec;
+import edu.jhu.pacaya.util.cache.Codecs;
+import edu.jhu.pacaya.util.cache.Codecs.CodecType;
+import edu.jhu.pacaya.util.cache.ConcurrentFastDiskStore.ReadMode;
+import edu.jhu.pacaya.util.cache.GzipMap;
+import edu.jhu.pacaya.util.cache.WeightedCache;
+import edu.jhu.pacaya.util.cache.WeightedCache.ByteArrayWeigher;
 import edu.jhu.prim.util.Timer;
 
 /**
@@ -17,7 +36,7 @@ import edu.jhu.prim.util.Timer;
 public class FgExampleListBuilder {
 
     public enum CacheType {
-        MEMORY_STORE, CACHE, DISK_STORE, NONE
+        MEMORY_STORE, CACHE, DISK_STORE, TIERED, NONE
     }
 
     /** Parameters for FgExamplesBuilder. */
@@ -34,14 +53,109 @@ public class FgExampleListBuilder {
          */
         public int maxEntriesInMemory = -1;
 
+        /**
+         * The maximum estimated number of bytes of examples to keep in a
+         * memory-cache, or -1 to bound the cache by maxEntriesInMemory
+         * instead. If the cache encodes the examples, this bounds the encoded
+         * bytes.
+         */
+        public long maxBytesInMemory = -1;
+
+        /**
+         * For the TIERED store, the maximum bytes of the encoded examples to
+         * keep in memory, or -1 to use an eighth of the maximum heap size. The
+         * live examples are bounded by maxBytesInMemory, or by a quarter of
+         * the maximum heap size if it is -1.
+         */
+        public long maxWarmBytesInMemory = -1;
+
+        /**
+         * For the TIERED store, the number of reads of an example before it is
+         * kept as a live object.
+         */
+        public int hotMinReads = 2;
+
         /** Whether to GZip the disk cache. */
         public boolean gzipped = false;
 
+        /**
+         * The codec with which to encode the examples for the disk store (or
+         * the cache), or null to use GZIP or Java serialization according to
+         * gzipped.
+         */
+        public CodecType codecType = null;
+
+        /** The compression level for the DEFLATE codec (see Deflater). */
+        public int deflateLevel = Deflater.BEST_SPEED;
+
+        /**
+         * Whether the codec encodes the examples with the compact structural
+         * encoding of FgExampleCodec (before any compression), instead of
+         * Java serialization.
+         */
+        public boolean compactEncoding = false;
+
+        /**
+         * The live feature conjoiner referenced by the observation feature
+         * factors of the examples, which is shared by the factors decoded with
+         * the compact encoding. It is required to reopen a persistent disk
+         * store of such examples, since the conjoiner is not serialized with
+         * the codec. If null, the first conjoiner encoded is shared.
+         */
+        public ObsFeatureConjoiner conjoiner = null;
+
+        /**
+         * For the MEMORY_STORE, whether to keep the examples encoded in
+         * off-heap memory (always with the compact encoding of
+         * FgExampleCodec, and compressed only if codecType is set), rather
+         * than as live objects on the heap.
+         */
+        public boolean offHeap = false;
+
         /** The directory in which the disk store file should be created. */
         public File cacheDir = new File(".");
+
+        /**
+         * How the disk store reads examples: with positional reads, from memory-mapped segments, or from blocks read
+         * ahead (which suits training with a block-shuffled order, see CrfTrainerPrm.shuffleBlockSize).
+         */
+        public ReadMode diskReadMode = ReadMode.CHANNEL;
+
+        /**
+         * The file for a persistent disk store, which is reused by later runs
+         * (instead of constructing the examples again), or null to use a
+         * temporary file.
+         */
+        public File diskStorePath = null;
+
+        /**
+         * A hash of the source data and the feature configuration (see
+         * ContentHash), which must match for a persistent disk store to be
+         * reused. Required if diskStorePath is set.
+         */
+        public String diskStoreHash = null;
+
+        /**
+         * Whether to cache the feature vectors of each example in a compact form (see
+         * {@link FgExampleFeatureCache}), so that rebuilding an example does not rerun feature extraction.
+         */
+        public boolean cacheFeatures = false;
+
+        /** Whether the feature cache should store the feature values as floats. */
+        public boolean quantizeFeatures = false;
+
+        /**
+         * Whether to profile the feature extraction done while building the list (i.e. while filling a store) by
+         * template (see {@link FeatureExtractionProfiler}). Profiling is restored to its previous state afterwards,
+         * so examples constructed lazily are only profiled if it is enabled with
+         * {@link FeatureExtractionProfiler#setEnabled(boolean)}.
+         */
+        public boolean profileFeatureExtraction = false;
     }
 
     private static final Logger log = LoggerFactory.getLogger(FgExampleListBuilder.class);
+    // The number of examples per thread which may be constructed ahead of the store.
+    private static final int PENDING_PER_THREAD = 4;
 
     private FgExamplesBuilderPrm prm;
 
@@ -50,14 +164,70 @@ public class FgExampleListBuilder {
     }
 
     public FgExampleList getInstance(FgExampleList data) {
+        boolean wasProfiling = FeatureExtractionProfiler.isEnabled();
+        if (prm.profileFeatureExtraction) {
+            FeatureExtractionProfiler.setEnabled(true);
+        }
+        try {
+            return buildInstance(data);
+        } finally {
+            FeatureExtractionProfiler.setEnabled(wasProfiling);
+        }
+    }
+
+    private FgExampleList buildInstance(FgExampleList data) {
+        if (prm.cacheFeatures) {
+            data = new FgExampleFeatureCache(data, prm.quantizeFeatures);
+        }
         if (prm.cacheType == CacheType.CACHE) {
-            data = new FgExampleCache(data, prm.maxEntriesInMemory, prm.gzipped);
+            // The cache keeps the examples themselves unless a codec is requested.
+            Codec codec = (prm.codecType == null && !prm.gzipped && !prm.compactEncoding) ? null : getCodec();
+            if (prm.maxBytesInMemory > 0 && codec != null) {
+                data = new FgExampleCache(data, new GzipMap<Integer, LFgExample>(new WeightedCache<Integer, byte[]>(
+                        prm.maxBytesInMemory, new ByteArrayWeigher()), codec));
+            } else if (prm.maxBytesInMemory > 0) {
+                data = new FgExampleCache(data, getMemoryCache());
+            } else {
+                data = new FgExampleCache(data, prm.maxEntriesInMemory, codec);
+            }
         } else if (prm.cacheType == CacheType.MEMORY_STORE) {
-            FgExampleStore store = new FgExampleMemoryStore();
+            FgExampleStore store;
+            if (prm.offHeap) {
+                CodecType type = (prm.codecType == null) ? CodecType.JAVA : prm.codecType;
+                store = new FgExampleOffHeapStore(Codecs.get(type, prm.deflateLevel,
+                        new FgExampleCodec(prm.conjoiner)));
+            } else {
+                store = new FgExampleMemoryStore();
+            }
             constructAndStoreAll(data, store);
             data = store;
         } else if (prm.cacheType == CacheType.DISK_STORE) {
-            FgExampleStore store = new FgExampleDiskStore(prm.cacheDir, prm.gzipped, prm.maxEntriesInMemory);
+            if (prm.diskStorePath != null) {
+                if (prm.diskStoreHash == null) {
+                    throw new IllegalStateException("diskStoreHash must be set when diskStorePath is set, so that a "
+                            + "store built from other data or features is not reused: " + prm.diskStorePath);
+                }
+                FgExampleDiskStore store = new FgExampleDiskStore(prm.diskStorePath, getCodec(), getMemoryCache(),
+                        prm.diskReadMode, prm.diskStoreHash);
+                if (!store.isReopened()) {
+                    constructAndStoreAll(data, store);
+                    store.finish();
+                }
+                data = store;
+            } else {
+                FgExampleStore store = new FgExampleDiskStore(prm.cacheDir, getCodec(), getMemoryCache(),
+                        prm.diskReadMode);
+                constructAndStoreAll(data, store);
+                data = store;
+            }
+        } else if (prm.cacheType == CacheType.TIERED) {
+            long maxMemory = Runtime.getRuntime().maxMemory();
+            long maxHotBytes = (prm.maxBytesInMemory > 0) ? prm.maxBytesInMemory : maxMemory / 4;
+            long maxWarmBytes = (prm.maxWarmBytesInMemory > 0) ? prm.maxWarmBytesInMemory : maxMemory / 8;
+            // The warm tier is only useful with a fast codec, so LZ4 is the default.
+            Codec codec = (prm.codecType == null) ? getCodec(CodecType.LZ4) : getCodec();
+            FgExampleStore store = new FgExampleTieredStore(prm.cacheDir, codec, maxHotBytes, maxWarmBytes,
+                    prm.hotMinReads, prm.diskReadMode);
             constructAndStoreAll(data, store);
             data = store;
         } else if (prm.cacheType == CacheType.NONE) {
@@ -69,21 +239,118 @@ public class FgExampleListBuilder {
         return data;
     }
 
+    /** Gets a threadsafe cache of examples, bounded by bytes or by number of entries. */
+    private Map<Integer, LFgExample> getMemoryCache() {
+        if (prm.maxBytesInMemory > 0) {
+            return new WeightedCache<Integer, LFgExample>(prm.maxBytesInMemory, new FgExampleWeigher());
+        }
+        return CachedConcurrentFastDiskStore.newCache(prm.maxEntriesInMemory);
+    }
+
+    private Codec getCodec() {
+        if (prm.codecType == null) {
+            return getCodec(prm.gzipped ? CodecType.GZIP : CodecType.JAVA);
+        }
+        return getCodec(prm.codecType);
+    }
+
+    private Codec getCodec(CodecType type) {
+        if (prm.compactEncoding) {
+            return Codecs.get(type, prm.deflateLevel, new FgExampleCodec(prm.conjoiner));
+        }
+        return Codecs.get(type, prm.deflateLevel);
+    }
+
+    /**
+     * Constructs each example and adds it to the store, in order. If the
+     * default thread pool has more than one thread, the examples are
+     * constructed in parallel, and added as they complete in order. The
+     * templates (see {@link edu.jhu.pacaya.gm.feat.FactorTemplateList}) and
+     * feature alphabets grown by the construction are grown in order of the
+     * examples (see {@link OrderedGrowth}), as if constructed serially. The
+     * alphabets are wrapped for this (see
+     * {@link edu.jhu.pacaya.gm.feat.FactorTemplateList#beginOrderedGrowth})
+     * until all the examples are constructed.
+     * 
+     * @param examples The examples to construct.
+     * @param store The store, or null to construct the examples and discard
+     *            them.
+     */
     public static void constructAndStoreAll(FgExampleList examples, FgExampleStore store) {
+        if (Threads.defaultPool != null && Threads.numThreads > 1) {
+            constructAndStoreAll(examples, store, Threads.defaultPool, Threads.numThreads);
+        } else {
+            constructAndStoreAll(examples, store, null, 1);
+        }
+    }
+
+    /**
+     * Constructs each example and adds it to the store, in order.
+     * 
+     * @param examples The examples to construct.
+     * @param store The store, or null to construct the examples and discard
+     *            them.
+     * @param pool The pool in which to construct the examples, or null to
+     *            construct them in this thread.
+     * @param numThreads The number of threads in the pool.
+     */
+    public static void constructAndStoreAll(final FgExampleList examples, FgExampleStore store,
+            ExecutorService pool, int numThreads) {
         Timer fgTimer = new Timer();
-        for (int i = 0; i < examples.size(); i++) {
-            if (i % 1000 == 0 && i > 0) {
-                log.debug("Preprocessed " + i + " examples...");
+        fgTimer.start();
+        int n = examples.size();
+        // The examples being constructed, in order. At most window examples are constructed ahead of the store.
+        ArrayDeque<Future<LFgExample>> pending = new ArrayDeque<>();
+        int window = PENDING_PER_THREAD * numThreads;
+        final OrderedGrowth growth = new OrderedGrowth();
+        int next = 0;
+        try {
+            for (int i = 0; i < n; i++) {
+                if (i % 1000 == 0 && i > 0) {
+                    log.debug("Preprocessed " + i + " examples...");
+                }
+                // Construct the example to update counter, and then discard it.
+                LFgExample ex;
+                if (pool == null) {
+                    ex = examples.get(i);
+                } else {
+                    while (next < n && next < i + window) {
+                        final int idx = next++;
+                        pending.add(pool.submit(new Callable<LFgExample>() {
+                            @Override
+                            public LFgExample call() {
+                                growth.begin(idx);
+                                try {
+                                    return examples.get(idx);
+                                } finally {
+                                    growth.end(idx);
+                                }
+                            }
+                        }));
+                    }
+                    ex = pending.poll().get();
+                }
+                if (store != null) {
+                    store.add(ex);
+                }
             }
-            // Construct the example to update counter, and then discard it.
-            fgTimer.start();
-            LFgExample ex = examples.get(i);
-            if (store != null) {
-                store.add(ex);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            for (Future<LFgExample> f : pending) {
+                f.cancel(true);
             }
-            fgTimer.stop();
+            growth.finish();
         }
+        fgTimer.stop();
         log.info("Time (ms) to construct factor graph: " + fgTimer.totMs());
+        log.info(String.format("Constructed %d examples with %d threads: %.1f examples/sec", n, numThreads,
+                n / Math.max(1e-3, fgTimer.totSec())));
+        if (FeatureExtractionProfiler.isEnabled()) {
+            FeatureExtractionProfiler.report("build");
+        }
     }
     
 }
@@ -0,0 +1,126 @@
+package edu.jhu.pacaya.gm.data;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.pacaya.util.cache.Codec;
+import edu.jhu.pacaya.util.cache.OffHeapArena;
+import edu.jhu.pacaya.util.report.Reporter;
+import edu.jhu.pacaya.util.report.ReporterManager;
+
+/**
+ * A mutable collection of instances for a graphical model, kept in memory but off the heap. Each example is encoded
+ * when it is added (e.g. with an {@link FgExampleCodec}, which packs the factor tables and the feature vectors), and
+ * the bytes are kept in an {@link OffHeapArena}. Each call to {@link #get(int)} decodes a new copy of the example.
+ *
+ * The heap holds only the address and length of each example, so a large dataset adds little to the work of the
+ * garbage collector. The store keeps an estimate of the heap bytes the examples would take as live objects (see
+ * {@link FgExampleWeigher}), for comparison with the off-heap bytes. Decoding makes each read slower than a read of
+ * an {@link FgExampleMemoryStore} (see FgExampleOffHeapStoreSpeedTest), so this store suits datasets which would
+ * otherwise crowd the heap.
+ *
+ * Examples can be read by many threads concurrently. The off-heap memory is released by {@link #close()}.
+ *
+ * @author mgormley
+ */
+public class FgExampleOffHeapStore implements FgExampleStore {
+
+    private static final Logger log = LoggerFactory.getLogger(FgExampleOffHeapStore.class);
+    private static final Reporter rep = Reporter.getReporter(FgExampleOffHeapStore.class);
+
+    private final OffHeapArena arena;
+    private final Codec codec;
+    private final FgExampleWeigher weigher = new FgExampleWeigher();
+    // The address and length of each example in the arena.
+    private long[] addresses = new long[16];
+    private int[] lengths = new int[16];
+    private int size = 0;
+    private long liveBytes = 0;
+
+    /**
+     * Constructor with chunks of the default size (see {@link OffHeapArena#DEFAULT_CHUNK_SIZE}).
+     *
+     * @param codec The codec with which to encode the examples.
+     */
+    public FgExampleOffHeapStore(Codec codec) {
+        this(codec, OffHeapArena.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param codec The codec with which to encode the examples.
+     * @param chunkSize The number of bytes in each chunk of off-heap memory.
+     */
+    public FgExampleOffHeapStore(Codec codec, int chunkSize) {
+        this.codec = codec;
+        this.arena = new OffHeapArena(chunkSize);
+    }
+
+    /** Adds an example. */
+    public synchronized void add(LFgExample example) {
+        byte[] bytes = codec.encode(example);
+        if (size == addresses.length) {
+            addresses = Arrays.copyOf(addresses, 2 * size);
+            lengths = Arrays.copyOf(lengths, 2 * size);
+        }
+        addresses[size] = arena.put(bytes);
+        lengths[size] = bytes.length;
+        size++;
+        liveBytes += weigher.weigh(example);
+    }
+
+    /** Gets a new copy of the i'th example. */
+    public LFgExample get(int i) {
+        long address;
+        int length;
+        synchronized (this) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("Invalid index: " + i);
+            }
+            address = addresses[i];
+            length = lengths[i];
+        }
+        // Decode outside of the lock, so that threads can decode concurrently.
+        return (LFgExample) codec.decode(arena.get(address, length));
+    }
+
+    /** Gets the number of examples. */
+    public synchronized int size() {
+        return size;
+    }
+
+    /** Gets the number of off-heap bytes allocated for the examples. */
+    public long getOffHeapBytes() {
+        return arena.getAllocatedBytes();
+    }
+
+    /** Gets the number of heap bytes used to index the examples. */
+    public synchronized long getHeapBytes() {
+        return (long) addresses.length * (Long.SIZE / 8) + (long) lengths.length * (Integer.SIZE / 8);
+    }
+
+    /** Gets the estimated heap bytes the examples would take as live objects (see {@link FgExampleWeigher}). */
+    public synchronized long getLiveBytesEstimate() {
+        return liveBytes;
+    }
+
+    /** Releases the off-heap memory. The store cannot be read afterwards. */
+    public void close() {
+        arena.close();
+    }
+
+    /** Logs and reports the heap and off-heap bytes. */
+    public void report() {
+        log.info(String.format("Off-heap store: examples = %d off-heap bytes = %d (used = %d) heap bytes = %d "
+                + "estimated live bytes = %d", size(), arena.getAllocatedBytes(), arena.getUsedBytes(),
+                getHeapBytes(), getLiveBytesEstimate()));
+        if (ReporterManager.isInitialized()) {
+            rep.report("offHeapBytes", arena.getAllocatedBytes());
+            rep.report("offHeapStoreHeapBytes", getHeapBytes());
+        }
+    }
+
+}
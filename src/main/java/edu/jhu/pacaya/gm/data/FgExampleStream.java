@@ -0,0 +1,245 @@
+package edu.jhu.pacaya.gm.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A collection of instances for a graphical model which are streamed from a source, one pass per epoch, rather than
+ * held in memory or on disk (e.g. for a corpus too large for either). The source is read through a bounded shuffle
+ * buffer: each example is drawn at random from the buffer, which is then refilled with the next example of the source.
+ *
+ * Only some examples are available at a time: those loaded by {@link #nextBatch(int)} or by a step of
+ * {@link #fullPass(int)}. Each example is identified by its position in the source, so the source must give the
+ * examples in the same order on every pass. An iterator over all the examples starts a new pass over the source.
+ *
+ * The order of each epoch is determined by the seed and the number of the epoch, so that training is reproducible.
+ *
+ * @author mgormley
+ */
+public class FgExampleStream implements FgExampleList {
+
+    private static final Logger log = LoggerFactory.getLogger(FgExampleStream.class);
+
+    /** An example and its position in the source. */
+    private static class Positioned {
+        private final int pos;
+        private final LFgExample ex;
+
+        Positioned(int pos, LFgExample ex) {
+            this.pos = pos;
+            this.ex = ex;
+        }
+    }
+
+    private final Iterable<LFgExample> source;
+    private final int numExamples;
+    private final int bufferSize;
+    private final long seed;
+    // The examples which are currently available, by position.
+    private volatile Map<Integer, LFgExample> loaded = new HashMap<>();
+    // The pass over the source for the current epoch, and its position.
+    private Iterator<LFgExample> pass = null;
+    private int passPos = 0;
+    // The shuffle buffer.
+    private final List<Positioned> buffer = new ArrayList<>();
+    private Random rand;
+    // The number of epochs started.
+    private int numEpochs = 0;
+
+    /**
+     * Constructor for a file of examples, whose size is counted from the file.
+     *
+     * @param source The file of examples.
+     * @param bufferSize The number of examples in the shuffle buffer. If 1, the examples are not shuffled.
+     * @param seed The seed for the shuffles.
+     */
+    public FgExampleStream(FgExampleFileSource source, int bufferSize, long seed) {
+        this(source, source.size(), bufferSize, seed);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param source The source of the examples (e.g. an {@link FgExampleFileSource}, or a reader which constructs
+     *            the examples from raw data), each of whose iterators is a new pass over the examples in the same
+     *            order. An iterator which is also {@link Closeable} is closed when its pass ends.
+     * @param numExamples The number of examples in the source.
+     * @param bufferSize The number of examples in the shuffle buffer. If 1, the examples are not shuffled.
+     * @param seed The seed for the shuffles.
+     */
+    public FgExampleStream(Iterable<LFgExample> source, int numExamples, int bufferSize, long seed) {
+        if (numExamples <= 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException("Invalid numExamples or bufferSize: " + numExamples + " "
+                    + bufferSize);
+        }
+        this.source = source;
+        this.numExamples = numExamples;
+        this.bufferSize = bufferSize;
+        this.seed = seed;
+    }
+
+    /**
+     * Loads the next examples of the shuffled order, which continues into the next epoch (i.e. a new pass over the
+     * source) as needed. The examples loaded before are no longer available.
+     *
+     * @param n The number of examples.
+     * @return The positions of the examples, which are now available from {@link #get(int)}.
+     */
+    public synchronized int[] nextBatch(int n) {
+        Map<Integer, LFgExample> batch = new HashMap<>();
+        int[] positions = new int[n];
+        for (int i=0; i<n; i++) {
+            Positioned p = nextShuffled();
+            batch.put(p.pos, p.ex);
+            positions[i] = p.pos;
+        }
+        loaded = batch;
+        return positions;
+    }
+
+    /** Draws the next example from the shuffle buffer. */
+    private Positioned nextShuffled() {
+        if (pass == null || (!pass.hasNext() && buffer.isEmpty())) {
+            startEpoch();
+        }
+        while (buffer.size() < bufferSize && pass.hasNext()) {
+            buffer.add(new Positioned(passPos++, pass.next()));
+        }
+        if (buffer.isEmpty()) {
+            throw new IllegalStateException("The source has no examples.");
+        }
+        // Remove an example at random, moving the last one into its place.
+        int k = rand.nextInt(buffer.size());
+        Positioned p = buffer.get(k);
+        buffer.set(k, buffer.get(buffer.size() - 1));
+        buffer.remove(buffer.size() - 1);
+        return p;
+    }
+
+    private void startEpoch() {
+        if (pass != null && passPos != numExamples) {
+            log.warn(String.format("The source gave %d examples, but expected %d", passPos, numExamples));
+        }
+        close(pass);
+        pass = source.iterator();
+        passPos = 0;
+        rand = new Random(seed + numEpochs);
+        numEpochs++;
+    }
+
+    /**
+     * Starts a pass over all the examples in the order of the source, without shuffling. This does not change the
+     * position in the shuffled order.
+     *
+     * @param partSize The number of examples to load at a time.
+     * @return An iterator whose each step loads the next examples (so that the examples loaded before are no longer
+     *         available) and returns their positions.
+     */
+    public Iterator<int[]> fullPass(final int partSize) {
+        final Iterator<LFgExample> iter = source.iterator();
+        return new Iterator<int[]>() {
+
+            private int pos = 0;
+
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            @Override
+            public int[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map<Integer, LFgExample> part = new HashMap<>();
+                while (part.size() < partSize && iter.hasNext()) {
+                    part.put(pos++, iter.next());
+                }
+                loaded = part;
+                int[] positions = new int[part.size()];
+                for (int i=0; i<positions.length; i++) {
+                    positions[i] = pos - positions.length + i;
+                }
+                if (!iter.hasNext()) {
+                    FgExampleStream.close(iter);
+                }
+                return positions;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+        };
+    }
+
+    private static void close(Iterator<LFgExample> iter) {
+        if (iter instanceof Closeable) {
+            try {
+                ((Closeable) iter).close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Gets the example at the i'th position of the source, which must have been loaded by the last call to
+     * {@link #nextBatch(int)} or step of {@link #fullPass(int)}.
+     */
+    @Override
+    public LFgExample get(int i) {
+        LFgExample ex = loaded.get(i);
+        if (ex == null) {
+            throw new IllegalStateException("Example is not loaded: " + i);
+        }
+        return ex;
+    }
+
+    /** Gets the number of examples in the source. */
+    @Override
+    public int size() {
+        return numExamples;
+    }
+
+    /** Gets the number of examples in the shuffle buffer. */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Gets the number of epochs started. */
+    public synchronized int getNumEpochs() {
+        return numEpochs;
+    }
+
+    /** Reads the first example of the source, on a new pass which is then closed. */
+    public LFgExample readFirst() {
+        Iterator<LFgExample> iter = source.iterator();
+        try {
+            if (!iter.hasNext()) {
+                throw new IllegalStateException("The source has no examples.");
+            }
+            return iter.next();
+        } finally {
+            close(iter);
+        }
+    }
+
+    /** Starts a new pass over the source. */
+    @Override
+    public Iterator<LFgExample> iterator() {
+        return source.iterator();
+    }
+
+}
@@ -0,0 +1,215 @@
+package edu.jhu.pacaya.gm.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.pacaya.util.cache.Codec;
+import edu.jhu.pacaya.util.cache.ConcurrentFastDiskStore;
+import edu.jhu.pacaya.util.cache.ConcurrentFastDiskStore.ReadMode;
+import edu.jhu.pacaya.util.cache.WeightedCache;
+import edu.jhu.pacaya.util.cache.WeightedCache.ByteArrayWeigher;
+import edu.jhu.pacaya.util.cache.WeightedCache.EvictionListener;
+import edu.jhu.pacaya.util.report.Reporter;
+import edu.jhu.pacaya.util.report.ReporterManager;
+
+/**
+ * A mutable collection of instances for a graphical model, kept in three tiers:
+ * <ul>
+ * <li>hot: the most frequently read examples, as live objects in memory.</li>
+ * <li>warm: examples encoded as bytes in memory (e.g. with a fast compressing
+ * codec).</li>
+ * <li>cold: all the examples, encoded on disk.</li>
+ * </ul>
+ * The hot and warm tiers are byte-bounded {@link WeightedCache}s.
+ *
+ * Each example is encoded once, when it is added. An example read from disk
+ * enters the warm tier, and an example read from the warm tier is promoted to
+ * the hot tier once it has been read at least hotMinReads times. An example
+ * evicted from the hot tier is demoted to the warm tier, and one evicted from
+ * the warm tier remains on disk. The read counts are halved after every four
+ * passes over the examples (i.e. every 4 * size() reads), so that they reflect
+ * the recent epochs.
+ *
+ * Examples can be read by many threads concurrently. The temporary file of the
+ * cold tier is deleted by {@link #close()}.
+ *
+ * @author mgormley
+ */
+public class FgExampleTieredStore implements FgExampleStore {
+
+    private static final Logger log = LoggerFactory.getLogger(FgExampleTieredStore.class);
+    private static final Reporter rep = Reporter.getReporter(FgExampleTieredStore.class);
+    // The number of passes over the examples between halvings of the read counts.
+    private static final int AGING_PASSES = 4;
+
+    private final WeightedCache<Integer, LFgExample> hot;
+    private final WeightedCache<Integer, byte[]> warm;
+    private final ConcurrentFastDiskStore<Integer, LFgExample> cold;
+    private final File cachePath;
+    private final Codec codec;
+    private final int hotMinReads;
+    // The number of reads of each example, halved every AGING_PASSES passes.
+    private volatile AtomicIntegerArray numReads = new AtomicIntegerArray(16);
+    private final AtomicLong numGets = new AtomicLong();
+    private final AtomicLong numHotHits = new AtomicLong();
+    private final AtomicLong numWarmHits = new AtomicLong();
+    private final AtomicLong numColdReads = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param cacheDir The directory in which to create a temporary file for the
+     *            cold tier.
+     * @param codec The codec with which to encode the examples of the warm and
+     *            cold tiers.
+     * @param maxHotBytes The maximum estimated bytes of the live examples in
+     *            the hot tier (see {@link FgExampleWeigher}).
+     * @param maxWarmBytes The maximum bytes of the encoded examples in the
+     *            warm tier.
+     * @param hotMinReads The minimum number of reads of an example before it
+     *            is promoted to the hot tier.
+     * @param readMode How to read the examples from disk.
+     */
+    public FgExampleTieredStore(File cacheDir, Codec codec, long maxHotBytes, long maxWarmBytes, int hotMinReads,
+            ReadMode readMode) {
+        this.codec = codec;
+        this.hotMinReads = hotMinReads;
+        this.hot = new WeightedCache<Integer, LFgExample>(maxHotBytes, new FgExampleWeigher());
+        this.warm = new WeightedCache<Integer, byte[]>(maxWarmBytes, new ByteArrayWeigher());
+        try {
+            this.cachePath = File.createTempFile("cache", ".binary", cacheDir);
+            cachePath.deleteOnExit();
+            this.cold = new ConcurrentFastDiskStore<Integer, LFgExample>(cachePath, codec, readMode);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        hot.setEvictionListener(new EvictionListener<Integer, LFgExample>() {
+            @Override
+            public void evicted(Integer i, LFgExample ex) {
+                // Demote the example to the warm tier.
+                if (!warm.containsKey(i)) {
+                    byte[] bytes = cold.getBytes(i);
+                    if (bytes != null) {
+                        warm.put(i, bytes);
+                    }
+                }
+            }
+        });
+    }
+
+    /** Adds an example. */
+    public synchronized void add(LFgExample example) {
+        int i = cold.size();
+        byte[] bytes = codec.encode(example);
+        if (i >= numReads.length()) {
+            AtomicIntegerArray tmp = new AtomicIntegerArray(2 * numReads.length());
+            for (int j=0; j<numReads.length(); j++) {
+                tmp.set(j, numReads.get(j));
+            }
+            numReads = tmp;
+        }
+        // The encoded bytes are at hand, so the example starts warm.
+        warm.put(i, bytes);
+        cold.putBytes(i, bytes);
+    }
+
+    /** Gets the i'th example. */
+    public LFgExample get(int i) {
+        if (i < 0 || i >= cold.size()) {
+            throw new IndexOutOfBoundsException("Invalid index: " + i);
+        }
+        int reads = countRead(i);
+        LFgExample ex = hot.get(i);
+        if (ex != null) {
+            numHotHits.incrementAndGet();
+            return ex;
+        }
+        byte[] bytes = warm.get(i);
+        if (bytes != null) {
+            numWarmHits.incrementAndGet();
+        } else {
+            numColdReads.incrementAndGet();
+            bytes = cold.getBytes(i);
+            warm.put(i, bytes);
+        }
+        ex = (LFgExample) codec.decode(bytes);
+        if (reads >= hotMinReads) {
+            // Promote the example to the hot tier, where it no longer needs its bytes.
+            hot.put(i, ex);
+            warm.remove(i);
+        }
+        return ex;
+    }
+
+    /** Records a read of the i'th example, and returns its number of reads. */
+    private int countRead(int i) {
+        AtomicIntegerArray reads = numReads;
+        long n = numGets.incrementAndGet();
+        int size = cold.size();
+        if (size > 0 && n % ((long) AGING_PASSES * size) == 0) {
+            // Age the counts.
+            for (int j=0; j<size; j++) {
+                reads.set(j, reads.get(j) >>> 1);
+            }
+        }
+        return reads.incrementAndGet(i);
+    }
+
+    /** Gets the number of examples. */
+    public int size() {
+        return cold.size();
+    }
+
+    /** Gets the hot tier. */
+    public WeightedCache<Integer, LFgExample> getHotTier() {
+        return hot;
+    }
+
+    /** Gets the warm tier. */
+    public WeightedCache<Integer, byte[]> getWarmTier() {
+        return warm;
+    }
+
+    /** Gets the number of reads from the disk. */
+    public long getNumColdReads() {
+        return numColdReads.get();
+    }
+
+    /** Closes and deletes the file of the cold tier, and empties the other tiers. */
+    public void close() {
+        try {
+            cold.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        hot.clear();
+        warm.clear();
+        if (!cachePath.delete()) {
+            log.warn("Unable to delete cache file: " + cachePath);
+        }
+    }
+
+    /** Gets the file of the cold tier. */
+    public File getCachePath() {
+        return cachePath;
+    }
+
+    /** Logs and reports the fraction of reads served by each tier. */
+    public void report() {
+        long gets = Math.max(1, numGets.get());
+        log.info(String.format("Tiered store: hot = %d examples / %d bytes, warm = %d examples / %d bytes, "
+                + "reads: hot = %.4f warm = %.4f cold = %.4f", hot.size(), hot.getWeight(), warm.size(),
+                warm.getWeight(), (double) numHotHits.get() / gets, (double) numWarmHits.get() / gets,
+                (double) numColdReads.get() / gets));
+        if (ReporterManager.isInitialized()) {
+            rep.report("tieredHotHitRate", (double) numHotHits.get() / gets);
+            rep.report("tieredColdReadRate", (double) numColdReads.get() / gets);
+        }
+    }
+
+}
@@ -0,0 +1,36 @@
+package edu.jhu.pacaya.gm.data;
+
+import edu.jhu.pacaya.gm.model.Factor;
+import edu.jhu.pacaya.gm.model.FactorGraph;
+import edu.jhu.pacaya.gm.model.VarTensor;
+import edu.jhu.pacaya.util.cache.WeightedCache.Weigher;
+
+/**
+ * Estimates the number of bytes used by an example from the sizes of its factor tables and the number of its
+ * variables and factors, for a byte-bounded {@link edu.jhu.pacaya.util.cache.WeightedCache}. Any cached feature
+ * vectors are not counted, so the estimate is a lower bound.
+ * 
+ * @author mgormley
+ */
+public class FgExampleWeigher implements Weigher<LFgExample> {
+
+    // Rough per-object costs, in bytes, of the variables, the factors and the edges of the bipartite graph.
+    private static final long BYTES_PER_VAR = 128;
+    private static final long BYTES_PER_FACTOR = 96;
+    private static final long BYTES_PER_EDGE = 32;
+    private static final long BYTES_PER_ENTRY = 8;
+
+    @Override
+    public long weigh(LFgExample ex) {
+        FactorGraph fg = ex.getFactorGraph();
+        long bytes = BYTES_PER_VAR * fg.getNumVars();
+        for (Factor f : fg.getFactors()) {
+            bytes += BYTES_PER_FACTOR + BYTES_PER_EDGE * f.getVars().size();
+            if (f instanceof VarTensor) {
+                bytes += BYTES_PER_ENTRY * ((VarTensor) f).size();
+            }
+        }
+        return bytes;
+    }
+
+}
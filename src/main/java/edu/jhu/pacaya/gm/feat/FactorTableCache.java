@@ -0,0 +1,215 @@
+package edu.jhu.pacaya.gm.feat;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.pacaya.gm.model.FgModel;
+import edu.jhu.pacaya.util.report.Reporter;
+import edu.jhu.pacaya.util.report.ReporterManager;
+
+/**
+ * Shares the score tables of {@link ObsCjExpFamFactor}s with identical observation features. The scores of such a
+ * factor depend only on its template, its observation feature vector and the model parameters, so the factors of a
+ * template with the same (frozen) observation features can share one array of scores.
+ *
+ * The tables are kept for one round of updates: a round is identified by the model and its
+ * {@link FgModel#getParamsVersion()}, and all tables are dropped when the round changes. A factor shares the values
+ * array of its table (see {@link edu.jhu.pacaya.autodiff.Tensor#setSharedValues(double[])}) and copies it before
+ * modifying it. Each table counts the factors which share it.
+ *
+ * Only the forward scores are shared: the expected feature counts of each factor are still computed from its own
+ * marginals, and so they accumulate correctly into the shared parameters.
+ *
+ * @author mgormley
+ */
+public class FactorTableCache {
+
+    private static final Logger log = LoggerFactory.getLogger(FactorTableCache.class);
+    private static final Reporter rep = Reporter.getReporter(FactorTableCache.class);
+
+    /** A table of scores, shared by the factors which reference it. */
+    public static class SharedTable {
+        private final double[] values;
+        private final AtomicInteger refCount = new AtomicInteger();
+
+        private SharedTable(double[] values) {
+            this.values = values;
+        }
+
+        /** Gets the scores, which must not be modified. */
+        public double[] getValues() {
+            return values;
+        }
+
+        /** Gets the number of factors which share this table. */
+        public int getRefCount() {
+            return refCount.get();
+        }
+
+        /** Records that a factor no longer shares this table. */
+        public void release() {
+            refCount.decrementAndGet();
+        }
+    }
+
+    /** The key of a table: the template and the observation features. */
+    private static class Key {
+        private final int templateId;
+        private final int[] idx;
+        private final double[] vals;
+        private final int used;
+        private final int hash;
+
+        Key(int templateId, FeatureVector obsFv) {
+            this.templateId = templateId;
+            this.idx = obsFv.getInternalIndices();
+            this.vals = obsFv.getInternalValues();
+            this.used = obsFv.getUsed();
+            int h = 31 * templateId + used;
+            for (int i=0; i<used; i++) {
+                h = 31 * h + idx[i];
+                long bits = Double.doubleToLongBits(vals[i]);
+                h = 31 * h + (int) (bits ^ (bits >>> 32));
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            if (hash != other.hash || templateId != other.templateId || used != other.used) {
+                return false;
+            }
+            for (int i=0; i<used; i++) {
+                if (idx[i] != other.idx[i] || Double.doubleToLongBits(vals[i]) != Double
+                        .doubleToLongBits(other.vals[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Map<Key, SharedTable> tables = new ConcurrentHashMap<>();
+    // The current round.
+    private FgModel model = null;
+    private int paramsVersion = -1;
+    // Statistics on the lookups.
+    private final AtomicLong numLookups = new AtomicLong();
+    private final AtomicLong numHits = new AtomicLong();
+    private long numRounds = 0;
+
+    /**
+     * Gets the table for a template and observation feature vector, adding a reference to it.
+     *
+     * @param model The model, which with its params version identifies the round.
+     * @param templateId The template.
+     * @param obsFv The observation features, which must be frozen (i.e. sorted and immutable).
+     * @return The table, or null if there is none for this round.
+     */
+    public SharedTable get(FgModel model, int templateId, FeatureVector obsFv) {
+        if (!obsFv.isFrozen()) {
+            return null;
+        }
+        checkRound(model);
+        numLookups.incrementAndGet();
+        SharedTable table = tables.get(new Key(templateId, obsFv));
+        if (table != null) {
+            numHits.incrementAndGet();
+            table.refCount.incrementAndGet();
+        }
+        return table;
+    }
+
+    /**
+     * Adds the table for a template and observation feature vector, adding a reference to it. If another thread
+     * added a table first, that table is returned instead.
+     *
+     * @param model The model, which with its params version identifies the round.
+     * @param templateId The template.
+     * @param obsFv The observation features, which must be frozen (i.e. sorted and immutable).
+     * @param values The scores, which must not be modified after this call.
+     * @return The table, or null if the features are not frozen.
+     */
+    public SharedTable put(FgModel model, int templateId, FeatureVector obsFv, double[] values) {
+        if (!obsFv.isFrozen()) {
+            return null;
+        }
+        checkRound(model);
+        SharedTable table = new SharedTable(values);
+        SharedTable prev = tables.putIfAbsent(new Key(templateId, obsFv), table);
+        if (prev != null) {
+            table = prev;
+        }
+        table.refCount.incrementAndGet();
+        return table;
+    }
+
+    /** Drops the tables if the round has changed. */
+    private synchronized void checkRound(FgModel model) {
+        if (this.model != model || this.paramsVersion != model.getParamsVersion()) {
+            if (this.model != null) {
+                logStats();
+            }
+            tables.clear();
+            this.model = model;
+            this.paramsVersion = model.getParamsVersion();
+            numRounds++;
+        }
+    }
+
+    /** Gets the number of tables in the current round. */
+    public int getNumTables() {
+        return tables.size();
+    }
+
+    /** Gets the number of lookups which found a table, over all rounds. */
+    public long getNumHits() {
+        return numHits.get();
+    }
+
+    /** Gets the number of lookups, over all rounds. */
+    public long getNumLookups() {
+        return numLookups.get();
+    }
+
+    private void logStats() {
+        long refs = 0;
+        long sharedBytes = 0;
+        for (SharedTable table : tables.values()) {
+            int count = table.getRefCount();
+            refs += count;
+            sharedBytes += Math.max(0, count - 1) * 8L * table.values.length;
+        }
+        log.debug(String.format("Shared factor tables for round %d: tables = %d references = %d bytes saved = %d",
+                numRounds, tables.size(), refs, sharedBytes));
+    }
+
+    /** Logs and reports the fraction of lookups which found a shared table. */
+    public synchronized void report() {
+        logStats();
+        double hitRate = (double) numHits.get() / Math.max(1, numLookups.get());
+        log.info(String.format("Shared factor tables: rounds = %d lookups = %d hit rate = %.4f", numRounds,
+                numLookups.get(), hitRate));
+        if (ReporterManager.isInitialized()) {
+            rep.report("sharedTableHitRate", hitRate);
+        }
+    }
+
+}
@@ -1,5 +1,8 @@
 package edu.jhu.pacaya.gm.feat;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -9,7 +12,9 @@ import org.apache.commons.lang3.StringUtils;
 import edu.jhu.pacaya.gm.model.Var;
 import edu.jhu.pacaya.gm.model.VarConfig;
 import edu.jhu.pacaya.gm.model.VarSet;
-import edu.jhu.pacaya.util.FeatureNames;
+import edu.jhu.pacaya.util.FeatureAlphabet;
+import edu.jhu.pacaya.util.FeatureAlphabets;
+import edu.jhu.pacaya.util.files.BinaryStreams;
 
 public class FactorTemplate implements Serializable {
 
@@ -18,7 +23,7 @@ public class FactorTemplate implements Serializable {
     // The number of possible assignments for the variables in this feature template.
     private int numConfigs;
     // The alphabet of observation function features.
-    private FeatureNames alphabet;
+    private FeatureAlphabet alphabet;
     // The unique identifier for this template.
     private Object key;
     // The first VarSet used to construct this template. These vars are NOT
@@ -26,7 +31,7 @@ public class FactorTemplate implements Serializable {
     // Accordingly, we use this to construct the state names for a given configuration.
     private VarSet vars;
     
-    public FactorTemplate(VarSet vars, FeatureNames alphabet, Object key) {
+    public FactorTemplate(VarSet vars, FeatureAlphabet alphabet, Object key) {
         super();
         this.numConfigs = vars.calcNumConfigs();
         this.alphabet = alphabet;
@@ -45,10 +50,15 @@ public class FactorTemplate implements Serializable {
         return numConfigs;
     }
     
-    public FeatureNames getAlphabet() {
+    public FeatureAlphabet getAlphabet() {
         return alphabet;
     }
 
+    /** Replaces the alphabet (e.g. with a thread safe copy). */
+    void setAlphabet(FeatureAlphabet alphabet) {
+        this.alphabet = alphabet;
+    }
+
     public Object getKey() {
         return key;
     }
@@ -76,4 +86,32 @@ public class FactorTemplate implements Serializable {
         return vars;
     }
 
+    /** Writes this template in the binary format of {@link BinaryStreams}. */
+    public void writeBinary(DataOutputStream out) throws IOException {
+        BinaryStreams.writeObject(out, key);
+        out.writeInt(vars.size());
+        for (Var v : vars) {
+            out.writeByte(v.getType().ordinal());
+            out.writeInt(v.getNumStates());
+            BinaryStreams.writeString(out, v.getName());
+            BinaryStreams.writeStringList(out, v.getStateNames());
+        }
+        alphabet.writeBinary(out);
+    }
+
+    /** Reads a template written by {@link #writeBinary(DataOutputStream)}. */
+    public static FactorTemplate readBinary(DataInputStream in) throws IOException {
+        Object key = BinaryStreams.readObject(in);
+        Var[] tmpVars = new Var[in.readInt()];
+        for (int i=0; i<tmpVars.length; i++) {
+            Var.VarType type = Var.VarType.values()[in.readByte()];
+            int numStates = in.readInt();
+            String name = BinaryStreams.readString(in);
+            List<String> stateNames = BinaryStreams.readStringList(in);
+            tmpVars[i] = new Var(type, numStates, name, stateNames);
+        }
+        FeatureAlphabet alphabet = FeatureAlphabets.readBinary(in);
+        return new FactorTemplate(new VarSet(tmpVars), alphabet, key);
+    }
+
 }
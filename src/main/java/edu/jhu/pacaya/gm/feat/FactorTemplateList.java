@@ -1,8 +1,11 @@
 package edu.jhu.pacaya.gm.feat;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,30 +14,118 @@ import edu.jhu.pacaya.gm.model.Factor;
 import edu.jhu.pacaya.gm.model.FactorGraph;
 import edu.jhu.pacaya.gm.model.TemplateFactor;
 import edu.jhu.pacaya.gm.model.Var;
+import edu.jhu.pacaya.util.ConcurrentFeatureNames;
 import edu.jhu.pacaya.util.CountingFeatureNames;
+import edu.jhu.pacaya.util.FeatureAlphabet;
 import edu.jhu.pacaya.util.FeatureNames;
+import edu.jhu.pacaya.util.HashedFeatureNames;
+import edu.jhu.pacaya.util.OrderedGrowth;
 import edu.jhu.prim.bimap.IntObjectBimap;
 
 public class FactorTemplateList implements Serializable {
 
     private static final long serialVersionUID = 5880428795836008068L;
     private static final Logger log = LoggerFactory.getLogger(FactorTemplateList.class); 
+    // Copy-on-write, so that the templates can be read while examples constructed by other threads add templates.
     private List<FactorTemplate> fts;
     private boolean isGrowing;  
     private IntObjectBimap<Object> templateKeyAlphabet;
     private boolean useCountingAlphabets;
+    private boolean useConcurrentAlphabets = false;
+    private int featureHashMod = 0;
+    private boolean trackHashCollisions = false;
+    /** The parallel pass which is growing the alphabets, or null if there is none. */
+    private transient OrderedGrowth growth = null;
 
     public FactorTemplateList() {
         this(false);
     }
     
     public FactorTemplateList(boolean useCountingAlphabets) {
-        fts = new ArrayList<FactorTemplate>();
+        fts = new CopyOnWriteArrayList<FactorTemplate>();
         isGrowing = true;
         templateKeyAlphabet = new IntObjectBimap<Object>();
         this.useCountingAlphabets = useCountingAlphabets;
     }
 
+    /**
+     * Sets whether the alphabets of templates added by lookupTemplateIds() are thread safe (see
+     * {@link ConcurrentFeatureNames}), for feature extraction by multiple threads. If true, the growing alphabets of
+     * the existing templates are also replaced by thread safe copies, so callers should not hold on to them.
+     */
+    public void setUseConcurrentAlphabets(boolean useConcurrentAlphabets) {
+        this.useConcurrentAlphabets = useConcurrentAlphabets;
+        if (useConcurrentAlphabets) {
+            for (FactorTemplate ft : fts) {
+                FeatureAlphabet alphabet = ft.getAlphabet();
+                if (!alphabet.isGrowing()) {
+                    continue;
+                }
+                if (alphabet instanceof CountingFeatureNames) {
+                    ft.setAlphabet(new ConcurrentFeatureNames((CountingFeatureNames) alphabet));
+                } else if (alphabet instanceof FeatureNames) {
+                    ft.setAlphabet(new ConcurrentFeatureNames((FeatureNames) alphabet));
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the number of buckets of the hashed alphabets (see {@link HashedFeatureNames}) of templates added by
+     * lookupTemplateIds(), or 0 to use alphabets which store the features. Hashed alphabets never grow, and take
+     * precedence over counting and concurrent alphabets.
+     * 
+     * @param featureHashMod The number of buckets, or 0 to not hash the features.
+     * @param trackCollisions Whether the hashed alphabets count their collisions.
+     */
+    public void setFeatureHashMod(int featureHashMod, boolean trackCollisions) {
+        this.featureHashMod = featureHashMod;
+        this.trackHashCollisions = trackCollisions;
+    }
+
+    /**
+     * Wraps the growing alphabets (see {@link OrderedGrowth#wrap(edu.jhu.pacaya.util.FeatureAlphabet)}), and those of
+     * the templates added later, so that they are grown in order by the tasks of a parallel pass. The alphabets are
+     * unwrapped once the pass is finished (see {@link OrderedGrowth#finish()}).
+     */
+    public synchronized void beginOrderedGrowth(OrderedGrowth growth) {
+        if (this.growth == growth) {
+            return;
+        }
+        endOrderedGrowth();
+        this.growth = growth;
+        for (FactorTemplate ft : fts) {
+            ft.setAlphabet(growth.wrap(ft.getAlphabet()));
+        }
+        growth.onFinish(new Runnable() {
+            @Override
+            public void run() {
+                endOrderedGrowth();
+            }
+        });
+    }
+
+    /** Unwraps the alphabets wrapped by {@link #beginOrderedGrowth(OrderedGrowth)}. */
+    public synchronized void endOrderedGrowth() {
+        if (growth == null) {
+            return;
+        }
+        for (FactorTemplate ft : fts) {
+            ft.setAlphabet(OrderedGrowth.unwrap(ft.getAlphabet()));
+        }
+        growth = null;
+    }
+
+    /** Whether there are templates and all of their alphabets are hashed, so that they never need to grow. */
+    public boolean hasOnlyHashedAlphabets() {
+        for (FactorTemplate ft : fts) {
+            if (!(ft.getAlphabet() instanceof HashedFeatureNames)) {
+                return false;
+            }
+        }
+        return fts.size() > 0;
+    }
+
     public FactorTemplate get(int i) {
         return fts.get(i);
     }
@@ -77,7 +168,18 @@ public class FactorTemplateList implements Serializable {
         }
     }
 
+    /**
+     * Looks up the template of each template factor, adding a template for each new template key. While the current
+     * thread is running a task of an {@link OrderedGrowth} (e.g. in
+     * {@link edu.jhu.pacaya.gm.data.FgExampleListBuilder#constructAndStoreAll}), the lookup is thread safe and a new
+     * template is only added once all the earlier tasks have ended, so the template ids do not depend on the number of
+     * threads. The alphabets are then also grown in order (see {@link #beginOrderedGrowth(OrderedGrowth)}).
+     */
     public void lookupTemplateIds(FactorGraph fg) {
+        OrderedGrowth current = OrderedGrowth.current();
+        if (current != null) {
+            beginOrderedGrowth(current);
+        }
         for (Factor f : fg.getFactors()) {
             if (f instanceof TemplateFactor) {
                 lookupTemplateId((TemplateFactor) f);
@@ -111,10 +213,36 @@ public class FactorTemplateList implements Serializable {
     }
 
     private int lookupTemplateId(TemplateFactor f) {
+        if (!OrderedGrowth.isActive()) {
+            return lookupOrAddTemplateId(f);
+        }
+        synchronized (this) {
+            int index = templateKeyAlphabet.lookupIndex(f.getTemplateKey(), false);
+            if (index != -1 || !templateKeyAlphabet.isGrowing()) {
+                return lookupOrAddTemplateId(f);
+            }
+        }
+        OrderedGrowth.awaitTurn();
+        synchronized (this) {
+            return lookupOrAddTemplateId(f);
+        }
+    }
+
+    private int lookupOrAddTemplateId(TemplateFactor f) {
         int index = templateKeyAlphabet.lookupIndex(f.getTemplateKey());
         if (index >= fts.size()) {
             // Add the template.
-            FeatureNames alphabet = useCountingAlphabets ? new CountingFeatureNames() : new FeatureNames();
+            FeatureAlphabet alphabet;
+            if (featureHashMod > 0) {
+                alphabet = new HashedFeatureNames(featureHashMod, true, trackHashCollisions);
+            } else if (useConcurrentAlphabets) {
+                alphabet = new ConcurrentFeatureNames(useCountingAlphabets);
+            } else {
+                alphabet = useCountingAlphabets ? new CountingFeatureNames() : new FeatureNames();
+            }
+            if (growth != null) {
+                alphabet = growth.wrap(alphabet);
+            }
             fts.add(new FactorTemplate(f.getVars(), alphabet, f.getTemplateKey()));
         } else if (index == -1) {
             log.warn(String.format("Tried to look up unknown feature template %s", f.getTemplateKey()));
@@ -165,4 +293,28 @@ public class FactorTemplateList implements Serializable {
         return isGrowing;
     }    
     
+    /** Writes this template list in the binary format of {@link edu.jhu.pacaya.util.files.BinaryStreams}. */
+    public void writeBinary(DataOutputStream out) throws IOException {
+        out.writeBoolean(useCountingAlphabets);
+        out.writeBoolean(isGrowing);
+        out.writeInt(fts.size());
+        for (FactorTemplate ft : fts) {
+            ft.writeBinary(out);
+        }
+    }
+
+    /** Reads a template list written by {@link #writeBinary(DataOutputStream)}. */
+    public static FactorTemplateList readBinary(DataInputStream in) throws IOException {
+        FactorTemplateList fts = new FactorTemplateList(in.readBoolean());
+        boolean isGrowing = in.readBoolean();
+        int numTemplates = in.readInt();
+        for (int t=0; t<numTemplates; t++) {
+            fts.add(FactorTemplate.readBinary(in));
+        }
+        if (!isGrowing) {
+            fts.stopGrowth();
+        }
+        return fts;
+    }
+
 }
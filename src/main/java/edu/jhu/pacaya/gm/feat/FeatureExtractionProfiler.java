@@ -0,0 +1,220 @@
+package edu.jhu.pacaya.gm.feat;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.pacaya.util.FeatureAlphabet;
+import edu.jhu.pacaya.util.MergedFeatureNames;
+import edu.jhu.pacaya.util.OrderedFeatureNames;
+import edu.jhu.pacaya.util.OrderedGrowth;
+import edu.jhu.pacaya.util.report.Reporter;
+import edu.jhu.pacaya.util.report.ReporterManager;
+
+/**
+ * Attributes the cost of feature extraction to each factor template (for {@link ObsFeExpFamFactor}s) or feature
+ * extractor class (for other factors): the time, the number of calls, the number of features emitted, the bytes
+ * allocated and the number of features added to the template's alphabet (which is not measured for other factors).
+ * The bytes and the features added are counted per thread, so they are not inflated by other threads extracting at
+ * the same time: during a parallel pass, the alphabet's wrapper (see {@link OrderedGrowth}) tells the features added
+ * by the current thread apart.
+ *
+ * Profiling is off by default, and is turned on for all threads with {@link #setEnabled(boolean)}. The statistics
+ * accumulate until {@link #clear()}. Each call to {@link #report(String)} logs the statistics of one phase (e.g. the
+ * alphabet-building pass, or the construction of the examples), i.e. those accumulated since the previous report, as
+ * a table and reports them to the {@link Reporter} (once the {@link ReporterManager} is initialized) under keys which
+ * start with the phase. The allocated bytes are only measured on JVMs which support per-thread allocation counters.
+ *
+ * @author mgormley
+ */
+public class FeatureExtractionProfiler {
+
+    private static final Logger log = LoggerFactory.getLogger(FeatureExtractionProfiler.class);
+    private static final Reporter rep = Reporter.getReporter(FeatureExtractionProfiler.class);
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    private static volatile boolean enabled = false;
+    private static final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    /** The statistics for one template or extractor. */
+    private static class Stats {
+        private final String key;
+        private final AtomicLong numCalls = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+        private final AtomicLong numFeats = new AtomicLong();
+        private final AtomicLong allocBytes = new AtomicLong();
+        private final AtomicLong alphabetGrowth = new AtomicLong();
+        // The values at the previous report. Guarded by the FeatureExtractionProfiler class.
+        private long[] reported = new long[5];
+
+        Stats(String key) {
+            this.key = key;
+        }
+
+        /** Gets the values since the previous report, and marks them as reported. */
+        long[] takeUnreported() {
+            long[] cur = new long[] { numCalls.get(), nanos.get(), numFeats.get(), allocBytes.get(),
+                    alphabetGrowth.get() };
+            long[] delta = new long[cur.length];
+            for (int i=0; i<cur.length; i++) {
+                delta[i] = cur[i] - reported[i];
+            }
+            reported = cur;
+            return delta;
+        }
+    }
+
+    /** A single extraction being timed on the current thread. */
+    public static class Probe {
+        private final FeatureAlphabet alphabet;
+        private final long numAddedStart;
+        private final long allocStart;
+        private final long start;
+
+        private Probe(FeatureAlphabet alphabet) {
+            this.alphabet = alphabet;
+            this.numAddedStart = getNumAdded(alphabet);
+            this.allocStart = getAllocatedBytes();
+            this.start = System.nanoTime();
+        }
+
+        /** Ends the extraction, attributing its cost to the given template key or extractor. */
+        public void stop(Object key, FeatureVector fv) {
+            long nanos = System.nanoTime() - start;
+            long alloc = getAllocatedBytes() - allocStart;
+            Stats s = stats.computeIfAbsent(String.valueOf(key), Stats::new);
+            s.numCalls.incrementAndGet();
+            s.nanos.addAndGet(nanos);
+            s.numFeats.addAndGet(fv.getUsed());
+            s.allocBytes.addAndGet(alloc);
+            s.alphabetGrowth.addAndGet(getNumAdded(alphabet) - numAddedStart);
+        }
+    }
+
+    private FeatureExtractionProfiler() { }
+
+    /** Turns profiling on or off. */
+    public static void setEnabled(boolean enabled) {
+        FeatureExtractionProfiler.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts timing an extraction on the current thread.
+     * 
+     * @param alphabet The alphabet to which the extraction adds features, or null if it is not known.
+     */
+    public static Probe start(FeatureAlphabet alphabet) {
+        return new Probe(alphabet);
+    }
+
+    /** Clears the statistics. */
+    public static synchronized void clear() {
+        stats.clear();
+    }
+
+    /** Gets the number of extractions for a template key or extractor, or 0 if there were none. */
+    public static long getNumCalls(Object key) {
+        Stats s = stats.get(String.valueOf(key));
+        return (s == null) ? 0 : s.numCalls.get();
+    }
+
+    /** Gets the number of features emitted for a template key or extractor, or 0 if there were none. */
+    public static long getNumFeats(Object key) {
+        Stats s = stats.get(String.valueOf(key));
+        return (s == null) ? 0 : s.numFeats.get();
+    }
+
+    /** Gets the number of features added to any alphabet for a template key or extractor, or 0 if there were none. */
+    public static long getAlphabetGrowth(Object key) {
+        Stats s = stats.get(String.valueOf(key));
+        return (s == null) ? 0 : s.alphabetGrowth.get();
+    }
+
+    /**
+     * Logs a table of the statistics accumulated since the previous report, in decreasing order of time, and reports
+     * them.
+     *
+     * @param phase The name of the phase whose extractions are reported (e.g. "init"), which labels the table and
+     *            prefixes the keys reported.
+     */
+    public static synchronized void report(String phase) {
+        final Map<Stats, long[]> deltas = new HashMap<>();
+        long totNanos = 0;
+        for (Stats s : stats.values()) {
+            long[] delta = s.takeUnreported();
+            if (delta[0] > 0) {
+                deltas.put(s, delta);
+                totNanos += delta[1];
+            }
+        }
+        if (deltas.isEmpty()) {
+            return;
+        }
+        List<Stats> all = new ArrayList<>(deltas.keySet());
+        Collections.sort(all, new Comparator<Stats>() {
+            @Override
+            public int compare(Stats s1, Stats s2) {
+                return Long.compare(deltas.get(s2)[1], deltas.get(s1)[1]);
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Feature extraction by template (%s):%n%-40s %10s %10s %6s %12s %10s %12s %10s%n",
+                phase, "template", "calls", "ms", "%time", "feats", "feats/call", "alloc (MB)", "growth"));
+        for (Stats s : all) {
+            long[] d = deltas.get(s);
+            long calls = d[0];
+            double ms = d[1] / 1e6;
+            sb.append(String.format("%-40s %10d %10.1f %6.1f %12d %10.1f %12.1f %10d%n", s.key, calls, ms,
+                    100.0 * d[1] / Math.max(1, totNanos), d[2], (double) d[2] / Math.max(1, calls), d[3] / 1e6,
+                    d[4]));
+            if (ReporterManager.isInitialized()) {
+                rep.report(phase + s.key + "ExtractCalls", calls);
+                rep.report(phase + s.key + "ExtractMs", ms);
+                rep.report(phase + s.key + "ExtractFeats", d[2]);
+                rep.report(phase + s.key + "ExtractAllocBytes", d[3]);
+                rep.report(phase + s.key + "AlphabetGrowth", d[4]);
+            }
+        }
+        log.info(sb.toString());
+    }
+
+    /**
+     * Gets the number of features added to an alphabet, or those added by the current thread if the alphabet is
+     * being grown in order (within a task of a merging pass, the size of a {@link MergedFeatureNames} is already
+     * that of the task's view).
+     */
+    private static long getNumAdded(FeatureAlphabet alphabet) {
+        if (alphabet == null) {
+            return 0;
+        } else if (alphabet instanceof OrderedFeatureNames) {
+            return ((OrderedFeatureNames) alphabet).getNumAddedOnThread();
+        } else {
+            return alphabet.size();
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            long bytes = ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread
+                    .currentThread().getId());
+            // The counter is -1 if it is disabled.
+            return Math.max(0, bytes);
+        }
+        return 0;
+    }
+
+}
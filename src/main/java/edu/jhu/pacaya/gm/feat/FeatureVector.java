@@ -1,13 +1,29 @@
 package edu.jhu.pacaya.gm.feat;
 
+import java.util.Arrays;
+
+import edu.jhu.prim.sort.IntDoubleSort;
 import edu.jhu.prim.util.Lambda.FnIntDoubleToDouble;
 import edu.jhu.prim.util.Lambda.FnIntDoubleToVoid;
 import edu.jhu.prim.vector.IntDoubleUnsortedVector;
+import edu.jhu.prim.vector.IntDoubleVector;
 
+/**
+ * A sparse vector of features, which may contain duplicate indices.
+ * 
+ * Once the features are extracted, the vector can be frozen (see {@link #freeze()}): the indices are sorted and
+ * deduplicated, and the vector can no longer be modified. The dot products and scaled additions of FgModel are then
+ * computed in order of the parameter indices, and without multiplications if every value is 1.0.
+ */
 public class FeatureVector extends IntDoubleUnsortedVector {
 
     private static final long serialVersionUID = 1L;
 
+    // Whether the indices are sorted and unique, and the vector can no longer be modified.
+    private boolean frozen = false;
+    // Whether this vector is frozen and every value is 1.0.
+    private boolean binary = false;
+
     /**
      * Large FeatureVectors (e.g. 20,000+ features) should almost always be
      * constructed via a FeatureVectorBuilder, which has much faster support for
@@ -42,8 +58,131 @@ public class FeatureVector extends IntDoubleUnsortedVector {
         return idx;
     }
     
+    /**
+     * Sorts the indices, sums the values of duplicate indices, and prevents further modification. Returns this vector.
+     * 
+     * The vector then owns trimmed copies of its arrays, so the arrays given to the constructor may be reused. Since
+     * the duplicates are merged, an index which was added more than once is afterwards a single entry (e.g. it counts
+     * as one occurrence for the feature count cutoff of ObsFeatureConjoiner).
+     */
+    public FeatureVector freeze() {
+        if (frozen) {
+            return this;
+        }
+        boolean sorted = true;
+        for (int i=1; i<top && sorted; i++) {
+            sorted = idx[i-1] < idx[i];
+        }
+        idx = Arrays.copyOf(idx, top);
+        vals = Arrays.copyOf(vals, top);
+        if (!sorted) {
+            IntDoubleSort.sortIndexAsc(idx, vals);
+            // Sum the values of duplicate indices.
+            int n = 0;
+            for (int i=0; i<top; i++) {
+                if (n > 0 && idx[n-1] == idx[i]) {
+                    vals[n-1] += vals[i];
+                } else {
+                    idx[n] = idx[i];
+                    vals[n] = vals[i];
+                    n++;
+                }
+            }
+            top = n;
+        }
+        binary = true;
+        for (int i=0; i<top && binary; i++) {
+            binary = (vals[i] == 1.0);
+        }
+        if (idx.length != top) {
+            idx = Arrays.copyOf(idx, top);
+            vals = Arrays.copyOf(vals, top);
+        }
+        compacted = true;
+        frozen = true;
+        return this;
+    }
+
+    /** Whether this vector has been frozen. */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /** Whether this vector has been frozen and every value is 1.0. */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /** Gets the first (smallest) index of a frozen vector, or Integer.MAX_VALUE if it is empty. */
+    public int getMinIdxFrozen() {
+        return (top == 0) ? Integer.MAX_VALUE : idx[0];
+    }
+
+    @Override
+    public double dot(double[] other) {
+        if (!binary) {
+            return super.dot(other);
+        }
+        double dot = 0;
+        for (int i=0; i<top; i++) {
+            dot += other[idx[i]];
+        }
+        return dot;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("Frozen feature vectors cannot be modified.");
+        }
+    }
+
+    @Override
+    public double set(int idx, double val) {
+        checkNotFrozen();
+        return super.set(idx, val);
+    }
+
+    @Override
+    public void add(int idx, double val) {
+        checkNotFrozen();
+        super.add(idx, val);
+    }
+
+    @Override
+    public void add(IntDoubleVector other) {
+        checkNotFrozen();
+        super.add(other);
+    }
+
+    @Override
+    public void subtract(IntDoubleVector other) {
+        checkNotFrozen();
+        super.subtract(other);
+    }
+
+    @Override
+    public void product(IntDoubleVector other) {
+        checkNotFrozen();
+        super.product(other);
+    }
+
+    @Override
+    public void scale(double multiplier) {
+        checkNotFrozen();
+        super.scale(multiplier);
+    }
+
+    @Override
+    public void clear() {
+        checkNotFrozen();
+        super.clear();
+    }
+
     // TODO: Move this to prim.
     public int getMaxIdx() {
+        if (frozen) {
+            return (top == 0) ? Integer.MIN_VALUE : idx[top-1];
+        }
         int max = Integer.MIN_VALUE;
         for (int i=0; i<this.top; i++) {
             if (idx[i] > max) {
@@ -55,6 +194,7 @@ public class FeatureVector extends IntDoubleUnsortedVector {
     
     @Override
     public void apply(FnIntDoubleToDouble function) {
+        checkNotFrozen();
         // Feature vectors never call: compact();
         for(int i=0; i<top; i++) {
             vals[i] = function.call(idx[i], vals[i]);
@@ -0,0 +1,57 @@
+package edu.jhu.pacaya.gm.feat;
+
+import edu.jhu.pacaya.gm.model.FeExpFamFactor;
+import edu.jhu.pacaya.util.HashedFeatureNames;
+
+/**
+ * Feature extractor which hashes string features straight to model parameter indices with signed hashing (see
+ * {@link HashedFeatureNames}). No alphabet of the features is kept, so the memory is bounded by the number of
+ * buckets. The number of buckets is declared to the {@link ObsFeatureConjoiner}, which includes at least that many
+ * model parameters.
+ * 
+ * Since the features index the model parameters directly, each feature should include the configuration of the
+ * variables (e.g. "word=dog_tag=NN").
+ * 
+ * @author mgormley
+ */
+public abstract class HashingFeatureExtractor implements FeatureExtractor {
+
+    private final HashedFeatureNames alphabet;
+
+    /**
+     * Constructs a feature extractor.
+     * 
+     * @param ofc The conjoiner which numbers the model parameters.
+     * @param numBuckets The number of buckets (i.e. model parameters) to hash into.
+     * @param trackCollisions Whether to count the distinct features and collisions.
+     */
+    public HashingFeatureExtractor(ObsFeatureConjoiner ofc, int numBuckets, boolean trackCollisions) {
+        this.alphabet = new HashedFeatureNames(numBuckets, true, trackCollisions);
+        ofc.takeNoteOfFeatureHashMod(numBuckets);
+    }
+
+    /**
+     * Gets the string features of the factor for a configuration.
+     * 
+     * @param factor The factor for which to extract features.
+     * @param configId The configuration id of the latent and predicted variables ONLY.
+     * @return The features.
+     */
+    protected abstract Iterable<String> getFeatures(FeExpFamFactor factor, int configId);
+
+    @Override
+    public FeatureVector calcFeatureVector(FeExpFamFactor factor, int configId) {
+        FeatureVector fv = new FeatureVector();
+        for (String feat : getFeatures(factor, configId)) {
+            int h = alphabet.hash(feat);
+            fv.add(alphabet.getIndex(h), alphabet.getSign(h));
+        }
+        return fv;
+    }
+
+    /** Gets the hashed alphabet, e.g. for its collision statistics. */
+    public HashedFeatureNames getAlphabet() {
+        return alphabet;
+    }
+
+}
@@ -1,11 +1,14 @@
 package edu.jhu.pacaya.gm.feat;
 
 import edu.jhu.pacaya.gm.model.ExpFamFactor;
+import edu.jhu.pacaya.gm.model.FgModel;
+import edu.jhu.pacaya.gm.model.IFgModel;
 import edu.jhu.pacaya.gm.model.ObsFeatureCarrier;
 import edu.jhu.pacaya.gm.model.TemplateFactor;
 import edu.jhu.pacaya.gm.model.VarSet;
 import edu.jhu.pacaya.gm.model.VarTensor;
 import edu.jhu.prim.util.Lambda.FnIntDoubleToVoid;
+import edu.jhu.prim.vector.IntDoubleVector;
 
 /**
  * An exponential family factor which takes an ObsFeatureExtractor at
@@ -14,7 +17,10 @@ import edu.jhu.prim.util.Lambda.FnIntDoubleToVoid;
  * form the final features.
  * 
  * This class requires access to the internally stored indexing of
- * ObsFeatureConjoiner.
+ * ObsFeatureConjoiner. Since every config shares the same observation
+ * features, the scores of all the configs (and the expected feature counts)
+ * are computed in a single pass over the observation features, using the
+ * feature-major parameter indices of the ObsFeatureConjoiner.
  * 
  * @author mgormley
  */
@@ -28,6 +34,8 @@ public abstract class ObsCjExpFamFactor extends ExpFamFactor implements ObsFeatu
     // The ID of the template for this factor -- which is only ever set by the
     // FeatureTemplateList.
     private int templateId = -1;
+    // The shared table of scores whose values this factor references, or null if none. Not serialized.
+    private transient FactorTableCache.SharedTable sharedTable;
     
     public ObsCjExpFamFactor(VarSet vars, Object templateKey, ObsFeatureConjoiner ofc) {
         super(vars);
@@ -64,7 +72,120 @@ public abstract class ObsCjExpFamFactor extends ExpFamFactor implements ObsFeatu
                 }
             }
         });
-        return fv;
+        return fv.freeze();
+    }
+
+    /**
+     * Updates the scores of all the configs in one pass over the observation features. This gives the same result as
+     * the dot product of the model with getFeatures(c) for each config c.
+     */
+    @Override
+    public void updateFromModel(FgModel model) {
+        if (!ofc.isInitialized()) {
+            throw new IllegalStateException("ObsFeatureConjoiner not initialized");
+        }
+        if (updateIncrementally(model)) {
+            return;
+        }
+        initialized = true;
+        int numConfigs = this.getVars().calcNumConfigs();
+        int t = getTemplateId();
+        FeatureVector obsFv = getObsFeatures();
+        FactorTableCache cache = ofc.getTableCache();
+        if (cache != null) {
+            FactorTableCache.SharedTable table = cache.get(model, t, obsFv);
+            if (table != null) {
+                shareTable(table);
+                noteFullUpdate(model);
+                return;
+            }
+        }
+        int[] fci = ofc.getFeatConfigIndices(t);
+        int used = obsFv.getUsed();
+        int[] obsInd = obsFv.getInternalIndices();
+        double[] obsVal = obsFv.getInternalValues();
+        IntDoubleVector params = model.getParams();
+        double[] scores = new double[numConfigs];
+        for (int i=0; i<used; i++) {
+            int k = obsInd[i];
+            int off = k * numConfigs;
+            double val = obsVal[i];
+            for (int c=0; c<numConfigs; c++) {
+                int idx = (fci != null) ? fci[off + c] : ofc.getFeatIndex(t, c, k);
+                if (idx != -1) {
+                    scores[c] += val * params.get(idx);
+                }
+            }
+        }
+        for (int c=0; c<numConfigs; c++) {
+            assert !Double.isNaN(scores[c]) && scores[c] != Double.POSITIVE_INFINITY : "Invalid value for factor: " + scores[c];
+        }
+        FactorTableCache.SharedTable table = (cache != null) ? cache.put(model, t, obsFv, scores) : null;
+        if (table != null) {
+            shareTable(table);
+        } else {
+            for (int c=0; c<numConfigs; c++) {
+                this.setValue(c, scores[c]);
+            }
+        }
+        noteFullUpdate(model);
+    }
+
+    /** References the values of a shared table, releasing any table referenced before. */
+    private void shareTable(FactorTableCache.SharedTable table) {
+        if (sharedTable != null) {
+            sharedTable.release();
+        }
+        sharedTable = table;
+        setSharedValues(table.getValues());
+    }
+
+    /** Copies the values of the shared table (if any) before they are modified, and releases it. */
+    @Override
+    protected void ensureOwnValues() {
+        if (sharedTable != null) {
+            sharedTable.release();
+            sharedTable = null;
+        }
+        super.ensureOwnValues();
+    }
+
+    /**
+     * Adds the expected feature counts for all the configs in one pass over the observation features. This gives the
+     * same result as adding getFeatures(c) scaled by the marginal of each config c.
+     */
+    @Override
+    public void addExpectedPartials(IFgModel counts, VarTensor factorMarginal, double multiplier) {
+        if (!ofc.isInitialized()) {
+            throw new IllegalStateException("ObsFeatureConjoiner not initialized");
+        }
+        int numConfigs = factorMarginal.getVars().calcNumConfigs();
+        int t = getTemplateId();
+        int[] fci = ofc.getFeatConfigIndices(t);
+        FeatureVector obsFv = getObsFeatures();
+        int used = obsFv.getUsed();
+        int[] obsInd = obsFv.getInternalIndices();
+        double[] obsVal = obsFv.getInternalValues();
+        double[] probs = new double[numConfigs];
+        for (int c=0; c<numConfigs; c++) {
+            probs[c] = multiplier * factorMarginal.getValue(c);
+        }
+        for (int i=0; i<used; i++) {
+            int k = obsInd[i];
+            int off = k * numConfigs;
+            double val = obsVal[i];
+            for (int c=0; c<numConfigs; c++) {
+                int idx = (fci != null) ? fci[off + c] : ofc.getFeatIndex(t, c, k);
+                if (idx != -1) {
+                    counts.add(idx, probs[c] * val);
+                }
+            }
+        }
+    }
+
+    /** Gets the feature conjoiner, which may be shared by the factors of many examples. */
+    public ObsFeatureConjoiner getConjoiner() {
+        return ofc;
     }
 
     @Override
@@ -3,6 +3,7 @@ package edu.jhu.pacaya.gm.feat;
 import edu.jhu.pacaya.gm.model.ObsFeatureCarrier;
 import edu.jhu.pacaya.gm.model.TemplateFactor;
 import edu.jhu.pacaya.gm.model.VarSet;
+import edu.jhu.pacaya.util.FeatureAlphabet;
 
 public class ObsFeExpFamFactor extends ObsCjExpFamFactor implements ObsFeatureCarrier, TemplateFactor {
     
@@ -19,9 +20,24 @@ public class ObsFeExpFamFactor extends ObsCjExpFamFactor implements ObsFeatureCa
     @Override
     public FeatureVector getObsFeatures() {
         if (feats == null) {
-            feats = this.obsFe.calcObsFeatureVector(this);
+            if (FeatureExtractionProfiler.isEnabled()) {
+                int t = ofc.getTemplates().getTemplateId(this);
+                FeatureAlphabet alphabet = (t == -1) ? null : ofc.getTemplates().get(t).getAlphabet();
+                FeatureExtractionProfiler.Probe probe = FeatureExtractionProfiler.start(alphabet);
+                feats = this.obsFe.calcObsFeatureVector(this);
+                probe.stop(templateKey, feats);
+            } else {
+                feats = this.obsFe.calcObsFeatureVector(this);
+            }
+            feats.freeze();
         }
         return feats;
     }
+
+    /** Sets the cached features (e.g. from a feature cache), so that they are not extracted. */
+    public void setObsFeatures(FeatureVector feats) {
+        this.feats = feats;
+        featuresChanged();
+    }
     
 }
\ No newline at end of file
@@ -1,11 +1,18 @@
 package edu.jhu.pacaya.gm.feat;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.OutputStreamWriter;
 import java.io.Serializable;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,14 +33,21 @@ import edu.jhu.pacaya.gm.model.VarConfig;
 import edu.jhu.pacaya.gm.model.VarTensor;
 import edu.jhu.pacaya.gm.model.globalfac.GlobalFactor;
 import edu.jhu.pacaya.gm.train.MarginalLogLikelihood;
-import edu.jhu.pacaya.gm.util.ArrayIter3D;
+import edu.jhu.pacaya.util.FeatureAlphabet;
+import edu.jhu.pacaya.util.FeatureAlphabets;
 import edu.jhu.pacaya.util.FeatureNames;
+import edu.jhu.pacaya.util.HashedFeatureNames;
+import edu.jhu.pacaya.util.MergedFeatureNames;
+import edu.jhu.pacaya.util.OrderedGrowth;
 import edu.jhu.pacaya.util.Prm;
+import edu.jhu.pacaya.util.Threads;
+import edu.jhu.pacaya.util.files.BinaryStreams;
 import edu.jhu.pacaya.util.semiring.RealAlgebra;
-import edu.jhu.prim.arrays.BoolArrays;
 import edu.jhu.prim.iter.IntIter;
 import edu.jhu.prim.map.IntDoubleEntry;
-import edu.jhu.prim.vector.IntIntDenseVector;
+import edu.jhu.prim.map.IntIntEntry;
+import edu.jhu.prim.map.IntIntHashMap;
+import edu.jhu.prim.util.Lambda.FnIntToVoid;
 
 /**
  * Wrapper of ObsFeatureExtractor which returns feature vectors which conjoin
@@ -48,24 +62,54 @@ public class ObsFeatureConjoiner implements Serializable {
         /**
          * Minimum number of times (inclusive) a feature must occur in training
          * to be included in the model. Ignored if non-positive. (Using this
-         * cutoff implies that unsupported features will not be included.)
+         * cutoff implies that unsupported features will not be included.) A
+         * feature occurs at most once per factor, since the duplicates in its
+         * feature vector are merged (see {@link FeatureVector#freeze()}).
          */
         public int featCountCutoff = 1;
+        /**
+         * Templates for which at most this fraction of the (feature, config)
+         * pairs are included in the model store their parameter indices in a
+         * hash map instead of an array.
+         */
+        public double maxSparseFraction = 0.1;
+        /**
+         * Whether factors of the same template with identical observation
+         * features should share their score tables within each round of
+         * updates (see {@link FactorTableCache}).
+         */
+        public boolean shareFactorTables = false;
     }
     
     private static final Logger log = LoggerFactory.getLogger(ObsFeatureConjoiner.class);
     private static final long serialVersionUID = 1L;
+    private static final String BINARY_MAGIC = "ObsFeatureConjoiner";
     
     /**
-     * The model parameters indices. Indexed by feature template index, variable
-     * assignment config index, and observation function feature index.
+     * The model parameter indices for each feature template in feature-major
+     * order: the index for observation function feature k and variable
+     * assignment config c is at position k * numConfigs[t] + c, or -1 if the
+     * parameter is not included in this model. Null for the templates which
+     * use sparseIndices.
      */
-    private int[][][] indices;
+    private int[][] denseIndices;
     /**
-     * Whether or not the correspondingly indexed model parameter is included in
-     * this model.
+     * The model parameter indices for the templates with few included
+     * parameters, keyed by k * numConfigs[t] + c. Null for the templates which
+     * use denseIndices.
      */
+    private SparseIndices[] sparseIndices;
+    /**
+     * The indices by template, config and feature, as serialized before denseIndices and sparseIndices. Only non-null
+     * while reading such a serialized object (see {@link #readObject(ObjectInputStream)}).
+     */
+    private int[][][] indices;
+    /** The inclusion flags serialized along with indices. Only non-null while reading such an object. */
     private boolean[][][] included;
+    /** The number of variable assignment configs for each template. */
+    private int[] numConfigs;
+    /** The number of observation function features for each template. */
+    private int[] numFeats;
     /** The number of feature templates. */
     private int numTemplates;
     /** The number of parameters in the model. */
@@ -86,6 +130,8 @@ public class ObsFeatureConjoiner implements Serializable {
     public FeatureNames fcmAlphabet = new FeatureNames();
     
     private ObsFeatureConjoinerPrm prm;
+    /** The shared score tables, or null if not sharing. Not serialized. */
+    private transient FactorTableCache tableCache;
     
     // HACK: This treats the OFC as a submodel for NLP factors needing embeddings.
     public Object embeddings; // TODO: Remove this hack.
@@ -105,55 +151,56 @@ public class ObsFeatureConjoiner implements Serializable {
         
         // Ensure the FactorTemplateList is initialized, and maybe count features along the way.
         if (templates.isGrowing() && data != null) {
-            log.info("Growing feature template list by iterating over examples");
-            extractAllFeats(data, templates);
+            if (templates.hasOnlyHashedAlphabets()) {
+                // Hashed alphabets never grow. Any standard features must then be hashed too (e.g. by a
+                // HashingFeatureExtractor), since feAlphabet is not grown.
+                log.info("Skipping the alphabet-building pass since all the template alphabets are hashed");
+            } else {
+                log.info("Growing feature template list by iterating over examples");
+                if (Threads.numThreads > 1) {
+                    // Lookups of existing features then take no lock.
+                    templates.setUseConcurrentAlphabets(true);
+                }
+                extractAllFeats(data, templates);
+                if (FeatureExtractionProfiler.isEnabled()) {
+                    FeatureExtractionProfiler.report("init");
+                }
+            }
             templates.stopGrowth();
             feAlphabet.stopGrowth();
         }
         numTemplates = templates.size();
-        
-        // Apply a feature count cutoff.
-        this.included = new boolean[numTemplates][][];
+        numConfigs = new int[numTemplates];
+        numFeats = new int[numTemplates];
         for (int t=0; t<numTemplates; t++) {
             FactorTemplate template = templates.get(t);
-            int numConfigs = template.getNumConfigs();
-            int numFeats = template.getAlphabet().size();
-            included[t] = new boolean[numConfigs][numFeats];
+            numConfigs[t] = template.getNumConfigs();
+            numFeats[t] = template.getAlphabet().size();
+            if ((long) numConfigs[t] * numFeats[t] > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Too many parameters for template: " + template.getKey());
+            }
+            if (template.getAlphabet() instanceof HashedFeatureNames) {
+                ((HashedFeatureNames) template.getAlphabet()).report(String.valueOf(template.getKey()));
+            }
         }
-        BoolArrays.fill(included, true);
+        
+        // Apply a feature count cutoff. Only the (feature, config) pairs which occur are counted.
+        IntIntHashMap[] counts = null;
         if (prm.featCountCutoff >= 1) {
             log.info("Applying feature count cutoff: " + prm.featCountCutoff);
-            IntIntDenseVector[][] counts = countFeatures(data, templates);
-            excludeByFeatCount(counts);
-        }
-        
-        // Always include the bias features.
-        for (int t=0; t<included.length; t++) {
-            FactorTemplate template = templates.get(t);
-            FeatureNames alphabet = template.getAlphabet();            
-            for (int k = 0; k < alphabet.size(); k++) {
-                if (alphabet.isBiasFeature(k)) {
-                    for (int c = 0; c < included[t].length; c++) {
-                        included[t][c][k] = true;
-                    }
-                }
-            }
+            counts = countFeatures(data, templates);
         }
 
-        // Set the indices to track only the included parameters.
+        // Set the indices to track only the included parameters, which always include the bias features.
         // All other entries are set to -1.
         // Also: Count the number of parameters, accounting for excluded params.
         numParams = feAlphabet.size();
-        this.indices = new int[numTemplates][][];
-        for (int t=0; t<indices.length; t++) {
-            FactorTemplate template = templates.get(t);
-            int numConfigs = template.getNumConfigs();
-            int numFeats = template.getAlphabet().size();
-            indices[t] = new int[numConfigs][numFeats];
-            for (int c = 0; c < indices[t].length; c++) {
-                for (int k = 0; k < indices[t][c].length; k++) {
-                    indices[t][c][k] = included[t][c][k] ? numParams++ : -1;
-                }
+        this.denseIndices = new int[numTemplates][];
+        this.sparseIndices = new SparseIndices[numTemplates];
+        for (int t=0; t<numTemplates; t++) {
+            setIndices(t, (counts == null) ? null : counts[t]);
+            if (counts != null) {
+                counts[t] = null;
             }
         }
         reservedOffset = numParams;
@@ -173,6 +220,95 @@ public class ObsFeatureConjoiner implements Serializable {
         initialized = true;
     }
 
+    /**
+     * Numbers the included parameters of template t, starting at numParams, and stores their indices densely or, if
+     * at most maxSparseFraction of the entries are included, sparsely. The parameters are numbered by config and then
+     * by feature.
+     * 
+     * @param t The template.
+     * @param counts The feature counts of the template, keyed by k * numConfigs[t] + c, or null to include every
+     *            parameter.
+     */
+    private void setIndices(int t, IntIntHashMap counts) {
+        int nc = numConfigs[t];
+        int nf = numFeats[t];
+        int size = nc * nf;
+        FeatureAlphabet alphabet = templates.get(t).getAlphabet();
+        boolean[] isBias = new boolean[nf];
+        int numBias = 0;
+        for (int k = 0; k < nf; k++) {
+            if (alphabet.isBiasFeature(k)) {
+                isBias[k] = true;
+                numBias++;
+            }
+        }
+        int numIncluded = size;
+        if (counts != null) {
+            numIncluded = numBias * nc;
+            for (IntIntEntry entry : counts) {
+                if (entry.get() >= prm.featCountCutoff && !isBias[entry.index() / nc]) {
+                    numIncluded++;
+                }
+            }
+        }
+        
+        if (numIncluded > prm.maxSparseFraction * size) {
+            // The flags of the included entries are rewritten into indices in place.
+            int[] dense = new int[size];
+            if (counts == null) {
+                Arrays.fill(dense, 1);
+            } else {
+                for (IntIntEntry entry : counts) {
+                    if (entry.get() >= prm.featCountCutoff) {
+                        dense[entry.index()] = 1;
+                    }
+                }
+                for (int k = 0; k < nf; k++) {
+                    if (isBias[k]) {
+                        Arrays.fill(dense, k * nc, (k+1) * nc, 1);
+                    }
+                }
+            }
+            for (int c = 0; c < nc; c++) {
+                for (int k = 0; k < nf; k++) {
+                    int i = k * nc + c;
+                    dense[i] = (dense[i] != 0) ? numParams++ : -1;
+                }
+            }
+            denseIndices[t] = dense;
+        } else {
+            // Sort the included entries by config and then by feature, so they are numbered as in the dense case.
+            int[] included = new int[numIncluded];
+            int n = 0;
+            if (counts == null) {
+                for (int i = 0; i < size; i++) {
+                    included[n++] = i;
+                }
+            } else {
+                for (IntIntEntry entry : counts) {
+                    int k = entry.index() / nc;
+                    if (entry.get() >= prm.featCountCutoff && !isBias[k]) {
+                        included[n++] = (entry.index() % nc) * nf + k;
+                    }
+                }
+                for (int k = 0; k < nf; k++) {
+                    if (isBias[k]) {
+                        for (int c = 0; c < nc; c++) {
+                            included[n++] = c * nf + k;
+                        }
+                    }
+                }
+            }
+            Arrays.sort(included);
+            sparseIndices[t] = new SparseIndices(numIncluded);
+            for (int i : included) {
+                int c = i / nf;
+                int k = i % nf;
+                sparseIndices[t].put(k * nc + c, numParams++);
+            }
+        }
+    }
+
     public static class NoOpInferencer implements FgInferencer {
 
         private FactorGraph fg;
@@ -219,11 +355,15 @@ public class ObsFeatureConjoiner implements Serializable {
     }
     
     /**
-     * Loops through all examples to create the features, thereby ensuring that the FTS are initialized.
+     * Extracts the features of every example, growing the feature alphabets. The examples are processed in parallel
+     * when there are multiple threads (see {@link Threads#numThreads}). Each example then adds its new features to
+     * alphabets of its own, which are merged into the template alphabets in order of the examples (see
+     * {@link MergedFeatureNames}), so that the feature ids do not depend on the number of threads. The cached
+     * observation features of each example are then mapped to the merged ids.
      */
-    private void extractAllFeats(FgExampleList data, FactorTemplateList templates) {
+    private void extractAllFeats(final FgExampleList data, final FactorTemplateList templates) {
         // Create a "no-op" counter.
-        IFgModel counts = new IFgModel() {                        
+        final IFgModel counts = new IFgModel() {                        
             @Override
             public void addAfterScaling(FeatureVector fv, double multiplier) { }
             @Override
@@ -231,94 +371,184 @@ public class ObsFeatureConjoiner implements Serializable {
         };  
         
         // Loop over all factors in the dataset. 
-        for (int i=0; i<data.size(); i++) {
-            if (i % 1000 == 0) {
-                log.debug("Processing example: " + i);
+        if (Threads.numThreads <= 1) {
+            for (int i=0; i<data.size(); i++) {
+                extractFeats(data, templates, counts, i);
             }
-            LFgExample ex = data.get(i);
-            FactorGraph fgLat = MarginalLogLikelihood.getFgLat(ex.getFactorGraph(), ex.getGoldConfig());
-            // Create a "no-op" inferencer, which returns arbitrary marginals.
-            NoOpInferencer inferencer = new NoOpInferencer(ex.getFactorGraph());   
-            for (int a=0; a<ex.getFactorGraph().getNumFactors(); a++) {
-                Factor f = fgLat.getFactor(a);
-                if (f instanceof ObsFeatureCarrier && f instanceof TemplateFactor) {
-                    // For each observation function extractor.
-                    int t = templates.getTemplateId((TemplateFactor) f);
-                    if (t != -1) {
-                        ((ObsFeatureCarrier) f).getObsFeatures();                                      
+            return;
+        }
+        final OrderedGrowth growth = new OrderedGrowth(true);
+        templates.beginOrderedGrowth(growth);
+        try {
+            Threads.forEach(0, data.size(), new FnIntToVoid() {
+                @Override
+                public void call(int i) {
+                    growth.begin(i);
+                    Runnable remap = null;
+                    try {
+                        remap = getRemap(extractFeats(data, templates, counts, i), templates);
+                    } finally {
+                        growth.end(i, remap);
                     }
-                } else {
-                    // For each standard factor.  
-                    f = ex.getFactorGraph().getFactor(a);
-                    if (f instanceof GlobalFactor) {
-                        ((GlobalFactor) f).addExpectedPartials(counts, 0, inferencer, a);
-                    } else {
-                        VarTensor marg = inferencer.getMarginalsForFactorId(a);
-                        f.addExpectedPartials(counts, marg, 0);
+                }
+            });
+        } finally {
+            growth.finish();
+        }
+    }
+
+    /**
+     * Extracts the features of the i'th example.
+     * 
+     * @return The factors whose observation features were extracted.
+     */
+    private static List<ObsFeExpFamFactor> extractFeats(FgExampleList data, FactorTemplateList templates,
+            IFgModel counts, int i) {
+        if (i % 1000 == 0) {
+            log.debug("Processing example: " + i);
+        }
+        List<ObsFeExpFamFactor> extracted = new ArrayList<>();
+        LFgExample ex = data.get(i);
+        FactorGraph fgLat = MarginalLogLikelihood.getFgLat(ex.getFactorGraph(), ex.getGoldConfig());
+        // Create a "no-op" inferencer, which returns arbitrary marginals.
+        NoOpInferencer inferencer = new NoOpInferencer(ex.getFactorGraph());   
+        for (int a=0; a<ex.getFactorGraph().getNumFactors(); a++) {
+            Factor f = fgLat.getFactor(a);
+            if (f instanceof ObsFeatureCarrier && f instanceof TemplateFactor) {
+                // For each observation function extractor.
+                int t = templates.getTemplateId((TemplateFactor) f);
+                if (t != -1) {
+                    ((ObsFeatureCarrier) f).getObsFeatures();
+                    if (f instanceof ObsFeExpFamFactor) {
+                        extracted.add((ObsFeExpFamFactor) f);
                     }
                 }
+            } else {
+                // For each standard factor.  
+                f = ex.getFactorGraph().getFactor(a);
+                if (f instanceof GlobalFactor) {
+                    ((GlobalFactor) f).addExpectedPartials(counts, 0, inferencer, a);
+                } else {
+                    VarTensor marg = inferencer.getMarginalsForFactorId(a);
+                    f.addExpectedPartials(counts, marg, 0);
+                }
+            }
+        }
+        return extracted;
+    }
+
+    /**
+     * Gets a callback which maps the provisional feature ids of the factors extracted by the current task to the
+     * merged ids, or null if the task added no features.
+     */
+    private static Runnable getRemap(List<ObsFeExpFamFactor> extracted, FactorTemplateList templates) {
+        final List<ObsFeExpFamFactor> factors = new ArrayList<>();
+        final List<MergedFeatureNames.Additions> additions = new ArrayList<>();
+        for (ObsFeExpFamFactor f : extracted) {
+            FeatureAlphabet alphabet = templates.getTemplate(f).getAlphabet();
+            if (alphabet instanceof MergedFeatureNames) {
+                MergedFeatureNames.Additions a = ((MergedFeatureNames) alphabet).getAdditions();
+                if (a != null && a.hasProvisionalIndices()) {
+                    factors.add(f);
+                    additions.add(a);
+                }
             }
         }
+        if (factors.isEmpty()) {
+            return null;
+        }
+        return new Runnable() {
+            @Override
+            public void run() {
+                for (int j=0; j<factors.size(); j++) {
+                    MergedFeatureNames.Additions a = additions.get(j);
+                    FeatureVector fv = factors.get(j).getObsFeatures();
+                    int[] idx = Arrays.copyOf(fv.getInternalIndices(), fv.getUsed());
+                    double[] vals = Arrays.copyOf(fv.getInternalValues(), fv.getUsed());
+                    for (int k=0; k<idx.length; k++) {
+                        idx[k] = a.getMergedIndex(idx[k]);
+                    }
+                    factors.get(j).setObsFeatures(new FeatureVector(idx, vals).freeze());
+                }
+            }
+        };
     }
     
     /**
      * Counts the number of times each feature appears in the gold training data.
+     * The counts for each template are keyed by k * numConfigs[t] + c, as for
+     * denseIndices, and only the (feature, config) pairs which occur are stored.
+     * 
+     * When there are multiple threads, the examples are split into one range per
+     * thread, each counted into maps of its own, which are then summed.
      */
-    private IntIntDenseVector[][] countFeatures(FgExampleList data, FactorTemplateList templates) {
-        IntIntDenseVector[][] counts = new IntIntDenseVector[numTemplates][];
-        for (int t=0; t<numTemplates; t++) {
-            FactorTemplate template = templates.get(t);
-            int numConfigs = template.getNumConfigs();
-            int numFeats = template.getAlphabet().size();
-            counts[t] = new IntIntDenseVector[numConfigs];
-            for (int c=0; c<numConfigs; c++) {
-                counts[t][c] = new IntIntDenseVector(numFeats);
+    private IntIntHashMap[] countFeatures(final FgExampleList data, final FactorTemplateList templates) {
+        final int numRanges = Math.max(1, Math.min(Threads.numThreads, data.size()));
+        final IntIntHashMap[][] rangeCounts = new IntIntHashMap[numRanges][];
+        forEachExample(numRanges, new FnIntToVoid() {
+            @Override
+            public void call(int r) {
+                IntIntHashMap[] counts = new IntIntHashMap[numTemplates];
+                for (int t=0; t<numTemplates; t++) {
+                    counts[t] = new IntIntHashMap();
+                }
+                int end = (int) ((long) (r+1) * data.size() / numRanges);
+                for (int i = (int) ((long) r * data.size() / numRanges); i<end; i++) {
+                    countFeatures(data.get(i), templates, counts);
+                }
+                rangeCounts[r] = counts;
             }
+        });
+        IntIntHashMap[] counts = rangeCounts[0];
+        for (int r=1; r<numRanges; r++) {
+            for (int t=0; t<numTemplates; t++) {
+                for (IntIntEntry entry : rangeCounts[r][t]) {
+                    counts[t].add(entry.index(), entry.get());
+                }
+            }
+            rangeCounts[r] = null;
         }
-        for (int i=0; i<data.size(); i++) {
-            LFgExample ex = data.get(i);
-            FactorGraph fg = ex.getFactorGraph();
-            for (int a=0; a<ex.getFactorGraph().getNumFactors(); a++) {
-                Factor f = fg.getFactor(a);
-                if (f instanceof ObsFeatureCarrier && f instanceof TemplateFactor) {
-                    int t = templates.getTemplateId((TemplateFactor) f);
-                    if (t != -1) {
-                        FeatureVector fv = ((ObsFeatureCarrier) f).getObsFeatures();
-                        // We must clamp the predicted variables and loop over the latent ones.
-                        VarConfig predVc = ex.getGoldConfigPred(a);
-                        IntIter iter = IndexForVc.getConfigIter(ex.getFactorGraph().getFactor(a).getVars(), predVc);
-                        while (iter.hasNext()) {
-                            // The configuration of all the latent/predicted variables,
-                            // where the predicted variables have been clamped.
-                            int config = iter.next();
-                            for (IntDoubleEntry entry : fv) {
-                                counts[t][config].add(entry.index(), 1);
+        return counts;
+    }
+
+    /** Adds the feature counts for one example to counts. */
+    private void countFeatures(LFgExample ex, FactorTemplateList templates, IntIntHashMap[] counts) {
+        FactorGraph fg = ex.getFactorGraph();
+        for (int a=0; a<ex.getFactorGraph().getNumFactors(); a++) {
+            Factor f = fg.getFactor(a);
+            if (f instanceof ObsFeatureCarrier && f instanceof TemplateFactor) {
+                int t = templates.getTemplateId((TemplateFactor) f);
+                if (t != -1) {
+                    FeatureVector fv = ((ObsFeatureCarrier) f).getObsFeatures();
+                    // We must clamp the predicted variables and loop over the latent ones.
+                    VarConfig predVc = ex.getGoldConfigPred(a);
+                    IntIter iter = IndexForVc.getConfigIter(ex.getFactorGraph().getFactor(a).getVars(), predVc);
+                    while (iter.hasNext()) {
+                        // The configuration of all the latent/predicted variables,
+                        // where the predicted variables have been clamped.
+                        int config = iter.next();
+                        for (IntDoubleEntry entry : fv) {
+                            if (entry.index() < numFeats[t]) {
+                                counts[t].add(entry.index() * numConfigs[t] + config, 1);
                             }
                         }
                     }
                 }
             }
         }
-        return counts;
     }
 
-    /**
-     * Exclude those features which do not pass the feature count cutoff
-     * threshold (bias features will be kept separately).
-     */
-    private void excludeByFeatCount(IntIntDenseVector[][] counts) {
-        for (int t=0; t<included.length; t++) {
-            for (int c = 0; c < included[t].length; c++) {
-                for (int k = 0; k < included[t][c].length; k++) {
-                    boolean exclude = (counts[t][c].get(k) < prm.featCountCutoff);
-                    if (exclude) {
-                        included[t][c][k] = false;
-                    }
-                }
+    /** Calls fn for each example index, in parallel if there are multiple threads. */
+    private static void forEachExample(int numExamples, FnIntToVoid fn) {
+        if (Threads.numThreads <= 1) {
+            for (int i=0; i<numExamples; i++) {
+                fn.call(i);
             }
+        } else {
+            Threads.forEach(0, numExamples, fn);
         }
     }
-        
+
     // TODO: Remove these unused methods.
 //
 //    public int getNumTemplates() {
@@ -374,18 +604,18 @@ public class ObsFeatureConjoiner implements Serializable {
     public void printModel(Writer writer) throws IOException {
         for (int t=0; t<numTemplates; t++) {
             FactorTemplate template = templates.get(t);
-            int numConfigs = template.getNumConfigs();
-            FeatureNames alphabet = template.getAlphabet();
-            for (int c = 0; c < numConfigs; c++) {
-                for (int k = 0; k < indices[t][c].length; k++) {
+            FeatureAlphabet alphabet = template.getAlphabet();
+            for (int c = 0; c < numConfigs[t]; c++) {
+                for (int k = 0; k < numFeats[t]; k++) {
+                    int idx = getFeatIndex(t, c, k);
                     writer.write(template.getKey().toString());
                     writer.write("\t");
                     writer.write(template.getStateNamesStr(c));
                     writer.write("\t");
                     writer.write(alphabet.lookupObject(k).toString());
                     writer.write("\t");
-                    writer.write(String.format("%d", indices[t][c][k]));
-                    if (!included[t][c][k]) {
+                    writer.write(String.format("%d", idx));
+                    if (idx == -1) {
                         writer.write("\tEXCLUDED");
                     }
                     writer.write("\n");
@@ -404,30 +634,30 @@ public class ObsFeatureConjoiner implements Serializable {
     private class ParamNames implements Iterable<String>, Iterator<String>, Serializable {
 
         private static final long serialVersionUID = 1L;
-        private ArrayIter3D iter;
-        private boolean hasNext;
+        // The template, config, and feature of the next parameter.
+        private int t;
+        private int c;
+        private int k;
         
         @Override
         public Iterator<String> iterator() {
-            iter = new ArrayIter3D(indices);
-            hasNext = iter.next();
+            t = 0;
+            c = 0;
+            k = 0;
             return this;
         }
         
         @Override
         public boolean hasNext() {
             skipNonIncluded();
-            return hasNext;
+            return t < numTemplates;
         }
         
         @Override
         public String next() {
-            int t = iter.i;
-            int c = iter.j;
-            int k = iter.k;
-            
+            skipNonIncluded();
             FactorTemplate template = templates.get(t);
-            FeatureNames alphabet = template.getAlphabet();
+            FeatureAlphabet alphabet = template.getAlphabet();
             
             StringBuilder name = new StringBuilder();
             name.append(template.getKey().toString());
@@ -436,14 +666,26 @@ public class ObsFeatureConjoiner implements Serializable {
             name.append("_");
             name.append(alphabet.lookupObject(k).toString());
             name.append("_");
-            name.append(String.format("%d", indices[t][c][k]));
-            hasNext = iter.next();
+            name.append(String.format("%d", getFeatIndex(t, c, k)));
+            advance();
             return name.toString(); 
         }
 
         private void skipNonIncluded() {
-            while (hasNext && !included[iter.i][iter.j][iter.k]) {
-                hasNext = iter.next();
+            while (t < numTemplates && (c >= numConfigs[t] || k >= numFeats[t] || getFeatIndex(t, c, k) == -1)) {
+                advance();
+            }
+        }
+        
+        private void advance() {
+            k++;
+            if (k >= numFeats[t]) {
+                k = 0;
+                c++;
+            }
+            if (c >= numConfigs[t]) {
+                c = 0;
+                t++;
             }
         }
 
@@ -454,6 +696,128 @@ public class ObsFeatureConjoiner implements Serializable {
         
     }
 
+    /**
+     * Writes this object to a file in the binary format of {@link BinaryStreams}.
+     * 
+     * @param file The output file.
+     * @param compress Whether to GZIP the output.
+     */
+    public void writeBinary(File file, boolean compress) {
+        try (DataOutputStream out = BinaryStreams.newOutputStream(file, compress)) {
+            BinaryStreams.writeHeader(out, BINARY_MAGIC);
+            writeBinary(out);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Reads an object from a file written by {@link #writeBinary(File, boolean)}. */
+    public static ObsFeatureConjoiner readBinary(File file) {
+        try (DataInputStream in = BinaryStreams.newInputStream(file)) {
+            int version = BinaryStreams.readHeader(in, BINARY_MAGIC);
+            if (version != BinaryStreams.FORMAT_VERSION) {
+                throw new IllegalStateException("Unsupported binary format version: " + version);
+            }
+            return readBinary(in);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes this object (without a header) in the binary format of
+     * {@link BinaryStreams}. The embeddings are not written.
+     */
+    public void writeBinary(DataOutputStream out) throws IOException {
+        if (embeddings != null) {
+            log.warn("Embeddings are not included in the binary format of the ObsFeatureConjoiner.");
+        }
+        out.writeInt(prm.featCountCutoff);
+        templates.writeBinary(out);
+        feAlphabet.writeBinary(out);
+        fcmAlphabet.writeBinary(out);
+        out.writeInt(featureHashModMax);
+        out.writeInt(reservedMax);
+        out.writeInt(reservedOffset);
+        out.writeBoolean(initialized);
+        if (initialized) {
+            out.writeInt(numParams);
+            out.writeInt(numTemplates);
+            for (int t=0; t<numTemplates; t++) {
+                out.writeInt(numConfigs[t]);
+                out.writeInt(numFeats[t]);
+                out.writeBoolean(denseIndices[t] != null);
+                if (denseIndices[t] != null) {
+                    BinaryStreams.writeIntArray(out, denseIndices[t]);
+                } else {
+                    sparseIndices[t].writeBinary(out);
+                }
+            }
+        }
+    }
+
+    /** Reads an object written by {@link #writeBinary(DataOutputStream)}. */
+    public static ObsFeatureConjoiner readBinary(DataInputStream in) throws IOException {
+        ObsFeatureConjoinerPrm prm = new ObsFeatureConjoinerPrm();
+        prm.featCountCutoff = in.readInt();
+        FactorTemplateList templates = FactorTemplateList.readBinary(in);
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(prm, templates);
+        ofc.feAlphabet = (FeatureNames) FeatureAlphabets.readBinary(in);
+        ofc.fcmAlphabet = (FeatureNames) FeatureAlphabets.readBinary(in);
+        ofc.featureHashModMax = in.readInt();
+        ofc.reservedMax = in.readInt();
+        ofc.reservedOffset = in.readInt();
+        ofc.initialized = in.readBoolean();
+        if (ofc.initialized) {
+            ofc.numParams = in.readInt();
+            ofc.numTemplates = in.readInt();
+            ofc.numConfigs = new int[ofc.numTemplates];
+            ofc.numFeats = new int[ofc.numTemplates];
+            ofc.denseIndices = new int[ofc.numTemplates][];
+            ofc.sparseIndices = new SparseIndices[ofc.numTemplates];
+            for (int t=0; t<ofc.numTemplates; t++) {
+                ofc.numConfigs[t] = in.readInt();
+                ofc.numFeats[t] = in.readInt();
+                if (in.readBoolean()) {
+                    ofc.denseIndices[t] = BinaryStreams.readIntArray(in);
+                } else {
+                    ofc.sparseIndices[t] = SparseIndices.readBinary(in);
+                }
+            }
+        }
+        return ofc;
+    }
+
+    /** Stores the indices of template t, given by config and then by feature, in feature-major order. */
+    private void setConfigMajorIndices(int t, int[][] indices) {
+        int nc = indices.length;
+        int nf = (nc > 0) ? indices[0].length : 0;
+        numConfigs[t] = nc;
+        numFeats[t] = nf;
+        denseIndices[t] = new int[nc * nf];
+        for (int c=0; c<nc; c++) {
+            for (int k=0; k<nf; k++) {
+                denseIndices[t][k * nc + c] = indices[c][k];
+            }
+        }
+    }
+
+    /** Converts the indices of an object serialized before the flat index arrays. */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (indices != null) {
+            numConfigs = new int[numTemplates];
+            numFeats = new int[numTemplates];
+            denseIndices = new int[numTemplates][];
+            sparseIndices = new SparseIndices[numTemplates];
+            for (int t=0; t<numTemplates; t++) {
+                setConfigMajorIndices(t, indices[t]);
+            }
+            indices = null;
+            included = null;
+        }
+    }
+
     public FactorTemplateList getTemplates() {
         return templates;
     }
@@ -462,12 +826,116 @@ public class ObsFeatureConjoiner implements Serializable {
         return initialized;
     }
 
+    /** Gets the cache of shared score tables, or null if they are not shared. */
+    public synchronized FactorTableCache getTableCache() {
+        if (tableCache == null && prm.shareFactorTables) {
+            tableCache = new FactorTableCache();
+        }
+        return tableCache;
+    }
+
     public int getFeatIndex(int t, int c, int feat) {
-        return indices[t][c][feat];
+        assert 0 <= c && c < numConfigs[t] : "Invalid config: " + c;
+        assert 0 <= feat && feat < numFeats[t] : "Invalid feature: " + feat;
+        int[] dense = denseIndices[t];
+        if (dense != null) {
+            return dense[feat * numConfigs[t] + c];
+        } else {
+            return sparseIndices[t].get(feat * numConfigs[t] + c);
+        }
     }
     
     public boolean isIncluded(int t, int c, int feat) {
-        return included[t][c][feat];
+        return getFeatIndex(t, c, feat) != -1;
+    }
+
+    /**
+     * Gets the model parameter indices for a template in feature-major order: the index for observation function
+     * feature k and variable assignment config c is at position k * numConfigs + c, or -1 if the parameter is not
+     * included. Returns null if the indices for this template are stored sparsely, in which case
+     * {@link #getFeatIndex(int, int, int)} must be used instead.
+     */
+    public int[] getFeatConfigIndices(int t) {
+        return denseIndices[t];
+    }
+
+    /**
+     * Open-addressing hash map (with linear probing) from non-negative int keys to int values, for the parameter
+     * indices of a template with few included parameters. Missing keys map to -1.
+     */
+    private static class SparseIndices implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private static final int EMPTY = -1;
+        private int[] keys;
+        private int[] values;
+        private int size;
+        
+        /** Constructs a map which can hold the given number of entries. */
+        public SparseIndices(int maxSize) {
+            // Keep the load factor at or below 1/2.
+            int capacity = Integer.highestOneBit(Math.max(2, maxSize) * 2 - 1) << 1;
+            keys = new int[capacity];
+            values = new int[capacity];
+            Arrays.fill(keys, EMPTY);
+        }
+        
+        private SparseIndices(int[] keys, int[] values, int size) {
+            this.keys = keys;
+            this.values = values;
+            this.size = size;
+        }
+        
+        public int get(int key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                } else if (keys[i] == EMPTY) {
+                    return -1;
+                }
+            }
+        }
+        
+        public void put(int key, int value) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (keys[i] != EMPTY && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == EMPTY) {
+                if (2 * (size + 1) > keys.length) {
+                    throw new IllegalStateException("Map is full: " + size);
+                }
+                size++;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+        
+        private static int hash(int key) {
+            // The finalization mix of MurmurHash3.
+            key ^= key >>> 16;
+            key *= 0x85ebca6b;
+            key ^= key >>> 13;
+            key *= 0xc2b2ae35;
+            key ^= key >>> 16;
+            return key;
+        }
+        
+        public void writeBinary(DataOutputStream out) throws IOException {
+            out.writeInt(size);
+            BinaryStreams.writeIntArray(out, keys);
+            BinaryStreams.writeIntArray(out, values);
+        }
+        
+        public static SparseIndices readBinary(DataInputStream in) throws IOException {
+            int size = in.readInt();
+            int[] keys = BinaryStreams.readIntArray(in);
+            int[] values = BinaryStreams.readIntArray(in);
+            return new SparseIndices(keys, values, size);
+        }
+        
     }
     
 }
@@ -0,0 +1,46 @@
+package edu.jhu.pacaya.gm.feat;
+
+import edu.jhu.pacaya.util.FeatureAlphabet;
+import edu.jhu.pacaya.util.HashedFeatureNames;
+
+/**
+ * Observation feature extractor which gives string features and looks them up in the alphabet of the factor's
+ * template. If the alphabet is a {@link HashedFeatureNames}, each feature has the sign of its hash as its value, so
+ * that the collisions cancel in expectation. Otherwise, each feature has value 1 and features missing from a stopped
+ * alphabet are dropped.
+ * 
+ * @author mgormley
+ */
+public abstract class StringObsFeatureExtractor implements ObsFeatureExtractor {
+
+    private final FactorTemplateList fts;
+
+    public StringObsFeatureExtractor(FactorTemplateList fts) {
+        this.fts = fts;
+    }
+
+    /** Gets the string features on the observations of the factor. */
+    protected abstract Iterable<String> getObsFeatures(ObsFeExpFamFactor factor);
+
+    @Override
+    public FeatureVector calcObsFeatureVector(ObsFeExpFamFactor factor) {
+        FeatureAlphabet alphabet = fts.getTemplate(factor).getAlphabet();
+        FeatureVector fv = new FeatureVector();
+        if (alphabet instanceof HashedFeatureNames) {
+            HashedFeatureNames hashed = (HashedFeatureNames) alphabet;
+            for (String feat : getObsFeatures(factor)) {
+                int h = hashed.hash(feat);
+                fv.add(hashed.getIndex(h), hashed.getSign(h));
+            }
+        } else {
+            for (String feat : getObsFeatures(factor)) {
+                int idx = alphabet.lookupIndex(feat);
+                if (idx != -1) {
+                    fv.add(idx, 1.0);
+                }
+            }
+        }
+        return fv;
+    }
+
+}
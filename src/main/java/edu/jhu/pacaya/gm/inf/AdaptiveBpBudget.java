@@ -0,0 +1,191 @@
+package edu.jhu.pacaya.gm.inf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.pacaya.util.Prm;
+import edu.jhu.pacaya.util.report.Reporter;
+import edu.jhu.pacaya.util.report.ReporterManager;
+
+/**
+ * Training-aware policy for the iteration cap and convergence threshold of belief propagation.
+ *
+ * Early in training the model is far from its optimum, so a few iterations with a loose convergence threshold give a
+ * good enough gradient. As training proceeds, the cap is raised and the threshold is tightened (geometrically) toward
+ * their final values. The cap is also raised above this schedule if the runs which converge have recently needed more
+ * iterations. The cap never exceeds the fixed cap of {@link BeliefPropagation.BeliefPropagationPrm}.
+ *
+ * To measure the iterations saved, every {@link AdaptiveBpBudgetPrm#auditInterval}'th run can be repeated with the
+ * fixed settings and the difference in iterations is recorded. The estimate of the time saved scales this difference
+ * to all the runs. Audits are off by default, since they rerun inference. Their time is recorded separately from that
+ * of the runs.
+ *
+ * The caller (e.g. ModuleObjective) gives the training progress in an {@link InferenceContext}. Runs of
+ * {@link BeliefPropagation} without a context (e.g. at test time) use the fixed settings of
+ * {@link BeliefPropagation.BeliefPropagationPrm}.
+ *
+ * @author mgormley
+ */
+public class AdaptiveBpBudget {
+
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveBpBudget.class);
+    private static final Reporter rep = Reporter.getReporter(AdaptiveBpBudget.class);
+
+    public static class AdaptiveBpBudgetPrm extends Prm {
+        private static final long serialVersionUID = 1L;
+        /** The iteration cap at the start of training. */
+        public int startMaxIterations = 3;
+        /** The iteration cap at the end of training. */
+        public int endMaxIterations = 100;
+        /** The convergence threshold at the start of training. */
+        public double startThreshold = 1e-2;
+        /** The convergence threshold at the end of training. */
+        public double endThreshold = 1e-6;
+        /** Multiplier on the average number of iterations to convergence, which gives a lower bound on the cap. */
+        public double slack = 1.5;
+        /** The weight of the latest converged run in the moving average of the iterations to convergence. */
+        public double decay = 0.05;
+        /** Every auditInterval'th run is repeated with the fixed settings to measure the savings, or 0 for none. */
+        public int auditInterval = 0;
+    }
+
+    private final AdaptiveBpBudgetPrm prm;
+    // Moving average of the number of iterations to convergence.
+    private double avgItersToConverge = Double.NaN;
+    // Statistics on the runs.
+    private long numRuns = 0;
+    private long numConverged = 0;
+    private long numIters = 0;
+    private long numAudits = 0;
+    private long sumItersSaved = 0;
+    private double sumCaps = 0;
+    private double sumMaxResiduals = 0;
+    private long nanos = 0;
+    private long auditNanos = 0;
+
+    public AdaptiveBpBudget(AdaptiveBpBudgetPrm prm) {
+        this.prm = prm;
+    }
+
+    /**
+     * Gets the iteration cap for a run at the given training progress.
+     *
+     * @param p The training progress in [0, 1].
+     * @param fixedCap The iteration cap without this policy, which bounds the returned cap.
+     */
+    public synchronized int getMaxIterations(double p, int fixedCap) {
+        int cap = (int) Math.round(prm.startMaxIterations + p * (prm.endMaxIterations - prm.startMaxIterations));
+        if (!Double.isNaN(avgItersToConverge)) {
+            cap = Math.max(cap, (int) Math.ceil(prm.slack * avgItersToConverge));
+        }
+        return Math.min(cap, Math.min(prm.endMaxIterations, fixedCap));
+    }
+
+    /** Gets the convergence threshold for a run at the given training progress. */
+    public double getConvergenceThreshold(double p) {
+        if (prm.startThreshold <= 0 || prm.endThreshold <= 0) {
+            return prm.startThreshold + p * (prm.endThreshold - prm.startThreshold);
+        }
+        return Math.exp(Math.log(prm.startThreshold) + p * (Math.log(prm.endThreshold) - Math.log(prm.startThreshold)));
+    }
+
+    /**
+     * Records a run of inference.
+     *
+     * @param cap The iteration cap given by this policy.
+     * @param iters The number of iterations run.
+     * @param converged Whether the run converged.
+     * @param maxResidual The maximum message residual at the end of the run.
+     * @param runNanos The time taken by the run.
+     * @return Whether the caller should repeat the run with the fixed settings and report it with
+     *         {@link #addAudit(int, int)}.
+     */
+    synchronized boolean addRun(int cap, int iters, boolean converged, double maxResidual, long runNanos) {
+        numRuns++;
+        numIters += iters;
+        sumCaps += cap;
+        sumMaxResiduals += maxResidual;
+        nanos += runNanos;
+        if (converged) {
+            numConverged++;
+            avgItersToConverge = Double.isNaN(avgItersToConverge) ? iters
+                    : (1 - prm.decay) * avgItersToConverge + prm.decay * iters;
+        }
+        return prm.auditInterval > 0 && (numRuns - 1) % prm.auditInterval == 0;
+    }
+
+    /**
+     * Records a run which was repeated with the fixed settings.
+     *
+     * @param iters The number of iterations run under this policy.
+     * @param fixedIters The number of iterations run with the fixed settings.
+     * @param runNanos The time taken by the repeated run.
+     */
+    synchronized void addAudit(int iters, int fixedIters, long runNanos) {
+        numAudits++;
+        sumItersSaved += fixedIters - iters;
+        auditNanos += runNanos;
+    }
+
+    public synchronized long getNumRuns() {
+        return numRuns;
+    }
+
+    /** Gets the fraction of runs which converged. */
+    public synchronized double getConvergedRate() {
+        return (numRuns == 0) ? 0 : (double) numConverged / numRuns;
+    }
+
+    /** Gets the average number of iterations per run. */
+    public synchronized double getAvgIters() {
+        return (numRuns == 0) ? 0 : (double) numIters / numRuns;
+    }
+
+    public synchronized long getNumAudits() {
+        return numAudits;
+    }
+
+    /**
+     * Gets the estimated total number of iterations saved relative to the fixed settings: the average saved by the
+     * audited runs times the number of runs.
+     */
+    public synchronized double getEstItersSaved() {
+        return (numAudits == 0) ? 0 : (double) sumItersSaved / numAudits * numRuns;
+    }
+
+    /** Gets the estimated time saved (ms), given the average time per iteration under this policy. */
+    public synchronized double getEstMsSaved() {
+        return (numIters == 0) ? 0 : getEstItersSaved() * nanos / numIters / 1e6;
+    }
+
+    /**
+     * Gets the average of the maximum message residual at the end of each run, i.e. how far the runs stopped short of
+     * convergence.
+     */
+    public synchronized double getAvgMaxResidual() {
+        return (numRuns == 0) ? 0 : sumMaxResiduals / numRuns;
+    }
+
+    /** Logs and reports the statistics on the runs of inference. */
+    public synchronized void report() {
+        double avgCap = (numRuns == 0) ? 0 : sumCaps / numRuns;
+        double avgMs = (numRuns == 0) ? 0 : nanos / 1e6 / numRuns;
+        log.info(String.format("Adaptive BP budget: runs = %d avg cap = %.2f avg iters = %.2f converged = %.3f "
+                + "avg max residual = %.3g avg time (ms) = %.3f audits = %d audit time (ms) = %.1f "
+                + "est. iters saved = %.0f est. time saved (ms) = %.1f", numRuns, avgCap, getAvgIters(),
+                getConvergedRate(), getAvgMaxResidual(), avgMs, numAudits, auditNanos / 1e6, getEstItersSaved(),
+                getEstMsSaved()));
+        if (ReporterManager.isInitialized()) {
+            rep.report("bpBudgetAvgIters", getAvgIters());
+            rep.report("bpBudgetConvergedRate", getConvergedRate());
+            rep.report("bpBudgetEstItersSaved", getEstItersSaved());
+            rep.report("bpBudgetEstMsSaved", getEstMsSaved());
+            rep.report("bpBudgetAvgMaxResidual", getAvgMaxResidual());
+            rep.report("bpBudgetAvgMs", avgMs);
+            if (numAudits > 0) {
+                rep.report("bpBudgetAuditMs", auditNanos / 1e6);
+            }
+        }
+    }
+
+}
@@ -67,10 +67,44 @@ public class BeliefPropagation extends AbstractFgInferencer implements Module<Be
         public int minVarNbsForCache = Integer.MAX_VALUE; // TODO: Use this.
         /** Minimum number of neighbors for a factor   to compute messages by dividing out from a cached belief. */
         public int minFacNbsForCache = Integer.MAX_VALUE; // TODO: This is currently disabled because it might still be buggy.
+        /**
+         * Cache of messages from previous runs on the same example, used to warm start inference. Null to always
+         * initialize the messages uniformly. Not serialized.
+         */
+        public transient BpMessageCache msgCache = null;
+        /**
+         * Policy which overrides maxIterations and convergenceThreshold during training, or null to always use the
+         * fixed values. Not serialized.
+         */
+        public transient AdaptiveBpBudget budget = null;
+        /**
+         * The example and training progress of the runs, for msgCache and budget, or null if there are none (e.g. at
+         * test time). Set with {@link #withContext(InferenceContext)}. Not serialized.
+         */
+        public transient InferenceContext context = null;
         
         public BeliefPropagationPrm() {
         }
         
+        /** Gets a copy of these parameters whose runs have the given context. */
+        public BeliefPropagationPrm withContext(InferenceContext context) {
+            BeliefPropagationPrm prm = new BeliefPropagationPrm();
+            prm.schedule = schedule;
+            prm.maxIterations = maxIterations;
+            prm.updateOrder = updateOrder;
+            prm.s = s;
+            prm.normalizeMessages = normalizeMessages;
+            prm.convergenceThreshold = convergenceThreshold;
+            prm.keepTape = keepTape;
+            prm.dumpDir = dumpDir;
+            prm.minVarNbsForCache = minVarNbsForCache;
+            prm.minFacNbsForCache = minFacNbsForCache;
+            prm.msgCache = msgCache;
+            prm.budget = budget;
+            prm.context = context;
+            return prm;
+        }
+        
         @Override
         public FgInferencer getInferencer(FactorGraph fg) {
             return new BeliefPropagation(fg, this);
@@ -137,6 +171,11 @@ public class BeliefPropagation extends AbstractFgInferencer implements Module<Be
     private double[] residuals;
     // The number of messages that have converged.
     private int numConverged;
+    // The number of iterations run by the last call to forward().
+    private int numIters;
+    // The iteration cap and convergence threshold for the current call to forward().
+    private int maxIterations;
+    private double convergenceThreshold;
     // The variable and factor beliefs - the output of a forward() call.
     VarTensor[] varBeliefs; // Indexed by variable id.
     VarTensor[] facBeliefs; // Indexed by factor id.
@@ -201,12 +240,27 @@ public class BeliefPropagation extends AbstractFgInferencer implements Module<Be
 
     @Override
     public Beliefs forward() {
+        // Get the iteration cap and convergence threshold.
+        long startNanos = System.nanoTime();
+        double progress = (prm.budget != null && prm.context != null) ? prm.context.getProgress() : -1;
+        if (progress >= 0) {
+            maxIterations = prm.budget.getMaxIterations(progress, prm.maxIterations);
+            convergenceThreshold = prm.budget.getConvergenceThreshold(progress);
+        } else {
+            maxIterations = prm.maxIterations;
+            convergenceThreshold = prm.convergenceThreshold;
+        }
+        
         // Initialization.
-        initForward();
+        long cacheKey = (prm.msgCache != null && prm.context != null) ? prm.context.nextCacheKey() : -1;
+        double[][] initMsgs = (cacheKey != -1) ? prm.msgCache.get(cacheKey) : null;
+        boolean warm = initForward(initMsgs);
         
         // Message passing.
+        numIters = 0;
         loops:
-        for (int iter=-1; iter < prm.maxIterations; iter++) {
+        for (int iter=-1; iter < maxIterations; iter++) {
+            numIters++;
             List<Object> order = sched.getOrder(iter, fg);
             for (Object item : order) {
                 List<Integer> edges = CachingBpSchedule.toEdgeList(fg, item);
@@ -239,16 +293,84 @@ public class BeliefPropagation extends AbstractFgInferencer implements Module<Be
         
         log.trace("Oscillation rate: {}", ((double) oscillationCount.get() / sendCount.get()));
         
+        if (cacheKey != -1) {
+            prm.msgCache.put(cacheKey, getMessageValues());
+            prm.msgCache.addRun(warm, numIters);
+        }
+        if (progress >= 0) {
+            // The audit is timed separately, so that it is not counted as part of the run.
+            long runNanos = System.nanoTime() - startNanos;
+            if (prm.budget.addRun(maxIterations, numIters, isConverged(), getMaxResidual(), runNanos)) {
+                long auditStart = System.nanoTime();
+                int fixedIters = runWithFixedSettings();
+                prm.budget.addAudit(numIters, fixedIters, System.nanoTime() - auditStart);
+            }
+        }
+        
         forwardVarAndFacBeliefs();
         b = new Beliefs(varBeliefs, facBeliefs);
         return b;
     }
 
+    /**
+     * Runs inference on the same factors with the fixed iteration cap and convergence threshold, and without a
+     * warm start, and returns the number of iterations. The state of this instance is unchanged.
+     */
+    private int runWithFixedSettings() {
+        BeliefPropagationPrm fixed = new BeliefPropagationPrm();
+        fixed.schedule = prm.schedule;
+        fixed.maxIterations = prm.maxIterations;
+        fixed.updateOrder = prm.updateOrder;
+        fixed.s = s;
+        fixed.normalizeMessages = prm.normalizeMessages;
+        fixed.convergenceThreshold = prm.convergenceThreshold;
+        fixed.keepTape = false;
+        fixed.minVarNbsForCache = prm.minVarNbsForCache;
+        fixed.minFacNbsForCache = prm.minFacNbsForCache;
+        BeliefPropagation bp = new BeliefPropagation(fg, fixed, fm);
+        bp.forward();
+        return bp.getNumIterations();
+    }
+
     public boolean isConverged() {
         return numConverged == msgs.length;
     }
 
-    private void initForward() {
+    /** Gets the maximum residual over the messages sent so far. */
+    private double getMaxResidual() {
+        double max = 0;
+        for (int e=0; e<residuals.length; e++) {
+            if (residuals[e] != Double.POSITIVE_INFINITY && residuals[e] > max) {
+                max = residuals[e];
+            }
+        }
+        return max;
+    }
+
+    /** Gets the number of iterations run by the last call to forward(), including a partial final iteration. */
+    public int getNumIterations() {
+        return numIters;
+    }
+
+    /** Gets a copy of the values of the current messages, indexed by edge id. */
+    private double[][] getMessageValues() {
+        double[][] vals = new double[msgs.length][];
+        for (int e=0; e<msgs.length; e++) {
+            vals[e] = new double[msgs[e].size()];
+            for (int c=0; c<vals[e].length; c++) {
+                vals[e][c] = msgs[e].getValue(c);
+            }
+        }
+        return vals;
+    }
+
+    /**
+     * Initializes the forward pass.
+     * 
+     * @param initMsgs The initial values of the messages indexed by edge id, or null to initialize them uniformly.
+     * @return Whether the messages were initialized from initMsgs.
+     */
+    private boolean initForward(double[][] initMsgs) {
         // Set the number of converged messages to zero.
         numConverged = 0;
         // Initialize the tape.
@@ -270,6 +392,7 @@ public class BeliefPropagation extends AbstractFgInferencer implements Module<Be
                 newMsgs[e] = new VarTensor(s, vars, s.one());                
             }
         }
+        boolean warm = setMessageValues(initMsgs);
         // Initialize residuals.
         this.residuals = new double[bg.getNumEdges()];
         Arrays.fill(residuals, Double.POSITIVE_INFINITY);
@@ -300,6 +423,30 @@ public class BeliefPropagation extends AbstractFgInferencer implements Module<Be
         // Clear the adjoints of the messages and potentials.
         msgsAdj = null;
         potentialsAdj = null;
+        return warm;
+    }
+
+    /** Sets the values of the messages if initMsgs is non-null and matches the structure of the factor graph. */
+    private boolean setMessageValues(double[][] initMsgs) {
+        if (initMsgs == null) {
+            return false;
+        }
+        if (initMsgs.length != msgs.length) {
+            log.warn("Ignoring cached messages with the wrong number of edges: " + initMsgs.length);
+            return false;
+        }
+        for (int e=0; e<msgs.length; e++) {
+            if (initMsgs[e].length != msgs[e].size()) {
+                log.warn("Ignoring cached messages with the wrong size for edge: " + fg.edgeToString(e));
+                return false;
+            }
+        }
+        for (int e=0; e<msgs.length; e++) {
+            for (int c=0; c<initMsgs[e].length; c++) {
+                msgs[e].setValue(c, initMsgs[e][c]);
+            }
+        }
+        return true;
     }
 
     private void forwardCreateMessage(int edge) {
@@ -422,11 +569,11 @@ public class BeliefPropagation extends AbstractFgInferencer implements Module<Be
         // Update the residual
         double oldResidual = residuals[edge];
         residuals[edge] = smartResidual(msgs[edge], newMsgs[edge], edge);
-        if (oldResidual > prm.convergenceThreshold && residuals[edge] <= prm.convergenceThreshold) {
+        if (oldResidual > convergenceThreshold && residuals[edge] <= convergenceThreshold) {
             // This message has (newly) converged.
             numConverged ++;
         }
-        if (oldResidual <= prm.convergenceThreshold && residuals[edge] > prm.convergenceThreshold) {
+        if (oldResidual <= convergenceThreshold && residuals[edge] > convergenceThreshold) {
             // This message was marked as converged, but is no longer converged.
             numConverged--;
         }
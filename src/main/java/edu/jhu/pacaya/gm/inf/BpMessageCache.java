@@ -0,0 +1,301 @@
+package edu.jhu.pacaya.gm.inf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.collections.map.LRUMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.pacaya.util.Prm;
+import edu.jhu.pacaya.util.files.BinaryStreams;
+import edu.jhu.pacaya.util.report.Reporter;
+import edu.jhu.pacaya.util.report.ReporterManager;
+
+/**
+ * Cache of converged belief propagation messages, keyed by training example, for warm starting inference across
+ * training epochs.
+ *
+ * The caller (e.g. ModuleObjective) gives the example for which inference is run in an {@link InferenceContext}. The
+ * example is identified by a scope (see {@link #newScope()}) and its index, so that objectives over different data
+ * sets (e.g. training and validation) which share the BeliefPropagationPrm do not warm start from each other's
+ * messages. Each run of {@link BeliefPropagation} in that context then takes the next slot for that example (see
+ * {@link #getKey(int, int, int)}). Runs without a context are not cached.
+ *
+ * At most {@link BpMessageCachePrm#maxEntriesInMemory} entries are kept in memory. The least recently used entries
+ * are either dropped or, if {@link BpMessageCachePrm#spillFile} is set, written to disk. An entry spilled again is
+ * overwritten in place if it fits, and the spill file is compacted once most of it holds stale copies.
+ *
+ * The messages are stored in the algebra of the inference run which produced them, so a cache should only be shared
+ * by runs with the same algebra.
+ *
+ * @author mgormley
+ */
+public class BpMessageCache {
+
+    private static final Logger log = LoggerFactory.getLogger(BpMessageCache.class);
+    private static final Reporter rep = Reporter.getReporter(BpMessageCache.class);
+
+    public static class BpMessageCachePrm extends Prm {
+        private static final long serialVersionUID = 1L;
+        /** The maximum number of entries to keep in memory. */
+        public int maxEntriesInMemory = 10000;
+        /** The file to which least recently used entries are written, or null to drop them. */
+        public File spillFile = null;
+    }
+
+    /** The maximum number of inference runs per example. */
+    private static final int MAX_SLOTS = 1 << 16;
+    /** The number of distinct scopes, after which the scope ids are reused. */
+    private static final int MAX_SCOPES = 1 << 15;
+    /** The minimum number of stale bytes in the spill file before it is compacted. */
+    private static final long MIN_COMPACT_BYTES = 1 << 20;
+
+    /** The next scope id. */
+    private static final AtomicInteger nextScope = new AtomicInteger(1);
+
+    private final BpMessageCachePrm prm;
+    // The in-memory entries.
+    private final SpillingLRUMap cache;
+    // The spill file and the position of the latest copy of each key in it.
+    private RandomAccessFile raf = null;
+    private final Map<Long, Long> keyPosMap = new HashMap<>();
+    // The number of bytes in the spill file which hold stale copies of entries.
+    private long numStaleBytes = 0;
+    // Statistics on the number of iterations with and without warm starts.
+    private final AtomicLong numColdRuns = new AtomicLong();
+    private final AtomicLong numColdIters = new AtomicLong();
+    private final AtomicLong numWarmRuns = new AtomicLong();
+    private final AtomicLong numWarmIters = new AtomicLong();
+    private final AtomicLong numSpilled = new AtomicLong();
+
+    public BpMessageCache(BpMessageCachePrm prm) {
+        this.prm = prm;
+        this.cache = new SpillingLRUMap(prm.maxEntriesInMemory);
+        if (prm.spillFile != null) {
+            try {
+                if (prm.spillFile.getParentFile() != null) {
+                    prm.spillFile.getParentFile().mkdirs();
+                }
+                raf = new RandomAccessFile(prm.spillFile, "rw");
+                raf.setLength(0);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Gets a new scope for the examples of one data set or objective (e.g. one per ModuleObjective). The scope ids
+     * are reused after 32768 scopes.
+     */
+    public static int newScope() {
+        return nextScope.getAndIncrement() & (MAX_SCOPES - 1);
+    }
+
+    /**
+     * Gets the key for an inference run on an example.
+     *
+     * @param scope The scope of the example (see {@link #newScope()}).
+     * @param i The index of the example.
+     * @param slot The number of earlier runs on the example for the same objective evaluation.
+     * @return The key, or -1 if the example index is negative or there are too many runs.
+     */
+    public static long getKey(int scope, int i, int slot) {
+        if (i < 0 || slot >= MAX_SLOTS) {
+            return -1;
+        }
+        return (((long) (scope & (MAX_SCOPES - 1)) << 32 | i) * MAX_SLOTS) + slot;
+    }
+
+    /** Gets the cached messages for the key, or null if there are none. */
+    public synchronized double[][] get(long key) {
+        double[][] msgs = (double[][]) cache.get(key);
+        if (msgs == null && raf != null) {
+            Long pos = keyPosMap.get(key);
+            if (pos != null) {
+                msgs = readFromDisk(pos);
+                cache.put(key, msgs);
+            }
+        }
+        return msgs;
+    }
+
+    /** Caches the messages for the key, replacing any previous entry. */
+    public synchronized void put(long key, double[][] msgs) {
+        cache.put(key, msgs);
+    }
+
+    /** Records the number of iterations for a run of inference. */
+    void addRun(boolean warm, int numIters) {
+        if (warm) {
+            numWarmRuns.incrementAndGet();
+            numWarmIters.addAndGet(numIters);
+        } else {
+            numColdRuns.incrementAndGet();
+            numColdIters.addAndGet(numIters);
+        }
+    }
+
+    /** Gets the average number of iterations for runs without a warm start, or 0 if there were none. */
+    public double getAvgColdIters() {
+        return (double) numColdIters.get() / Math.max(1, numColdRuns.get());
+    }
+
+    /** Gets the average number of iterations for runs with a warm start, or 0 if there were none. */
+    public double getAvgWarmIters() {
+        return (double) numWarmIters.get() / Math.max(1, numWarmRuns.get());
+    }
+
+    public long getNumColdRuns() {
+        return numColdRuns.get();
+    }
+
+    public long getNumWarmRuns() {
+        return numWarmRuns.get();
+    }
+
+    /** Gets the number of entries currently in memory. */
+    public synchronized int getNumEntriesInMemory() {
+        return cache.size();
+    }
+
+    /** Logs and reports the average number of iterations with and without warm starts. */
+    public void report() {
+        log.info(String.format("BP iterations: avg cold = %.2f (runs = %d) avg warm = %.2f (runs = %d) spilled = %d",
+                getAvgColdIters(), getNumColdRuns(), getAvgWarmIters(), getNumWarmRuns(), numSpilled.get()));
+        if (ReporterManager.isInitialized()) {
+            rep.report("bpAvgColdIters", getAvgColdIters());
+            rep.report("bpAvgWarmIters", getAvgWarmIters());
+        }
+    }
+
+    /** Closes the spill file, if any. */
+    public synchronized void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            raf = null;
+        }
+    }
+
+    private void writeToDisk(long key, double[][] msgs) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(msgs.length);
+            for (int e = 0; e < msgs.length; e++) {
+                BinaryStreams.writeDoubleArray(out, msgs[e]);
+            }
+            out.flush();
+            Long oldPos = keyPosMap.get(key);
+            if (oldPos != null) {
+                raf.seek(oldPos);
+                int oldSize = raf.readInt();
+                if (bytes.size() <= oldSize) {
+                    // Overwrite the old copy in place. Its size is kept, so that it can be overwritten again.
+                    raf.write(bytes.toByteArray());
+                    numStaleBytes += oldSize - bytes.size();
+                    numSpilled.incrementAndGet();
+                    return;
+                }
+                numStaleBytes += Integer.SIZE / 8 + oldSize;
+            }
+            // Append, so that the latest copy of each key wins.
+            long pos = raf.length();
+            raf.seek(pos);
+            raf.writeInt(bytes.size());
+            raf.write(bytes.toByteArray());
+            keyPosMap.put(key, pos);
+            numSpilled.incrementAndGet();
+            if (numStaleBytes > MIN_COMPACT_BYTES && numStaleBytes > raf.length() / 2) {
+                compact();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Rewrites the spill file with only the latest copy of each entry. */
+    private void compact() throws IOException {
+        File tmp = new File(prm.spillFile.getPath() + ".tmp");
+        Map<Long, Long> newPosMap = new HashMap<>();
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            out.setLength(0);
+            for (Map.Entry<Long, Long> e : keyPosMap.entrySet()) {
+                raf.seek(e.getValue());
+                byte[] bytes = new byte[raf.readInt()];
+                raf.readFully(bytes);
+                newPosMap.put(e.getKey(), out.getFilePointer());
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+        raf.close();
+        if (!prm.spillFile.delete() || !tmp.renameTo(prm.spillFile)) {
+            throw new IOException("Unable to replace the spill file: " + prm.spillFile);
+        }
+        raf = new RandomAccessFile(prm.spillFile, "rw");
+        keyPosMap.clear();
+        keyPosMap.putAll(newPosMap);
+        numStaleBytes = 0;
+        log.debug("Compacted BP message spill file to bytes: " + raf.length());
+    }
+
+    /** Gets the number of bytes in the spill file, or 0 if there is none. */
+    public synchronized long getSpillFileBytes() {
+        try {
+            return (raf == null) ? 0 : raf.length();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private double[][] readFromDisk(long pos) {
+        try {
+            raf.seek(pos);
+            byte[] bytes = new byte[raf.readInt()];
+            raf.readFully(bytes);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            double[][] msgs = new double[in.readInt()][];
+            for (int e = 0; e < msgs.length; e++) {
+                msgs[e] = BinaryStreams.readDoubleArray(in);
+            }
+            return msgs;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** LRU map which spills its evicted entries to disk (if enabled). */
+    private class SpillingLRUMap extends LRUMap {
+
+        private static final long serialVersionUID = 1L;
+
+        public SpillingLRUMap(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected boolean removeLRU(LinkEntry entry) {
+            if (raf != null) {
+                writeToDisk((Long) entry.getKey(), (double[][]) entry.getValue());
+            }
+            return true;
+        }
+
+    }
+
+}
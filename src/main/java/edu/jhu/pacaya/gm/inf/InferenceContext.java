@@ -0,0 +1,70 @@
+package edu.jhu.pacaya.gm.inf;
+
+import edu.jhu.pacaya.gm.inf.BeliefPropagation.BeliefPropagationPrm;
+
+/**
+ * The training state for the inference runs on one example: the example, which identifies the messages to warm start
+ * from in a {@link BpMessageCache}, and the training progress, which sets the iteration cap and convergence threshold
+ * of an {@link AdaptiveBpBudget}.
+ *
+ * The caller (e.g. ModuleObjective) creates a context for each example and binds it to the inference factories with
+ * {@link #bind(FgInferencerFactory, InferenceContext)}. Inference without a context (e.g. at test time) uses the fixed
+ * settings of {@link BeliefPropagationPrm} and no warm starts. A context must only be used by one thread at a time.
+ *
+ * @author mgormley
+ */
+public class InferenceContext {
+
+    private final int scope;
+    private final int example;
+    private final double progress;
+    // The slot in the message cache of the next inference run.
+    private int nextSlot = 0;
+
+    /**
+     * Constructs a context.
+     *
+     * @param scope The scope of the example in a message cache (see {@link BpMessageCache#newScope()}).
+     * @param example The index of the example.
+     * @param curIter The current iteration of training.
+     * @param maxIter The maximum number of iterations of training.
+     */
+    public InferenceContext(int scope, int example, int curIter, int maxIter) {
+        this.scope = scope;
+        this.example = example;
+        this.progress = (maxIter > 0) ? Math.min(1.0, Math.max(0.0, (double) curIter / maxIter)) : 1.0;
+    }
+
+    /** Gets the training progress in [0, 1]. */
+    public double getProgress() {
+        return progress;
+    }
+
+    /**
+     * Gets the message cache key for the next inference run on this example. Each run takes the next slot, since some
+     * objectives run inference on more than one factor graph per example (e.g. the marginal log-likelihood runs on
+     * both the unclamped and the clamped graph).
+     *
+     * @return The key, or -1 if the example has no slots left.
+     */
+    long nextCacheKey() {
+        return BpMessageCache.getKey(scope, example, nextSlot++);
+    }
+
+    /** Gets a factory whose inference runs use the context, or the given factory if it has no use for one. */
+    public static FgInferencerFactory bind(FgInferencerFactory factory, InferenceContext ctx) {
+        if (ctx != null && factory instanceof BeliefPropagationPrm) {
+            return ((BeliefPropagationPrm) factory).withContext(ctx);
+        }
+        return factory;
+    }
+
+    /** Gets a factory whose inference runs use the context, or the given factory if it has no use for one. */
+    public static BeliefsModuleFactory bindBeliefs(BeliefsModuleFactory factory, InferenceContext ctx) {
+        if (ctx != null && factory instanceof BeliefPropagationPrm) {
+            return ((BeliefPropagationPrm) factory).withContext(ctx);
+        }
+        return factory;
+    }
+
+}
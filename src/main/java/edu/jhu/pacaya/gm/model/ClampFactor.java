@@ -22,6 +22,11 @@ public class ClampFactor extends ExplicitFactor implements Factor {
         this.setValue(state, s.one());
     }
 
+    /** Gets the state to which the variable is clamped. */
+    public int getState() {
+        return state;
+    }
+
     public void updateFromModel(FgModel model) {
         // No-op.
     }
@@ -27,6 +27,8 @@ public abstract class ExpFamFactor extends ExplicitFactor implements Factor, Fea
     private static final Logger log = LoggerFactory.getLogger(ExpFamFactor.class);
 
     protected boolean initialized = false;
+    // The inverted index from parameters to configs, used for incremental updates. Not serialized.
+    private transient FactorParamIndex paramIndex;
 
     public ExpFamFactor(VarSet vars) {
         super(vars);
@@ -57,6 +59,9 @@ public abstract class ExpFamFactor extends ExplicitFactor implements Factor, Fea
      * @param model The model.
      */
     public void updateFromModel(FgModel model) {
+        if (updateIncrementally(model)) {
+            return;
+        }
         initialized = true;
         int numConfigs = this.getVars().calcNumConfigs();
         for (int c=0; c<numConfigs; c++) {
@@ -64,6 +69,60 @@ public abstract class ExpFamFactor extends ExplicitFactor implements Factor, Fea
             assert !Double.isNaN(dot) && dot != Double.POSITIVE_INFINITY : "Invalid value for factor: " + dot;
             this.setValue(c, dot);
         }
+        noteFullUpdate(model);
+    }
+
+    /**
+     * If the model records its changes (see {@link FgModel#setTrackChanges(boolean)}) and this factor was last scored
+     * against an earlier version of the same model, rescores only the configs whose features include a changed
+     * parameter.
+     * 
+     * @return Whether the factor was updated, or false if it must be rescored from scratch.
+     */
+    protected boolean updateIncrementally(FgModel model) {
+        ParamChangeLog changeLog = model.getChangeLog();
+        if (changeLog == null || !initialized || paramIndex == null || paramIndex.changeLog != changeLog) {
+            return false;
+        }
+        ParamChangeLog.Changes changes = changeLog.getChangesSince(paramIndex.version);
+        if (changes == null) {
+            return false;
+        }
+        int numConfigs = paramIndex.getNumConfigs();
+        boolean[] dirty = new boolean[numConfigs];
+        int numDirty = paramIndex.markConfigs(changes, dirty);
+        for (int c=0; c<numConfigs; c++) {
+            if (dirty[c]) {
+                double dot = getDotProd(c, model);
+                assert !Double.isNaN(dot) && dot != Double.POSITIVE_INFINITY : "Invalid value for factor: " + dot;
+                this.setValue(c, dot);
+            }
+        }
+        paramIndex.version = changeLog.getVersion();
+        changeLog.addEntries(numConfigs, numDirty);
+        return true;
+    }
+
+    /** Records that this factor was rescored from scratch, building the index for incremental updates if needed. */
+    protected void noteFullUpdate(FgModel model) {
+        ParamChangeLog changeLog = model.getChangeLog();
+        if (changeLog == null) {
+            if (paramIndex != null) {
+                paramIndex.changeLog = null;
+            }
+            return;
+        }
+        if (paramIndex == null) {
+            paramIndex = new FactorParamIndex(this);
+        }
+        paramIndex.changeLog = changeLog;
+        paramIndex.version = changeLog.getVersion();
+        changeLog.addEntries(paramIndex.getNumConfigs(), paramIndex.getNumConfigs());
+    }
+
+    /** Discards the index for incremental updates. Subclasses must call this when their features change. */
+    protected void featuresChanged() {
+        paramIndex = null;
     }
     
     /**
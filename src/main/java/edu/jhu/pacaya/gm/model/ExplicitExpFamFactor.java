@@ -25,6 +25,7 @@ public class ExplicitExpFamFactor extends ExpFamFactor {
 
     public void setFeatures(int config, FeatureVector features) {
         this.features[config] = features;
+        featuresChanged();
     }
 
     @Override
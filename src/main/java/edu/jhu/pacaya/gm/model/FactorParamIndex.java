@@ -0,0 +1,111 @@
+package edu.jhu.pacaya.gm.model;
+
+import java.util.Arrays;
+
+import edu.jhu.pacaya.gm.feat.FeatureVector;
+
+/**
+ * An inverted index from each parameter used by an {@link ExpFamFactor} to the configurations whose features include
+ * it, along with the version of the {@link ParamChangeLog} at which the factor was last scored.
+ *
+ * @author mgormley
+ */
+class FactorParamIndex {
+
+    /** The distinct parameters, sorted. */
+    private final int[] params;
+    /** The configs of the k'th parameter are configs[start[k]] through configs[start[k+1]-1]. */
+    private final int[] start;
+    private final int[] configs;
+    private final int numConfigs;
+
+    /** The change log and version at which the factor was last scored, or null if unknown. */
+    ParamChangeLog changeLog;
+    int version;
+
+    /** Builds the index from the features of each config of the factor. */
+    FactorParamIndex(ExpFamFactor f) {
+        numConfigs = f.getVars().calcNumConfigs();
+        // Sort the (param, config) pairs, packed into longs.
+        long[] pairs = new long[16];
+        int numPairs = 0;
+        for (int c=0; c<numConfigs; c++) {
+            FeatureVector fv = f.getFeatures(c);
+            int used = fv.getUsed();
+            int[] idx = fv.getInternalIndices();
+            for (int i=0; i<used; i++) {
+                if (numPairs == pairs.length) {
+                    pairs = Arrays.copyOf(pairs, 2 * pairs.length);
+                }
+                pairs[numPairs++] = ((long) idx[i] << 32) | c;
+            }
+        }
+        Arrays.sort(pairs, 0, numPairs);
+        int[] ps = new int[numPairs];
+        int[] st = new int[numPairs + 1];
+        int[] cs = new int[numPairs];
+        int numParams = 0;
+        int numEntries = 0;
+        for (int i=0; i<numPairs; i++) {
+            if (i > 0 && pairs[i] == pairs[i-1]) {
+                continue;
+            }
+            int p = (int) (pairs[i] >> 32);
+            if (numParams == 0 || ps[numParams-1] != p) {
+                ps[numParams] = p;
+                st[numParams] = numEntries;
+                numParams++;
+            }
+            cs[numEntries++] = (int) pairs[i];
+        }
+        st[numParams] = numEntries;
+        this.params = Arrays.copyOf(ps, numParams);
+        this.start = Arrays.copyOf(st, numParams + 1);
+        this.configs = Arrays.copyOf(cs, numEntries);
+    }
+
+    /**
+     * Marks the configs whose features include a changed parameter.
+     *
+     * @param changes The changed parameters.
+     * @param dirty The OUTPUT array, of length numConfigs, in which the configs are marked.
+     * @return The number of configs marked.
+     */
+    int markConfigs(ParamChangeLog.Changes changes, boolean[] dirty) {
+        int[] changed = changes.getParams();
+        int numDirty = 0;
+        if (changed.length * (32 - Integer.numberOfLeadingZeros(params.length)) < params.length) {
+            // Look up each changed parameter.
+            for (int p : changed) {
+                int k = Arrays.binarySearch(params, p);
+                if (k >= 0) {
+                    numDirty += mark(k, dirty);
+                }
+            }
+        } else {
+            // Check each parameter of the factor.
+            for (int k=0; k<params.length; k++) {
+                if (changes.contains(params[k])) {
+                    numDirty += mark(k, dirty);
+                }
+            }
+        }
+        return numDirty;
+    }
+
+    private int mark(int k, boolean[] dirty) {
+        int numDirty = 0;
+        for (int j=start[k]; j<start[k+1]; j++) {
+            if (!dirty[configs[j]]) {
+                dirty[configs[j]] = true;
+                numDirty++;
+            }
+        }
+        return numDirty;
+    }
+
+    int getNumConfigs() {
+        return numConfigs;
+    }
+
+}
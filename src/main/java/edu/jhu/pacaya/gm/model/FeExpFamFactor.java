@@ -1,5 +1,6 @@
 package edu.jhu.pacaya.gm.model;
 
+import edu.jhu.pacaya.gm.feat.FeatureExtractionProfiler;
 import edu.jhu.pacaya.gm.feat.FeatureExtractor;
 import edu.jhu.pacaya.gm.feat.FeatureVector;
 
@@ -25,9 +26,22 @@ public class FeExpFamFactor extends ExpFamFactor {
     @Override
     public FeatureVector getFeatures(int configId) {
         if (features[configId] == null) {
-            features[configId] = fe.calcFeatureVector(this, configId);
+            if (FeatureExtractionProfiler.isEnabled()) {
+                FeatureExtractionProfiler.Probe probe = FeatureExtractionProfiler.start(null);
+                features[configId] = fe.calcFeatureVector(this, configId);
+                probe.stop(fe.getClass().getName(), features[configId]);
+            } else {
+                features[configId] = fe.calcFeatureVector(this, configId);
+            }
+            features[configId].freeze();
         }
         return features[configId];
     }
+
+    /** Sets the cached features for a configuration (e.g. from a feature cache), so that they are not extracted. */
+    public void setFeatures(int configId, FeatureVector fv) {
+        features[configId] = fv;
+        featuresChanged();
+    }
     
 }
@@ -1,6 +1,9 @@
 package edu.jhu.pacaya.gm.model;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Serializable;
@@ -13,6 +16,7 @@ import org.slf4j.LoggerFactory;
 
 import edu.jhu.pacaya.gm.feat.FeatureVector;
 import edu.jhu.pacaya.util.dist.Gaussian;
+import edu.jhu.pacaya.util.files.BinaryStreams;
 import edu.jhu.prim.map.IntDoubleMap;
 import edu.jhu.prim.util.Lambda.FnIntDoubleToDouble;
 import edu.jhu.prim.util.Lambda.FnIntDoubleToVoid;
@@ -36,12 +40,17 @@ public class FgModel implements Serializable, IFgModel {
     private static final Logger log = LoggerFactory.getLogger(FgModel.class);
 
     private static final long serialVersionUID = 4477788767217412525L;
+    private static final String BINARY_MAGIC = "FgModel";
     /** The model parameters. */
     private IntDoubleVector params;
     /** The number of model parameters. */
     private int numParams;
     /** Provides iteration of the model parameter names. */
     private transient Iterable<String> paramNames;
+    /** The record of the changes to the parameters, or null if they are not tracked. */
+    private transient ParamChangeLog changeLog;
+    /** The number of calls to setParams, which identifies the current parameters for caches. */
+    private transient int paramsVersion = 0;
     
     public FgModel(int numParams) {
         this(numParams, null);
@@ -97,6 +106,23 @@ public class FgModel implements Serializable, IFgModel {
         int used = fv.getUsed();
         int[] fvInd = fv.getInternalIndices();
         double[] fvVal = fv.getInternalValues();
+        if (fv.isFrozen() && used > 0) {
+            // The indices are sorted, so only the first and last need to be checked.
+            if (fvInd[0] < 0 || numParams <= fvInd[used-1]) {
+                throw new IllegalArgumentException("The specified parameter is not included in this model: "
+                        + (fvInd[0] < 0 ? fvInd[0] : fvInd[used-1]));
+            }
+            if (fv.isBinary()) {
+                for (int i=0; i<used; i++) {
+                    params.add(fvInd[i], multiplier);
+                }
+            } else {
+                for (int i=0; i<used; i++) {
+                    params.add(fvInd[i], multiplier * fvVal[i]);
+                }
+            }
+            return;
+        }
         for (int i=0; i<used; i++) {
             add(fvInd[i], multiplier * fvVal[i]);
         }
@@ -123,6 +149,10 @@ public class FgModel implements Serializable, IFgModel {
         if (maxIdx >= this.numParams) {
             throw new IllegalArgumentException("Invalid feature: " + maxIdx);
         }
+        if (fv.isFrozen() && params instanceof IntDoubleDenseVector && fv.getMinIdxFrozen() >= 0) {
+            // Read the parameters directly, in order of the sorted indices.
+            return fv.dot(((IntDoubleDenseVector) params).getInternalElements());
+        }
         return params.dot(fv);
     }
     
@@ -213,15 +243,109 @@ public class FgModel implements Serializable, IFgModel {
         return l2Norm.doubleValue();
     }
 
+    /**
+     * Sets the parameters. If changes are tracked, every parameter is recorded as changed (see
+     * {@link #setParams(IntDoubleVector, int[])}).
+     */
     public void setParams(IntDoubleVector params) {
-        if (!(params instanceof IntDoubleDenseVector)) {
+        setParams(params, null);
+    }
+
+    /**
+     * Sets the parameters.
+     * 
+     * @param params The parameters.
+     * @param changed If changes are tracked, the parameters which may have changed since the last call (e.g. the
+     *            explicit entries of the gradient for the last step of a sparse optimizer), or null if they are not
+     *            known.
+     */
+    public void setParams(IntDoubleVector params, int[] changed) {
+        if (!(params instanceof IntDoubleDenseVector) && params.getClass() != this.params.getClass()) {
             log.warn("Setting params to class: " + params.getClass());
         }
         this.params = params;
+        paramsVersion++;
+        if (changeLog != null) {
+            changeLog.record(changed, numParams);
+        }
+    }
+
+    /**
+     * Sets whether to track the changes to the parameters, so that factors can be rescored incrementally. When
+     * tracking, the changes are recorded on each call to {@link #setParams(IntDoubleVector, int[])}, which must be
+     * called after the parameters are modified (as in {@link edu.jhu.pacaya.gm.train.AvgBatchObjective}).
+     */
+    public void setTrackChanges(boolean trackChanges) {
+        if (trackChanges && changeLog == null) {
+            changeLog = new ParamChangeLog();
+            changeLog.record(null, numParams);
+        } else if (!trackChanges) {
+            changeLog = null;
+        }
+    }
+
+    /**
+     * Gets the number of calls to {@link #setParams(IntDoubleVector)}. Caches of values computed from the parameters
+     * (e.g. {@link edu.jhu.pacaya.gm.feat.FactorTableCache}) assume that the parameters are not modified in place
+     * without a following call to setParams.
+     */
+    public int getParamsVersion() {
+        return paramsVersion;
+    }
+
+    /** Gets the record of the changes to the parameters, or null if they are not tracked. */
+    public ParamChangeLog getChangeLog() {
+        return changeLog;
     }
 
     public IntDoubleVector getParams() {
         return params;
     }
     
+    /**
+     * Writes this model to a file in the binary format of {@link BinaryStreams}.
+     * 
+     * @param file The output file.
+     * @param compress Whether to GZIP the output.
+     */
+    public void writeBinary(File file, boolean compress) {
+        try (DataOutputStream out = BinaryStreams.newOutputStream(file, compress)) {
+            BinaryStreams.writeHeader(out, BINARY_MAGIC);
+            writeBinary(out);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Reads a model from a file written by {@link #writeBinary(File, boolean)}. */
+    public static FgModel readBinary(File file) {
+        try (DataInputStream in = BinaryStreams.newInputStream(file)) {
+            BinaryStreams.readHeader(in, BINARY_MAGIC);
+            return readBinary(in);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Writes the parameters of this model (without a header) as a dense array. */
+    public void writeBinary(DataOutputStream out) throws IOException {
+        double[] dense;
+        if (params instanceof IntDoubleDenseVector) {
+            dense = ((IntDoubleDenseVector) params).getInternalElements();
+        } else {
+            dense = new double[numParams];
+            updateDoublesFromModel(dense);
+        }
+        BinaryStreams.writeDoubleArray(out, dense, 0, numParams);
+    }
+
+    /** Reads a model written by {@link #writeBinary(DataOutputStream)}. */
+    public static FgModel readBinary(DataInputStream in) throws IOException {
+        double[] dense = BinaryStreams.readDoubleArray(in);
+        FgModel model = new FgModel(0);
+        model.numParams = dense.length;
+        model.params = new IntDoubleDenseVector(dense);
+        return model;
+    }
+    
 }
@@ -0,0 +1,199 @@
+package edu.jhu.pacaya.gm.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.pacaya.util.report.Reporter;
+import edu.jhu.pacaya.util.report.ReporterManager;
+
+/**
+ * Records which parameters of an {@link FgModel} changed between optimizer steps, so that the factors of a factor
+ * graph can be rescored incrementally (see {@link ExpFamFactor#updateFromModel(FgModel)}).
+ *
+ * Each call to {@link #record(int[], int)} records the parameters changed by one step of the optimizer, as reported by
+ * the caller (e.g. the explicit entries of a sparse gradient), and starts a new version. No copy of the parameters is
+ * kept, so the cost of a step is proportional to the number of parameters it changed. A factor remembers the version at which it was last scored, and asks for the parameters
+ * changed since then. Only the most recent versions are retained, and a step which changes a large fraction of the
+ * parameters (e.g. one which applies L2 regularization to every parameter) is not recorded in detail; in either case
+ * the factor is rescored from scratch.
+ *
+ * Also keeps statistics on the fraction of the factor entries rescored on each step.
+ *
+ * @author mgormley
+ */
+public class ParamChangeLog {
+
+    private static final Logger log = LoggerFactory.getLogger(ParamChangeLog.class);
+    private static final Reporter rep = Reporter.getReporter(ParamChangeLog.class);
+
+    /** The parameters changed since some version, sorted, and as a set. */
+    public static class Changes {
+        private final int[] params;
+        private final BitSet set;
+
+        private Changes(int[] params) {
+            this.params = params;
+            this.set = new BitSet();
+            for (int p : params) {
+                set.set(p);
+            }
+        }
+
+        public int[] getParams() {
+            return params;
+        }
+
+        public boolean contains(int param) {
+            return set.get(param);
+        }
+    }
+
+    /** The maximum number of versions retained. */
+    private final int maxHistory;
+    /** The maximum fraction of the parameters which a step may change and still be recorded in detail. */
+    private final double maxChangedFrac;
+
+    private int version = 0;
+    // The parameters changed by each retained step, where history.get(k) is the step to version firstVersion+k+1, or
+    // null if the step was not recorded in detail.
+    private List<int[]> history = new ArrayList<>();
+    private int firstVersion = 0;
+    // The changes since each version, computed for the current version.
+    private Map<Integer, Changes> cache = new HashMap<>();
+
+    // Statistics on the number of factor entries scored (in total) and rescored.
+    private final AtomicLong stepEntries = new AtomicLong();
+    private final AtomicLong stepRescored = new AtomicLong();
+    private long totEntries = 0;
+    private long totRescored = 0;
+    private long numSteps = 0;
+
+    public ParamChangeLog() {
+        this(64, 0.25);
+    }
+
+    /**
+     * Constructs a change log.
+     * @param maxHistory The maximum number of versions retained.
+     * @param maxChangedFrac The maximum fraction of the parameters which a step may change and still be recorded in
+     *            detail.
+     */
+    public ParamChangeLog(int maxHistory, double maxChangedFrac) {
+        this.maxHistory = maxHistory;
+        this.maxChangedFrac = maxChangedFrac;
+    }
+
+    /**
+     * Records the parameters which changed since the last call, and starts a new version.
+     * 
+     * @param changed The parameters which may have changed (in any order, possibly with repeats), or null if they are
+     *            not known, in which case every parameter is assumed to have changed.
+     * @param numParams The number of parameters.
+     */
+    public synchronized void record(int[] changed, int numParams) {
+        endStep();
+        if (changed != null && changed.length > maxChangedFrac * numParams) {
+            changed = null;
+        }
+        history.add(changed);
+        version++;
+        if (history.size() > maxHistory) {
+            history.remove(0);
+            firstVersion++;
+        }
+        cache.clear();
+    }
+
+    /** Gets the current version. */
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the parameters changed since the given version, or null if they are not known (i.e. the version is too old
+     * or a step since then was not recorded in detail).
+     */
+    public synchronized Changes getChangesSince(int since) {
+        if (since < firstVersion || since > version) {
+            return null;
+        }
+        Changes ch = cache.get(since);
+        if (ch == null && !cache.containsKey(since)) {
+            int total = 0;
+            for (int v=since; v<version; v++) {
+                int[] changed = history.get(v - firstVersion);
+                if (changed == null) {
+                    total = -1;
+                    break;
+                }
+                total += changed.length;
+            }
+            if (total != -1) {
+                int[] all = new int[total];
+                int pos = 0;
+                for (int v=since; v<version; v++) {
+                    int[] changed = history.get(v - firstVersion);
+                    System.arraycopy(changed, 0, all, pos, changed.length);
+                    pos += changed.length;
+                }
+                Arrays.sort(all);
+                int numDistinct = 0;
+                for (int i=0; i<all.length; i++) {
+                    if (i == 0 || all[i] != all[i-1]) {
+                        all[numDistinct++] = all[i];
+                    }
+                }
+                ch = new Changes(Arrays.copyOf(all, numDistinct));
+            }
+            cache.put(since, ch);
+        }
+        return ch;
+    }
+
+    /** Records that a factor with the given number of entries had some of them rescored. Threadsafe. */
+    public void addEntries(int numEntries, int numRescored) {
+        stepEntries.addAndGet(numEntries);
+        stepRescored.addAndGet(numRescored);
+    }
+
+    private void endStep() {
+        long entries = stepEntries.getAndSet(0);
+        long rescored = stepRescored.getAndSet(0);
+        if (entries > 0) {
+            numSteps++;
+            totEntries += entries;
+            totRescored += rescored;
+            log.debug(String.format("Rescored entries for version %d: %d / %d (%.4f)", version, rescored, entries,
+                    (double) rescored / entries));
+        }
+    }
+
+    /** Gets the fraction of the factor entries which were rescored, over all steps. */
+    public synchronized double getRescoredFrac() {
+        long entries = totEntries + stepEntries.get();
+        long rescored = totRescored + stepRescored.get();
+        return (entries == 0) ? 0 : (double) rescored / entries;
+    }
+
+    /** Logs and reports the fraction of the factor entries which were rescored. */
+    public synchronized void report() {
+        endStep();
+        if (numSteps == 0) {
+            return;
+        }
+        log.info(String.format("Incremental rescoring: steps = %d avg rescored entries/step = %.1f "
+                + "rescored fraction = %.4f", numSteps, (double) totRescored / numSteps, getRescoredFrac()));
+        if (ReporterManager.isInitialized()) {
+            rep.report("incrementalRescoredFrac", getRescoredFrac());
+        }
+    }
+
+}
@@ -118,6 +118,7 @@ public class VarTensor extends Tensor implements Serializable {
      *  \f[f+g : \prod_{l\in L\cup M} X_l \to [0,\infty) : x \mapsto f(x_L) + g(x_M).\f]
      */
     public void add(VarTensor f) {
+        ensureOwnValues();
         VarTensor newFactor = applyBinOp(this, f, new AlgebraLambda.Add());
         internalSet(newFactor);      
     }
@@ -131,6 +132,7 @@ public class VarTensor extends Tensor implements Serializable {
      *  \f[fg : \prod_{l\in L\cup M} X_l \to [0,\infty) : x \mapsto f(x_L) g(x_M).\f]
      */
     public void prod(VarTensor f) {
+        ensureOwnValues();
         VarTensor newFactor = applyBinOp(this, f, new AlgebraLambda.Prod());
         internalSet(newFactor);  
     }
@@ -140,6 +142,7 @@ public class VarTensor extends Tensor implements Serializable {
      * indices matching 0 /= 0 are set to 0.
      */
     public void divBP(VarTensor f) {
+        ensureOwnValues();
     	VarTensor newFactor = applyBinOp(this, f, new AlgebraLambda.DivBP());
         internalSet(newFactor);
     }
@@ -149,6 +152,7 @@ public class VarTensor extends Tensor implements Serializable {
      * indices matching 0 /= 0 are set to 0.
      */
     public void elemDivBP(VarTensor f) {
+        ensureOwnValues();
         elemApplyBinOp(this, f, new AlgebraLambda.DivBP());
     }
 
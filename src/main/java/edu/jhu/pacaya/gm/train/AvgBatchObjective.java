@@ -1,5 +1,7 @@
 package edu.jhu.pacaya.gm.train;
 
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.concurrent.Callable;
 
 import org.slf4j.Logger;
@@ -10,8 +12,11 @@ import edu.jhu.hlt.optimize.function.DifferentiableBatchFunction;
 import edu.jhu.hlt.optimize.function.NonstationaryFunction;
 import edu.jhu.hlt.optimize.function.ValueGradient;
 import edu.jhu.pacaya.gm.model.FgModel;
+import edu.jhu.pacaya.util.TaskCosts;
 import edu.jhu.pacaya.util.Threads;
 import edu.jhu.pacaya.util.Threads.TaskFactory;
+import edu.jhu.prim.list.IntArrayList;
+import edu.jhu.prim.util.Lambda.FnIntDoubleToVoid;
 import edu.jhu.prim.vector.IntDoubleVector;
 
 /**
@@ -53,6 +58,16 @@ public class AvgBatchObjective extends AbstractDifferentiableBatchFunction imple
     private FgModel model;
     private FgModel gradient;
     private ExampleObjective exObj;
+    // The measured time of each example, for scheduling the examples of a batch across threads.
+    private TaskCosts costs;
+    // Chooses the examples of each batch in place of the optimizer, or null to use those sampled by the optimizer.
+    private BatchOrderProvider batchOrder = null;
+    // Whether each step of the optimizer changes only the parameters with an explicit entry in the gradient.
+    private boolean sparseSteps = false;
+    // The point of the last evaluation, and the parameters which the optimizer may have changed since then (i.e. the
+    // explicit entries of the gradient returned), or null if they are not known.
+    private IntDoubleVector lastPoint = null;
+    private int[] changedSinceLast = null;
     // For nonstationary functions:
     private int curIter;
     private int maxIter;
@@ -71,6 +86,7 @@ public class AvgBatchObjective extends AbstractDifferentiableBatchFunction imple
         this.model = model;
         this.gradient = model.getDenseCopy();
         this.gradient.zero();
+        this.costs = new TaskCosts(numExamples);
     }
 
     /** @inheritDoc */
@@ -121,21 +137,17 @@ public class AvgBatchObjective extends AbstractDifferentiableBatchFunction imple
             }
         }
         
-        model.setParams(params);        
-        if (Threads.numThreads == 1) {
-            // Run serially.
-            for (int i=0; i<batch.length; i++) {
-                log.trace("Computing value/gradient for example " + i);
-                exObj.accum(model, batch[i], ac);
-            }
+        model.setParams(params, (params == lastPoint) ? changedSinceLast : null);
+        Iterator<int[]> parts;
+        if (batchOrder == null) {
+            parts = Collections.singletonList(batch).iterator();
+        } else if (!ac.accumGradient && !isFullDataset) {
+            parts = batchOrder.getEvalBatch(batch);
         } else {
-            // Run in parallel.
-            TaskFactory<Object> factory = new TaskFactory<Object>() {
-                public Callable<Object> getTask(int i) {
-                    return new AccumValueGradientOfExample(ac, i);
-                }
-            };
-            Threads.safelyParallelizeBatch(Threads.defaultPool, batch, factory);
+            parts = batchOrder.getBatch(batch);
+        }
+        while (parts.hasNext()) {
+            accumPart(parts.next(), ac);
         }
         
         if (ac.accumValue) {
@@ -144,6 +156,13 @@ public class AvgBatchObjective extends AbstractDifferentiableBatchFunction imple
         if (ac.accumGradient) {
             ac.gradient.scale(1.0 / getDivisorForAveraging(batch, ac));    
         }
+        if (sparseSteps && ac.accumGradient && !isFullDataset) {
+            lastPoint = params;
+            changedSinceLast = getExplicitIndices(ac.gradient.getParams());
+        } else {
+            lastPoint = null;
+            changedSinceLast = null;
+        }
         if (isFullDataset) {
             // Print out the likelihood if we're computing it on the entire dataset.
             log.info(String.format("Summary: avg value = %.2g loss = %.2g weight = %.2g",
@@ -152,6 +171,36 @@ public class AvgBatchObjective extends AbstractDifferentiableBatchFunction imple
         }
     }
 
+    /** Accumulates the examples of one part of a batch. */
+    private void accumPart(int[] part, final Accumulator ac) {
+        if (Threads.numThreads == 1) {
+            // Run serially.
+            for (int i=0; i<part.length; i++) {
+                log.trace("Computing value/gradient for example " + i);
+                exObj.accum(model, part[i], ac);
+            }
+        } else {
+            // Run in parallel, starting the examples which took longest on their last run first.
+            TaskFactory<Object> factory = new TaskFactory<Object>() {
+                public Callable<Object> getTask(int i) {
+                    return new AccumValueGradientOfExample(ac, i);
+                }
+            };
+            Threads.safelyParallelizeBatch(Threads.defaultPool, part, factory, costs, Threads.numThreads);
+        }
+    }
+
+    private static int[] getExplicitIndices(IntDoubleVector vec) {
+        final IntArrayList indices = new IntArrayList();
+        vec.iterate(new FnIntDoubleToVoid() {
+            @Override
+            public void call(int i, double v) {
+                indices.add(i);
+            }
+        });
+        return indices.toNativeArray();
+    }
+
     protected double getDivisorForAveraging(int[] batch, Accumulator ac) {
         // TODO: Should this be the total weight of all the examples instead?
         return batch.length;
@@ -176,7 +225,10 @@ public class AvgBatchObjective extends AbstractDifferentiableBatchFunction imple
             } else {
                 Accumulator sparseAc = new Accumulator();
                 sparseAc.setFlagsFromOther(ac);
+                long t0 = System.nanoTime();
                 synchronized (ac) {
+                    // Time spent waiting for the lock is not part of the cost of this example.
+                    TaskCosts.addWaitNanos(System.nanoTime() - t0);
                     if (ac.accumValue) {
                         log.trace("Computing value for example " + i);
                     }
@@ -186,7 +238,9 @@ public class AvgBatchObjective extends AbstractDifferentiableBatchFunction imple
                     }
                 }
                 exObj.accum(model, i, sparseAc);            
+                t0 = System.nanoTime();
                 synchronized (ac) {   
+                    TaskCosts.addWaitNanos(System.nanoTime() - t0);
                     ac.addAll(sparseAc);
                 }
                 return null;
@@ -209,6 +263,25 @@ public class AvgBatchObjective extends AbstractDifferentiableBatchFunction imple
         return numExamples;
     }
 
+    /**
+     * Sets the provider which chooses the examples of each batch in place of those sampled by the optimizer (e.g. a
+     * {@link BlockShuffledBatchOrder}), or null to use those sampled by the optimizer.
+     */
+    public void setBatchOrder(BatchOrderProvider batchOrder) {
+        this.batchOrder = batchOrder;
+    }
+
+    /**
+     * Sets whether each step of the optimizer changes only the parameters with an explicit entry in the gradient
+     * returned for the last mini-batch (as in {@link edu.jhu.hlt.optimize.SGD} and its subclasses). If so, and the
+     * model tracks its changes (see {@link FgModel#setTrackChanges(boolean)}), those parameters are recorded as the
+     * changes when the objective is next evaluated at the same point. Otherwise, every parameter is recorded as
+     * changed.
+     */
+    public void setSparseSteps(boolean sparseSteps) {
+        this.sparseSteps = sparseSteps;
+    }
+
     @Override
     public void updatateIterAndMax(int curIter, int maxIter) {
         this.curIter = curIter;
@@ -0,0 +1,34 @@
+package edu.jhu.pacaya.gm.train;
+
+import java.util.Iterator;
+
+/**
+ * Chooses the examples of each batch given to an {@link AvgBatchObjective}, in place of those sampled by the
+ * optimizer. This lets the examples be visited in an order which suits how they are stored (e.g. reading a disk store
+ * in blocks).
+ * 
+ * @author mgormley
+ */
+public interface BatchOrderProvider {
+
+    /**
+     * Gets the examples of the next batch, in one or more parts. Each part is requested only after the examples of the
+     * previous part have been computed, so that a provider need only hold the examples of one part at a time (e.g.
+     * when streaming them from disk).
+     * 
+     * @param sampled The example indices sampled by the optimizer.
+     * @return The parts of the batch: the example indices to use instead of those sampled, of the same total number.
+     */
+    Iterator<int[]> getBatch(int[] sampled);
+
+    /**
+     * Gets the examples of a batch which is evaluated without a gradient, and so is not part of a step (e.g. the
+     * sample on which SGD compares learning rates when autoSelectLr is on). The same sample may be evaluated
+     * repeatedly, and its values are only comparable if it gets the same examples each time.
+     * 
+     * @param sampled The example indices sampled by the optimizer, which do not cover the whole dataset.
+     * @return The parts of the batch, as in {@link #getBatch(int[])}.
+     */
+    Iterator<int[]> getEvalBatch(int[] sampled);
+
+}
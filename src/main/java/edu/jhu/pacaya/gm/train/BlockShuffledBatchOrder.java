@@ -0,0 +1,106 @@
+package edu.jhu.pacaya.gm.train;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+
+import edu.jhu.prim.arrays.IntArrays;
+import edu.jhu.prim.util.random.Prng;
+
+/**
+ * Visits the examples in a block-shuffled order: the examples are grouped into blocks of consecutive indices, and each
+ * epoch visits the blocks in a random order and the examples of each block in a random order. The batches are
+ * consecutive runs of this order, so that a batch reads only one or two blocks. For a store which keeps consecutive
+ * examples close together (e.g. {@link edu.jhu.pacaya.gm.data.FgExampleDiskStore} read with
+ * {@link edu.jhu.pacaya.util.cache.ConcurrentFastDiskStore.ReadMode#BLOCK}), this turns random seeks into sequential
+ * reads.
+ * 
+ * Each epoch visits every example exactly once (as when sampling without replacement), regardless of how the optimizer
+ * samples the batches. A batch which covers the whole dataset is visited in order. A batch evaluated without a
+ * gradient (e.g. the sample on which SGD compares learning rates when autoSelectLr is on) keeps the sampled examples,
+ * in order, so that a repeated sample gets the same examples and does not advance the epoch. The randomness comes
+ * from {@link Prng}.
+ * 
+ * @author mgormley
+ */
+public class BlockShuffledBatchOrder implements BatchOrderProvider {
+
+    private final int numExamples;
+    private final int blockSize;
+    // The order of the examples for the current epoch.
+    private final int[] order;
+    // The position in the order of the next example to visit.
+    private int cur;
+
+    /**
+     * Constructor.
+     * 
+     * @param numExamples The number of examples.
+     * @param blockSize The number of consecutive examples in each block.
+     */
+    public BlockShuffledBatchOrder(int numExamples, int blockSize) {
+        if (numExamples <= 0 || blockSize <= 0) {
+            throw new IllegalArgumentException("Invalid numExamples or blockSize: " + numExamples + " " + blockSize);
+        }
+        this.numExamples = numExamples;
+        this.blockSize = blockSize;
+        this.order = new int[numExamples];
+        this.cur = numExamples;
+    }
+
+    @Override
+    public Iterator<int[]> getBatch(int[] sampled) {
+        return Collections.singletonList(nextBatch(sampled)).iterator();
+    }
+
+    @Override
+    public Iterator<int[]> getEvalBatch(int[] sampled) {
+        int[] batch = Arrays.copyOf(sampled, sampled.length);
+        Arrays.sort(batch);
+        return Collections.singletonList(batch).iterator();
+    }
+
+    private synchronized int[] nextBatch(int[] sampled) {
+        if (sampled.length >= numExamples) {
+            // Visit the whole dataset in storage order.
+            int[] batch = Arrays.copyOf(sampled, sampled.length);
+            Arrays.sort(batch);
+            return batch;
+        }
+        int[] batch = new int[sampled.length];
+        for (int i=0; i<batch.length; i++) {
+            if (cur == numExamples) {
+                shuffle();
+            }
+            batch[i] = order[cur++];
+        }
+        return batch;
+    }
+
+    /** Starts a new epoch with a new block-shuffled order. */
+    private void shuffle() {
+        int numBlocks = (numExamples + blockSize - 1) / blockSize;
+        int[] blocks = IntArrays.range(numBlocks);
+        IntArrays.shuffle(blocks);
+        int j = 0;
+        for (int b : blocks) {
+            int start = j;
+            for (int i = b * blockSize; i < Math.min(numExamples, (b + 1) * blockSize); i++) {
+                order[j++] = i;
+            }
+            shuffle(order, start, j);
+        }
+        cur = 0;
+    }
+
+    /** Shuffles the elements of a in the range [start, end). */
+    private static void shuffle(int[] a, int start, int end) {
+        for (int i = end - 1; i > start; i--) {
+            int k = start + Prng.nextInt(i - start + 1);
+            int tmp = a[i];
+            a[i] = a[k];
+            a[k] = tmp;
+        }
+    }
+
+}
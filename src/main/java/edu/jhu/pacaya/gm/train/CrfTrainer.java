@@ -12,14 +12,20 @@ import edu.jhu.hlt.optimize.function.DifferentiableBatchFunction;
 import edu.jhu.hlt.optimize.function.DifferentiableFunction;
 import edu.jhu.hlt.optimize.function.Function;
 import edu.jhu.pacaya.gm.data.FgExampleList;
+import edu.jhu.pacaya.gm.data.FgExampleStream;
+import edu.jhu.pacaya.gm.data.LFgExample;
+import edu.jhu.pacaya.gm.feat.ObsCjExpFamFactor;
+import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner;
 import edu.jhu.pacaya.gm.inf.BeliefPropagation.BeliefPropagationPrm;
 import edu.jhu.pacaya.gm.inf.BeliefsModuleFactory;
 import edu.jhu.pacaya.gm.inf.FgInferencerFactory;
+import edu.jhu.pacaya.gm.model.Factor;
 import edu.jhu.pacaya.gm.model.FgModel;
 import edu.jhu.pacaya.gm.train.AvgBatchObjective.ExampleObjective;
 import edu.jhu.pacaya.gm.train.EmpiricalRisk.EmpiricalRiskFactory;
 import edu.jhu.pacaya.gm.train.ExpectedRecall.ExpectedRecallFactory;
 import edu.jhu.pacaya.util.Prm;
+import edu.jhu.prim.vector.IntDoubleVector;
 
 /**
  * Trainer for a conditional random field (CRF) represented as a factor graph.
@@ -41,6 +47,22 @@ public class CrfTrainer {
         public Trainer trainer = Trainer.CLL;
         /** The decoder and loss function used by ERMA training. */
         public DlFactory dlFactory = new ExpectedRecallFactory();
+        /**
+         * Whether to rescore only the factor entries whose features include a parameter changed by the last step
+         * (instead of every entry). The changed parameters are read off the gradient of each mini-batch when the
+         * batch optimizer is an SGD (other than a regularized LazyAdaGradComid), and otherwise every entry is
+         * rescored.
+         */
+        public boolean incrementalUpdates = false;
+        /**
+         * If positive, the examples are visited in a block-shuffled order with blocks of this many consecutive
+         * examples (see {@link BlockShuffledBatchOrder}), in place of the batches sampled by the batch optimizer. This
+         * suits a disk store read in blocks (see
+         * {@link edu.jhu.pacaya.util.cache.ConcurrentFastDiskStore.ReadMode#BLOCK}). An SGD with autoSelectLr still
+         * compares the learning rates on its sampled examples. Ignored when training from an FgExampleStream, which
+         * has its own order.
+         */
+        public int shuffleBlockSize = -1;
     }
     
     private static final Logger log = LoggerFactory.getLogger(CrfTrainer.class);
@@ -59,7 +81,44 @@ public class CrfTrainer {
         return train(model, data, null);
     }
     
+    /**
+     * Whether each step of the optimizer changes only the parameters with an explicit entry in the gradient, so that
+     * the changes can be read off the gradient.
+     */
+    private static boolean takesSparseSteps(Optimizer<DifferentiableBatchFunction> optimizer) {
+        if (optimizer instanceof LazyAdaGradComid) {
+            return !((LazyAdaGradComid) optimizer).isRegularized();
+        }
+        return optimizer instanceof SGD;
+    }
+
+    /**
+     * Checks that the model can be trained from a stream, whose examples are only available a batch at a time, and
+     * fails with a clear message if not. A sample evaluated by an SGD with autoSelectLr fails on its first evaluation
+     * (see {@link StreamingBatchOrder}), since the optimizers do not expose that setting.
+     */
+    private static void checkCanTrainFromStream(FgExampleStream stream, Function validation) {
+        if (validation != null) {
+            throw new IllegalArgumentException("Validation is not supported when training from an FgExampleStream.");
+        }
+        // The features must be known before training, since the stream's examples are never all available.
+        LFgExample ex = stream.readFirst();
+        for (Factor f : ex.getFactorGraph().getFactors()) {
+            if (!(f instanceof ObsCjExpFamFactor)) {
+                continue;
+            }
+            ObsFeatureConjoiner ofc = ((ObsCjExpFamFactor) f).getConjoiner();
+            if (ofc != null && !ofc.isInitialized()) {
+                throw new IllegalStateException("The ObsFeatureConjoiner must be initialized (e.g. with a pass over "
+                        + "the stream) before training from an FgExampleStream.");
+            }
+        }
+    }
+
     public FgModel train(FgModel model, FgExampleList data, Function validation) {        
+        if (data instanceof FgExampleStream) {
+            checkCanTrainFromStream((FgExampleStream) data, validation);
+        }
         ExampleObjective exObj;
         MtFactory mtFactory;
         if (prm.trainer == Trainer.ERMA) {
@@ -69,7 +128,19 @@ public class CrfTrainer {
         }
         mtFactory = new ScaleByWeightFactory(mtFactory);
         exObj = new ModuleObjective(data, mtFactory);
+        if (prm.incrementalUpdates) {
+            model.setTrackChanges(true);
+        }
         AvgBatchObjective objective = new AvgBatchObjective(exObj, model);
+        if (prm.incrementalUpdates && prm.batchOptimizer != null) {
+            objective.setSparseSteps(takesSparseSteps(prm.batchOptimizer));
+        }
+        if (data instanceof FgExampleStream) {
+            // The examples can only be read in the order of the stream.
+            objective.setBatchOrder(new StreamingBatchOrder((FgExampleStream) data));
+        } else if (prm.shuffleBlockSize > 0) {
+            objective.setBatchOrder(new BlockShuffledBatchOrder(data.size(), prm.shuffleBlockSize));
+        }
         
         if (prm.optimizer != null) {
             DifferentiableFunction fn = objective;
@@ -77,11 +148,28 @@ public class CrfTrainer {
             log.info("Final objective value: " + fn.getValue(model.getParams()));
         } else {
             DifferentiableBatchFunction fn = objective;
+            IntDoubleVector params = model.getParams();
             if (prm.batchOptimizer instanceof SGD && validation != null) {
                 SGD sgd = (SGD) prm.batchOptimizer;
-                sgd.minimize(fn, model.getParams(), validation);
+                sgd.minimize(fn, params, validation);
             } else {
-                prm.batchOptimizer.minimize(fn, model.getParams());
+                prm.batchOptimizer.minimize(fn, params);
+            }
+            // The optimizer may have evaluated the objective at a view of the parameters (e.g. LazyAdaGradComid).
+            model.setParams(params);
+        }
+        if (prm.incrementalUpdates) {
+            model.getChangeLog().report();
+            model.setTrackChanges(false);
+        }
+        Object inf = (prm.trainer == Trainer.ERMA) ? prm.bFactory : prm.infFactory;
+        if (inf instanceof BeliefPropagationPrm) {
+            BeliefPropagationPrm bpPrm = (BeliefPropagationPrm) inf;
+            if (bpPrm.msgCache != null) {
+                bpPrm.msgCache.report();
+            }
+            if (bpPrm.budget != null) {
+                bpPrm.budget.report();
             }
         }
         return model;
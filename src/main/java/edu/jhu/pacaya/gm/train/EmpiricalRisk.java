@@ -11,6 +11,7 @@ import edu.jhu.pacaya.autodiff.Tensor;
 import edu.jhu.pacaya.autodiff.TopoOrder;
 import edu.jhu.pacaya.gm.inf.Beliefs;
 import edu.jhu.pacaya.gm.inf.BeliefsModuleFactory;
+import edu.jhu.pacaya.gm.inf.InferenceContext;
 import edu.jhu.pacaya.gm.model.FactorGraph;
 import edu.jhu.pacaya.gm.model.FactorsModule;
 import edu.jhu.pacaya.gm.model.FgModelIdentity;
@@ -41,11 +42,12 @@ public class EmpiricalRisk extends TopoOrder<Tensor> implements Module<Tensor> {
         
         @Override
         public Module<Tensor> getInstance(FgModelIdentity mid, FactorGraph fg, VarConfig goldConfig, double weight,
-                int curIter, int maxIter) {
+                int curIter, int maxIter, InferenceContext ctx) {
             if (weight != 1.0) {
                 throw new IllegalArgumentException("Weight not supported by EmpiricalRisk.");
             }
-            return new EmpiricalRisk(fg, goldConfig, mid, bFactory, dlFactory, curIter, maxIter);
+            return new EmpiricalRisk(fg, goldConfig, mid, InferenceContext.bindBeliefs(bFactory, ctx), dlFactory,
+                    curIter, maxIter);
         }
         
     }
@@ -0,0 +1,395 @@
+package edu.jhu.pacaya.gm.train;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.hlt.optimize.GainSchedule;
+import edu.jhu.hlt.optimize.Optimizer;
+import edu.jhu.hlt.optimize.SGD;
+import edu.jhu.hlt.optimize.function.DifferentiableBatchFunction;
+import edu.jhu.hlt.optimize.function.Function;
+import edu.jhu.hlt.util.Prm;
+import edu.jhu.prim.Primitives.MutableInt;
+import edu.jhu.prim.util.Lambda.FnIntDoubleToDouble;
+import edu.jhu.prim.util.Lambda.FnIntDoubleToVoid;
+import edu.jhu.prim.vector.AbstractIntDoubleVector;
+import edu.jhu.prim.vector.IntDoubleVector;
+
+/**
+ * AdaGrad with composite mirror descent (COMID) updates for an elastic net (L1 + L2) regularizer, where the
+ * regularization is applied lazily.
+ *
+ * Each step only visits the explicit entries of the (sparse) gradient, such as the one returned by
+ * {@link AvgBatchObjective} for a mini-batch. For every parameter we record the iteration of its last step. When a
+ * parameter is touched again, the shrinkage from the steps it missed is applied in closed form before the gradient
+ * step. Since a parameter's AdaGrad learning rate does not change while its gradient is zero, this gives exactly the
+ * same result as applying the regularizer to every parameter on every step. The cost of a step is therefore
+ * proportional to the number of active features in the mini-batch and not to the size of the model.
+ *
+ * The objective is evaluated at a view of the parameters which applies the pending shrinkage as each parameter is
+ * read, so the gradients are also the same as in the eager version. All parameters are brought up to date before the
+ * objective is evaluated on the full dataset and at the end of training.
+ *
+ * The objective function passed to this optimizer should NOT include the regularizer.
+ *
+ * @author mgormley
+ */
+public class LazyAdaGradComid extends SGD implements Optimizer<DifferentiableBatchFunction> {
+
+    /** Options for this optimizer. */
+    public static class LazyAdaGradComidPrm extends SGDPrm {
+        private static final long serialVersionUID = 1L;
+        /** The scaling parameter for the learning rate. */
+        public double eta = 0.1;
+        /** The constant addend for the denominator of the learning rate. */
+        public double constantAddend = 1e-9;
+        /** The multiplier on the L1 regularizer. */
+        public double l1Lambda = 0.0;
+        /** The multiplier on the L2 regularizer. */
+        public double l2Lambda = 0.0;
+        /** The initial value for the sum of squared gradients. */
+        public double initialSumSquares = 0;
+        public LazyAdaGradComidPrm() {
+            this.sched = null;
+        }
+    }
+
+    /**
+     * Schedule whose initial learning rate is the eta of this optimizer, so that callers of {@link GainSchedule#getEta0()}
+     * and {@link GainSchedule#setEta0(double)} (e.g. the automatic selection of the learning rate) see the same value.
+     * The per-parameter learning rates are computed by this optimizer.
+     */
+    private static class EtaSchedule implements GainSchedule {
+        private static final long serialVersionUID = 1L;
+        private final LazyAdaGradComidPrm prm;
+        public EtaSchedule(LazyAdaGradComidPrm prm) {
+            this.prm = prm;
+        }
+        @Override
+        public void init(DifferentiableBatchFunction function) { }
+        @Override
+        public void takeNoteOfGradient(IntDoubleVector gradient) { }
+        @Override
+        public double getLearningRate(int iterCount, int i) {
+            throw new UnsupportedOperationException("The learning rate is computed by LazyAdaGradComid.");
+        }
+        @Override
+        public double getEta0() {
+            return prm.eta;
+        }
+        @Override
+        public void setEta0(double eta0) {
+            prm.eta = eta0;
+        }
+        @Override
+        public boolean isSameForAllParameters() {
+            return false;
+        }
+        @Override
+        public GainSchedule copy() {
+            return new EtaSchedule(prm);
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = LoggerFactory.getLogger(LazyAdaGradComid.class);
+
+    private final LazyAdaGradComidPrm prm;
+    /** The iteration of the last step which included each parameter. */
+    private int[] iterOfLastStep;
+    /** The sum of squared gradients for each parameter. */
+    private double[] gradSumSquares;
+    /** The iteration of the last step taken. */
+    private int lastIter;
+    /** The up-to-date value of each parameter with pending regularization, as of the step in decayedIter. */
+    private double[] decayed;
+    /**
+     * The step at which each value in decayed was computed. Each value is written before its step, so that a thread
+     * which reads the step also sees the value.
+     */
+    private AtomicIntegerArray decayedIter;
+
+    public LazyAdaGradComid(LazyAdaGradComidPrm prm) {
+        super(prm);
+        if (prm.sched != null && !(prm.sched instanceof EtaSchedule)) {
+            log.warn("Schedule for AdaGrad should be set to null. Ignoring it.");
+        }
+        this.prm = prm;
+        this.prm.sched = new EtaSchedule(prm);
+    }
+
+    protected LazyAdaGradComid copy() {
+        LazyAdaGradComid sgd = new LazyAdaGradComid(Prm.clonePrm(this.prm));
+        if (iterOfLastStep != null) {
+            sgd.iterOfLastStep = Arrays.copyOf(iterOfLastStep, iterOfLastStep.length);
+            sgd.gradSumSquares = Arrays.copyOf(gradSumSquares, gradSumSquares.length);
+            sgd.decayed = new double[decayed.length];
+            sgd.decayedIter = new AtomicIntegerArray(decayed.length);
+            sgd.invalidateDecayed();
+        }
+        sgd.lastIter = lastIter;
+        return sgd;
+    }
+
+    /**
+     * Minimizes the function. The function is evaluated at a view of the point which applies any pending
+     * regularization as each parameter is read, so that the gradient is the same as if the regularization had been
+     * applied to every parameter on every step.
+     */
+    @Override
+    public boolean minimize(DifferentiableBatchFunction function, IntDoubleVector point, Function validation) {
+        return super.minimize(function, new LazyPoint(point), validation);
+    }
+
+    @Override
+    protected void init(DifferentiableBatchFunction function, IntDoubleVector point) {
+        super.init(function, point);
+        int numParams = function.getNumDimensions();
+        this.iterOfLastStep = new int[numParams];
+        Arrays.fill(iterOfLastStep, -1);
+        this.gradSumSquares = new double[numParams];
+        Arrays.fill(gradSumSquares, prm.initialSumSquares);
+        this.lastIter = -1;
+        this.decayed = new double[numParams];
+        this.decayedIter = new AtomicIntegerArray(numParams);
+        invalidateDecayed();
+    }
+
+    private void invalidateDecayed() {
+        for (int i = 0; i < decayedIter.length(); i++) {
+            decayedIter.set(i, Integer.MIN_VALUE);
+        }
+    }
+
+    /**
+     * Takes a step only on the parameters with an explicit entry in the gradient. The regularization pending for each
+     * such parameter is applied first.
+     */
+    @Override
+    protected void takeGradientStep(IntDoubleVector point, final IntDoubleVector gradient, final int iterCount) {
+        final IntDoubleVector params = getUnderlying(point);
+        gradient.iterate(new FnIntDoubleToVoid() {
+            @Override
+            public void call(int i, double g) {
+                assert !Double.isNaN(g);
+                // Apply the regularization for the steps which this parameter missed, using its learning rate
+                // from those steps.
+                double x = shrink(params.get(i), getLrDenom(i), iterCount - 1 - iterOfLastStep[i]);
+                // Take the gradient step with the updated learning rate, followed by one step of the proximal
+                // operator for the regularizer.
+                gradSumSquares[i] += g * g;
+                double h = getLrDenom(i);
+                x = shrink(x - prm.eta * g / h, h, 1);
+                assert !Double.isNaN(x);
+                assert !Double.isInfinite(x);
+                params.set(i, x);
+                iterOfLastStep[i] = iterCount;
+            }
+        });
+        lastIter = iterCount;
+    }
+
+    @Override
+    protected double[] sufferLossAndUpdateBest(DifferentiableBatchFunction function, IntDoubleVector point,
+            IntDoubleVector avgPoint, int passCount, Function validation, int passCountFinal, int iterCount,
+            double bestDevLoss, IntDoubleVector bestPoint, MutableInt bestPass) {
+        flush(getUnderlying(point));
+        return super.sufferLossAndUpdateBest(function, point, avgPoint, passCount, validation, passCountFinal,
+                iterCount, bestDevLoss, bestPoint, bestPass);
+    }
+
+    /**
+     * Brings every parameter up to date by applying all of its pending regularization.
+     */
+    private void flush(IntDoubleVector params) {
+        if (prm.l1Lambda == 0 && prm.l2Lambda == 0) {
+            return;
+        }
+        for (int i = 0; i < iterOfLastStep.length; i++) {
+            int numSteps = lastIter - iterOfLastStep[i];
+            if (numSteps > 0) {
+                params.set(i, shrink(params.get(i), getLrDenom(i), numSteps));
+                iterOfLastStep[i] = lastIter;
+            }
+        }
+    }
+
+    /**
+     * Gets the up-to-date value of the i'th parameter, without modifying the parameters. A parameter with pending
+     * regularization is read many times during inference, so its value is computed once per step.
+     */
+    private double getCurrent(IntDoubleVector params, int i) {
+        int numSteps = lastIter - iterOfLastStep[i];
+        if (numSteps <= 0 || (prm.l1Lambda == 0 && prm.l2Lambda == 0)) {
+            return params.get(i);
+        }
+        if (decayedIter.get(i) == lastIter) {
+            return decayed[i];
+        }
+        double x = shrink(params.get(i), getLrDenom(i), numSteps);
+        decayed[i] = x;
+        decayedIter.set(i, lastIter);
+        return x;
+    }
+
+    private static IntDoubleVector getUnderlying(IntDoubleVector point) {
+        return (point instanceof LazyPoint) ? ((LazyPoint) point).params : point;
+    }
+
+    /** Gets the denominator of the learning rate for the i'th parameter. */
+    private double getLrDenom(int i) {
+        return prm.constantAddend + Math.sqrt(gradSumSquares[i]);
+    }
+
+    /**
+     * Applies numSteps steps of the proximal operator for the elastic net, each with learning rate eta / h. Each step
+     * maps x to sign(x) * max(0, |x| - a) * b where a = eta * l1Lambda / h and b = 1 / (1 + eta * l2Lambda / h).
+     * The magnitude decreases monotonically until it reaches zero, so the repeated steps have a closed form.
+     */
+    private double shrink(double x, double h, int numSteps) {
+        if (numSteps <= 0 || x == 0 || (prm.l1Lambda == 0 && prm.l2Lambda == 0)) {
+            return x;
+        }
+        double a = prm.eta * prm.l1Lambda / h;
+        double b = 1.0 / (1.0 + prm.eta * prm.l2Lambda / h);
+        double mag = Math.abs(x);
+        if (b == 1.0) {
+            mag -= numSteps * a;
+        } else {
+            double bk = Math.pow(b, numSteps);
+            mag = bk * mag - a * b * (1.0 - bk) / (1.0 - b);
+        }
+        if (mag <= 0) {
+            return 0.0;
+        }
+        return Math.signum(x) * mag;
+    }
+
+    /**
+     * Whether a regularizer is applied. If so, the value (as seen by the objective) of every parameter with pending
+     * regularization changes on each step, not only those with an explicit entry in the gradient.
+     */
+    public boolean isRegularized() {
+        return prm.l1Lambda != 0 || prm.l2Lambda != 0;
+    }
+
+    @Override
+    protected double getEta0() {
+        return prm.eta;
+    }
+
+    @Override
+    protected void setEta0(double eta) {
+        prm.eta = eta;
+    }
+
+    /**
+     * A view of the parameters which applies the pending regularization to each parameter as it is read. Reads do not
+     * modify the parameters (only a cache of their up-to-date values), so they are safe to call from multiple threads
+     * while the gradient is being computed. Bulk operations first bring every parameter up to date.
+     */
+    private class LazyPoint extends AbstractIntDoubleVector implements IntDoubleVector {
+
+        private static final long serialVersionUID = 1L;
+        private final IntDoubleVector params;
+
+        public LazyPoint(IntDoubleVector params) {
+            this.params = params;
+        }
+
+        @Override
+        public double get(int i) {
+            return getCurrent(params, i);
+        }
+
+        @Override
+        public double set(int i, double value) {
+            double old = getCurrent(params, i);
+            params.set(i, value);
+            iterOfLastStep[i] = lastIter;
+            decayedIter.set(i, Integer.MIN_VALUE);
+            return old;
+        }
+
+        @Override
+        public void add(int i, double value) {
+            set(i, getCurrent(params, i) + value);
+        }
+
+        @Override
+        public double dot(IntDoubleVector other) {
+            final double[] dot = new double[1];
+            other.iterate(new FnIntDoubleToVoid() {
+                @Override
+                public void call(int i, double v) {
+                    dot[0] += getCurrent(params, i) * v;
+                }
+            });
+            return dot[0];
+        }
+
+        @Override
+        public double dot(double[] other) {
+            flush(params);
+            return params.dot(other);
+        }
+
+        @Override
+        public void scale(double multiplier) {
+            flush(params);
+            params.scale(multiplier);
+        }
+
+        @Override
+        public void apply(FnIntDoubleToDouble function) {
+            flush(params);
+            params.apply(function);
+        }
+
+        @Override
+        public void iterate(FnIntDoubleToVoid function) {
+            flush(params);
+            params.iterate(function);
+        }
+
+        @Override
+        public void add(IntDoubleVector other) {
+            flush(params);
+            params.add(other);
+        }
+
+        @Override
+        public void subtract(IntDoubleVector other) {
+            flush(params);
+            params.subtract(other);
+        }
+
+        @Override
+        public void product(IntDoubleVector other) {
+            flush(params);
+            params.product(other);
+        }
+
+        @Override
+        public IntDoubleVector copy() {
+            flush(params);
+            return params.copy();
+        }
+
+        @Override
+        public int getNumImplicitEntries() {
+            return params.getNumImplicitEntries();
+        }
+
+        @Override
+        public double[] toNativeArray() {
+            flush(params);
+            return params.toNativeArray();
+        }
+
+    }
+
+}
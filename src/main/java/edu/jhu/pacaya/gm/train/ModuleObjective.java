@@ -7,6 +7,8 @@ import edu.jhu.pacaya.autodiff.Module;
 import edu.jhu.pacaya.autodiff.Tensor;
 import edu.jhu.pacaya.gm.data.FgExampleList;
 import edu.jhu.pacaya.gm.data.LFgExample;
+import edu.jhu.pacaya.gm.inf.BpMessageCache;
+import edu.jhu.pacaya.gm.inf.InferenceContext;
 import edu.jhu.pacaya.gm.model.FactorGraph;
 import edu.jhu.pacaya.gm.model.FgModel;
 import edu.jhu.pacaya.gm.model.FgModelIdentity;
@@ -22,6 +24,8 @@ public class ModuleObjective implements ExampleObjective {
 
     private FgExampleList data;
     private MtFactory mtFactory;
+    // The scope of this objective's examples in a BP message cache.
+    private final int msgCacheScope = BpMessageCache.newScope();
     
     // Timers.
     private Timer forwardTimer = new Timer();
@@ -58,7 +62,10 @@ public class ModuleObjective implements ExampleObjective {
             Module<Tensor> mt;
             // Run the forward pass.
             try (TimerAdder t = new TimerAdder(forwardTimer)) {
-                mt = mtFactory.getInstance(mid, fg, goldConfig, weight, ac.curIter, ac.maxIter);
+                // Identify the example so that inference can be warm started from a message cache, and the
+                // training progress so that inference can adapt its iteration budget.
+                InferenceContext ctx = new InferenceContext(msgCacheScope, i, ac.curIter, ac.maxIter);
+                mt = mtFactory.getInstance(mid, fg, goldConfig, weight, ac.curIter, ac.maxIter, ctx);
                 mid.forward();
                 mt.forward();
             }
@@ -2,10 +2,19 @@ package edu.jhu.pacaya.gm.train;
 
 import edu.jhu.pacaya.autodiff.Module;
 import edu.jhu.pacaya.autodiff.Tensor;
+import edu.jhu.pacaya.gm.inf.InferenceContext;
 import edu.jhu.pacaya.gm.model.FactorGraph;
 import edu.jhu.pacaya.gm.model.FgModelIdentity;
 import edu.jhu.pacaya.gm.model.VarConfig;
 
 public interface MtFactory {
-    Module<Tensor> getInstance(FgModelIdentity mid, FactorGraph fg, VarConfig goldConfig, double weight, int curIter, int maxIter);
+    /**
+     * Gets the module for the objective of one example.
+     * 
+     * @param ctx The context for the inference runs on the example (see
+     *            {@link InferenceContext#bind(edu.jhu.pacaya.gm.inf.FgInferencerFactory, InferenceContext)}), or null
+     *            if there is none.
+     */
+    Module<Tensor> getInstance(FgModelIdentity mid, FactorGraph fg, VarConfig goldConfig, double weight, int curIter,
+            int maxIter, InferenceContext ctx);
 }
\ No newline at end of file
@@ -5,6 +5,7 @@ import edu.jhu.pacaya.autodiff.Tensor;
 import edu.jhu.pacaya.autodiff.TopoOrder;
 import edu.jhu.pacaya.autodiff.tensor.ScalarMultiply;
 import edu.jhu.pacaya.gm.inf.FgInferencerFactory;
+import edu.jhu.pacaya.gm.inf.InferenceContext;
 import edu.jhu.pacaya.gm.model.FactorGraph;
 import edu.jhu.pacaya.gm.model.FgModelIdentity;
 import edu.jhu.pacaya.gm.model.Var;
@@ -22,12 +23,13 @@ public class NegLogLikelihoodFactory implements MtFactory {
     
     @Override
     public Module<Tensor> getInstance(FgModelIdentity mid, FactorGraph fg, VarConfig goldConfig, double weight,
-            int curIter, int maxIter) {
+            int curIter, int maxIter, InferenceContext ctx) {
         if (weight != 1.0) {
             throw new IllegalArgumentException("Weight not supported by CLL.");
         }
         // Get the NEGATIVE log-likelihood.
         Module<Tensor> obj;
+        FgInferencerFactory infFactory = InferenceContext.bind(this.infFactory, ctx);
         if (hasLatentVars(fg)) {
             obj = new MarginalLogLikelihood(mid, fg, infFactory, goldConfig);
         } else {
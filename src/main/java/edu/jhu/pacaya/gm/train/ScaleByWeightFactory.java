@@ -4,6 +4,7 @@ import edu.jhu.pacaya.autodiff.Module;
 import edu.jhu.pacaya.autodiff.Tensor;
 import edu.jhu.pacaya.autodiff.TopoOrder;
 import edu.jhu.pacaya.autodiff.tensor.ScalarMultiply;
+import edu.jhu.pacaya.gm.inf.InferenceContext;
 import edu.jhu.pacaya.gm.model.FactorGraph;
 import edu.jhu.pacaya.gm.model.FgModelIdentity;
 import edu.jhu.pacaya.gm.model.VarConfig;
@@ -20,8 +21,8 @@ public class ScaleByWeightFactory implements MtFactory {
     
     @Override
     public Module<Tensor> getInstance(FgModelIdentity mid, FactorGraph fg, VarConfig goldConfig, double weight,
-            int curIter, int maxIter) {
-        Module<Tensor> mt = mtFac.getInstance(mid, fg, goldConfig, 1.0, curIter, maxIter);
+            int curIter, int maxIter, InferenceContext ctx) {
+        Module<Tensor> mt = mtFac.getInstance(mid, fg, goldConfig, 1.0, curIter, maxIter, ctx);
         Algebra s = mt.getAlgebra();
         ScalarMultiply scale = new ScalarMultiply(mt, s.fromReal(weight));
         return new TopoOrder<Tensor>(QLists.getList(mid), scale, "ScaledByWeight");
@@ -0,0 +1,41 @@
+package edu.jhu.pacaya.gm.train;
+
+import java.util.Collections;
+import java.util.Iterator;
+
+import edu.jhu.pacaya.gm.data.FgExampleStream;
+
+/**
+ * Visits the examples of an {@link FgExampleStream} in its shuffled order, loading the examples of each batch from the
+ * stream. A batch which covers the whole dataset is a pass over the stream in parts of the size of its shuffle buffer,
+ * so that the examples are never all in memory.
+ * 
+ * Only the examples of the current batch are available, so a batch evaluated without a gradient (e.g. the sample on
+ * which SGD compares learning rates when autoSelectLr is on) cannot be read, and fails with a clear message.
+ * 
+ * @author mgormley
+ */
+public class StreamingBatchOrder implements BatchOrderProvider {
+
+    private final FgExampleStream stream;
+
+    public StreamingBatchOrder(FgExampleStream stream) {
+        this.stream = stream;
+    }
+
+    @Override
+    public Iterator<int[]> getBatch(int[] sampled) {
+        if (sampled.length >= stream.size()) {
+            return stream.fullPass(stream.getBufferSize());
+        }
+        return Collections.singletonList(stream.nextBatch(sampled.length)).iterator();
+    }
+
+    @Override
+    public Iterator<int[]> getEvalBatch(int[] sampled) {
+        throw new IllegalStateException("A sample of the examples cannot be evaluated when training from an "
+                + "FgExampleStream, which only has the examples of its current batch. If the optimizer is an SGD, "
+                + "turn off autoSelectLr.");
+    }
+
+}
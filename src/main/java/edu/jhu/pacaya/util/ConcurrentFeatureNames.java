@@ -0,0 +1,268 @@
+package edu.jhu.pacaya.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import edu.jhu.pacaya.util.files.BinaryStreams;
+
+/**
+ * Thread safe alphabet for multi-threaded feature extraction.
+ * 
+ * The mapping from objects to indices is a {@link ConcurrentHashMap}, so a lookup of a feature already in the
+ * alphabet takes no lock. It is not lock-free, however: adding a feature locks one bin of the map (in
+ * {@link ConcurrentHashMap#computeIfAbsent}), and the addition which starts a new chunk also locks the alphabet. The
+ * mapping from indices to objects is an append-only array of fixed-size chunks. An object is stored before its index
+ * is published in the map, so any thread which has obtained an index can look up its object. The size may briefly
+ * count an index whose object is still being stored, so {@link #size()} and {@link #getObjects()} should only be
+ * relied upon once the additions have finished.
+ * 
+ * Optionally, the number of lookups of each index are counted, as in {@link CountingFeatureNames}. The binary format
+ * is the same as that of {@link FeatureNames} (or {@link CountingFeatureNames} if counting), so
+ * {@link FeatureAlphabets#readBinary(java.io.DataInputStream)} reads back a non-concurrent alphabet.
+ * 
+ * @author mgormley
+ */
+public class ConcurrentFeatureNames implements FeatureAlphabet {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MISSING_OBJECT_INDEX = -1;
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final ConcurrentHashMap<Object, Integer> objIdxMap = new ConcurrentHashMap<>();
+    private final AtomicInteger nextIdx = new AtomicInteger();
+    // Chunks of the index to object mapping. Chunks are only added, under the lock on this.
+    private volatile Object[][] objChunks = new Object[0][];
+    // Chunks of the counts, or null if not counting.
+    private volatile AtomicIntegerArray[] countChunks;
+    private volatile boolean isGrowing = true;
+    private final BitSet isBias = new BitSet();
+
+    public ConcurrentFeatureNames() {
+        this(false);
+    }
+
+    /**
+     * Constructs an alphabet.
+     * @param isCounting Whether to count the number of times each index is looked up.
+     */
+    public ConcurrentFeatureNames(boolean isCounting) {
+        countChunks = isCounting ? new AtomicIntegerArray[0] : null;
+    }
+
+    /** Constructs a copy of an alphabet with the same indices, bias flags and growth state, which is not counting. */
+    public ConcurrentFeatureNames(FeatureNames other) {
+        this(false);
+        copyObjects(other);
+    }
+
+    /** Constructs a copy of a counting alphabet with the same indices, counts, bias flags and growth state. */
+    public ConcurrentFeatureNames(CountingFeatureNames other) {
+        this(true);
+        copyObjects(other);
+        for (int i=0; i<size(); i++) {
+            countChunks[i >>> CHUNK_BITS].set(i & CHUNK_MASK, other.lookupObjectCount(i));
+        }
+    }
+
+    /** Constructs a copy of an alphabet with the same indices, counts (if counting), bias flags and growth state. */
+    public ConcurrentFeatureNames(ConcurrentFeatureNames other) {
+        this(other.countChunks != null);
+        copyObjects(other);
+        if (countChunks != null) {
+            for (int i=0; i<size(); i++) {
+                countChunks[i >>> CHUNK_BITS].set(i & CHUNK_MASK, other.lookupObjectCount(i));
+            }
+        }
+    }
+
+    /** Adds the objects of another alphabet with the same indices, and copies its bias flags and growth state. */
+    private void copyObjects(FeatureAlphabet other) {
+        int size = other.size();
+        for (int i=0; i<size; i++) {
+            Object object = other.lookupObject(i);
+            objIdxMap.put(object, addObject(object));
+            if (other.isBiasFeature(i)) {
+                setIsBias(i);
+            }
+        }
+        if (!other.isGrowing()) {
+            stopGrowth();
+        }
+    }
+
+    /** Gets a copy of this alphabet, which is also concurrent. */
+    @Override
+    public Object clone() {
+        return new ConcurrentFeatureNames(this);
+    }
+
+    @Override
+    public int lookupIndex(Object object) {
+        return lookupIndex(object, true);
+    }
+
+    @Override
+    public int lookupIndex(Object object, boolean addIfMissing) {
+        Integer index = objIdxMap.get(object);
+        if (index == null) {
+            if (!addIfMissing || !isGrowing) {
+                return MISSING_OBJECT_INDEX;
+            }
+            index = objIdxMap.computeIfAbsent(object, this::addObject);
+        }
+        int idx = index;
+        addCount(idx, 1);
+        return idx;
+    }
+
+    /** Gets the index of an object without counting the lookup, or -1 if it is missing. */
+    int indexOf(Object object) {
+        Integer index = objIdxMap.get(object);
+        return (index == null) ? MISSING_OBJECT_INDEX : index;
+    }
+
+    /**
+     * Gets the index of an object, adding it if it is missing, and adds to its count. Used to merge the objects
+     * added by a task into this alphabet (see {@link MergedFeatureNames}).
+     */
+    int mergeObject(Object object, int count) {
+        int idx = objIdxMap.computeIfAbsent(object, this::addObject);
+        addCount(idx, count);
+        return idx;
+    }
+
+    /** Adds to the number of lookups of an index, if counting. */
+    void addCount(int index, int count) {
+        if (countChunks != null) {
+            countChunks[index >>> CHUNK_BITS].addAndGet(index & CHUNK_MASK, count);
+        }
+    }
+
+    boolean isCounting() {
+        return countChunks != null;
+    }
+
+    /** Assigns the next index to a new object. */
+    private Integer addObject(Object object) {
+        int idx = nextIdx.getAndIncrement();
+        int c = idx >>> CHUNK_BITS;
+        Object[][] chunks = objChunks;
+        if (c >= chunks.length || chunks[c] == null) {
+            chunks = ensureChunk(c);
+        }
+        chunks[c][idx & CHUNK_MASK] = object;
+        return idx;
+    }
+
+    private synchronized Object[][] ensureChunk(int c) {
+        Object[][] chunks = objChunks;
+        if (c < chunks.length && chunks[c] != null) {
+            return chunks;
+        }
+        // Copy the chunk arrays, so that the new chunk is published by the volatile writes.
+        chunks = Arrays.copyOf(chunks, Math.max(c + 1, chunks.length));
+        chunks[c] = new Object[CHUNK_SIZE];
+        if (countChunks != null) {
+            AtomicIntegerArray[] counts = Arrays.copyOf(countChunks, chunks.length);
+            counts[c] = new AtomicIntegerArray(CHUNK_SIZE);
+            countChunks = counts;
+        }
+        objChunks = chunks;
+        return chunks;
+    }
+
+    @Override
+    public Object lookupObject(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        return objChunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    /** Gets the number of times the index was looked up. Only valid if this alphabet is counting. */
+    public int lookupObjectCount(int index) {
+        return countChunks[index >>> CHUNK_BITS].get(index & CHUNK_MASK);
+    }
+
+    @Override
+    public int size() {
+        return nextIdx.get();
+    }
+
+    @Override
+    public List<Object> getObjects() {
+        int size = size();
+        List<Object> objects = new ArrayList<>(size);
+        for (int i=0; i<size; i++) {
+            objects.add(lookupObject(i));
+        }
+        return objects;
+    }
+
+    @Override
+    public void startGrowth() {
+        isGrowing = true;
+    }
+
+    @Override
+    public void stopGrowth() {
+        isGrowing = false;
+    }
+
+    @Override
+    public boolean isGrowing() {
+        return isGrowing;
+    }
+
+    @Override
+    public synchronized void setIsBias(int index) {
+        if (isGrowing) {
+            isBias.set(index, true);
+        }
+    }
+
+    @Override
+    public synchronized boolean isBiasFeature(int index) {
+        return isBias.get(index);
+    }
+
+    /**
+     * Writes this alphabet in the binary format of {@link FeatureNames} (or {@link CountingFeatureNames}, if
+     * counting): the kind of alphabet, the growth state, the objects in index order, the bias flags and any counts.
+     */
+    @Override
+    public void writeBinary(DataOutputStream out) throws IOException {
+        int size = size();
+        out.writeByte((countChunks != null) ? FeatureAlphabets.KIND_COUNTING : FeatureAlphabets.KIND_PLAIN);
+        out.writeBoolean(isGrowing);
+        out.writeInt(size);
+        for (int i=0; i<size; i++) {
+            BinaryStreams.writeObject(out, lookupObject(i));
+        }
+        synchronized (this) {
+            BinaryStreams.writeLongArray(out, isBias.toLongArray());
+        }
+        if (countChunks != null) {
+            int[] counts = new int[size];
+            for (int i=0; i<counts.length; i++) {
+                counts[i] = lookupObjectCount(i);
+            }
+            BinaryStreams.writeIntArray(out, counts, 0, counts.length);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrentFeatureNames [size=" + size() + ", isGrowing=" + isGrowing + "]";
+    }
+
+}
@@ -1,5 +1,10 @@
 package edu.jhu.pacaya.util;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import edu.jhu.pacaya.util.files.BinaryStreams;
 import edu.jhu.prim.list.IntArrayList;
 
 /**
@@ -42,4 +47,19 @@ public class CountingFeatureNames extends FeatureNames {
 	    return idxCountMap.get(index);
 	}
 
+	@Override
+	protected byte getBinaryKind() {
+	    return FeatureAlphabets.KIND_COUNTING;
+	}
+
+	@Override
+	protected void writeBinaryExtras(DataOutputStream out) throws IOException {
+	    BinaryStreams.writeIntArray(out, idxCountMap.getInternalElements(), 0, idxCountMap.size());
+	}
+
+	@Override
+	protected void readBinaryExtras(DataInputStream in) throws IOException {
+	    idxCountMap = new IntArrayList(BinaryStreams.readIntArray(in));
+	}
+
 }
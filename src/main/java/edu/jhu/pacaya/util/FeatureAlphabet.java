@@ -0,0 +1,57 @@
+package edu.jhu.pacaya.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Bidirectional mapping of features to ints, such as the alphabet of observation function features of a factor
+ * template. The implementations are {@link FeatureNames} (and {@link CountingFeatureNames}), which store the features
+ * in an {@link edu.jhu.prim.bimap.IntObjectBimap}, {@link ConcurrentFeatureNames}, which stores them for lookups by
+ * many threads, and {@link HashedFeatureNames}, which hashes them into a fixed number of buckets.
+ *
+ * Each implementation writes itself in a binary format which begins with its kind and growth state, and which is
+ * read back by {@link FeatureAlphabets#readBinary(java.io.DataInputStream)}.
+ *
+ * @author mgormley
+ */
+public interface FeatureAlphabet extends Serializable {
+
+    /** Looks up the index of an object, adding it if it is missing and the alphabet is growing. */
+    int lookupIndex(Object object);
+
+    /**
+     * Looks up the index of an object.
+     *
+     * @param object The object.
+     * @param addIfMissing Whether to add the object if it is missing and the alphabet is growing.
+     * @return The index, or -1 if the object is missing and was not added.
+     */
+    int lookupIndex(Object object, boolean addIfMissing);
+
+    /** Gets the object with the given index. */
+    Object lookupObject(int index);
+
+    /** Gets the number of indices. */
+    int size();
+
+    /** Gets the objects in index order. */
+    List<Object> getObjects();
+
+    void startGrowth();
+
+    void stopGrowth();
+
+    boolean isGrowing();
+
+    /** Mark this feature as a bias feature if the alphabet is growing. */
+    void setIsBias(int index);
+
+    /** Returns whether this the feature is a bias feature. */
+    boolean isBiasFeature(int index);
+
+    /** Writes this alphabet in the binary format of {@link edu.jhu.pacaya.util.files.BinaryStreams}. */
+    void writeBinary(DataOutputStream out) throws IOException;
+
+}
@@ -0,0 +1,58 @@
+package edu.jhu.pacaya.util;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the {@link FeatureAlphabet}s written by {@link FeatureAlphabet#writeBinary(java.io.DataOutputStream)}. The
+ * binary format is the kind of alphabet, the growth state, and then the contents written by the implementation of
+ * that kind.
+ *
+ * @author mgormley
+ */
+public class FeatureAlphabets {
+
+    // The kinds of alphabet in the binary format. The kinds KIND_PLAIN and KIND_COUNTING were previously written as
+    // a boolean.
+    static final byte KIND_PLAIN = 0;
+    static final byte KIND_COUNTING = 1;
+    static final byte KIND_HASHED = 2;
+
+    private FeatureAlphabets() {
+        // Private constructor.
+    }
+
+    /**
+     * Reads an alphabet. An alphabet written by a {@link ConcurrentFeatureNames} is read back as a
+     * {@link FeatureNames} (or a {@link CountingFeatureNames}, if it was counting).
+     */
+    public static FeatureAlphabet readBinary(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        boolean isGrowing = in.readBoolean();
+        FeatureAlphabet alphabet;
+        switch (kind) {
+        case KIND_PLAIN:
+            FeatureNames plain = new FeatureNames();
+            plain.readBinaryContents(in);
+            alphabet = plain;
+            break;
+        case KIND_COUNTING:
+            CountingFeatureNames counting = new CountingFeatureNames();
+            counting.readBinaryContents(in);
+            alphabet = counting;
+            break;
+        case KIND_HASHED:
+            HashedFeatureNames hashed = new HashedFeatureNames();
+            hashed.readBinaryContents(in);
+            alphabet = hashed;
+            break;
+        default:
+            throw new IllegalStateException("Unknown kind of alphabet: " + kind);
+        }
+        if (!isGrowing) {
+            alphabet.stopGrowth();
+        }
+        return alphabet;
+    }
+
+}
@@ -1,12 +1,16 @@
 package edu.jhu.pacaya.util;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.BitSet;
 
+import edu.jhu.pacaya.util.files.BinaryStreams;
 import edu.jhu.prim.bimap.IntObjectBimap;
 
 
 
-public class FeatureNames extends IntObjectBimap<Object> {
+public class FeatureNames extends IntObjectBimap<Object> implements FeatureAlphabet {
 
 	private static final long serialVersionUID = 1L;
 
@@ -16,20 +20,68 @@ public class FeatureNames extends IntObjectBimap<Object> {
 		super();
 	}
 	
+	/** Constructs a copy of an alphabet with the same indices, bias flags and growth state. */
 	public FeatureNames(FeatureNames other) {
 		super(other);
+		synchronized (other) {
+			isBias = (BitSet) other.isBias.clone();
+		}
 	}
 
-	/** Mark this feature as a bias feature if the alphabet is growing. */
+	@Override
 	public void setIsBias(int index) {
 		if (isGrowing()) {
 			isBias.set(index, true);
 		}		
 	}
 
-	/** Returns whether this the feature is a bias feature. */
+	@Override
 	public boolean isBiasFeature(int index) {
 		return isBias.get(index);
 	}
 
+	/**
+	 * Writes this alphabet in the binary format of {@link BinaryStreams}: the
+	 * kind of alphabet, the growth state, the objects in index order, the bias
+	 * flags, and any state of the subclass.
+	 */
+	@Override
+	public void writeBinary(DataOutputStream out) throws IOException {
+		out.writeByte(getBinaryKind());
+		out.writeBoolean(isGrowing());
+		out.writeInt(size());
+		for (int i=0; i<size(); i++) {
+			BinaryStreams.writeObject(out, lookupObject(i));
+		}
+		BinaryStreams.writeLongArray(out, isBias.toLongArray());
+		writeBinaryExtras(out);
+	}
+
+	/** Gets the kind of alphabet which {@link FeatureAlphabets#readBinary(DataInputStream)} should construct. */
+	protected byte getBinaryKind() {
+		return FeatureAlphabets.KIND_PLAIN;
+	}
+
+	/**
+	 * Reads the objects, bias flags and state of the subclass written by {@link #writeBinary(DataOutputStream)},
+	 * which follow the kind and growth state.
+	 */
+	void readBinaryContents(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		for (int i=0; i<size; i++) {
+			int idx = lookupIndex(BinaryStreams.readObject(in), true);
+			if (idx != i) {
+				throw new IllegalStateException("Duplicate object in alphabet at index: " + i);
+			}
+		}
+		isBias = BitSet.valueOf(BinaryStreams.readLongArray(in));
+		readBinaryExtras(in);
+	}
+
+	/** Hook for subclasses to write additional state after the alphabet. */
+	protected void writeBinaryExtras(DataOutputStream out) throws IOException { }
+
+	/** Hook for subclasses to read the state written by {@link #writeBinaryExtras(DataOutputStream)}. */
+	protected void readBinaryExtras(DataInputStream in) throws IOException { }
+
 }
@@ -0,0 +1,271 @@
+package edu.jhu.pacaya.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.pacaya.util.files.BinaryStreams;
+import edu.jhu.pacaya.util.hash.MurmurHash3;
+import edu.jhu.pacaya.util.report.Reporter;
+import edu.jhu.pacaya.util.report.ReporterManager;
+
+/**
+ * Alphabet which maps features to a fixed number of buckets with MurmurHash3 (i.e. the hashing trick), so that no
+ * mapping of features to indices is kept in memory. Every feature has an index, regardless of the growth state, and
+ * the objects of the alphabet are just the names of the buckets.
+ * 
+ * With signed hashing, each feature also gets a sign of +1 or -1 from a bit of its hash which is not used for the
+ * index. Feature extractors multiply the value of the feature by this sign, so that the collisions cancel in
+ * expectation. Use {@link #hash(Object)} with {@link #getIndex(int)} and {@link #getSign(int)} to get both from
+ * one hash.
+ * 
+ * As the alphabet of a factor template, the buckets are conjoined with the configurations like any other
+ * observation features (see StringObsFeatureExtractor, which applies the signs). A FeatureExtractor may instead hash
+ * straight into the model parameters (see HashingFeatureExtractor). If all the template alphabets are hashed,
+ * ObsFeatureConjoiner.init() skips the alphabet-building pass.
+ * 
+ * Optionally, the distinct features are fingerprinted to count the collisions. This keeps 8 bytes per distinct
+ * feature, so it is intended for tuning the number of buckets.
+ * 
+ * @author mgormley
+ */
+public class HashedFeatureNames implements FeatureAlphabet {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = LoggerFactory.getLogger(HashedFeatureNames.class);
+    private static final Reporter rep = Reporter.getReporter(HashedFeatureNames.class);
+    private static final int DEFAULT_SEED = 12345789;
+    // Seed for the second half of the fingerprints.
+    private static final int FINGERPRINT_SEED = 0x5bd1e995;
+
+    private int numBuckets;
+    private int seed;
+    private boolean isSigned;
+    // The fingerprints of the distinct features and the occupied buckets, or null if not tracking collisions.
+    private Set<Long> fingerprints;
+    private BitSet occupied;
+    private BitSet isBias = new BitSet();
+    private boolean isGrowing = true;
+
+    /** Constructor for FeatureAlphabets.readBinary. */
+    HashedFeatureNames() { }
+
+    /**
+     * Constructs an alphabet with signed hashing, which does not track collisions.
+     * @param numBuckets The number of buckets (i.e. size of the alphabet).
+     */
+    public HashedFeatureNames(int numBuckets) {
+        this(numBuckets, true, false);
+    }
+
+    /**
+     * Constructs an alphabet.
+     * @param numBuckets The number of buckets (i.e. size of the alphabet).
+     * @param isSigned Whether to give each feature a sign from its hash.
+     * @param trackCollisions Whether to count the distinct features and collisions.
+     */
+    public HashedFeatureNames(int numBuckets, boolean isSigned, boolean trackCollisions) {
+        if (numBuckets <= 0) {
+            throw new IllegalArgumentException("Number of buckets must be positive: " + numBuckets);
+        }
+        this.numBuckets = numBuckets;
+        this.seed = DEFAULT_SEED;
+        this.isSigned = isSigned;
+        if (trackCollisions) {
+            fingerprints = new HashSet<>();
+            occupied = new BitSet(numBuckets);
+        }
+    }
+
+    /** Constructs a copy of an alphabet, including its bias flags and collision statistics. */
+    public HashedFeatureNames(HashedFeatureNames other) {
+        this.numBuckets = other.numBuckets;
+        this.seed = other.seed;
+        this.isSigned = other.isSigned;
+        synchronized (other) {
+            if (other.fingerprints != null) {
+                fingerprints = new HashSet<>(other.fingerprints);
+                occupied = (BitSet) other.occupied.clone();
+            }
+            isBias = (BitSet) other.isBias.clone();
+            isGrowing = other.isGrowing;
+        }
+    }
+
+    /** Gets a copy of this alphabet, which is also hashed. */
+    @Override
+    public Object clone() {
+        return new HashedFeatureNames(this);
+    }
+
+    /** Gets the hash of a feature, from which its index and sign are computed. */
+    public int hash(Object feat) {
+        String str = feat.toString();
+        int h = MurmurHash3.murmurhash3_x86_32(str, 0, str.length(), seed);
+        if (fingerprints != null) {
+            long fp = ((long) h << 32) | (MurmurHash3.murmurhash3_x86_32(str, 0, str.length(), FINGERPRINT_SEED) & 0xffffffffL);
+            addFingerprint(fp, getIndex(h));
+        }
+        return h;
+    }
+
+    private synchronized void addFingerprint(long fp, int index) {
+        if (fingerprints.add(fp)) {
+            occupied.set(index);
+        }
+    }
+
+    /** Gets the index of a feature from its hash. */
+    public int getIndex(int hash) {
+        return (hash & 0x7fffffff) % numBuckets;
+    }
+
+    /** Gets the sign (+1 or -1) of a feature from its hash, or +1 if the hashing is not signed. */
+    public double getSign(int hash) {
+        return (isSigned && hash < 0) ? -1.0 : 1.0;
+    }
+
+    /** Gets the sign (+1 or -1) of a feature, or +1 if the hashing is not signed. */
+    public double lookupSign(Object feat) {
+        return getSign(hash(feat));
+    }
+
+    /** Gets the index of the feature, which is never missing. */
+    @Override
+    public int lookupIndex(Object feat) {
+        return getIndex(hash(feat));
+    }
+
+    /** Gets the index of the feature, which is never missing. */
+    @Override
+    public int lookupIndex(Object feat, boolean addIfMissing) {
+        return getIndex(hash(feat));
+    }
+
+    @Override
+    public Object lookupObject(int index) {
+        if (index < 0 || index >= numBuckets) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + numBuckets);
+        }
+        return "hash" + index;
+    }
+
+    @Override
+    public int size() {
+        return numBuckets;
+    }
+
+    @Override
+    public List<Object> getObjects() {
+        return new AbstractList<Object>() {
+            @Override
+            public Object get(int index) {
+                return lookupObject(index);
+            }
+            @Override
+            public int size() {
+                return numBuckets;
+            }
+        };
+    }
+
+    /** Whether bias features can be marked. Hashed alphabets never grow in size. */
+    @Override
+    public synchronized boolean isGrowing() {
+        return isGrowing;
+    }
+
+    @Override
+    public synchronized void startGrowth() {
+        isGrowing = true;
+    }
+
+    @Override
+    public synchronized void stopGrowth() {
+        isGrowing = false;
+    }
+
+    @Override
+    public synchronized void setIsBias(int index) {
+        if (isGrowing) {
+            isBias.set(index, true);
+        }
+    }
+
+    @Override
+    public synchronized boolean isBiasFeature(int index) {
+        return isBias.get(index);
+    }
+
+    public boolean isSigned() {
+        return isSigned;
+    }
+
+    /** Gets the number of distinct features hashed, or -1 if not tracking collisions. */
+    public synchronized int getNumDistinctFeats() {
+        return (fingerprints == null) ? -1 : fingerprints.size();
+    }
+
+    /**
+     * Gets the number of distinct features which were hashed to a bucket already occupied by another feature, or -1
+     * if not tracking collisions.
+     */
+    public synchronized int getNumCollisions() {
+        return (fingerprints == null) ? -1 : fingerprints.size() - occupied.cardinality();
+    }
+
+    /** Logs and reports the collision statistics, if tracking collisions. */
+    public synchronized void report(String name) {
+        if (fingerprints == null) {
+            return;
+        }
+        int numDistinct = getNumDistinctFeats();
+        int numCollisions = getNumCollisions();
+        log.info(String.format("Feature hashing for %s: buckets = %d distinct feats = %d collisions = %d "
+                + "(%.2f%%) occupied buckets = %.2f%%", name, numBuckets, numDistinct, numCollisions,
+                100.0 * numCollisions / Math.max(1, numDistinct), 100.0 * occupied.cardinality() / numBuckets));
+        if (ReporterManager.isInitialized()) {
+            rep.report(name + "HashDistinctFeats", numDistinct);
+            rep.report(name + "HashCollisions", numCollisions);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HashedFeatureNames [numBuckets=" + numBuckets + ", isSigned=" + isSigned + "]";
+    }
+
+    /**
+     * Writes this alphabet in the binary format of {@link BinaryStreams}: the kind of alphabet, the growth state, the
+     * hashing parameters and the bias flags. The collision statistics are not written.
+     */
+    @Override
+    public synchronized void writeBinary(DataOutputStream out) throws IOException {
+        out.writeByte(FeatureAlphabets.KIND_HASHED);
+        out.writeBoolean(isGrowing);
+        out.writeInt(numBuckets);
+        out.writeInt(seed);
+        out.writeBoolean(isSigned);
+        BinaryStreams.writeLongArray(out, isBias.toLongArray());
+    }
+
+    /**
+     * Reads the hashing parameters and bias flags written by {@link #writeBinary(DataOutputStream)}, which follow
+     * the kind and growth state.
+     */
+    synchronized void readBinaryContents(DataInputStream in) throws IOException {
+        numBuckets = in.readInt();
+        seed = in.readInt();
+        isSigned = in.readBoolean();
+        isBias = BitSet.valueOf(BinaryStreams.readLongArray(in));
+    }
+
+}
@@ -0,0 +1,202 @@
+package edu.jhu.pacaya.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wrapper of a {@link ConcurrentFeatureNames} which is grown by the tasks of a merging {@link OrderedGrowth}, so that
+ * every object is assigned the same index as if the tasks had been run serially in order, without the tasks waiting
+ * for each other.
+ *
+ * When a task first looks up an object in this alphabet, the size of the wrapped alphabet is recorded as the task's
+ * offset. For the rest of the task, the objects with an index below the offset are looked up in the wrapped alphabet,
+ * and all the other objects are added to an alphabet of the task's own, with the provisional index offset + i for its
+ * i'th object. Once all the earlier tasks have been merged, the task's objects are merged into the wrapped alphabet in
+ * order, along with their bias flags and counts (see {@link Additions}), so the wrapped alphabet is the same as that of
+ * a serial pass. The caller must then map the provisional indices it holds (e.g. in cached feature vectors) with
+ * {@link Additions#getMergedIndex(int)}.
+ *
+ * A lookup which does not add a missing object only finds the objects of the earlier tasks which were merged before
+ * the task's offset was recorded. Outside a task, lookups go directly to the wrapped alphabet. The wrapper is only used
+ * for the duration of a parallel pass (see {@link OrderedGrowth#wrap(FeatureAlphabet)}), and is serialized as the
+ * wrapped alphabet.
+ *
+ * @author mgormley
+ */
+public class MergedFeatureNames implements FeatureAlphabet {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The objects added to this alphabet by one task, under provisional indices. */
+    public class Additions {
+
+        private final int task;
+        private final int offset;
+        private final FeatureNames objects;
+        private int[] mergedIndices;
+
+        private Additions(int task, int offset) {
+            this.task = task;
+            this.offset = offset;
+            this.objects = alphabet.isCounting() ? new CountingFeatureNames() : new FeatureNames();
+        }
+
+        /** Gets the index of an object, adding it under a provisional index if it is not below the offset. */
+        private int lookupIndex(Object object, boolean addIfMissing) {
+            int index = alphabet.indexOf(object);
+            if (index != -1 && index < offset) {
+                alphabet.addCount(index, 1);
+                return index;
+            }
+            index = objects.lookupIndex(object, addIfMissing && alphabet.isGrowing());
+            return (index == -1) ? -1 : offset + index;
+        }
+
+        /** Merges the objects into the wrapped alphabet. Called once all the earlier tasks have been merged. */
+        void merge() {
+            mergedIndices = new int[objects.size()];
+            for (int i=0; i<mergedIndices.length; i++) {
+                int count = (objects instanceof CountingFeatureNames) ?
+                        ((CountingFeatureNames) objects).lookupObjectCount(i) : 0;
+                mergedIndices[i] = alphabet.mergeObject(objects.lookupObject(i), count);
+                if (objects.isBiasFeature(i)) {
+                    alphabet.setIsBias(mergedIndices[i]);
+                }
+            }
+        }
+
+        /** Gets the index in the merged alphabet of an index returned to the task. Only valid once merged. */
+        public int getMergedIndex(int index) {
+            return (index < offset) ? index : mergedIndices[index - offset];
+        }
+
+        /** Whether any index returned to the task was provisional. */
+        public boolean hasProvisionalIndices() {
+            return objects.size() > 0;
+        }
+
+    }
+
+    private final ConcurrentFeatureNames alphabet;
+    private final transient OrderedGrowth growth;
+    /** The objects added by the task running on each thread. */
+    private final transient ThreadLocal<Additions> additions = new ThreadLocal<>();
+
+    public MergedFeatureNames(ConcurrentFeatureNames alphabet, OrderedGrowth growth) {
+        this.alphabet = alphabet;
+        this.growth = growth;
+    }
+
+    /** Gets the wrapped alphabet. */
+    public ConcurrentFeatureNames getWrapped() {
+        return alphabet;
+    }
+
+    /**
+     * Gets the objects added by the task running on the current thread, or null if the thread is not running a task
+     * or the task has not looked up any object.
+     */
+    public Additions getAdditions() {
+        Additions a = additions.get();
+        int task = OrderedGrowth.currentTask();
+        return (a == null || task == -1 || a.task != task) ? null : a;
+    }
+
+    /** Gets the objects added by the task running on the current thread, starting them if need be. */
+    private Additions getOrStartAdditions() {
+        Additions a = getAdditions();
+        if (a == null) {
+            a = new Additions(OrderedGrowth.currentTask(), alphabet.size());
+            additions.set(a);
+            growth.addAdditions(a);
+        }
+        return a;
+    }
+
+    @Override
+    public int lookupIndex(Object object) {
+        return lookupIndex(object, true);
+    }
+
+    @Override
+    public int lookupIndex(Object object, boolean addIfMissing) {
+        if (OrderedGrowth.current() != growth) {
+            return alphabet.lookupIndex(object, addIfMissing);
+        }
+        return getOrStartAdditions().lookupIndex(object, addIfMissing);
+    }
+
+    @Override
+    public Object lookupObject(int index) {
+        Additions a = getAdditions();
+        if (a != null && index >= a.offset) {
+            return a.objects.lookupObject(index - a.offset);
+        }
+        return alphabet.lookupObject(index);
+    }
+
+    /** Gets the number of indices, which within a task is its offset plus the number of its provisional indices. */
+    @Override
+    public int size() {
+        Additions a = getAdditions();
+        return (a == null) ? alphabet.size() : a.offset + a.objects.size();
+    }
+
+    @Override
+    public List<Object> getObjects() {
+        int size = size();
+        List<Object> objects = new ArrayList<>(size);
+        for (int i=0; i<size; i++) {
+            objects.add(lookupObject(i));
+        }
+        return objects;
+    }
+
+    @Override
+    public void startGrowth() {
+        alphabet.startGrowth();
+    }
+
+    @Override
+    public void stopGrowth() {
+        alphabet.stopGrowth();
+    }
+
+    @Override
+    public boolean isGrowing() {
+        return alphabet.isGrowing();
+    }
+
+    @Override
+    public void setIsBias(int index) {
+        Additions a = getAdditions();
+        if (a != null && index >= a.offset) {
+            if (alphabet.isGrowing()) {
+                a.objects.setIsBias(index - a.offset);
+            }
+        } else {
+            alphabet.setIsBias(index);
+        }
+    }
+
+    @Override
+    public boolean isBiasFeature(int index) {
+        Additions a = getAdditions();
+        if (a != null && index >= a.offset) {
+            return a.objects.isBiasFeature(index - a.offset);
+        }
+        return alphabet.isBiasFeature(index);
+    }
+
+    @Override
+    public void writeBinary(DataOutputStream out) throws IOException {
+        alphabet.writeBinary(out);
+    }
+
+    private Object writeReplace() {
+        return alphabet;
+    }
+
+}
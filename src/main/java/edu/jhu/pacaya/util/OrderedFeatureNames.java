@@ -0,0 +1,120 @@
+package edu.jhu.pacaya.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Wrapper of an alphabet which is grown by the tasks of an {@link OrderedGrowth}, so that every object is assigned the
+ * same index as if the tasks had been run serially in order. The lookups are synchronized on this wrapper, and before
+ * an object is added the lookup waits for all the earlier tasks to end (see {@link OrderedGrowth#awaitTurn()}).
+ *
+ * The wrapper is only used for the duration of a parallel pass (see {@link OrderedGrowth#wrap(FeatureAlphabet)}), and
+ * is serialized as the wrapped alphabet.
+ *
+ * @author mgormley
+ */
+public class OrderedFeatureNames implements FeatureAlphabet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final FeatureAlphabet alphabet;
+    /** The number of objects added by each thread. */
+    private final transient ThreadLocal<int[]> numAdded = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    public OrderedFeatureNames(FeatureAlphabet alphabet) {
+        this.alphabet = alphabet;
+    }
+
+    /** Gets the wrapped alphabet. */
+    public FeatureAlphabet getWrapped() {
+        return alphabet;
+    }
+
+    @Override
+    public int lookupIndex(Object object) {
+        return lookupIndex(object, true);
+    }
+
+    @Override
+    public int lookupIndex(Object object, boolean addIfMissing) {
+        synchronized (this) {
+            int index = alphabet.lookupIndex(object, false);
+            if (index != -1 || !addIfMissing || !alphabet.isGrowing()) {
+                return index;
+            }
+        }
+        OrderedGrowth.awaitTurn();
+        synchronized (this) {
+            int size = alphabet.size();
+            int index = alphabet.lookupIndex(object, true);
+            if (index >= size) {
+                numAdded.get()[0]++;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Gets the number of objects which the current thread has added, so that the growth caused by an extraction can
+     * be measured while other threads grow the same alphabet.
+     */
+    public int getNumAddedOnThread() {
+        return numAdded.get()[0];
+    }
+
+    @Override
+    public synchronized Object lookupObject(int index) {
+        return alphabet.lookupObject(index);
+    }
+
+    @Override
+    public synchronized int size() {
+        return alphabet.size();
+    }
+
+    @Override
+    public synchronized List<Object> getObjects() {
+        return alphabet.getObjects();
+    }
+
+    @Override
+    public synchronized void startGrowth() {
+        alphabet.startGrowth();
+    }
+
+    @Override
+    public synchronized void stopGrowth() {
+        alphabet.stopGrowth();
+    }
+
+    @Override
+    public synchronized boolean isGrowing() {
+        return alphabet.isGrowing();
+    }
+
+    @Override
+    public synchronized void setIsBias(int index) {
+        alphabet.setIsBias(index);
+    }
+
+    @Override
+    public synchronized boolean isBiasFeature(int index) {
+        return alphabet.isBiasFeature(index);
+    }
+
+    @Override
+    public synchronized void writeBinary(DataOutputStream out) throws IOException {
+        alphabet.writeBinary(out);
+    }
+
+    private Object writeReplace() {
+        return alphabet;
+    }
+
+}
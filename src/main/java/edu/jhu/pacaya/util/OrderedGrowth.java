@@ -0,0 +1,223 @@
+package edu.jhu.pacaya.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coordinates the growth of alphabets by tasks which run in parallel, so that every object is assigned the same index
+ * as if the tasks had been run serially in order.
+ *
+ * Each task is identified by its position in the serial order. A thread declares the task it is running with
+ * {@link #begin(int)} and {@link #end(int)}. The alphabets grown by the tasks are wrapped with
+ * {@link #wrap(FeatureAlphabet)} for the duration of the parallel pass, and {@link #finish()} is called once it is over.
+ *
+ * There are two ways of growing the alphabets:
+ * <ul>
+ * <li>By default, the alphabets are wrapped in {@link OrderedFeatureNames}. Lookups of objects already in an alphabet
+ * proceed in parallel. Before an object is added, the alphabet calls {@link #awaitTurn()}, which blocks until all the
+ * earlier tasks have ended. An object present at that point was added by an earlier task, and no later task can add an
+ * object until this one ends, so the indices match those of the serial order.</li>
+ * <li>If merging, the {@link ConcurrentFeatureNames} are wrapped in {@link MergedFeatureNames}. Each task adds its new
+ * objects to alphabets of its own, under provisional indices, and never waits. Once all the earlier tasks have ended,
+ * the objects are merged into the wrapped alphabets in task order, and the task's callback is run, so that it can map
+ * its provisional indices to the merged ones (see {@link MergedFeatureNames.Additions#getMergedIndex(int)}).</li>
+ * </ul>
+ *
+ * Other state (e.g. the templates of a {@link edu.jhu.pacaya.gm.feat.FactorTemplateList}) can also be grown in order
+ * by calling {@link #awaitTurn()} before adding to it. The tasks must be started in order (e.g. by submitting them in
+ * order to a thread pool with a FIFO queue), so that every task waited on is already running.
+ *
+ * @author mgormley
+ */
+public class OrderedGrowth {
+
+    /** The coordinator and task for each thread, or null if the thread is not running a task. */
+    private static final ThreadLocal<OrderedGrowth> currentGrowth = new ThreadLocal<>();
+    private static final ThreadLocal<int[]> currentTask = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[] { -1 };
+        }
+    };
+
+    /** Whether the alphabets are grown by merging the objects added by each task. */
+    private final boolean merging;
+    /** The objects added by the task running on each thread. Only used if merging. */
+    private final ThreadLocal<List<MergedFeatureNames.Additions>> taskAdditions = new ThreadLocal<>();
+    /** The tasks which have ended. */
+    private final BitSet done = new BitSet();
+    /** The number of tasks which have ended before the first task which has not. */
+    private int numDone = 0;
+    /** The objects added by and the callbacks of the tasks which have ended but are not yet merged. */
+    private final Map<Integer, List<MergedFeatureNames.Additions>> pendingAdditions = new HashMap<>();
+    private final Map<Integer, Runnable> pendingCallbacks = new HashMap<>();
+    /** The callbacks run by {@link #finish()}. */
+    private final List<Runnable> finishCallbacks = new ArrayList<>();
+
+    /** Constructs a coordinator which grows the alphabets in order by waiting. */
+    public OrderedGrowth() {
+        this(false);
+    }
+
+    /**
+     * Constructs a coordinator.
+     *
+     * @param merging Whether the {@link ConcurrentFeatureNames} should be grown by merging the objects added by each
+     *            task, rather than by waiting.
+     */
+    public OrderedGrowth(boolean merging) {
+        this.merging = merging;
+    }
+
+    /** Declares that the current thread is running the task with the given position in the serial order. */
+    public void begin(int task) {
+        currentGrowth.set(this);
+        currentTask.get()[0] = task;
+        if (merging) {
+            taskAdditions.set(new ArrayList<MergedFeatureNames.Additions>());
+        }
+    }
+
+    /** Declares that the current thread has finished the task. */
+    public void end(int task) {
+        end(task, null);
+    }
+
+    /**
+     * Declares that the current thread has finished the task.
+     *
+     * @param task The task.
+     * @param onMerged If merging, the callback to run once the objects added by this task are merged (possibly on
+     *            another thread), or null.
+     */
+    public void end(int task, Runnable onMerged) {
+        List<MergedFeatureNames.Additions> additions = taskAdditions.get();
+        taskAdditions.remove();
+        currentGrowth.remove();
+        currentTask.get()[0] = -1;
+        synchronized (this) {
+            done.set(task);
+            if (merging) {
+                pendingAdditions.put(task, additions);
+                if (onMerged != null) {
+                    pendingCallbacks.put(task, onMerged);
+                }
+            }
+            while (done.get(numDone)) {
+                if (merging) {
+                    merge(numDone);
+                }
+                numDone++;
+            }
+            notifyAll();
+        }
+    }
+
+    /** Merges the objects added by a task and runs its callback. All the earlier tasks have been merged. */
+    private void merge(int task) {
+        List<MergedFeatureNames.Additions> additions = pendingAdditions.remove(task);
+        if (additions != null) {
+            for (MergedFeatureNames.Additions a : additions) {
+                a.merge();
+            }
+        }
+        Runnable onMerged = pendingCallbacks.remove(task);
+        if (onMerged != null) {
+            onMerged.run();
+        }
+    }
+
+    /** Records the objects added to an alphabet by the task running on the current thread. */
+    void addAdditions(MergedFeatureNames.Additions additions) {
+        taskAdditions.get().add(additions);
+    }
+
+    /**
+     * Wraps an alphabet, so that it is grown in order by the tasks. Alphabets which are not growing, and hashed
+     * alphabets, are not wrapped.
+     */
+    public FeatureAlphabet wrap(FeatureAlphabet alphabet) {
+        if (!alphabet.isGrowing() || alphabet instanceof HashedFeatureNames || alphabet instanceof OrderedFeatureNames
+                || alphabet instanceof MergedFeatureNames) {
+            return alphabet;
+        } else if (merging && alphabet instanceof ConcurrentFeatureNames) {
+            return new MergedFeatureNames((ConcurrentFeatureNames) alphabet, this);
+        } else {
+            return new OrderedFeatureNames(alphabet);
+        }
+    }
+
+    /** Gets the alphabet wrapped by {@link #wrap(FeatureAlphabet)}, or the given alphabet if it is not wrapped. */
+    public static FeatureAlphabet unwrap(FeatureAlphabet alphabet) {
+        if (alphabet instanceof OrderedFeatureNames) {
+            return ((OrderedFeatureNames) alphabet).getWrapped();
+        } else if (alphabet instanceof MergedFeatureNames) {
+            return ((MergedFeatureNames) alphabet).getWrapped();
+        } else {
+            return alphabet;
+        }
+    }
+
+    /** Adds a callback to run once the tasks are over (e.g. to unwrap the alphabets). */
+    public synchronized void onFinish(Runnable callback) {
+        finishCallbacks.add(callback);
+    }
+
+    /** Declares that the tasks are over, and runs the callbacks added by {@link #onFinish(Runnable)}. */
+    public void finish() {
+        List<Runnable> callbacks;
+        synchronized (this) {
+            callbacks = new ArrayList<>(finishCallbacks);
+            finishCallbacks.clear();
+        }
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    /** Gets the coordinator of the task running on the current thread, or null if there is none. */
+    public static OrderedGrowth current() {
+        return currentGrowth.get();
+    }
+
+    /** Gets the task running on the current thread, or -1 if there is none. */
+    static int currentTask() {
+        return currentTask.get()[0];
+    }
+
+    /** Whether the current thread is running a task for some coordinator. */
+    public static boolean isActive() {
+        return currentGrowth.get() != null;
+    }
+
+    /** Whether the current thread is running a task for a coordinator which merges the objects added by each task. */
+    public static boolean isMerging() {
+        OrderedGrowth growth = currentGrowth.get();
+        return growth != null && growth.merging;
+    }
+
+    /**
+     * Blocks until all the tasks before the one running on the current thread have ended. Returns immediately if the
+     * current thread is not running a task.
+     */
+    public static void awaitTurn() {
+        OrderedGrowth growth = currentGrowth.get();
+        if (growth != null) {
+            growth.await(currentTask.get()[0]);
+        }
+    }
+
+    private synchronized void await(int task) {
+        while (numDone < task) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package edu.jhu.pacaya.util;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.pacaya.util.report.Reporter;
+import edu.jhu.pacaya.util.report.ReporterManager;
+
+/**
+ * Cost model for scheduling the tasks of a batch, where each task is identified by an index (e.g. a training example).
+ * The cost of a task is its most recently measured running time (e.g. from the previous epoch), excluding any time which
+ * it reported with {@link #addWaitNanos(long)} as spent waiting on other threads. Tasks which have never been run are
+ * given infinite cost, so that they are started first.
+ *
+ * Also keeps statistics on the idle time of the threads during each batch: the time for which a thread had no task
+ * left to run while waiting for the others to finish. They are logged and reported once per pass over the tasks, i.e.
+ * whenever the batches since the last report have run as many tasks as there are (e.g. once per epoch of training).
+ *
+ * @author mgormley
+ */
+public class TaskCosts {
+
+    private static final Logger log = LoggerFactory.getLogger(TaskCosts.class);
+    private static final Reporter rep = Reporter.getReporter(TaskCosts.class);
+
+    /** The time spent waiting by the task running on each thread. */
+    private static final ThreadLocal<long[]> waitNanos = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    // The last measured time (ms) of each task, or NaN if it has not been measured.
+    private double[] lastMs;
+    // Statistics on all the batches.
+    private long numBatches = 0;
+    private double totIdleMs = 0;
+    // Statistics on the batches since the last report.
+    private long passBatches = 0;
+    private long passTasks = 0;
+    private double passWallMs = 0;
+    private double passIdleMs = 0;
+    private double passMaxIdleFrac = 0;
+
+    /**
+     * Constructs a cost model.
+     * @param numTasks The number of tasks (i.e. maximum (exclusive) valid task index).
+     */
+    public TaskCosts(int numTasks) {
+        lastMs = new double[numTasks];
+        Arrays.fill(lastMs, Double.NaN);
+    }
+
+    /**
+     * Records time which the task running on the current thread spent waiting on other threads (e.g. to acquire a
+     * lock). This time is excluded from the cost of the task.
+     */
+    public static void addWaitNanos(long nanos) {
+        waitNanos.get()[0] += nanos;
+    }
+
+    /** Gets and clears the waiting time recorded on the current thread. */
+    static long takeWaitNanos() {
+        long[] w = waitNanos.get();
+        long nanos = w[0];
+        w[0] = 0;
+        return nanos;
+    }
+
+    /** Gets the estimated cost of the i'th task. */
+    public double getCost(int i) {
+        double ms = lastMs[i];
+        return Double.isNaN(ms) ? Double.POSITIVE_INFINITY : ms;
+    }
+
+    /** Records the measured time of the i'th task. Calls for distinct tasks may be made concurrently. */
+    public void addTime(int i, double ms) {
+        lastMs[i] = ms;
+    }
+
+    /**
+     * Records the timing of a batch.
+     *
+     * @param wallMs The wall clock time for the batch.
+     * @param busyMs The total time spent running the tasks of the batch, excluding their waiting time.
+     * @param numThreads The number of threads which ran the batch.
+     * @param numTasks The number of tasks run for the batch.
+     */
+    public synchronized void addBatch(double wallMs, double busyMs, int numThreads, int numTasks) {
+        double idleMs = Math.max(0, numThreads * wallMs - busyMs);
+        double idleFrac = (wallMs > 0) ? idleMs / (numThreads * wallMs) : 0;
+        numBatches++;
+        totIdleMs += idleMs;
+        passBatches++;
+        passTasks += numTasks;
+        passWallMs += wallMs;
+        passIdleMs += idleMs;
+        passMaxIdleFrac = Math.max(passMaxIdleFrac, idleFrac);
+        if (log.isTraceEnabled()) {
+            log.trace(String.format("Batch idle time (ms): %.1f (%.1f%% of %d threads x %.1f ms)", idleMs,
+                    100 * idleFrac, numThreads, wallMs));
+        }
+        if (passTasks >= lastMs.length) {
+            report();
+        }
+    }
+
+    /** Gets the total idle time (ms) of the threads over all the batches. */
+    public synchronized double getTotalIdleMs() {
+        return totIdleMs;
+    }
+
+    /** Gets the average idle time (ms) per batch. */
+    public synchronized double getAvgIdleMs() {
+        return (numBatches == 0) ? 0 : totIdleMs / numBatches;
+    }
+
+    /**
+     * Logs and reports the idle time statistics of the batches since the last report. Called automatically once per
+     * pass over the tasks.
+     */
+    public synchronized void report() {
+        if (passBatches == 0) {
+            return;
+        }
+        double avgIdleMs = passIdleMs / passBatches;
+        log.info(String.format("Batch scheduling: batches = %d avg wall (ms) = %.1f avg idle (ms) = %.1f "
+                + "max idle = %.1f%%", passBatches, passWallMs / passBatches, avgIdleMs, 100 * passMaxIdleFrac));
+        if (ReporterManager.isInitialized()) {
+            rep.report("batchAvgIdleMs", avgIdleMs);
+            rep.report("batchMaxIdleFrac", passMaxIdleFrac);
+        }
+        passBatches = 0;
+        passTasks = 0;
+        passWallMs = 0;
+        passIdleMs = 0;
+        passMaxIdleFrac = 0;
+    }
+
+}
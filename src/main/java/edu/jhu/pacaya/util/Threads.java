@@ -14,6 +14,7 @@ import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +22,8 @@ import org.slf4j.LoggerFactory;
 import com.google.common.util.concurrent.MoreExecutors;
 
 import edu.jhu.prim.arrays.IntArrays;
+import edu.jhu.prim.list.IntArrayList;
+import edu.jhu.prim.sort.IntDoubleSort;
 import edu.jhu.prim.sort.IntSort;
 import edu.jhu.prim.util.Lambda;
 
@@ -220,21 +223,88 @@ public class Threads {
     }
 
     public static <T> List<T> safelyParallelizeBatch(ExecutorService pool, int[] batch, TaskFactory<T> factory) {
+        return safelyParallelizeBatch(pool, batch, factory, null, 0);
+    }
+
+    /**
+     * Runs the tasks for a batch. Each distinct task in the batch is run once per round, and the rounds repeat until
+     * the duplicates are used up, so that no two copies of a task run concurrently. The results are in order of the
+     * sorted batch within each round.
+     * 
+     * If there is a cost model, the tasks of each round are submitted in order of decreasing estimated cost (i.e.
+     * longest processing time first). The threads of the pool take the remaining tasks from a shared queue as they
+     * finish, so the most expensive tasks no longer start last and leave the other threads idle. The running time of
+     * each task, less the time it reported with {@link TaskCosts#addWaitNanos(long)}, and the idle time of the batch
+     * are recorded in the cost model.
+     * 
+     * @param costs The cost model, or null to submit the tasks in the order of the sorted batch.
+     * @param numThreads The number of threads in the pool, used to compute the idle time. Ignored without costs.
+     */
+    public static <T> List<T> safelyParallelizeBatch(ExecutorService pool, int[] batch, TaskFactory<T> factory,
+            final TaskCosts costs, int numThreads) {
         batch = IntArrays.copyOf(batch);
         ArrayList<T> results = new ArrayList<T>();
         if (!IntSort.isSortedAsc(batch)) {
             Arrays.sort(batch);
         }
+        final AtomicLong busyNanos = new AtomicLong();
+        long start = System.nanoTime();
+        int numTasks = 0;
         while (IntArrays.count(batch, -1) < batch.length) {
-            ArrayList<Callable<T>> tasks = new ArrayList<Callable<T>>();
+            // Get the distinct tasks for this round.
+            IntArrayList idxs = new IntArrayList();
             for (int i = 0; i < batch.length; i++) {
                 if (batch[i] != DONE && (i == batch.length - 1 || batch[i] != batch[i+1])) {
-                    Callable<T> task = factory.getTask(batch[i]);
-                    tasks.add(task);
+                    idxs.add(batch[i]);
                     batch[i] = DONE;
                 }
             }
-            Threads.addAllResults(pool, tasks, results);
+            numTasks += idxs.size();
+            int[] order = IntArrays.range(idxs.size());
+            ArrayList<Callable<T>> tasks = new ArrayList<Callable<T>>();
+            if (costs == null) {
+                for (int k = 0; k < order.length; k++) {
+                    tasks.add(factory.getTask(idxs.get(k)));
+                }
+                Threads.addAllResults(pool, tasks, results);
+                continue;
+            }
+            // Order the tasks by decreasing cost.
+            double[] cost = new double[idxs.size()];
+            for (int k = 0; k < cost.length; k++) {
+                cost[k] = costs.getCost(idxs.get(k));
+            }
+            IntDoubleSort.sortValuesDesc(cost, order);
+            for (int k = 0; k < order.length; k++) {
+                final int idx = idxs.get(order[k]);
+                final Callable<T> task = factory.getTask(idx);
+                tasks.add(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        TaskCosts.takeWaitNanos();
+                        long t0 = System.nanoTime();
+                        try {
+                            return task.call();
+                        } finally {
+                            long nanos = Math.max(0, System.nanoTime() - t0 - TaskCosts.takeWaitNanos());
+                            costs.addTime(idx, nanos / 1e6);
+                            busyNanos.addAndGet(nanos);
+                        }
+                    }
+                });
+            }
+            // Collect the results in their original order.
+            ArrayList<T> sorted = new ArrayList<T>(tasks.size());
+            Threads.addAllResults(pool, tasks, sorted);
+            @SuppressWarnings("unchecked")
+            T[] unsorted = (T[]) new Object[order.length];
+            for (int k = 0; k < order.length; k++) {
+                unsorted[order[k]] = sorted.get(k);
+            }
+            results.addAll(Arrays.asList(unsorted));
+        }
+        if (costs != null) {
+            costs.addBatch((System.nanoTime() - start) / 1e6, busyNanos.get() / 1e6, numThreads, numTasks);
         }
         return results;
     }
@@ -0,0 +1,104 @@
+package edu.jhu.pacaya.util.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.commons.collections.map.LRUMap;
+import org.apache.commons.collections.map.ReferenceMap;
+
+/**
+ * Concurrent fast disk store with an in-memory cache in front of it. The cache is locked only to look up or add an
+ * entry, so threads which miss the cache read from disk and deserialize concurrently.
+ * 
+ * @author mgormley
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class CachedConcurrentFastDiskStore<K,V extends Serializable> extends ConcurrentFastDiskStore<K, V> {
+
+    private Map<K,V> cache;
+
+    /**
+     * Constructor with LRU cache.
+     * 
+     * @param path The file to use as the disk store.
+     * @param gzipOnSerialize Whether to gzip the objects after serializing
+     *            them, before writing them to disk.
+     * @param maxEntriesInMemory The maximum number of entries to keep in the
+     *            in-memory cache or -1 to use a SoftReference cache.
+     * @param readMode How to read the values from disk.
+     * @throws IOException
+     */
+    public CachedConcurrentFastDiskStore(File path, boolean gzipOnSerialize, int maxEntriesInMemory,
+            ReadMode readMode) throws IOException {
+        this(path, Codecs.get(gzipOnSerialize), CachedConcurrentFastDiskStore.<K,V>newCache(maxEntriesInMemory),
+                readMode);
+    }
+
+    /**
+     * Constructor with a given cache.
+     * 
+     * @param path The file to use as the disk store.
+     * @param codec The codec with which to encode the values.
+     * @param cache The in-memory cache, which must be threadsafe (e.g. from
+     *            {@link #newCache(int)} or a {@link WeightedCache}).
+     * @param readMode How to read the values from disk.
+     * @throws IOException
+     */
+    public CachedConcurrentFastDiskStore(File path, Codec codec, Map<K,V> cache, ReadMode readMode)
+            throws IOException {
+        super(path, codec, readMode);
+        this.cache = cache;
+    }
+
+    /**
+     * Constructor which reopens a finished store read-only, with a given cache.
+     * 
+     * @param path The file of a store which was finished with {@link #finish(String)}.
+     * @param cache The in-memory cache, which must be threadsafe.
+     * @param readMode How to read the values from disk.
+     * @throws IOException If the file cannot be read or does not end with an index.
+     */
+    public CachedConcurrentFastDiskStore(File path, Map<K,V> cache, ReadMode readMode) throws IOException {
+        super(path, readMode);
+        this.cache = cache;
+    }
+
+    /**
+     * Gets a threadsafe in-memory cache.
+     * 
+     * @param maxEntriesInMemory The maximum number of entries to keep in the
+     *            in-memory LRU cache or -1 to use a SoftReference cache.
+     */
+    @SuppressWarnings("unchecked")
+    public static <K,V> Map<K,V> newCache(int maxEntriesInMemory) {
+        if (maxEntriesInMemory == -1) {
+            return Collections.synchronizedMap(new ReferenceMap(ReferenceMap.HARD, ReferenceMap.SOFT));
+        } else {
+            return Collections.synchronizedMap(new LRUMap(maxEntriesInMemory));
+        }
+    }
+
+    public V put(K key, V value) {  
+        V oldValue = super.put(key, value);
+        cache.put(key, value);
+        return oldValue;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        V value = cache.get(key);
+        if (value == null) {
+            // Get the value from disk and put it in the cache.
+            value = super.get(key);
+            if (value != null) {
+                cache.put((K) key, value);
+            }
+        }
+        return value;
+    }
+    
+}
@@ -0,0 +1,20 @@
+package edu.jhu.pacaya.util.cache;
+
+import java.io.Serializable;
+
+/**
+ * Converts objects to and from bytes, e.g. for storage by a {@link GzipMap} or {@link FastDiskStore}. A codec is
+ * itself serializable, so that a store written with it can later be read with the same codec. Implementations must be
+ * threadsafe. See {@link Codecs} for the built-in codecs.
+ *
+ * @author mgormley
+ */
+public interface Codec extends Serializable {
+
+    /** Encodes an object as bytes. */
+    byte[] encode(Serializable obj);
+
+    /** Decodes an object from the bytes returned by {@link #encode(Serializable)}. */
+    Object decode(byte[] bytes);
+
+}
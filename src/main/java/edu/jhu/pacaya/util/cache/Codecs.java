@@ -0,0 +1,302 @@
+package edu.jhu.pacaya.util.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * The built-in {@link Codec}s. Each serializes an object with Java serialization (or with a given base codec) and then
+ * (optionally) compresses the bytes.
+ *
+ * @author mgormley
+ */
+public class Codecs {
+
+    /** The built-in codecs. */
+    public enum CodecType {
+        /** Java serialization, uncompressed. */
+        JAVA,
+        /** Java serialization, compressed with GZIP (as by {@link GzipMap#serialize(Serializable, boolean)}). */
+        GZIP,
+        /** Java serialization, compressed with a Deflater at a given level. */
+        DEFLATE,
+        /** Java serialization, compressed with the fast LZ4-style compressor of {@link Lz4}. */
+        LZ4,
+    }
+
+    private Codecs() {
+        // Private constructor.
+    }
+
+    /** Gets the codec used by the stores which take a gzip flag: GZIP if gzipOnSerialize is true, or JAVA otherwise. */
+    public static Codec get(boolean gzipOnSerialize) {
+        return gzipOnSerialize ? new GzipCodec() : new JavaCodec();
+    }
+
+    /**
+     * Gets a codec.
+     *
+     * @param type The type of codec.
+     * @param deflateLevel The compression level for DEFLATE (see {@link Deflater}), ignored by the other types.
+     */
+    public static Codec get(CodecType type, int deflateLevel) {
+        switch (type) {
+        case JAVA: return new JavaCodec();
+        case GZIP: return new GzipCodec();
+        case DEFLATE: return new DeflateCodec(deflateLevel);
+        case LZ4: return new Lz4Codec();
+        default: throw new IllegalArgumentException("Unsupported codec type: " + type);
+        }
+    }
+
+    /**
+     * Gets a codec which compresses the bytes of a base codec (e.g. a compact encoding) in place of Java
+     * serialization.
+     *
+     * @param type The type of codec. JAVA gives the base codec itself.
+     * @param deflateLevel The compression level for DEFLATE (see {@link Deflater}), ignored by the other types.
+     * @param base The base codec.
+     */
+    public static Codec get(CodecType type, int deflateLevel, Codec base) {
+        switch (type) {
+        case JAVA: return base;
+        case GZIP: return new GzipCodec(base);
+        case DEFLATE: return new DeflateCodec(deflateLevel, base);
+        case LZ4: return new Lz4Codec(base);
+        default: throw new IllegalArgumentException("Unsupported codec type: " + type);
+        }
+    }
+
+    /**
+     * Gets the codec whose bytes a compressing codec compresses (e.g. the base given to
+     * {@link #get(CodecType, int, Codec)}), or null if the codec does not compress another codec's bytes.
+     */
+    public static Codec getBase(Codec codec) {
+        if (codec instanceof GzipCodec) {
+            return ((GzipCodec) codec).base;
+        } else if (codec instanceof CompressingCodec) {
+            return ((CompressingCodec) codec).base;
+        }
+        return null;
+    }
+
+    /** Java serialization, uncompressed. */
+    public static class JavaCodec implements Codec {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public byte[] encode(Serializable obj) {
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+                ObjectOutputStream out = new ObjectOutputStream(baos);
+                out.writeObject(obj);
+                out.close();
+                return baos.toByteArray();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public Object decode(byte[] bytes) {
+            try {
+                ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                Object obj = in.readObject();
+                in.close();
+                return obj;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } catch (ClassNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /** Java serialization (or a base codec), compressed with GZIP. */
+    public static class GzipCodec implements Codec {
+        private static final long serialVersionUID = 1L;
+        // The base codec, or null for Java serialization.
+        private final Codec base;
+
+        public GzipCodec() {
+            this(null);
+        }
+
+        /** @param base The codec whose bytes are compressed, or null for Java serialization. */
+        public GzipCodec(Codec base) {
+            this.base = base;
+        }
+
+        @Override
+        public byte[] encode(Serializable obj) {
+            if (base == null) {
+                return GzipMap.serialize(obj, true);
+            }
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+                GZIPOutputStream out = new GZIPOutputStream(baos);
+                out.write(base.encode(obj));
+                out.close();
+                return baos.toByteArray();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public Object decode(byte[] bytes) {
+            if (base == null) {
+                return GzipMap.deserialize(bytes, true);
+            }
+            try {
+                GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(4 * bytes.length);
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    baos.write(buf, 0, n);
+                }
+                in.close();
+                return base.decode(baos.toByteArray());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Java serialization (or a base codec) followed by a compressor. The encoded bytes are the length of the
+     * serialized bytes, followed by the compressed bytes.
+     */
+    private abstract static class CompressingCodec implements Codec {
+        private static final long serialVersionUID = 1L;
+        private static final int SIZE_OF_INT = Integer.SIZE / 8;
+        private final Codec base;
+
+        protected CompressingCodec(Codec base) {
+            this.base = (base == null) ? new JavaCodec() : base;
+        }
+
+        @Override
+        public byte[] encode(Serializable obj) {
+            byte[] raw = base.encode(obj);
+            byte[] comp = compress(raw);
+            byte[] bytes = new byte[SIZE_OF_INT + comp.length];
+            ByteBuffer.wrap(bytes).putInt(raw.length);
+            System.arraycopy(comp, 0, bytes, SIZE_OF_INT, comp.length);
+            return bytes;
+        }
+
+        @Override
+        public Object decode(byte[] bytes) {
+            int length = ByteBuffer.wrap(bytes).getInt();
+            byte[] comp = Arrays.copyOfRange(bytes, SIZE_OF_INT, bytes.length);
+            return base.decode(decompress(comp, length));
+        }
+
+        protected abstract byte[] compress(byte[] raw);
+
+        protected abstract byte[] decompress(byte[] comp, int length);
+    }
+
+    /** Java serialization, compressed with a Deflater at a given level. */
+    public static class DeflateCodec extends CompressingCodec {
+        private static final long serialVersionUID = 1L;
+        private final int level;
+
+        /** @param level The compression level, from 0 (none) through 9 (best compression). */
+        public DeflateCodec(int level) {
+            this(level, null);
+        }
+
+        /**
+         * @param level The compression level, from 0 (none) through 9 (best compression).
+         * @param base The codec whose bytes are compressed, or null for Java serialization.
+         */
+        public DeflateCodec(int level, Codec base) {
+            super(base);
+            if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+                throw new IllegalArgumentException("Invalid compression level: " + level);
+            }
+            this.level = level;
+        }
+
+        @Override
+        protected byte[] compress(byte[] raw) {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                byte[] buf = new byte[Math.max(64, raw.length / 2)];
+                int n = 0;
+                while (!deflater.finished()) {
+                    if (n == buf.length) {
+                        buf = Arrays.copyOf(buf, 2 * buf.length);
+                    }
+                    n += deflater.deflate(buf, n, buf.length - n);
+                }
+                return Arrays.copyOf(buf, n);
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        protected byte[] decompress(byte[] comp, int length) {
+            // The nowrap inflater needs an extra byte of input.
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(Arrays.copyOf(comp, comp.length + 1));
+                byte[] raw = new byte[length];
+                int n = 0;
+                while (n < length && !inflater.finished()) {
+                    int k = inflater.inflate(raw, n, length - n);
+                    if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IllegalArgumentException("Truncated compressed bytes");
+                    }
+                    n += k;
+                }
+                return raw;
+            } catch (DataFormatException e) {
+                throw new RuntimeException(e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    /** Java serialization (or a base codec), compressed with the fast LZ4-style compressor of {@link Lz4}. */
+    public static class Lz4Codec extends CompressingCodec {
+        private static final long serialVersionUID = 1L;
+
+        public Lz4Codec() {
+            this(null);
+        }
+
+        /** @param base The codec whose bytes are compressed, or null for Java serialization. */
+        public Lz4Codec(Codec base) {
+            super(base);
+        }
+
+        @Override
+        protected byte[] compress(byte[] raw) {
+            return Lz4.compress(raw);
+        }
+
+        @Override
+        protected byte[] decompress(byte[] comp, int length) {
+            return Lz4.decompress(comp, length);
+        }
+    }
+
+}
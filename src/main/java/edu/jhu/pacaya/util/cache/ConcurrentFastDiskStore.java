@@ -0,0 +1,580 @@
+package edu.jhu.pacaya.util.cache;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk-backed map with insert-only capabilities, which many threads can read concurrently.
+ *
+ * Unlike {@link FastDiskStore}, which seeks a single shared {@link java.io.RandomAccessFile}, reads never lock: they
+ * either use positional reads of a {@link FileChannel} (which do not move a shared file pointer) or copy from
+ * read-only memory-mapped segments of the file. The file is mapped in segments of at most 1 GB, so files larger than
+ * 2 GB can be mapped; a value which straddles two segments is copied from both. Alternatively, aligned blocks of the
+ * file can be read ahead into a small cache of buffers, so that values which are read close together (e.g. in a
+ * block-shuffled order) cost one sequential read per block rather than one seek per value.
+ *
+ * Writes are serialized outside of any lock and then appended through a separate channel. A key becomes visible to
+ * readers only after its value has been written. Each key can be put only once: a second put throws.
+ *
+ * A store can be finished with {@link #finish(String)}, which appends an index of the keys to the file along with an
+ * optional content hash (e.g. of the data and configuration from which the values were built). A finished file can be
+ * reopened read-only by a later process, so that the values need not be rebuilt. A file whose index was never written
+ * (e.g. because the writing process died) is not reopened.
+ *
+ * The iteration order of the keys is unspecified.
+ *
+ * @author mgormley
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class ConcurrentFastDiskStore<K,V extends Serializable> implements Map<K, V>, Closeable {
+
+    /** How to read the values from disk. */
+    public enum ReadMode {
+        /** Positional reads of a file channel. */
+        CHANNEL,
+        /** Copies from memory-mapped segments of the file. */
+        MMAP,
+        /** Copies from aligned blocks of the file (4 MB by default), read ahead into a fixed pool of buffers. */
+        BLOCK
+    }
+
+    /** A direct buffer of the pool used by the BLOCK read mode, holding one block of the file. */
+    private static class Block {
+        final ByteBuffer buf;
+        // The block held by the buffer, or -1 if none. Guarded by this Block, like the contents of the buffer.
+        long loaded = -1;
+        Block(int capacity) {
+            this.buf = ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    /** The index of a finished store, written after the values. */
+    private static class Index implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private HashMap<Object, Long> keyPosMap;
+        private Codec codec;
+        private String contentHash;
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(ConcurrentFastDiskStore.class);
+
+    private static final int SIZE_OF_INT = Integer.SIZE / 8;
+    private static final int SIZE_OF_LONG = Long.SIZE / 8;
+    private static final int DEFAULT_SEGMENT_BITS = 30;
+    private static final int DEFAULT_BLOCK_BITS = 22;
+    // The number of buffers in the pool of the BLOCK read mode.
+    private static final int MAX_CACHED_BLOCKS = 8;
+    // The file ends with the position and length of the index, followed by this magic number.
+    private static final long INDEX_MAGIC = 0x70616361794c4458L;
+    private static final int TRAILER_SIZE = SIZE_OF_LONG + SIZE_OF_INT + SIZE_OF_LONG;
+
+    // Map from key to position in the file.
+    private final ConcurrentHashMap<K,Long> keyPosMap = new ConcurrentHashMap<>();
+    // Channel for reading the values.
+    private final FileChannel readChannel;
+    // Channel for appending the values, or null if the store is read-only.
+    private final FileChannel writeChannel;
+    // The current insertion position.
+    private long curPos;
+    // The codec for the values.
+    private final Codec codec;
+    // Whether the index has been written (or read), after which no more values can be added.
+    private volatile boolean finished = false;
+    // The content hash written with the index, or null if none.
+    private String contentHash = null;
+    private final ReadMode readMode;
+    // The log base 2 of the size of a memory-mapped segment, or of a block read ahead.
+    private final int segmentBits;
+    private final long segmentSize;
+    // The memory-mapped segments of the file. Only the last mapped segment may be shorter than segmentSize, and it is
+    // remapped when a read needs bytes beyond its end.
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    // The buffers assigned to blocks of the file, from least to most recently used. The pool holds at most
+    // MAX_CACHED_BLOCKS buffers, which are allocated once and reused for other blocks when evicted. Only the last
+    // block of the file may be shorter than segmentSize, and it is read again when a read needs bytes beyond its end.
+    private final LinkedHashMap<Long, Block> blocks = new LinkedHashMap<Long, Block>(16, 0.75f, true);
+    private int numBlocks = 0;
+
+    public ConcurrentFastDiskStore(File path, boolean gzipOnSerialize) throws IOException {
+        this(path, gzipOnSerialize, ReadMode.CHANNEL);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param path The file to use as the disk store. Any existing contents are discarded.
+     * @param gzipOnSerialize Whether to gzip the objects after serializing them, before writing them to disk.
+     * @param readMode How to read the values from disk.
+     * @throws IOException
+     */
+    public ConcurrentFastDiskStore(File path, boolean gzipOnSerialize, ReadMode readMode) throws IOException {
+        this(path, Codecs.get(gzipOnSerialize), readMode);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param path The file to use as the disk store. Any existing contents are discarded.
+     * @param codec The codec with which to encode the values, which is also used by a reopened store.
+     * @param readMode How to read the values from disk.
+     * @throws IOException
+     */
+    public ConcurrentFastDiskStore(File path, Codec codec, ReadMode readMode) throws IOException {
+        this(path, codec, readMode, getDefaultSegmentBits(readMode));
+    }
+
+    /** Constructor with a given size of the memory-mapped segments or blocks (for testing). */
+    ConcurrentFastDiskStore(File path, boolean gzipOnSerialize, ReadMode readMode, int segmentBits)
+            throws IOException {
+        this(path, Codecs.get(gzipOnSerialize), readMode, segmentBits);
+    }
+
+    /** Constructor with a given size of the memory-mapped segments or blocks (for testing). */
+    ConcurrentFastDiskStore(File path, Codec codec, ReadMode readMode, int segmentBits) throws IOException {
+        if (path.getParentFile() != null) {
+            path.getParentFile().mkdirs();
+        }
+        this.writeChannel = FileChannel.open(path.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.readChannel = FileChannel.open(path.toPath(), StandardOpenOption.READ);
+        this.curPos = 0;
+        this.codec = codec;
+        this.readMode = readMode;
+        this.segmentBits = segmentBits;
+        this.segmentSize = 1L << segmentBits;
+    }
+
+    /**
+     * Reopens a finished store read-only.
+     *
+     * @param path The file of a store which was finished with {@link #finish(String)}.
+     * @param readMode How to read the values from disk.
+     * @throws IOException If the file cannot be read or does not end with an index.
+     */
+    public ConcurrentFastDiskStore(File path, ReadMode readMode) throws IOException {
+        this(path, readMode, getDefaultSegmentBits(readMode));
+    }
+
+    private static int getDefaultSegmentBits(ReadMode readMode) {
+        return (readMode == ReadMode.BLOCK) ? DEFAULT_BLOCK_BITS : DEFAULT_SEGMENT_BITS;
+    }
+
+    /** Reopens a finished store with a given size of the memory-mapped segments or blocks (for testing). */
+    @SuppressWarnings("unchecked")
+    ConcurrentFastDiskStore(File path, ReadMode readMode, int segmentBits) throws IOException {
+        this.writeChannel = null;
+        this.readChannel = FileChannel.open(path.toPath(), StandardOpenOption.READ);
+        Index index = readIndex(readChannel);
+        if (index == null) {
+            readChannel.close();
+            throw new IOException("Not a finished store: " + path);
+        }
+        for (Map.Entry<Object, Long> entry : index.keyPosMap.entrySet()) {
+            keyPosMap.put((K) entry.getKey(), entry.getValue());
+        }
+        this.curPos = readChannel.size();
+        this.codec = index.codec;
+        this.contentHash = index.contentHash;
+        this.finished = true;
+        this.readMode = readMode;
+        this.segmentBits = segmentBits;
+        this.segmentSize = 1L << segmentBits;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (writeChannel == null) {
+            throw new IllegalStateException("ConcurrentFastDiskStore is read-only.");
+        }
+        if (keyPosMap.containsKey(key)) {
+            // Fail before encoding the value. putBytes checks again under the lock.
+            throw new IllegalStateException("ConcurrentFastDiskStore does not support a second put for key: " + key);
+        }
+        putBytes(key, codec.encode(value));
+        return null;
+    }
+
+    /** Adds a value which was already encoded by the codec of this store (see {@link #getCodec()}). */
+    public void putBytes(K key, byte[] valBytes) {
+        if (writeChannel == null) {
+            throw new IllegalStateException("ConcurrentFastDiskStore is read-only.");
+        }
+        // Write the number of bytes, followed by the bytes.
+        byte[] record = new byte[SIZE_OF_INT + valBytes.length];
+        ByteBuffer.wrap(record).putInt(valBytes.length);
+        System.arraycopy(valBytes, 0, record, SIZE_OF_INT, valBytes.length);
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        long pos;
+        synchronized (writeChannel) {
+            if (finished) {
+                throw new IllegalStateException("ConcurrentFastDiskStore is read-only once it is finished.");
+            }
+            if (keyPosMap.containsKey(key)) {
+                throw new IllegalStateException("ConcurrentFastDiskStore does not support a second put for key: "
+                        + key);
+            }
+            pos = curPos;
+            try {
+                while (buf.hasRemaining()) {
+                    writeChannel.write(buf, pos + buf.position());
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            curPos += SIZE_OF_INT + valBytes.length;
+            // Publish the position only after the value is written.
+            keyPosMap.put(key, pos);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        byte[] bytes = getBytes(key);
+        return (bytes == null) ? null : (V) codec.decode(bytes);
+    }
+
+    /** Gets the value as encoded by the codec of this store, or null if there is none. */
+    public byte[] getBytes(Object key) {
+        Long pos = keyPosMap.get(key);
+        if (pos == null) {
+            return null;
+        }
+        try {
+            byte[] lenBytes = new byte[SIZE_OF_INT];
+            read(pos, lenBytes);
+            int numBytes = ByteBuffer.wrap(lenBytes).getInt();
+            byte[] bytes = new byte[numBytes];
+            read(pos + SIZE_OF_INT, bytes);
+            return bytes;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Reads bytes starting at the given position in the file. Threadsafe. */
+    private void read(long pos, byte[] dest) throws IOException {
+        if (readMode == ReadMode.MMAP || readMode == ReadMode.BLOCK) {
+            int off = 0;
+            while (off < dest.length) {
+                long p = pos + off;
+                int seg = (int) (p >>> segmentBits);
+                int segOff = (int) (p & (segmentSize - 1));
+                int len = (int) Math.min(dest.length - off, segmentSize - segOff);
+                if (readMode == ReadMode.BLOCK) {
+                    readBlock(seg, segOff, dest, off, len);
+                } else {
+                    // Cast to Buffer so that this runs on Java 8, where position(int) is not overridden.
+                    ByteBuffer view = getSegment(seg, segOff + len).duplicate();
+                    ((Buffer) view).position(segOff);
+                    view.get(dest, off, len);
+                }
+                off += len;
+            }
+        } else {
+            readFully(readChannel, ByteBuffer.wrap(dest), pos);
+        }
+    }
+
+    /**
+     * Copies len bytes starting at offset segOff of the block'th block, reading the block (or reading it again) into a
+     * buffer of the pool if need be. Readers of the same buffer take turns, so a buffer is never refilled while it is
+     * being copied from, and a block is read once however many threads wait on it.
+     */
+    private void readBlock(long block, int segOff, byte[] dest, int off, int len) throws IOException {
+        Block b = assignBlock(block);
+        synchronized (b) {
+            // The buffer may have been reassigned to another block before we got it: if so, fill it with ours.
+            ByteBuffer buf = b.buf;
+            if (b.loaded != block || buf.limit() < segOff + len) {
+                long start = block << segmentBits;
+                int size = (int) Math.min(segmentSize, readChannel.size() - start);
+                if (size < segOff + len) {
+                    throw new EOFException("Unexpected end of file in block: " + block);
+                }
+                // A direct buffer is filled by the channel without an intermediate copy.
+                ((Buffer) buf).clear();
+                ((Buffer) buf).limit(size);
+                b.loaded = -1;
+                readFully(readChannel, buf, start);
+                b.loaded = block;
+            }
+            ((Buffer) buf).position(segOff);
+            buf.get(dest, off, len);
+        }
+    }
+
+    /** Gets the buffer assigned to a block, assigning the least recently used one if it has none. */
+    private Block assignBlock(long block) {
+        synchronized (blocks) {
+            Block b = blocks.get(block);
+            if (b == null) {
+                if (numBlocks < MAX_CACHED_BLOCKS) {
+                    b = new Block((int) segmentSize);
+                    numBlocks++;
+                } else {
+                    Iterator<Map.Entry<Long, Block>> eldest = blocks.entrySet().iterator();
+                    b = eldest.next().getValue();
+                    eldest.remove();
+                }
+                blocks.put(block, b);
+            }
+            return b;
+        }
+    }
+
+    /** Gets the seg'th segment, mapping (or remapping) it so that it includes at least minLength bytes. */
+    private MappedByteBuffer getSegment(int seg, int minLength) throws IOException {
+        MappedByteBuffer[] segs = segments;
+        if (seg < segs.length && segs[seg].capacity() >= minLength) {
+            return segs[seg];
+        }
+        synchronized (this) {
+            segs = segments;
+            if (seg < segs.length && segs[seg].capacity() >= minLength) {
+                return segs[seg];
+            }
+            long fileSize = readChannel.size();
+            int numSegs = (int) ((fileSize + segmentSize - 1) >>> segmentBits);
+            MappedByteBuffer[] newSegs = Arrays.copyOf(segs, Math.max(segs.length, numSegs));
+            // Map any new segments, and remap those which were mapped before they were full.
+            for (int i=0; i<numSegs; i++) {
+                long start = (long) i << segmentBits;
+                long size = Math.min(segmentSize, fileSize - start);
+                if (newSegs[i] == null || newSegs[i].capacity() < size) {
+                    newSegs[i] = readChannel.map(MapMode.READ_ONLY, start, size);
+                }
+            }
+            segments = newSegs;
+            if (seg >= newSegs.length || newSegs[seg].capacity() < minLength) {
+                throw new EOFException("Unexpected end of file in segment: " + seg);
+            }
+            return newSegs[seg];
+        }
+    }
+
+    @Override
+    public int size() {
+        return keyPosMap.size();
+    }
+
+    /** Gets the codec for the values. */
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /** Gets the number of bytes written to the file. */
+    public long getNumBytes() {
+        if (writeChannel == null) {
+            return curPos;
+        }
+        synchronized (writeChannel) {
+            return curPos;
+        }
+    }
+
+    /**
+     * Appends the index of the keys to the file, so that it can later be reopened with
+     * {@link #ConcurrentFastDiskStore(File, ReadMode)}. The store is read-only afterwards. The keys must be
+     * serializable.
+     *
+     * @param contentHash An optional hash identifying the contents (e.g. of the data and configuration from which the
+     *            values were built), or null.
+     */
+    public void finish(String contentHash) {
+        if (writeChannel == null) {
+            throw new IllegalStateException("ConcurrentFastDiskStore is read-only.");
+        }
+        synchronized (writeChannel) {
+            if (finished) {
+                throw new IllegalStateException("ConcurrentFastDiskStore is already finished.");
+            }
+            Index index = new Index();
+            index.keyPosMap = new HashMap<Object, Long>(keyPosMap);
+            index.codec = codec;
+            index.contentHash = contentHash;
+            byte[] indexBytes = GzipMap.serialize(index, true);
+            ByteBuffer buf = ByteBuffer.allocate(indexBytes.length + TRAILER_SIZE);
+            buf.put(indexBytes);
+            buf.putLong(curPos);
+            buf.putInt(indexBytes.length);
+            buf.putLong(INDEX_MAGIC);
+            ((Buffer) buf).flip();
+            try {
+                long pos = curPos;
+                while (buf.hasRemaining()) {
+                    writeChannel.write(buf, pos + buf.position());
+                }
+                writeChannel.force(false);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            curPos += buf.limit();
+            this.contentHash = contentHash;
+            this.finished = true;
+        }
+    }
+
+    /** Whether the index has been written (or read), in which case the store is read-only. */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /** Gets the content hash written with the index, or null if there is none or the store is not finished. */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Whether a file holds a finished store which can be reopened.
+     *
+     * @param path The file.
+     * @param contentHash If non-null, the content hash which must have been written with the index.
+     */
+    public static boolean isReopenable(File path, String contentHash) {
+        if (!path.isFile()) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(path.toPath(), StandardOpenOption.READ)) {
+            Index index = readIndex(channel);
+            return index != null && (contentHash == null || contentHash.equals(index.contentHash));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Reads the index from the end of the file, or returns null (logging why) if there is none or it is unreadable. */
+    private static Index readIndex(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < TRAILER_SIZE) {
+            return null;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        readFully(channel, trailer, size - TRAILER_SIZE);
+        ((Buffer) trailer).flip();
+        long indexPos = trailer.getLong();
+        int indexLen = trailer.getInt();
+        if (trailer.getLong() != INDEX_MAGIC || indexPos < 0 || indexLen < 0
+                || indexPos + indexLen != size - TRAILER_SIZE) {
+            return null;
+        }
+        byte[] indexBytes = new byte[indexLen];
+        readFully(channel, ByteBuffer.wrap(indexBytes), indexPos);
+        try {
+            return (Index) GzipMap.deserialize(indexBytes, true);
+        } catch (RuntimeException e) {
+            // The trailer is intact, so the index was written but cannot be read (e.g. its classes changed).
+            log.warn("Unable to read the index of a finished store. It will not be reopened.", e);
+            return null;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        long start = pos - buf.position();
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, start + buf.position()) < 0) {
+                throw new EOFException("Unexpected end of file at position: " + (start + buf.position()));
+            }
+        }
+    }
+
+    /** Closes the file. */
+    @Override
+    public void close() throws IOException {
+        if (writeChannel != null) {
+            synchronized (writeChannel) {
+                writeChannel.close();
+            }
+        }
+        readChannel.close();
+        segments = new MappedByteBuffer[0];
+        synchronized (blocks) {
+            blocks.clear();
+            numBlocks = 0;
+        }
+    }
+
+    public Iterator<K> keyIterator() {
+        return keyPosMap.keySet().iterator();
+    }
+
+    public Iterator<V> valueIterator() {
+        return new MapValueIterator<K,V>(keyIterator(), this);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return Collections.unmodifiableSet(keyPosMap.keySet());
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return keyPosMap.containsKey(key);
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            this.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public Collection<V> values() {
+        return new IteratorOnlyCollection<V>(valueIterator());
+    }
+
+    // ----------------------- Unsupported Operations --------------------
+
+    /** @throws UnsupportedOperationException */
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException();
+    }
+
+    /** @throws UnsupportedOperationException */
+    @Override
+    public boolean containsValue(Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    /** @throws UnsupportedOperationException */
+    @Override
+    public V remove(Object key) {
+        throw new UnsupportedOperationException();
+    }
+
+    /** @throws UnsupportedOperationException */
+    @Override
+    public Set<java.util.Map.Entry<K, V>> entrySet() {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,67 @@
+package edu.jhu.pacaya.util.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes a hash identifying the contents from which a persistent store was built, such as the source data files and
+ * the parameters of the feature extraction (see {@link ConcurrentFastDiskStore#finish(String)}).
+ *
+ * @author mgormley
+ */
+public class ContentHash {
+
+    private ContentHash() {
+        // Private constructor.
+    }
+
+    /**
+     * Gets the SHA-1 hash, in hex, of the given parts. A file is hashed by its name and contents, a serializable
+     * object (e.g. a {@link edu.jhu.pacaya.util.Prm}) by its serialized bytes, and any other object by its string
+     * representation. Null parts are allowed.
+     */
+    public static String of(Object... parts) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        for (Object part : parts) {
+            if (part == null) {
+                md.update((byte) 0);
+            } else if (part instanceof File) {
+                md.update((byte) 1);
+                File file = (File) part;
+                md.update(file.getName().getBytes(StandardCharsets.UTF_8));
+                try (InputStream in = new FileInputStream(file)) {
+                    byte[] buf = new byte[8192];
+                    int n;
+                    while ((n = in.read(buf)) != -1) {
+                        md.update(buf, 0, n);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            } else if (part instanceof Serializable) {
+                md.update((byte) 2);
+                md.update(GzipMap.serialize((Serializable) part, false));
+            } else {
+                md.update((byte) 3);
+                md.update(part.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+}
@@ -27,18 +27,22 @@ public class FastDiskStore<K,V extends Serializable> implements Map<K, V> {
     private RandomAccessFile raf;
     // The current insertion position.
     private long curPos;
-    // Whether to gzip serialized objects.
-    private final boolean gzipOnSerialize;
+    // The codec for the values.
+    private final Codec codec;
     // The number of entries.
     private int numEntries;
         
     public FastDiskStore(File path, boolean gzipOnSerialize) throws FileNotFoundException {
+        this(path, Codecs.get(gzipOnSerialize));
+    }
+
+    public FastDiskStore(File path, Codec codec) throws FileNotFoundException {
         path.getParentFile().mkdirs();
         keyPosMap = new LinkedHashMap<K, Long>();
         raf = new RandomAccessFile(path, "rw");
         curPos = 0;
         numEntries = 0;
-        this.gzipOnSerialize = gzipOnSerialize;
+        this.codec = codec;
     }
     
     @Override
@@ -47,7 +51,7 @@ public class FastDiskStore<K,V extends Serializable> implements Map<K, V> {
             // TODO: support multiple puts per key.
             throw new IllegalStateException("FastDiskStore currently only supports one put call per key.");
         }
-        byte[] valBytes = GzipMap.serialize(value, gzipOnSerialize);
+        byte[] valBytes = codec.encode(value);
         try {
             raf.seek(curPos);
             // Write the number of bytes.
@@ -96,7 +100,7 @@ public class FastDiskStore<K,V extends Serializable> implements Map<K, V> {
         if (numRead != numBytes) {
             throw new IllegalStateException("Invalid number of bytes read: " + numRead);
         }
-        return GzipMap.deserialize(bytes, gzipOnSerialize);
+        return codec.decode(bytes);
     }
     
 
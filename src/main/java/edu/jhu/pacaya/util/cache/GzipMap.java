@@ -18,15 +18,22 @@ import java.util.zip.GZIPOutputStream;
 public class GzipMap<K, V extends Serializable> implements Map<K,V> {
 
     private Map<K,byte[]> map;
+    private Codec codec;
     
     /** Standard constructor which uses a HashMap internally. */
     public GzipMap() {
-        this.map = new HashMap<K,byte[]>();
+        this(new HashMap<K,byte[]>());
     }
     
     /** Wrapper constructor. */
     public GzipMap(Map<K,byte[]> map) {
+        this(map, Codecs.get(true));
+    }
+    
+    /** Wrapper constructor which encodes the values with the given codec. */
+    public GzipMap(Map<K,byte[]> map, Codec codec) {
         this.map = map;
+        this.codec = codec;
     }
     
     @SuppressWarnings("unchecked")
@@ -36,15 +43,15 @@ public class GzipMap<K, V extends Serializable> implements Map<K,V> {
         return (V) safeDeserialize(bytes);
     }
 
-    private static Object safeDeserialize(byte[] bytes) {
+    private Object safeDeserialize(byte[] bytes) {
         if (bytes == null) {
             return null;
         }
-        return GzipMap.deserialize(bytes, true);
+        return codec.decode(bytes);
     }
 
-    private static byte[] safeSerialize(Serializable value) {
-        return GzipMap.serialize(value, true);
+    private byte[] safeSerialize(Serializable value) {
+        return codec.encode(value);
     }
 
     @SuppressWarnings("unchecked")
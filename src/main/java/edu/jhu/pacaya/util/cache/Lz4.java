@@ -0,0 +1,164 @@
+package edu.jhu.pacaya.util.cache;
+
+import java.util.Arrays;
+
+/**
+ * A pure-Java compressor in the style of LZ4: a greedy LZ77 matcher with a single hash table, whose output is a
+ * sequence of (literals, match) pairs in the LZ4 block format. It compresses less than Deflate, but is many times
+ * faster both to compress and to decompress.
+ *
+ * The compressed bytes do not record the uncompressed length, which must be passed to {@link #decompress(byte[], int)}.
+ *
+ * @author mgormley
+ */
+public class Lz4 {
+
+    private static final int MIN_MATCH = 4;
+    // The last match must start at least this many bytes before the end of the input.
+    private static final int MF_LIMIT = 12;
+    // The last bytes of the input are always literals.
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 12;
+    // After this many bytes without a match, the search begins to skip ahead.
+    private static final int SKIP_TRIGGER = 6;
+
+    private Lz4() {
+        // Private constructor.
+    }
+
+    /** Compresses the bytes. */
+    public static byte[] compress(byte[] src) {
+        int n = src.length;
+        byte[] dst = new byte[n + n / 255 + 16];
+        int op = 0;
+        int anchor = 0;
+        if (n >= MF_LIMIT + 1) {
+            int[] table = new int[1 << HASH_BITS];
+            Arrays.fill(table, -1);
+            int limit = n - MF_LIMIT;
+            int matchLimit = n - LAST_LITERALS;
+            int ip = 0;
+            while (ip < limit) {
+                int seq = readInt(src, ip);
+                int h = hash(seq);
+                int ref = table[h];
+                table[h] = ip;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                    ip += 1 + ((ip - anchor) >>> SKIP_TRIGGER);
+                    continue;
+                }
+                // Extend the match backwards, then forwards.
+                while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int len = MIN_MATCH;
+                while (ip + len < matchLimit && src[ref + len] == src[ip + len]) {
+                    len++;
+                }
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, len, dst, op);
+                ip += len;
+                anchor = ip;
+            }
+        }
+        // Write the remaining literals.
+        op = writeSequence(src, anchor, n - anchor, 0, 0, dst, op);
+        return Arrays.copyOf(dst, op);
+    }
+
+    /** Writes the literals followed by the match (if matchLen > 0), returning the new output position. */
+    private static int writeSequence(byte[] src, int litStart, int litLen, int offset, int matchLen, byte[] dst,
+            int op) {
+        int tokenPos = op++;
+        int litNibble = Math.min(litLen, 15);
+        op = writeLength(litLen - 15, dst, op);
+        System.arraycopy(src, litStart, dst, op, litLen);
+        op += litLen;
+        int matchNibble = 0;
+        if (matchLen > 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            matchNibble = Math.min(matchLen - MIN_MATCH, 15);
+            op = writeLength(matchLen - MIN_MATCH - 15, dst, op);
+        }
+        dst[tokenPos] = (byte) ((litNibble << 4) | matchNibble);
+        return op;
+    }
+
+    /** Writes the remainder of a length which did not fit in its nibble, if any. */
+    private static int writeLength(int rem, byte[] dst, int op) {
+        if (rem >= 0) {
+            while (rem >= 255) {
+                dst[op++] = (byte) 255;
+                rem -= 255;
+            }
+            dst[op++] = (byte) rem;
+        }
+        return op;
+    }
+
+    /**
+     * Decompresses the bytes.
+     *
+     * @param src The compressed bytes.
+     * @param length The length of the uncompressed bytes.
+     * @return The uncompressed bytes.
+     */
+    public static byte[] decompress(byte[] src, int length) {
+        byte[] dst = new byte[length];
+        int ip = 0;
+        int op = 0;
+        while (true) {
+            int token = src[ip++] & 0xff;
+            int litLen = token >>> 4;
+            if (litLen == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xff;
+                    litLen += b;
+                } while (b == 255);
+            }
+            System.arraycopy(src, ip, dst, op, litLen);
+            ip += litLen;
+            op += litLen;
+            if (ip >= src.length) {
+                break;
+            }
+            int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+            ip += 2;
+            int matchLen = token & 0xf;
+            if (matchLen == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xff;
+                    matchLen += b;
+                } while (b == 255);
+            }
+            matchLen += MIN_MATCH;
+            int ref = op - offset;
+            if (offset >= matchLen) {
+                System.arraycopy(dst, ref, dst, op, matchLen);
+                op += matchLen;
+            } else {
+                // The match overlaps the bytes it produces.
+                for (int i=0; i<matchLen; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+        if (op != length) {
+            throw new IllegalArgumentException("Decompressed " + op + " bytes, but expected " + length);
+        }
+        return dst;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | ((b[i + 3] & 0xff) << 24);
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+}
@@ -0,0 +1,126 @@
+package edu.jhu.pacaya.util.cache;
+
+import java.io.Closeable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An append-only arena of byte records in off-heap memory (i.e. direct {@link ByteBuffer}s), which the garbage
+ * collector never has to scan or copy. The records are packed into chunks, and a record larger than a chunk gets a
+ * chunk of its own. Each record is identified by the address returned when it is added.
+ *
+ * Records can be added by one thread at a time, and read by many threads concurrently. A record must not be read
+ * before its address is safely published to the reader (e.g. through a synchronized block).
+ *
+ * Closing the arena releases its chunks. Java offers no way to free a direct buffer explicitly, so the memory is
+ * reclaimed once the buffers are collected (see -XX:MaxDirectMemorySize).
+ *
+ * @author mgormley
+ */
+public class OffHeapArena implements Closeable {
+
+    /** The default size of each chunk: 64 MB. */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 26;
+
+    private final int chunkSize;
+    // The chunks, which are replaced by a longer array when a chunk is added.
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    // The chunk to which records are added, and the position in it.
+    private ByteBuffer current = null;
+    private long allocatedBytes = 0;
+    private long usedBytes = 0;
+    private volatile boolean closed = false;
+
+    /** Constructor with chunks of 64 MB. */
+    public OffHeapArena() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param chunkSize The number of bytes in each chunk.
+     */
+    public OffHeapArena(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunkSize: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Adds a record.
+     *
+     * @param bytes The bytes of the record.
+     * @return The address of the record.
+     */
+    public synchronized long put(byte[] bytes) {
+        checkOpen();
+        if (current == null || current.remaining() < bytes.length) {
+            current = ByteBuffer.allocateDirect(Math.max(chunkSize, bytes.length));
+            ByteBuffer[] tmp = Arrays.copyOf(chunks, chunks.length + 1);
+            tmp[chunks.length] = current;
+            chunks = tmp;
+            allocatedBytes += current.capacity();
+        }
+        long address = ((long) (chunks.length - 1) << 32) | current.position();
+        current.put(bytes);
+        usedBytes += bytes.length;
+        return address;
+    }
+
+    /**
+     * Gets a record.
+     *
+     * @param address The address of the record.
+     * @param length The number of bytes in the record.
+     * @return A copy of the bytes of the record.
+     */
+    public byte[] get(long address, int length) {
+        checkOpen();
+        // Each reader has its own view of the chunk, so that positioning it is threadsafe.
+        ByteBuffer buf = chunks[(int) (address >>> 32)].duplicate();
+        ((Buffer) buf).position((int) address);
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The arena is closed.");
+        }
+    }
+
+    /** Gets the number of off-heap bytes allocated in chunks. */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /** Gets the number of bytes in the records. */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /** Gets the number of chunks. */
+    public int getNumChunks() {
+        return chunks.length;
+    }
+
+    /** Releases the chunks. The arena cannot be used afterwards. */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        chunks = new ByteBuffer[0];
+        current = null;
+        allocatedBytes = 0;
+        usedBytes = 0;
+    }
+
+    /** Whether the arena is closed. */
+    public boolean isClosed() {
+        return closed;
+    }
+
+}
@@ -0,0 +1,385 @@
+package edu.jhu.pacaya.util.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.pacaya.util.report.Reporter;
+import edu.jhu.pacaya.util.report.ReporterManager;
+
+/**
+ * An in-memory cache bounded by the total estimated size of its values (e.g. in bytes), rather than by their number.
+ * The size of each value is estimated by a {@link Weigher}.
+ *
+ * Eviction follows a segmented LRU policy: a new entry is placed in a probationary segment, and is promoted to a
+ * protected segment when it is accessed again. The least recently used entries of the probationary segment are evicted
+ * first, so that entries read only once (e.g. during a scan) do not evict those read repeatedly. Entries demoted from
+ * the protected segment get another chance in the probationary segment.
+ *
+ * The keys are split by hash among a number of independently locked stripes, each of which holds an equal share of
+ * the maximum weight, so that threads rarely contend for a lock. The cache is threadsafe. It keeps counts of the hits,
+ * misses and evictions.
+ *
+ * Only get, put, and the operations which do not iterate over the values are supported.
+ *
+ * @author mgormley
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class WeightedCache<K,V> implements Map<K,V> {
+
+    private static final Logger log = LoggerFactory.getLogger(WeightedCache.class);
+    private static final Reporter rep = Reporter.getReporter(WeightedCache.class);
+
+    // The fraction of the weight of each stripe reserved for the protected segment.
+    private static final double PROTECTED_FRAC = 0.8;
+    private static final int MAX_DEFAULT_STRIPES = 8;
+    // The minimum weight of each stripe when the number of stripes is chosen by default.
+    private static final long MIN_DEFAULT_STRIPE_WEIGHT = 16L * 1024 * 1024;
+
+    /** Estimates the size of a value. */
+    public interface Weigher<V> {
+        /** Gets the estimated size of the value, which must be non-negative. */
+        long weigh(V value);
+    }
+
+    /** Notified of the entries evicted from the cache (e.g. to demote them to a slower tier). */
+    public interface EvictionListener<K,V> {
+        /** Called after an entry is evicted, without any lock of the cache held. */
+        void evicted(K key, V value);
+    }
+
+    /** Weighs a byte array (e.g. an encoded value) by its length. */
+    public static class ByteArrayWeigher implements Weigher<byte[]> {
+        @Override
+        public long weigh(byte[] value) {
+            return value.length + 16;
+        }
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long weight;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /** One stripe of the cache, guarded by its own lock. */
+    private class Stripe {
+        // Both maps are ordered from least to most recently used.
+        private final LinkedHashMap<K, Entry<V>> probation = new LinkedHashMap<>();
+        private final LinkedHashMap<K, Entry<V>> protect = new LinkedHashMap<>(16, 0.75f, true);
+        private final long maxWeight;
+        private final long maxProtectedWeight;
+        private long probationWeight = 0;
+        private long protectedWeight = 0;
+
+        Stripe(long maxWeight) {
+            this.maxWeight = maxWeight;
+            this.maxProtectedWeight = (long) (PROTECTED_FRAC * maxWeight);
+        }
+
+        synchronized V get(Object key) {
+            Entry<V> e = protect.get(key);
+            if (e != null) {
+                return e.value;
+            }
+            e = probation.remove(key);
+            if (e == null) {
+                return null;
+            }
+            // Promote the entry, demoting the least recently used protected entries if needed.
+            probationWeight -= e.weight;
+            putProtected(key, e);
+            return e.value;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void putProtected(Object key, Entry<V> e) {
+            protect.put((K) key, e);
+            protectedWeight += e.weight;
+            Iterator<Map.Entry<K, Entry<V>>> iter = protect.entrySet().iterator();
+            while (protectedWeight > maxProtectedWeight && iter.hasNext()) {
+                Map.Entry<K, Entry<V>> eldest = iter.next();
+                if (eldest.getValue() == e) {
+                    break;
+                }
+                iter.remove();
+                protectedWeight -= eldest.getValue().weight;
+                probation.put(eldest.getKey(), eldest.getValue());
+                probationWeight += eldest.getValue().weight;
+            }
+        }
+
+        synchronized V put(K key, Entry<V> e, List<Map.Entry<K, Entry<V>>> evicted) {
+            Entry<V> old = removeEntry(key);
+            probation.put(key, e);
+            probationWeight += e.weight;
+            evict(evicted);
+            return (old == null) ? null : old.value;
+        }
+
+        /**
+         * Evicts the least recently used entries, from the probationary segment first, until the weight fits.
+         * 
+         * @param evicted The OUTPUT list to which the evicted entries are added, or null.
+         */
+        private void evict(List<Map.Entry<K, Entry<V>>> evicted) {
+            while (probationWeight + protectedWeight > maxWeight) {
+                LinkedHashMap<K, Entry<V>> map = probation.isEmpty() ? protect : probation;
+                Iterator<Map.Entry<K, Entry<V>>> iter = map.entrySet().iterator();
+                if (!iter.hasNext()) {
+                    break;
+                }
+                Map.Entry<K, Entry<V>> eldest = iter.next();
+                iter.remove();
+                if (map == probation) {
+                    probationWeight -= eldest.getValue().weight;
+                } else {
+                    protectedWeight -= eldest.getValue().weight;
+                }
+                numEvictions.incrementAndGet();
+                if (evicted != null) {
+                    evicted.add(eldest);
+                }
+            }
+        }
+
+        synchronized V remove(Object key) {
+            Entry<V> old = removeEntry(key);
+            return (old == null) ? null : old.value;
+        }
+
+        private Entry<V> removeEntry(Object key) {
+            Entry<V> old = probation.remove(key);
+            if (old != null) {
+                probationWeight -= old.weight;
+                return old;
+            }
+            old = protect.remove(key);
+            if (old != null) {
+                protectedWeight -= old.weight;
+            }
+            return old;
+        }
+
+        synchronized boolean containsKey(Object key) {
+            return probation.containsKey(key) || protect.containsKey(key);
+        }
+
+        synchronized int size() {
+            return probation.size() + protect.size();
+        }
+
+        synchronized long getWeight() {
+            return probationWeight + protectedWeight;
+        }
+
+        synchronized void clear() {
+            probation.clear();
+            protect.clear();
+            probationWeight = 0;
+            protectedWeight = 0;
+        }
+    }
+
+    private final List<Stripe> stripes;
+    private final Weigher<? super V> weigher;
+    private final long maxWeight;
+    private final AtomicLong numHits = new AtomicLong();
+    private final AtomicLong numMisses = new AtomicLong();
+    private final AtomicLong numEvictions = new AtomicLong();
+    private volatile EvictionListener<? super K, ? super V> listener = null;
+
+    /**
+     * Constructor with as many as 8 stripes, but with at least 16 MB of weight (e.g. bytes) per stripe, so that each
+     * stripe can hold many values.
+     *
+     * @param maxWeight The maximum total weight of the values.
+     * @param weigher The weigher of the values.
+     */
+    public WeightedCache(long maxWeight, Weigher<? super V> weigher) {
+        this(maxWeight, weigher, (int) Math.max(1, Math.min(MAX_DEFAULT_STRIPES, maxWeight
+                / MIN_DEFAULT_STRIPE_WEIGHT)));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxWeight The maximum total weight of the values.
+     * @param weigher The weigher of the values.
+     * @param numStripes The number of independently locked stripes. Each holds an equal share of the maximum weight,
+     *            so this should be much less than the number of values which fit in the cache.
+     */
+    public WeightedCache(long maxWeight, Weigher<? super V> weigher, int numStripes) {
+        if (maxWeight <= 0 || numStripes <= 0) {
+            throw new IllegalArgumentException("Invalid maxWeight or numStripes: " + maxWeight + " " + numStripes);
+        }
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.stripes = new ArrayList<>(numStripes);
+        for (int i=0; i<numStripes; i++) {
+            stripes.add(new Stripe(maxWeight / numStripes));
+        }
+    }
+
+    private Stripe getStripe(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return stripes.get((h & 0x7fffffff) % stripes.size());
+    }
+
+    @Override
+    public V get(Object key) {
+        V value = getStripe(key).get(key);
+        if (value == null) {
+            numMisses.incrementAndGet();
+        } else {
+            numHits.incrementAndGet();
+        }
+        return value;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        long weight = weigher.weigh(value);
+        EvictionListener<? super K, ? super V> listener = this.listener;
+        if (listener == null) {
+            return getStripe(key).put(key, new Entry<V>(value, weight), null);
+        }
+        List<Map.Entry<K, Entry<V>>> evicted = new ArrayList<>(1);
+        V old = getStripe(key).put(key, new Entry<V>(value, weight), evicted);
+        for (Map.Entry<K, Entry<V>> e : evicted) {
+            listener.evicted(e.getKey(), e.getValue().value);
+        }
+        return old;
+    }
+
+    /** Sets the listener notified of the evicted entries, or null for none. */
+    public void setEvictionListener(EvictionListener<? super K, ? super V> listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public V remove(Object key) {
+        return getStripe(key).remove(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return getStripe(key).containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Stripe s : stripes) {
+            size += s.size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public void clear() {
+        for (Stripe s : stripes) {
+            s.clear();
+        }
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            this.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /** Gets the total weight of the values in the cache. */
+    public long getWeight() {
+        long weight = 0;
+        for (Stripe s : stripes) {
+            weight += s.getWeight();
+        }
+        return weight;
+    }
+
+    /** Gets the maximum total weight of the values. */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /** Gets the number of calls to get which found a value. */
+    public long getNumHits() {
+        return numHits.get();
+    }
+
+    /** Gets the number of calls to get which did not find a value. */
+    public long getNumMisses() {
+        return numMisses.get();
+    }
+
+    /** Gets the number of entries evicted to bound the weight. */
+    public long getNumEvictions() {
+        return numEvictions.get();
+    }
+
+    /** Gets the fraction of the calls to get which found a value. */
+    public double getHitRate() {
+        long hits = numHits.get();
+        return (double) hits / Math.max(1, hits + numMisses.get());
+    }
+
+    /** Logs and reports the hits, misses and evictions. */
+    public void report() {
+        log.info(String.format("Weighted cache: entries = %d weight = %d / %d hits = %d misses = %d evictions = %d "
+                + "hit rate = %.4f", size(), getWeight(), maxWeight, numHits.get(), numMisses.get(),
+                numEvictions.get(), getHitRate()));
+        if (ReporterManager.isInitialized()) {
+            rep.report("weightedCacheHitRate", getHitRate());
+        }
+    }
+
+    // ----------------------- Unsupported Operations --------------------
+
+    /** @throws UnsupportedOperationException */
+    @Override
+    public boolean containsValue(Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    /** @throws UnsupportedOperationException */
+    @Override
+    public Set<K> keySet() {
+        throw new UnsupportedOperationException();
+    }
+
+    /** @throws UnsupportedOperationException */
+    @Override
+    public Collection<V> values() {
+        throw new UnsupportedOperationException();
+    }
+
+    /** @throws UnsupportedOperationException */
+    @Override
+    public Set<java.util.Map.Entry<K, V>> entrySet() {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,333 @@
+package edu.jhu.pacaya.util.files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Utilities for a simple versioned binary format. Primitive arrays are written
+ * in bulk through NIO buffers, and strings are written as length-prefixed UTF-8
+ * blocks. This is much faster to read than Java serialization and does not
+ * depend on the serialVersionUID of the classes being written.
+ *
+ * All multi-byte values are big-endian, matching {@link DataOutputStream}.
+ *
+ * @author mgormley
+ */
+public class BinaryStreams {
+
+    /**
+     * The current version of the binary format. Version 2 stores the parameter
+     * indices of an ObsFeatureConjoiner in feature-major order.
+     */
+    public static final int FORMAT_VERSION = 2;
+
+    // Number of bytes converted per bulk write / read.
+    private static final int CHUNK_BYTES = 1 << 16;
+    // The two magic bytes at the start of every GZIP stream.
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    // Tags for objects in alphabets or template keys.
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_INTEGER = 2;
+    private static final byte TAG_SERIALIZED = 3;
+
+    private BinaryStreams() { }
+
+    /* ---------------------------- Files and headers ------------------------- */
+
+    /** Opens a buffered output stream for the file, optionally compressed with GZIP. */
+    public static DataOutputStream newOutputStream(File file, boolean compress) throws IOException {
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        OutputStream os = new FileOutputStream(file);
+        if (compress) {
+            os = new GZIPOutputStream(os, CHUNK_BYTES);
+        }
+        return new DataOutputStream(new BufferedOutputStream(os, CHUNK_BYTES));
+    }
+
+    /** Opens a buffered input stream for the file, detecting GZIP compression automatically. */
+    public static DataInputStream newInputStream(File file) throws IOException {
+        BufferedInputStream is = new BufferedInputStream(new FileInputStream(file), CHUNK_BYTES);
+        is.mark(2);
+        int magic = is.read() | (is.read() << 8);
+        is.reset();
+        InputStream in = is;
+        if (magic == GZIP_MAGIC) {
+            in = new BufferedInputStream(new GZIPInputStream(is, CHUNK_BYTES), CHUNK_BYTES);
+        }
+        return new DataInputStream(in);
+    }
+
+    /**
+     * Writes a header consisting of a magic string identifying the type of
+     * content, followed by the format version.
+     */
+    public static void writeHeader(DataOutputStream out, String magic) throws IOException {
+        writeString(out, magic);
+        out.writeInt(FORMAT_VERSION);
+    }
+
+    /**
+     * Reads and checks a header written by {@link #writeHeader(DataOutputStream, String)}.
+     *
+     * @return The format version of the stream.
+     * @throws IllegalStateException If the magic string doesn't match or the
+     *             version is newer than this library supports.
+     */
+    public static int readHeader(DataInputStream in, String magic) throws IOException {
+        String actual = readString(in);
+        if (!magic.equals(actual)) {
+            throw new IllegalStateException("Unexpected binary content. Expected=" + magic + " Actual=" + actual);
+        }
+        int version = in.readInt();
+        if (version < 1 || version > FORMAT_VERSION) {
+            throw new IllegalStateException("Unsupported binary format version: " + version);
+        }
+        return version;
+    }
+
+    /* ---------------------------- Primitive arrays -------------------------- */
+
+    /** Writes the length of the array followed by its values. */
+    public static void writeIntArray(DataOutputStream out, int[] arr) throws IOException {
+        writeIntArray(out, arr, 0, arr.length);
+    }
+
+    /** Writes the length followed by the values of the subarray arr[off:off+len]. */
+    public static void writeIntArray(DataOutputStream out, int[] arr, int off, int len) throws IOException {
+        out.writeInt(len);
+        ByteBuffer buf = ByteBuffer.allocate(Math.min(CHUNK_BYTES, Math.max(len, 1) * Integer.BYTES));
+        int maxPerChunk = buf.capacity() / Integer.BYTES;
+        for (int i = off; i < off + len; i += maxPerChunk) {
+            int n = Math.min(maxPerChunk, off + len - i);
+            ((Buffer) buf).clear();
+            buf.asIntBuffer().put(arr, i, n);
+            out.write(buf.array(), 0, n * Integer.BYTES);
+        }
+    }
+
+    /** Reads an array written by {@link #writeIntArray(DataOutputStream, int[])}. */
+    public static int[] readIntArray(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        int[] arr = new int[len];
+        ByteBuffer buf = ByteBuffer.allocate(Math.min(CHUNK_BYTES, Math.max(len, 1) * Integer.BYTES));
+        int maxPerChunk = buf.capacity() / Integer.BYTES;
+        for (int i = 0; i < len; i += maxPerChunk) {
+            int n = Math.min(maxPerChunk, len - i);
+            in.readFully(buf.array(), 0, n * Integer.BYTES);
+            ((Buffer) buf).clear();
+            buf.asIntBuffer().get(arr, i, n);
+        }
+        return arr;
+    }
+
+    /** Writes the length of the array followed by its values. */
+    public static void writeDoubleArray(DataOutputStream out, double[] arr) throws IOException {
+        writeDoubleArray(out, arr, 0, arr.length);
+    }
+
+    /** Writes the length followed by the values of the subarray arr[off:off+len]. */
+    public static void writeDoubleArray(DataOutputStream out, double[] arr, int off, int len) throws IOException {
+        out.writeInt(len);
+        ByteBuffer buf = ByteBuffer.allocate(Math.min(CHUNK_BYTES, Math.max(len, 1) * Double.BYTES));
+        int maxPerChunk = buf.capacity() / Double.BYTES;
+        for (int i = off; i < off + len; i += maxPerChunk) {
+            int n = Math.min(maxPerChunk, off + len - i);
+            ((Buffer) buf).clear();
+            buf.asDoubleBuffer().put(arr, i, n);
+            out.write(buf.array(), 0, n * Double.BYTES);
+        }
+    }
+
+    /** Reads an array written by {@link #writeDoubleArray(DataOutputStream, double[])}. */
+    public static double[] readDoubleArray(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        double[] arr = new double[len];
+        ByteBuffer buf = ByteBuffer.allocate(Math.min(CHUNK_BYTES, Math.max(len, 1) * Double.BYTES));
+        int maxPerChunk = buf.capacity() / Double.BYTES;
+        for (int i = 0; i < len; i += maxPerChunk) {
+            int n = Math.min(maxPerChunk, len - i);
+            in.readFully(buf.array(), 0, n * Double.BYTES);
+            ((Buffer) buf).clear();
+            buf.asDoubleBuffer().get(arr, i, n);
+        }
+        return arr;
+    }
+
+    /** Writes the length of the array followed by its values. */
+    public static void writeLongArray(DataOutputStream out, long[] arr) throws IOException {
+        out.writeInt(arr.length);
+        ByteBuffer buf = ByteBuffer.allocate(Math.min(CHUNK_BYTES, Math.max(arr.length, 1) * Long.BYTES));
+        int maxPerChunk = buf.capacity() / Long.BYTES;
+        for (int i = 0; i < arr.length; i += maxPerChunk) {
+            int n = Math.min(maxPerChunk, arr.length - i);
+            ((Buffer) buf).clear();
+            buf.asLongBuffer().put(arr, i, n);
+            out.write(buf.array(), 0, n * Long.BYTES);
+        }
+    }
+
+    /** Reads an array written by {@link #writeLongArray(DataOutputStream, long[])}. */
+    public static long[] readLongArray(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        long[] arr = new long[len];
+        ByteBuffer buf = ByteBuffer.allocate(Math.min(CHUNK_BYTES, Math.max(len, 1) * Long.BYTES));
+        int maxPerChunk = buf.capacity() / Long.BYTES;
+        for (int i = 0; i < len; i += maxPerChunk) {
+            int n = Math.min(maxPerChunk, len - i);
+            in.readFully(buf.array(), 0, n * Long.BYTES);
+            ((Buffer) buf).clear();
+            buf.asLongBuffer().get(arr, i, n);
+        }
+        return arr;
+    }
+
+    /** Writes a boolean array packed into bits. */
+    public static void writeBooleanArray(DataOutputStream out, boolean[] arr) throws IOException {
+        BitSet bits = new BitSet(arr.length);
+        for (int i = 0; i < arr.length; i++) {
+            if (arr[i]) {
+                bits.set(i);
+            }
+        }
+        out.writeInt(arr.length);
+        writeLongArray(out, bits.toLongArray());
+    }
+
+    /** Reads an array written by {@link #writeBooleanArray(DataOutputStream, boolean[])}. */
+    public static boolean[] readBooleanArray(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        BitSet bits = BitSet.valueOf(readLongArray(in));
+        boolean[] arr = new boolean[len];
+        for (int i = bits.nextSetBit(0); i >= 0 && i < len; i = bits.nextSetBit(i + 1)) {
+            arr[i] = true;
+        }
+        return arr;
+    }
+
+    /* ---------------------------- Strings and objects ------------------------ */
+
+    /** Writes a string (which may be null) as a length-prefixed block of UTF-8 bytes. */
+    public static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Reads a string written by {@link #writeString(DataOutputStream, String)}. */
+    public static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Writes a list of strings (which may be null). */
+    public static void writeStringList(DataOutputStream out, List<String> strs) throws IOException {
+        if (strs == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(strs.size());
+        for (String str : strs) {
+            writeString(out, str);
+        }
+    }
+
+    /** Reads a list written by {@link #writeStringList(DataOutputStream, List)}. */
+    public static List<String> readStringList(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len == -1) {
+            return null;
+        }
+        List<String> strs = new ArrayList<>(len);
+        for (int i = 0; i < len; i++) {
+            strs.add(readString(in));
+        }
+        return strs;
+    }
+
+    /**
+     * Writes an arbitrary object such as an alphabet entry or a template key.
+     * Strings and Integers (by far the most common cases) are written directly;
+     * any other object must be Serializable and falls back to Java
+     * serialization.
+     */
+    public static void writeObject(DataOutputStream out, Object obj) throws IOException {
+        if (obj == null) {
+            out.writeByte(TAG_NULL);
+        } else if (obj instanceof String) {
+            out.writeByte(TAG_STRING);
+            writeString(out, (String) obj);
+        } else if (obj instanceof Integer) {
+            out.writeByte(TAG_INTEGER);
+            out.writeInt((Integer) obj);
+        } else if (obj instanceof Serializable) {
+            out.writeByte(TAG_SERIALIZED);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+                oos.writeObject(obj);
+            }
+            byte[] bytes = baos.toByteArray();
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else {
+            throw new IllegalArgumentException("Unable to write object of class: " + obj.getClass());
+        }
+    }
+
+    /** Reads an object written by {@link #writeObject(DataOutputStream, Object)}. */
+    public static Object readObject(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+        case TAG_NULL:
+            return null;
+        case TAG_STRING:
+            return readString(in);
+        case TAG_INTEGER:
+            return in.readInt();
+        case TAG_SERIALIZED:
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                return ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+        default:
+            throw new IllegalStateException("Unknown object tag: " + tag);
+        }
+    }
+
+}
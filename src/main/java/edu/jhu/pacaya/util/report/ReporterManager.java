@@ -77,6 +77,11 @@ public class ReporterManager {
         return r;
     }
     
+    /** Whether init() has been called, so that reporters may report. */
+    public static boolean isInitialized() {
+        return initialized;
+    }
+
     public static void close() {
         if (wr != null) {
             // Note that if this is called during a shutdown hook, the log might never be printed.
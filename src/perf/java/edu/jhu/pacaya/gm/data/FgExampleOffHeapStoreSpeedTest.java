@@ -0,0 +1,101 @@
+package edu.jhu.pacaya.gm.data;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+import edu.jhu.pacaya.gm.model.ExplicitFactor;
+import edu.jhu.pacaya.gm.model.FactorGraph;
+import edu.jhu.pacaya.util.cache.Codecs;
+import edu.jhu.pacaya.util.cache.Codecs.CodecType;
+import edu.jhu.prim.util.Timer;
+
+/**
+ * Compares the garbage collection done while reading the examples of a MEMORY_STORE, kept as live objects on the heap
+ * (see {@link FgExampleMemoryStore}), and of one kept off the heap (see {@link FgExampleOffHeapStore}). Each pass reads
+ * every example and sums its factor values, as a training pass would, while a fixed amount of other garbage is
+ * allocated per example. The examples of the MEMORY_STORE are live on the heap, where the collector must copy and
+ * scan them, while the off-heap store allocates a short-lived decoded copy of each example it returns.
+ */
+public class FgExampleOffHeapStoreSpeedTest {
+
+    private static final int numExamples = 200000;
+    private static final int numPasses = 5;
+    // The bytes of other garbage allocated per example read (e.g. by inference).
+    private static final int garbagePerExample = 4096;
+
+    /**
+     * Output: (numExamples=200000, numPasses=5, garbagePerExample=4096, serial collector, 1.5 GB max heap, on a
+     * single core)
+     * MEMORY_STORE: heap MB = 335.7 read ms = 955.0 gc count = 18 gc ms = 13
+     * offHeap (JAVA): heap MB = 19.0 read ms = 1735.0 gc count = 29 gc ms = 4
+     * offHeap (LZ4): heap MB = 22.1 read ms = 1811.0 gc count = 34 gc ms = 5
+     *
+     * The off-heap store takes a small fraction of the heap and cuts the time spent in collections, but decoding each
+     * example costs more time than those collections here, so it pays off when the examples would otherwise crowd the
+     * heap, not to speed up reads.
+     */
+    //Too slow to be a unit test. @Test
+    public void testReadPasses() {
+        run("MEMORY_STORE", new FgExampleMemoryStore());
+        run("offHeap (JAVA)", new FgExampleOffHeapStore(Codecs.get(CodecType.JAVA, 0, new FgExampleCodec())));
+        run("offHeap (LZ4)", new FgExampleOffHeapStore(Codecs.get(CodecType.LZ4, 0, new FgExampleCodec())));
+    }
+
+    private static void run(String name, FgExampleStore store) {
+        for (int i=0; i<numExamples; i++) {
+            store.add(FgExamplesForTests.getExample(i));
+        }
+        double heapMb = getUsedHeapBytes() / 1e6;
+        long gcCount = getGcCount();
+        long gcMs = getGcMs();
+        Timer timer = new Timer();
+        timer.start();
+        double sum = 0;
+        for (int pass=0; pass<numPasses; pass++) {
+            for (int i=0; i<store.size(); i++) {
+                FactorGraph fg = store.get(i).getFactorGraph();
+                for (int a=0; a<fg.getNumFactors(); a++) {
+                    ExplicitFactor f = (ExplicitFactor) fg.getFactor(a);
+                    for (int c=0; c<f.size(); c++) {
+                        sum += f.getValue(c);
+                    }
+                }
+                byte[] garbage = new byte[garbagePerExample];
+                sum += garbage[i % garbagePerExample];
+            }
+        }
+        timer.stop();
+        System.out.println(String.format("%s: heap MB = %.1f read ms = %.1f gc count = %d gc ms = %d (sum = %.1f)",
+                name, heapMb, timer.totMs(), getGcCount() - gcCount, getGcMs() - gcMs, sum));
+        if (store instanceof FgExampleOffHeapStore) {
+            ((FgExampleOffHeapStore) store).close();
+        }
+    }
+
+    private static long getUsedHeapBytes() {
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getGcMs() {
+        long ms = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ms += Math.max(0, gc.getCollectionTime());
+        }
+        return ms;
+    }
+
+    public static void main(String[] args) {
+        new FgExampleOffHeapStoreSpeedTest().testReadPasses();
+    }
+
+}
@@ -0,0 +1,89 @@
+package edu.jhu.pacaya.gm.feat;
+
+import edu.jhu.pacaya.gm.data.FgExampleMemoryStore;
+import edu.jhu.pacaya.gm.data.LabeledFgExample;
+import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner.ObsFeatureConjoinerPrm;
+import edu.jhu.pacaya.gm.model.FactorGraph;
+import edu.jhu.pacaya.gm.model.FgModel;
+import edu.jhu.pacaya.gm.model.Var;
+import edu.jhu.pacaya.gm.model.Var.VarType;
+import edu.jhu.pacaya.gm.model.VarConfig;
+import edu.jhu.pacaya.gm.model.VarSet;
+import edu.jhu.pacaya.util.FeatureNames;
+import edu.jhu.prim.util.Timer;
+
+/**
+ * Compares scoring all the configs of an ObsFeExpFamFactor with one dot product
+ * per config against the factored scoring of updateFromModel().
+ */
+public class ObsCjExpFamFactorSpeedTest {
+
+    /**
+     * Output: (numConfigs=45, numObsFeats=50, numTrials=20000)
+     * Per config: 478.0 ms
+     * Factored:   177.0 ms
+     */
+    //Too slow to be a unit test. @Test
+    public void testScoringSpeed() {
+        final int numConfigs = 45;
+        final int numObsFeats = 50;
+        int numFeats = 20000;
+        int numTrials = 20000;
+
+        FactorTemplateList fts = new FactorTemplateList();
+        Var v = new Var(VarType.PREDICTED, numConfigs, "tag", null);
+        final FeatureNames alphabet = new FeatureNames();
+        for (int k=0; k<numFeats; k++) {
+            alphabet.lookupIndex("feat" + k);
+        }
+        fts.add(new FactorTemplate(new VarSet(v), alphabet, "tag"));
+        ObsFeatureConjoinerPrm prm = new ObsFeatureConjoinerPrm();
+        prm.featCountCutoff = 0;
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(prm, fts);
+        ObsFeatureExtractor obsFe = new ObsFeatureExtractor() {
+            @Override
+            public FeatureVector calcObsFeatureVector(ObsFeExpFamFactor factor) {
+                FeatureVector fv = new FeatureVector();
+                for (int k=0; k<numObsFeats; k++) {
+                    fv.add(k * 397 % alphabet.size(), 1.0);
+                }
+                return fv;
+            }
+        };
+        FactorGraph fg = new FactorGraph();
+        ObsFeExpFamFactor f = new ObsFeExpFamFactor(new VarSet(v), "tag", ofc, obsFe);
+        fg.addFactor(f);
+        VarConfig vc = new VarConfig();
+        vc.put(v, 0);
+        FgExampleMemoryStore data = new FgExampleMemoryStore();
+        data.add(new LabeledFgExample(fg, vc, fts));
+        ofc.init(null);
+        FgModel model = new FgModel(ofc.getNumParams());
+        model.setRandomStandardNormal();
+
+        double sum = 0;
+        Timer perConfig = new Timer();
+        perConfig.start();
+        for (int n=0; n<numTrials; n++) {
+            for (int c=0; c<numConfigs; c++) {
+                sum += model.dot(f.getFeatures(c));
+            }
+        }
+        perConfig.stop();
+        Timer factored = new Timer();
+        factored.start();
+        for (int n=0; n<numTrials; n++) {
+            f.updateFromModel(model);
+            sum += f.getLogUnormalizedScore(0);
+        }
+        factored.stop();
+        System.out.println("Per config: " + perConfig.totMs() + " ms");
+        System.out.println("Factored:   " + factored.totMs() + " ms");
+        System.out.println("Ignore: " + sum);
+    }
+
+    public static void main(String[] args) {
+        new ObsCjExpFamFactorSpeedTest().testScoringSpeed();
+    }
+
+}
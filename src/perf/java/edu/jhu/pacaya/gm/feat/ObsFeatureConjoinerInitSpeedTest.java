@@ -0,0 +1,99 @@
+package edu.jhu.pacaya.gm.feat;
+
+import edu.jhu.pacaya.gm.data.FgExampleMemoryStore;
+import edu.jhu.pacaya.gm.data.LabeledFgExample;
+import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner.ObsFeatureConjoinerPrm;
+import edu.jhu.pacaya.gm.model.FactorGraph;
+import edu.jhu.pacaya.gm.model.Var;
+import edu.jhu.pacaya.gm.model.Var.VarType;
+import edu.jhu.pacaya.gm.model.VarConfig;
+import edu.jhu.pacaya.gm.model.VarSet;
+import edu.jhu.pacaya.util.FeatureAlphabet;
+import edu.jhu.pacaya.util.Threads;
+import edu.jhu.pacaya.util.collections.QLists;
+import edu.jhu.prim.util.Timer;
+
+/**
+ * Compares the time of ObsFeatureConjoiner.init() on one thread and on several. On several threads, each example adds
+ * its new features to alphabets of its own, which are merged in example order once the earlier examples are done (see
+ * {@link edu.jhu.pacaya.util.MergedFeatureNames}), so the threads never wait for each other to add a feature.
+ */
+public class ObsFeatureConjoinerInitSpeedTest {
+
+    private static final int numExamples = 20000;
+    private static final int numFactorsPerExample = 20;
+    private static final int numFeatsPerFactor = 30;
+    private static final int numFeats = 100000;
+    // The last trial is reported, after the JIT has warmed up.
+    private static final int numTrials = 3;
+
+    /**
+     * Output: (numExamples=20000, numFactorsPerExample=20, numFeatsPerFactor=30, numFeats=100000, on a single core)
+     * 1 threads: 2696.0 ms
+     * 4 threads: 4041.0 ms
+     * 
+     * With a single core there is no parallelism to gain, so this only shows the overhead of the per-example alphabets
+     * and of the merges. Run this on a multi-core machine to measure the speedup.
+     */
+    //Too slow to be a unit test. @Test
+    public void testInit() {
+        for (int numThreads : new int[] { 1, 4 }) {
+            Threads.initDefaultPool(numThreads);
+            try {
+                double ms = 0;
+                for (int trial=0; trial<numTrials; trial++) {
+                    ms = timeInit();
+                }
+                System.out.println(numThreads + " threads: " + ms + " ms");
+            } finally {
+                Threads.shutdownDefaultPool();
+            }
+        }
+        Threads.initDefaultPool(1);
+    }
+
+    private static double timeInit() {
+        final FactorTemplateList fts = new FactorTemplateList();
+        ObsFeatureConjoinerPrm prm = new ObsFeatureConjoinerPrm();
+        prm.featCountCutoff = 2;
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(prm, fts);
+        FgExampleMemoryStore data = new FgExampleMemoryStore();
+        for (int i=0; i<numExamples; i++) {
+            FactorGraph fg = new FactorGraph();
+            VarConfig vc = new VarConfig();
+            for (int a=0; a<numFactorsPerExample; a++) {
+                final long seed = (long) i * numFactorsPerExample + a + 1;
+                Var v = new Var(VarType.PREDICTED, 2, "v" + a, QLists.getList("a", "b"));
+                fg.addFactor(new ObsFeExpFamFactor(new VarSet(v), "key", ofc, new ObsFeatureExtractor() {
+                    @Override
+                    public FeatureVector calcObsFeatureVector(ObsFeExpFamFactor factor) {
+                        FeatureAlphabet alphabet = fts.getTemplate(factor).getAlphabet();
+                        FeatureVector fv = new FeatureVector();
+                        // A skewed distribution over the features: most are common and the rest are rare, as in
+                        // feature extraction over a corpus.
+                        long x = seed;
+                        for (int k=0; k<numFeatsPerFactor; k++) {
+                            x = x * 6364136223846793005L + 1442695040888963407L;
+                            int r = (int) ((x >>> 33) % numFeats);
+                            int feat = (k % 10 == 0) ? r : r % 1000;
+                            fv.add(alphabet.lookupIndex("feat" + feat), 1.0);
+                        }
+                        return fv;
+                    }
+                }));
+                vc.put(v, (int) (seed % 2));
+            }
+            data.add(new LabeledFgExample(fg, vc, fts));
+        }
+        Timer timer = new Timer();
+        timer.start();
+        ofc.init(data);
+        timer.stop();
+        return timer.totMs();
+    }
+
+    public static void main(String[] args) {
+        new ObsFeatureConjoinerInitSpeedTest().testInit();
+    }
+
+}
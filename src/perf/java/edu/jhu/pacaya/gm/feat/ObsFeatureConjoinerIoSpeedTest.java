@@ -0,0 +1,89 @@
+package edu.jhu.pacaya.gm.feat;
+
+import java.io.File;
+import java.io.IOException;
+
+import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner.ObsFeatureConjoinerPrm;
+import edu.jhu.pacaya.gm.model.FgModel;
+import edu.jhu.pacaya.gm.model.Var;
+import edu.jhu.pacaya.gm.model.Var.VarType;
+import edu.jhu.pacaya.gm.model.VarSet;
+import edu.jhu.pacaya.util.FeatureNames;
+import edu.jhu.pacaya.util.files.QFiles;
+import edu.jhu.prim.util.Timer;
+
+/**
+ * Compares the load times of Java serialization and the binary format of
+ * BinaryStreams for an FgModel and ObsFeatureConjoiner.
+ */
+public class ObsFeatureConjoinerIoSpeedTest {
+
+    /**
+     * Output: (numTemplates=10, numConfigs=45, numFeats=20000)
+     * Java serialization: write (ms): 11764.0 read (ms): 2125.0 size (MB): 84.8
+     * Binary format:      write (ms): 10068.0 read (ms): 989.0 size (MB): 83.8
+     */
+    //Too slow to be a unit test. @Test
+    public void testLoadSpeed() throws IOException {
+        int numTemplates = 10;
+        int numConfigs = 45;
+        int numFeats = 20000;
+        boolean compress = true;
+
+        FactorTemplateList fts = new FactorTemplateList();
+        for (int t=0; t<numTemplates; t++) {
+            Var v = new Var(VarType.PREDICTED, numConfigs, "v"+t, null);
+            FeatureNames alphabet = new FeatureNames();
+            for (int k=0; k<numFeats; k++) {
+                alphabet.lookupIndex("template=" + t + "_feat=" + k);
+            }
+            fts.add(new FactorTemplate(new VarSet(v), alphabet, "template"+t));
+        }
+        ObsFeatureConjoinerPrm prm = new ObsFeatureConjoinerPrm();
+        prm.featCountCutoff = 0;
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(prm, fts);
+        ofc.init(null);
+        FgModel model = new FgModel(ofc.getNumParams());
+        model.setRandomStandardNormal();
+
+        File dir = QFiles.createTempDir("ofcio", new File("."));
+        {
+            File ofcFile = new File(dir, "ofc.ser.gz");
+            File modelFile = new File(dir, "model.ser.gz");
+            Timer w = new Timer();
+            w.start();
+            QFiles.serialize(ofc, ofcFile);
+            QFiles.serialize(model, modelFile);
+            w.stop();
+            Timer r = new Timer();
+            r.start();
+            QFiles.deserialize(ofcFile);
+            QFiles.deserialize(modelFile);
+            r.stop();
+            System.out.println(String.format("Java serialization: write (ms): %.1f read (ms): %.1f size (MB): %.1f",
+                    w.totMs(), r.totMs(), (ofcFile.length() + modelFile.length()) / 1024. / 1024.));
+        }
+        {
+            File ofcFile = new File(dir, "ofc.bin.gz");
+            File modelFile = new File(dir, "model.bin.gz");
+            Timer w = new Timer();
+            w.start();
+            ofc.writeBinary(ofcFile, compress);
+            model.writeBinary(modelFile, compress);
+            w.stop();
+            Timer r = new Timer();
+            r.start();
+            ObsFeatureConjoiner.readBinary(ofcFile);
+            FgModel.readBinary(modelFile);
+            r.stop();
+            System.out.println(String.format("Binary format:      write (ms): %.1f read (ms): %.1f size (MB): %.1f",
+                    w.totMs(), r.totMs(), (ofcFile.length() + modelFile.length()) / 1024. / 1024.));
+        }
+        QFiles.deleteRecursively(dir);
+    }
+
+    public static void main(String[] args) throws IOException {
+        new ObsFeatureConjoinerIoSpeedTest().testLoadSpeed();
+    }
+
+}
@@ -0,0 +1,90 @@
+package edu.jhu.pacaya.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import edu.jhu.prim.util.Timer;
+
+/**
+ * Compares the throughput of a FeatureNames alphabet guarded by a single lock
+ * against ConcurrentFeatureNames, with many threads looking up features.
+ */
+public class ConcurrentFeatureNamesSpeedTest {
+
+    /** FeatureNames which serializes all the lookups on the alphabet. */
+    private static class SynchronizedFeatureNames extends FeatureNames {
+        private static final long serialVersionUID = 1L;
+        @Override
+        public synchronized int lookupIndex(Object object, boolean addIfMissing) {
+            return super.lookupIndex(object, addIfMissing);
+        }
+    }
+
+    private static final int numThreads = 32;
+    private static final int numLookupsPerThread = 1000000;
+    private static final int numFeats = 200000;
+    // The last trial is reported, after the JIT has warmed up.
+    private static final int numTrials = 3;
+
+    /**
+     * Output: (numThreads=32, numLookupsPerThread=1000000, numFeats=200000, on a single core)
+     * Synchronized: 5318.0 ms
+     * Concurrent:   5094.0 ms
+     * 
+     * With a single core there is no parallelism to gain, so this only shows that the concurrent
+     * alphabet adds no overhead. Run this on a multi-core machine to measure the contention.
+     */
+    //Too slow to be a unit test. @Test
+    public void testContention() throws Exception {
+        // The feature strings are created once, so that only the lookups are timed.
+        String[] feats = new String[numFeats];
+        for (int i=0; i<numFeats; i++) {
+            feats[i] = "feat" + i;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        double concMs = 0, syncMs = 0;
+        for (int trial=0; trial<numTrials; trial++) {
+            syncMs = timeLookups(pool, new SynchronizedFeatureNames(), feats);
+            concMs = timeLookups(pool, new ConcurrentFeatureNames(), feats);
+        }
+        Threads.shutdownSafelyOrDie(pool);
+        System.out.println("Synchronized: " + syncMs + " ms");
+        System.out.println("Concurrent:   " + concMs + " ms");
+    }
+
+    private static double timeLookups(ExecutorService pool, final FeatureAlphabet names, final String[] feats) {
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int t=0; t<numThreads; t++) {
+            final int seed = t;
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int sum = 0;
+                    // A skewed distribution over the features: most lookups hit a few common features
+                    // and the rest add new ones, as in feature extraction over a corpus.
+                    long x = seed + 1;
+                    for (int i=0; i<numLookupsPerThread; i++) {
+                        x = x * 6364136223846793005L + 1442695040888963407L;
+                        int r = (int) ((x >>> 33) % numFeats);
+                        int k = (i % 4 == 0) ? r : r % 1000;
+                        sum += names.lookupIndex(feats[k]);
+                    }
+                    return sum;
+                }
+            });
+        }
+        Timer timer = new Timer();
+        timer.start();
+        Threads.invokeAndAwaitAll(pool, tasks);
+        timer.stop();
+        return timer.totMs();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new ConcurrentFeatureNamesSpeedTest().testContention();
+    }
+
+}
@@ -0,0 +1,84 @@
+package edu.jhu.pacaya.util.cache;
+
+import java.io.File;
+
+import edu.jhu.pacaya.gm.train.BlockShuffledBatchOrder;
+import edu.jhu.pacaya.util.cache.ConcurrentFastDiskStore.ReadMode;
+import edu.jhu.prim.arrays.IntArrays;
+import edu.jhu.prim.util.Timer;
+import edu.jhu.prim.util.random.Prng;
+
+/**
+ * Compares one epoch of reads from a ConcurrentFastDiskStore in a fully shuffled order with positional reads against
+ * a block-shuffled order with blocks read ahead.
+ */
+public class BlockReadSpeedTest {
+
+    private static final int numObjects = 20000;
+    private static final int objSizeBytes = 5000;
+    private static final int blockSize = 512;
+    // The last trial is reported, after the JIT has warmed up.
+    private static final int numTrials = 3;
+
+    /**
+     * Output: (numObjects=20000, objSizeBytes=5000, blockSize=512, file in the page cache, over three runs)
+     * Shuffled, channel:       145 - 331 ms
+     * Block-shuffled, block:   330 - 384 ms
+     * 
+     * With the file in the page cache there are no seeks to save, and the block reads pay for copying whole blocks,
+     * so this mostly shows the overhead of the read-ahead. When the file does not fit in memory, each shuffled read
+     * costs a seek, while each block costs one sequential read.
+     */
+    //Too slow to be a unit test. @Test
+    public void testBlockShuffledReads() throws Exception {
+        File path = new File("./tmp/cfds/speed-block.binary");
+        try (ConcurrentFastDiskStore<Integer, byte[]> writer = new ConcurrentFastDiskStore<>(path, false)) {
+            for (int i=0; i<numObjects; i++) {
+                byte[] obj = new byte[objSizeBytes];
+                obj[0] = (byte) i;
+                writer.put(i, obj);
+            }
+            writer.finish(null);
+        }
+        Prng.seed(Prng.DEFAULT_SEED);
+        double channelMs = 0, blockMs = 0;
+        for (int trial=0; trial<numTrials; trial++) {
+            try (ConcurrentFastDiskStore<Integer, byte[]> channel = new ConcurrentFastDiskStore<>(path,
+                    ReadMode.CHANNEL)) {
+                int[] order = IntArrays.range(numObjects);
+                IntArrays.shuffle(order);
+                channelMs = timeReads(channel, order);
+            }
+            try (ConcurrentFastDiskStore<Integer, byte[]> block = new ConcurrentFastDiskStore<>(path,
+                    ReadMode.BLOCK)) {
+                BlockShuffledBatchOrder batchOrder = new BlockShuffledBatchOrder(numObjects, blockSize);
+                int[] order = new int[numObjects];
+                for (int i=0; i<numObjects; i++) {
+                    order[i] = batchOrder.getBatch(new int[1]).next()[0];
+                }
+                blockMs = timeReads(block, order);
+            }
+        }
+        System.out.println("Shuffled, channel:       " + channelMs + " ms");
+        System.out.println("Block-shuffled, block:   " + blockMs + " ms");
+    }
+
+    private static double timeReads(ConcurrentFastDiskStore<Integer, byte[]> store, int[] order) {
+        Timer timer = new Timer();
+        timer.start();
+        int sum = 0;
+        for (int k : order) {
+            sum += store.get(k)[0];
+        }
+        timer.stop();
+        if (sum == 42) {
+            System.out.println();
+        }
+        return timer.totMs();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new BlockReadSpeedTest().testBlockShuffledReads();
+    }
+
+}
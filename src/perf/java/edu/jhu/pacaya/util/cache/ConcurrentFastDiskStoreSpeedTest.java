@@ -0,0 +1,103 @@
+package edu.jhu.pacaya.util.cache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import edu.jhu.pacaya.util.Threads;
+import edu.jhu.pacaya.util.cache.ConcurrentFastDiskStore.ReadMode;
+import edu.jhu.prim.util.Timer;
+
+/**
+ * Compares the read throughput of a FastDiskStore guarded by a single lock (as in the old FgExampleDiskStore) against
+ * ConcurrentFastDiskStore with positional reads and with memory-mapped reads, with many threads reading.
+ */
+public class ConcurrentFastDiskStoreSpeedTest {
+
+    private static final int numThreads = 8;
+    private static final int numReadsPerThread = 20000;
+    private static final int numObjects = 10000;
+    private static final int objSizeBytes = 5000;
+    // The last trial is reported, after the JIT has warmed up.
+    private static final int numTrials = 3;
+
+    /**
+     * Output: (numThreads=8, numReadsPerThread=20000, numObjects=10000, objSizeBytes=5000, on a single core)
+     * Synchronized: 1643.0 ms
+     * Channel:      1237.0 ms
+     * Mmap:         800.0 ms
+     * 
+     * With a single core there is no parallelism to gain, so this mostly shows the cost of each read. Run this on a
+     * multi-core machine to measure the contention.
+     */
+    //Too slow to be a unit test. @Test
+    public void testContention() throws Exception {
+        final FastDiskStore<Integer, byte[]> sync = new FastDiskStore<>(new File("./tmp/cfds/speed-sync.binary"),
+                false);
+        ConcurrentFastDiskStore<Integer, byte[]> channel = new ConcurrentFastDiskStore<>(new File(
+                "./tmp/cfds/speed-channel.binary"), false, ReadMode.CHANNEL);
+        ConcurrentFastDiskStore<Integer, byte[]> mmap = new ConcurrentFastDiskStore<>(new File(
+                "./tmp/cfds/speed-mmap.binary"), false, ReadMode.MMAP);
+        for (int i=0; i<numObjects; i++) {
+            byte[] obj = new byte[objSizeBytes];
+            obj[0] = (byte) i;
+            sync.put(i, obj);
+            channel.put(i, obj);
+            mmap.put(i, obj);
+        }
+        // The old FgExampleDiskStore locked every read.
+        Map<Integer, byte[]> locked = new FastDiskStore<Integer, byte[]>(new File("./tmp/cfds/unused.binary"), false) {
+            @Override
+            public synchronized byte[] get(Object key) {
+                return sync.get(key);
+            }
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        double syncMs = 0, channelMs = 0, mmapMs = 0;
+        for (int trial=0; trial<numTrials; trial++) {
+            syncMs = timeReads(pool, locked);
+            channelMs = timeReads(pool, channel);
+            mmapMs = timeReads(pool, mmap);
+        }
+        Threads.shutdownSafelyOrDie(pool);
+        channel.close();
+        mmap.close();
+        System.out.println("Synchronized: " + syncMs + " ms");
+        System.out.println("Channel:      " + channelMs + " ms");
+        System.out.println("Mmap:         " + mmapMs + " ms");
+    }
+
+    private static double timeReads(ExecutorService pool, final Map<Integer, byte[]> store) {
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int t=0; t<numThreads; t++) {
+            final int seed = t;
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int sum = 0;
+                    long x = seed + 1;
+                    for (int i=0; i<numReadsPerThread; i++) {
+                        x = x * 6364136223846793005L + 1442695040888963407L;
+                        int k = (int) ((x >>> 33) % numObjects);
+                        sum += store.get(k)[0];
+                    }
+                    return sum;
+                }
+            });
+        }
+        Timer timer = new Timer();
+        timer.start();
+        Threads.invokeAndAwaitAll(pool, tasks);
+        timer.stop();
+        return timer.totMs();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new ConcurrentFastDiskStoreSpeedTest().testContention();
+    }
+
+}
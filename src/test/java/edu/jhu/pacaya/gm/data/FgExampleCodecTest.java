@@ -0,0 +1,204 @@
+package edu.jhu.pacaya.gm.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.jhu.pacaya.gm.feat.FactorTemplateList;
+import edu.jhu.pacaya.gm.feat.FeatureExtractor;
+import edu.jhu.pacaya.gm.feat.FeatureVector;
+import edu.jhu.pacaya.gm.feat.ObsFeExpFamFactor;
+import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner;
+import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner.ObsFeatureConjoinerPrm;
+import edu.jhu.pacaya.gm.feat.ObsFeatureExtractor;
+import edu.jhu.pacaya.gm.model.ClampFactor;
+import edu.jhu.pacaya.gm.model.ExplicitFactor;
+import edu.jhu.pacaya.gm.model.FactorGraph;
+import edu.jhu.pacaya.gm.model.FeExpFamFactor;
+import edu.jhu.pacaya.gm.model.Var;
+import edu.jhu.pacaya.gm.model.Var.VarType;
+import edu.jhu.pacaya.gm.model.VarConfig;
+import edu.jhu.pacaya.gm.model.VarSet;
+import edu.jhu.pacaya.util.cache.Codec;
+import edu.jhu.pacaya.util.cache.Codecs;
+import edu.jhu.pacaya.util.cache.Codecs.CodecType;
+import edu.jhu.pacaya.util.cache.Codecs.JavaCodec;
+
+public class FgExampleCodecTest {
+
+    private FactorTemplateList fts = new FactorTemplateList();
+    private ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(new ObsFeatureConjoinerPrm(), fts);
+
+    private LabeledFgExample getExample() {
+        List<String> stateNames = Arrays.asList("a", "b", "c");
+        // The variables are created out of the order of their ids.
+        Var v1 = new Var(VarType.LATENT, 2, "v1", null);
+        Var v0 = new Var(VarType.PREDICTED, 3, "v0", stateNames);
+        Var v2 = new Var(VarType.PREDICTED, 3, "v2", stateNames);
+        FactorGraph fg = new FactorGraph();
+        fg.addVar(v0);
+        fg.addVar(v1);
+        fg.addVar(v2);
+        ExplicitFactor ef = new ExplicitFactor(new VarSet(v0, v1));
+        for (int c=0; c<ef.size(); c++) {
+            ef.setValue(c, 0.1 * c);
+        }
+        fg.addFactor(ef);
+        ExplicitFactor uniform = new ExplicitFactor(new VarSet(v2));
+        uniform.fill(1.0);
+        fg.addFactor(uniform);
+        fg.addFactor(new ClampFactor(v2, 1));
+        fg.addFactor(new ObsFeExpFamFactor(new VarSet(v0, v2), "obs", ofc, new ObsFeatureExtractor() {
+            @Override
+            public FeatureVector calcObsFeatureVector(ObsFeExpFamFactor factor) {
+                return new FeatureVector(new int[] { 5, 1000000, 2 }, new double[] { 1.0, 0.5, 0.1 });
+            }
+        }));
+        fg.addFactor(new FeExpFamFactor(new VarSet(v1), new FeatureExtractor() {
+            @Override
+            public FeatureVector calcFeatureVector(FeExpFamFactor factor, int configId) {
+                return new FeatureVector(new int[] { configId }, new double[] { 1.0 });
+            }
+        }));
+        VarConfig gold = new VarConfig();
+        gold.put(v0, 2);
+        gold.put(v2, 1);
+        LabeledFgExample ex = new LabeledFgExample(fg, gold, fts);
+        ex.setWeight(0.25);
+        return ex;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        LabeledFgExample ex = getExample();
+        FgExampleCodec codec = new FgExampleCodec();
+        LabeledFgExample dec = (LabeledFgExample) codec.decode(codec.encode(ex));
+        FactorGraph fg = ex.getFactorGraph();
+        FactorGraph decFg = dec.getFactorGraph();
+
+        assertEquals(fg.getNumVars(), decFg.getNumVars());
+        for (int i=0; i<fg.getNumVars(); i++) {
+            Var v = fg.getVar(i);
+            Var decV = decFg.getVar(i);
+            assertEquals(v.getType(), decV.getType());
+            assertEquals(v.getNumStates(), decV.getNumStates());
+            assertEquals(v.getName(), decV.getName());
+            assertEquals(v.getStateNames(), decV.getStateNames());
+        }
+        // The state names are shared as before.
+        assertNull(decFg.getVar(1).getStateNames());
+        assertSame(decFg.getVar(0).getStateNames(), decFg.getVar(2).getStateNames());
+
+        assertEquals(fg.getNumFactors(), decFg.getNumFactors());
+        for (int a=0; a<fg.getNumFactors(); a++) {
+            assertEquals(fg.getFactor(a).getClass(), decFg.getFactor(a).getClass());
+            assertEquals(fg.getFactor(a).getVars().size(), decFg.getFactor(a).getVars().size());
+            // The variables of each factor are in the same order.
+            int k = 0;
+            for (Var v : decFg.getFactor(a).getVars()) {
+                assertEquals(fg.getFactor(a).getVars().get(k++).getId(), v.getId());
+            }
+        }
+        ExplicitFactor ef = (ExplicitFactor) decFg.getFactor(0);
+        for (int c=0; c<ef.size(); c++) {
+            assertEquals(0.1 * c, ef.getValue(c), 0);
+        }
+        assertEquals(1.0, ((ExplicitFactor) decFg.getFactor(1)).getValue(2), 0);
+        assertEquals(1, ((ClampFactor) decFg.getFactor(2)).getState());
+
+        ObsFeExpFamFactor obsFef = (ObsFeExpFamFactor) decFg.getFactor(3);
+        assertSame(ofc, obsFef.getConjoiner());
+        assertEquals(0, obsFef.getTemplateId());
+        assertEquals("obs", obsFef.getTemplateKey());
+        assertEquals(0.5, obsFef.getObsFeatures().get(1000000), 0);
+        assertEquals(0.1, obsFef.getObsFeatures().get(2), 0);
+        FeExpFamFactor fef = (FeExpFamFactor) decFg.getFactor(4);
+        assertEquals(1.0, fef.getFeatures(1).get(1), 0);
+
+        assertEquals(0.25, dec.getWeight(), 0);
+        assertEquals(2, dec.getGoldConfig().getState(decFg.getVar(0)));
+        assertEquals(1, dec.getGoldConfig().getState(decFg.getVar(2)));
+        assertEquals(-1, dec.getGoldConfig().getState(decFg.getVar(1), -1));
+    }
+
+    @Test
+    public void testUnlabeled() {
+        FgExampleCodec codec = new FgExampleCodec(ofc);
+        UnlabeledFgExample ex = new UnlabeledFgExample(getExample().getFactorGraph(), fts);
+        Object dec = codec.decode(codec.encode(ex));
+        assertEquals(UnlabeledFgExample.class, dec.getClass());
+        assertEquals(5, ((UnlabeledFgExample) dec).getFactorGraph().getNumFactors());
+    }
+
+    @Test
+    public void testLiveConjoinerAfterSerialization() {
+        FgExampleCodec codec = new FgExampleCodec();
+        byte[] bytes = codec.encode(getExample());
+        // A reopened store deserializes its codec, without the conjoiner.
+        FgExampleCodec reopened = (FgExampleCodec) new JavaCodec().decode(new JavaCodec().encode(codec));
+        assertNull(reopened.getConjoiner());
+        try {
+            reopened.decode(bytes);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        // Given the live conjoiner, the decoded factors share it.
+        reopened.setConjoiner(ofc);
+        ObsFeExpFamFactor f1 = (ObsFeExpFamFactor) ((LFgExample) reopened.decode(bytes)).getFactorGraph().getFactor(3);
+        ObsFeExpFamFactor f2 = (ObsFeExpFamFactor) ((LFgExample) reopened.decode(bytes)).getFactorGraph().getFactor(3);
+        assertSame(ofc, f1.getConjoiner());
+        assertSame(ofc, f2.getConjoiner());
+        assertEquals("obs", f1.getTemplateKey());
+    }
+
+    @Test
+    public void testFind() {
+        FgExampleCodec codec = new FgExampleCodec();
+        for (CodecType type : CodecType.values()) {
+            assertSame(type.toString(), codec, FgExampleCodec.find(Codecs.get(type, 6, codec)));
+        }
+        assertNull(FgExampleCodec.find(Codecs.get(CodecType.LZ4, 6)));
+    }
+
+    @Test
+    public void testFallbackToJava() {
+        FgExampleCodec codec = new FgExampleCodec(new ObsFeatureConjoiner(new ObsFeatureConjoinerPrm(), fts));
+        // The factors reference another conjoiner.
+        VarConfig vc = new VarConfig();
+        FactorGraph fg = new FactorGraph();
+        Var v = new Var(VarType.PREDICTED, 2, "v", null);
+        fg.addFactor(new ObsFeExpFamFactor(new VarSet(v), "obs", ofc, null));
+        vc.put(v, 1);
+        byte[] bytes = codec.encode(new LabeledFgExample(fg, vc, fts));
+        assertEquals(0, bytes[0]);
+        LFgExample dec = (LFgExample) codec.decode(bytes);
+        assertEquals(1, dec.getGoldConfig().getState(dec.getFactorGraph().getVar(0)));
+        // Other objects are also serialized with Java serialization.
+        assertEquals("str", codec.decode(codec.encode("str")));
+    }
+
+    @Test
+    public void testCompressedRoundTrip() {
+        for (CodecType type : CodecType.values()) {
+            Codec codec = Codecs.get(type, 6, new FgExampleCodec());
+            LFgExample dec = (LFgExample) codec.decode(codec.encode(getExample()));
+            assertEquals(type.toString(), 3, dec.getFactorGraph().getNumVars());
+            assertEquals(type.toString(), 0.25, dec.getWeight(), 0);
+        }
+    }
+
+    @Test
+    public void testCompact() {
+        // Java serialization takes several kilobytes for the same example.
+        assertTrue(new FgExampleCodec().encode(getExample()).length < 200);
+    }
+
+}
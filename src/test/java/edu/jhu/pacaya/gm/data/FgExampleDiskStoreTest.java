@@ -0,0 +1,166 @@
+package edu.jhu.pacaya.gm.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import edu.jhu.pacaya.gm.data.FgExampleListBuilder.CacheType;
+import edu.jhu.pacaya.gm.data.FgExampleListBuilder.FgExamplesBuilderPrm;
+import edu.jhu.pacaya.gm.feat.FactorTemplateList;
+import edu.jhu.pacaya.gm.feat.FeatureVector;
+import edu.jhu.pacaya.gm.feat.ObsFeExpFamFactor;
+import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner;
+import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner.ObsFeatureConjoinerPrm;
+import edu.jhu.pacaya.gm.feat.ObsFeatureExtractor;
+import edu.jhu.pacaya.gm.model.FactorGraph;
+import edu.jhu.pacaya.gm.model.FactorGraphsForTests;
+import edu.jhu.pacaya.gm.model.Var;
+import edu.jhu.pacaya.gm.model.Var.VarType;
+import edu.jhu.pacaya.gm.model.VarConfig;
+import edu.jhu.pacaya.gm.model.VarSet;
+import edu.jhu.pacaya.util.cache.Codecs.CodecType;
+import edu.jhu.pacaya.util.cache.ContentHash;
+
+public class FgExampleDiskStoreTest {
+
+    /** Examples which are constructed on every call to get(i), counting the calls. */
+    private static class CountingExampleList implements FgExampleList {
+
+        private int numGets = 0;
+
+        @Override
+        public LFgExample get(int i) {
+            numGets++;
+            FactorGraph fg = FactorGraphsForTests.getLinearChainGraph();
+            VarConfig vc = new VarConfig();
+            for (Var v : fg.getVars()) {
+                vc.put(v, i % v.getNumStates());
+            }
+            return new LabeledFgExample(fg, vc);
+        }
+
+        @Override
+        public int size() {
+            return 4;
+        }
+    }
+
+    @Test
+    public void testReuseAcrossRuns() {
+        File path = new File("./tmp/fgexds/examples.binary");
+        path.delete();
+        FgExamplesBuilderPrm prm = new FgExamplesBuilderPrm();
+        prm.cacheType = CacheType.DISK_STORE;
+        prm.diskStorePath = path;
+        prm.diskStoreHash = ContentHash.of("train.txt", prm.gzipped);
+
+        // The first run constructs the examples.
+        CountingExampleList data = new CountingExampleList();
+        FgExampleDiskStore store = (FgExampleDiskStore) new FgExampleListBuilder(prm).getInstance(data);
+        assertFalse(store.isReopened());
+        assertEquals(4, data.numGets);
+        store.close();
+
+        // A later run reuses them.
+        data = new CountingExampleList();
+        store = (FgExampleDiskStore) new FgExampleListBuilder(prm).getInstance(data);
+        assertTrue(store.isReopened());
+        assertEquals(0, data.numGets);
+        assertEquals(4, store.size());
+        for (int i=0; i<store.size(); i++) {
+            LFgExample expected = data.get(i);
+            VarConfig vc = store.get(i).getGoldConfig();
+            assertEquals(expected.getGoldConfig().getConfigIndex(), vc.getConfigIndex());
+            assertEquals(expected.getFactorGraph().getNumFactors(), store.get(i).getFactorGraph().getNumFactors());
+        }
+        store.close();
+
+        // A run with different contents constructs them again.
+        prm.diskStoreHash = ContentHash.of("dev.txt", prm.gzipped);
+        data = new CountingExampleList();
+        store = (FgExampleDiskStore) new FgExampleListBuilder(prm).getInstance(data);
+        assertFalse(store.isReopened());
+        assertEquals(4, data.numGets);
+        store.close();
+    }
+
+    @Test
+    public void testReopenWithLiveConjoiner() {
+        File path = new File("./tmp/fgexds/compact.binary");
+        path.delete();
+        FactorTemplateList fts = new FactorTemplateList();
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(new ObsFeatureConjoinerPrm(), fts);
+        FgExampleMemoryStore data = new FgExampleMemoryStore();
+        for (int i=0; i<3; i++) {
+            Var v = new Var(VarType.PREDICTED, 2, "v", null);
+            FactorGraph fg = new FactorGraph();
+            fg.addVar(v);
+            fg.addFactor(new ObsFeExpFamFactor(new VarSet(v), "obs", ofc, new ObsFeatureExtractor() {
+                @Override
+                public FeatureVector calcObsFeatureVector(ObsFeExpFamFactor factor) {
+                    return new FeatureVector(new int[] { 1 }, new double[] { 1.0 });
+                }
+            }));
+            VarConfig vc = new VarConfig();
+            vc.put(v, i % 2);
+            data.add(new LabeledFgExample(fg, vc, fts));
+        }
+        FgExamplesBuilderPrm prm = new FgExamplesBuilderPrm();
+        prm.cacheType = CacheType.DISK_STORE;
+        prm.diskStorePath = path;
+        prm.compactEncoding = true;
+        prm.codecType = CodecType.LZ4;
+        prm.conjoiner = ofc;
+        prm.diskStoreHash = ContentHash.of("compact", prm.codecType);
+        FgExampleDiskStore store = (FgExampleDiskStore) new FgExampleListBuilder(prm).getInstance(data);
+        assertFalse(store.isReopened());
+        store.close();
+
+        // A later run reopens the store with its own live conjoiner.
+        ObsFeatureConjoiner live = new ObsFeatureConjoiner(new ObsFeatureConjoinerPrm(), fts);
+        prm.conjoiner = live;
+        store = (FgExampleDiskStore) new FgExampleListBuilder(prm).getInstance(data);
+        assertTrue(store.isReopened());
+        for (int i=0; i<store.size(); i++) {
+            ObsFeExpFamFactor f = (ObsFeExpFamFactor) store.get(i).getFactorGraph().getFactor(0);
+            assertSame(live, f.getConjoiner());
+            assertEquals(i % 2, store.get(i).getGoldConfig().getConfigIndex());
+        }
+        store.close();
+    }
+
+    @Test
+    public void testTempFileDeletedOnClose() {
+        File dir = new File("./tmp/fgexds/temp");
+        dir.mkdirs();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        FgExampleDiskStore store = new FgExampleDiskStore(dir, false, -1);
+        store.add(new CountingExampleList().get(0));
+        assertEquals(1, dir.listFiles().length);
+        store.close();
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPersistentStoreRequiresHash() {
+        FgExamplesBuilderPrm prm = new FgExamplesBuilderPrm();
+        prm.cacheType = CacheType.DISK_STORE;
+        prm.diskStorePath = new File("./tmp/fgexds/nohash.binary");
+        new FgExampleListBuilder(prm).getInstance(new CountingExampleList());
+    }
+
+    @Test
+    public void testContentHash() {
+        assertEquals(ContentHash.of("a", 1), ContentHash.of("a", 1));
+        assertFalse(ContentHash.of("a", 1).equals(ContentHash.of("a", 2)));
+        assertFalse(ContentHash.of("a", null).equals(ContentHash.of("a")));
+    }
+
+}
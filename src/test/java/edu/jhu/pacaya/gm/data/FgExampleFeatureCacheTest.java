@@ -0,0 +1,135 @@
+package edu.jhu.pacaya.gm.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import edu.jhu.pacaya.gm.feat.FactorTemplateList;
+import edu.jhu.pacaya.gm.feat.FeatureExtractor;
+import edu.jhu.pacaya.gm.feat.FeatureVector;
+import edu.jhu.pacaya.gm.feat.ObsFeExpFamFactor;
+import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner;
+import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner.ObsFeatureConjoinerPrm;
+import edu.jhu.pacaya.gm.feat.ObsFeatureExtractor;
+import edu.jhu.pacaya.gm.model.FactorGraph;
+import edu.jhu.pacaya.gm.model.FeExpFamFactor;
+import edu.jhu.pacaya.gm.model.Var;
+import edu.jhu.pacaya.gm.model.Var.VarType;
+import edu.jhu.pacaya.gm.model.VarConfig;
+import edu.jhu.pacaya.gm.model.VarSet;
+import edu.jhu.prim.map.IntDoubleEntry;
+
+public class FgExampleFeatureCacheTest {
+
+    /** Examples which are rebuilt on every call to get(i), and count the calls to the feature extractors. */
+    private static class MockExampleFactory implements FgExampleList {
+
+        private int numExtractions = 0;
+        private FactorTemplateList fts = new FactorTemplateList();
+        private ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(new ObsFeatureConjoinerPrm(), fts);
+
+        @Override
+        public LFgExample get(final int i) {
+            Var v = new Var(VarType.PREDICTED, 3, "v", null);
+            FactorGraph fg = new FactorGraph();
+            fg.addFactor(new ObsFeExpFamFactor(new VarSet(v), "obs", ofc, new ObsFeatureExtractor() {
+                @Override
+                public FeatureVector calcObsFeatureVector(ObsFeExpFamFactor factor) {
+                    numExtractions++;
+                    return getObsFeatures(i);
+                }
+            }));
+            fg.addFactor(new FeExpFamFactor(new VarSet(v), new FeatureExtractor() {
+                @Override
+                public FeatureVector calcFeatureVector(FeExpFamFactor factor, int configId) {
+                    numExtractions++;
+                    FeatureVector fv = new FeatureVector();
+                    fv.add(100 + configId, 1.0);
+                    fv.add(i, 1.0);
+                    return fv;
+                }
+            }));
+            VarConfig vc = new VarConfig();
+            vc.put(v, 0);
+            return new LabeledFgExample(fg, vc);
+        }
+
+        @Override
+        public int size() {
+            return 5;
+        }
+    }
+
+    private static FeatureVector getObsFeatures(int i) {
+        FeatureVector fv = new FeatureVector();
+        fv.add(1000000 + i, 0.5);
+        fv.add(3, 1.0);
+        fv.add(3, 2.0);
+        if (i % 2 == 0) {
+            fv.add(7, 0.1);
+        }
+        return fv;
+    }
+
+    @Test
+    public void testRebuildUsesCachedFeatures() {
+        MockExampleFactory factory = new MockExampleFactory();
+        FgExampleFeatureCache data = new FgExampleFeatureCache(factory, false);
+        for (int i=0; i<data.size(); i++) {
+            data.get(i);
+        }
+        int numExtractions = factory.numExtractions;
+        assertEquals(5 * (1 + 3), numExtractions);
+        assertEquals(5 * (1 + 3), data.getNumVectors());
+        
+        for (int i=0; i<data.size(); i++) {
+            FactorGraph fg = data.get(i).getFactorGraph();
+            assertEqualVectors(getObsFeatures(i), ((ObsFeExpFamFactor) fg.getFactor(0)).getObsFeatures(), 0);
+            FeExpFamFactor fef = (FeExpFamFactor) fg.getFactor(1);
+            for (int c=0; c<3; c++) {
+                assertEquals(2, fef.getFeatures(c).getUsed());
+                assertEquals(1.0, fef.getFeatures(c).get(100 + c), 0);
+                assertEquals(1.0, fef.getFeatures(c).get(i), 0);
+            }
+        }
+        // No features were extracted again.
+        assertEquals(numExtractions, factory.numExtractions);
+    }
+
+    @Test
+    public void testQuantize() {
+        FgExampleFeatureCache data = new FgExampleFeatureCache(new MockExampleFactory(), true);
+        data.get(0);
+        FactorGraph fg = data.get(0).getFactorGraph();
+        FeatureVector fv = ((ObsFeExpFamFactor) fg.getFactor(0)).getObsFeatures();
+        assertEqualVectors(getObsFeatures(0), fv, 1e-7);
+        assertTrue(fv.get(7) != 0.1);
+    }
+
+    @Test
+    public void testCompact() {
+        FgExampleFeatureCache data = new FgExampleFeatureCache(new MockExampleFactory(), false);
+        data.get(1);
+        // The feature vectors take far less than 12 bytes per entry.
+        assertTrue(data.getNumBytes() < 40);
+    }
+
+    private static void assertEqualVectors(FeatureVector expected, FeatureVector actual, double delta) {
+        assertEquals(toMap(expected).keySet(), toMap(actual).keySet());
+        for (int idx : toMap(expected).keySet()) {
+            assertEquals(toMap(expected).get(idx), toMap(actual).get(idx), delta);
+        }
+    }
+
+    private static TreeMap<Integer, Double> toMap(FeatureVector fv) {
+        TreeMap<Integer, Double> map = new TreeMap<>();
+        for (IntDoubleEntry e : fv) {
+            map.put(e.index(), map.getOrDefault(e.index(), 0.0) + e.get());
+        }
+        return map;
+    }
+
+}
@@ -0,0 +1,138 @@
+package edu.jhu.pacaya.gm.data;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import edu.jhu.pacaya.gm.feat.FactorTemplateList;
+import edu.jhu.pacaya.gm.feat.ObsFeExpFamFactor;
+import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner;
+import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner.ObsFeatureConjoinerPrm;
+import edu.jhu.pacaya.gm.model.FactorGraph;
+import edu.jhu.pacaya.gm.model.FactorGraphsForTests;
+import edu.jhu.pacaya.gm.model.Var;
+import edu.jhu.pacaya.gm.model.Var.VarType;
+import edu.jhu.pacaya.gm.model.VarConfig;
+import edu.jhu.pacaya.gm.model.VarSet;
+import edu.jhu.pacaya.util.Threads;
+
+public class FgExampleListBuilderTest {
+
+    /** Examples which take a random amount of time to construct, and record their index as their weight. */
+    private static class SlowExampleList implements FgExampleList {
+
+        private final int size;
+
+        SlowExampleList(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public LFgExample get(int i) {
+            try {
+                Thread.sleep(new Random(i).nextInt(3));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            FactorGraph fg = FactorGraphsForTests.getLinearChainGraph();
+            VarConfig vc = new VarConfig();
+            for (Var v : fg.getVars()) {
+                vc.put(v, 0);
+            }
+            LabeledFgExample ex = new LabeledFgExample(fg, vc);
+            ex.setWeight(i);
+            return ex;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /** Examples whose factors add new templates to a growing template list. */
+    private static class GrowingTemplatesExampleList implements FgExampleList {
+
+        private final int size;
+        private final FactorTemplateList fts;
+        private final ObsFeatureConjoiner ofc;
+
+        GrowingTemplatesExampleList(int size, FactorTemplateList fts) {
+            this.size = size;
+            this.fts = fts;
+            this.ofc = new ObsFeatureConjoiner(new ObsFeatureConjoinerPrm(), fts);
+        }
+
+        @Override
+        public LFgExample get(int i) {
+            try {
+                Thread.sleep(new Random(i).nextInt(3));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            FactorGraph fg = new FactorGraph();
+            VarConfig vc = new VarConfig();
+            // Each example has a new template and one seen before (in the serial order).
+            for (int k : new int[] { i, (i * 7) % (i + 1) }) {
+                Var v = new Var(VarType.PREDICTED, 2, "v" + k, null);
+                fg.addFactor(new ObsFeExpFamFactor(new VarSet(v), "t" + k, ofc, null));
+                vc.put(v, 0);
+            }
+            return new LabeledFgExample(fg, vc, fts);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    @Test
+    public void testParallelConstructionWithGrowingTemplates() {
+        int n = 100;
+        FactorTemplateList serial = new FactorTemplateList();
+        FgExampleListBuilder.constructAndStoreAll(new GrowingTemplatesExampleList(n, serial), null, null, 1);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        FactorTemplateList parallel = new FactorTemplateList();
+        FgExampleMemoryStore store = new FgExampleMemoryStore();
+        FgExampleListBuilder.constructAndStoreAll(new GrowingTemplatesExampleList(n, parallel), store, pool, 4);
+        Threads.shutdownSafelyOrDie(pool);
+        // The template ids are those of the serial order.
+        assertEquals(n, parallel.size());
+        for (int t=0; t<n; t++) {
+            assertEquals(serial.get(t).getKey(), parallel.get(t).getKey());
+        }
+        for (int i=0; i<n; i++) {
+            ObsFeExpFamFactor f = (ObsFeExpFamFactor) store.get(i).getFactorGraph().getFactor(0);
+            assertEquals(i, f.getTemplateId());
+        }
+    }
+
+    @Test
+    public void testParallelConstructionKeepsOrder() {
+        int n = 100;
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        FgExampleMemoryStore store = new FgExampleMemoryStore();
+        FgExampleListBuilder.constructAndStoreAll(new SlowExampleList(n), store, pool, 4);
+        Threads.shutdownSafelyOrDie(pool);
+        assertEquals(n, store.size());
+        for (int i=0; i<n; i++) {
+            assertEquals(i, store.get(i).getWeight(), 0);
+        }
+    }
+
+    @Test
+    public void testSequentialConstruction() {
+        FgExampleMemoryStore store = new FgExampleMemoryStore();
+        FgExampleListBuilder.constructAndStoreAll(new SlowExampleList(10), store, null, 1);
+        assertEquals(10, store.size());
+        for (int i=0; i<10; i++) {
+            assertEquals(i, store.get(i).getWeight(), 0);
+        }
+    }
+
+}
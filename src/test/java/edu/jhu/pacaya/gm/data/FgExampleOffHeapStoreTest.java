@@ -0,0 +1,71 @@
+package edu.jhu.pacaya.gm.data;
+
+import static edu.jhu.pacaya.gm.data.FgExamplesForTests.assertSameExample;
+import static edu.jhu.pacaya.gm.data.FgExamplesForTests.getExample;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import edu.jhu.pacaya.gm.data.FgExampleListBuilder.CacheType;
+import edu.jhu.pacaya.gm.data.FgExampleListBuilder.FgExamplesBuilderPrm;
+import edu.jhu.pacaya.util.cache.Codecs.CodecType;
+
+public class FgExampleOffHeapStoreTest {
+
+    @Test
+    public void testAddGet() {
+        int n = 50;
+        // Small chunks, so that the examples span many of them.
+        FgExampleOffHeapStore store = new FgExampleOffHeapStore(new FgExampleCodec(), 1024);
+        for (int i=0; i<n; i++) {
+            store.add(getExample(i));
+        }
+        assertEquals(n, store.size());
+        for (int i=0; i<n; i++) {
+            assertSameExample(i, store.get(i));
+        }
+        // Each read decodes a new copy.
+        assertNotSame(store.get(0), store.get(0));
+        assertTrue(store.getOffHeapBytes() > 1024);
+        assertTrue(store.getHeapBytes() < store.getLiveBytesEstimate());
+        store.report();
+
+        store.close();
+        assertEquals(0, store.getOffHeapBytes());
+        try {
+            store.get(0);
+            fail();
+        } catch (IllegalStateException e) {
+            // pass
+        }
+    }
+
+    @Test
+    public void testBuilder() {
+        FgExamplesBuilderPrm prm = new FgExamplesBuilderPrm();
+        prm.cacheType = CacheType.MEMORY_STORE;
+        prm.offHeap = true;
+        prm.codecType = CodecType.LZ4;
+        FgExampleList data = new FgExampleList() {
+            @Override
+            public LFgExample get(int i) {
+                return getExample(i);
+            }
+
+            @Override
+            public int size() {
+                return 5;
+            }
+        };
+        FgExampleList store = new FgExampleListBuilder(prm).getInstance(data);
+        assertTrue(store instanceof FgExampleOffHeapStore);
+        assertEquals(5, store.size());
+        for (int i=0; i<5; i++) {
+            assertSameExample(i, store.get(i));
+        }
+    }
+
+}
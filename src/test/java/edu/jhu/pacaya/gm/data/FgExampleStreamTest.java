@@ -0,0 +1,121 @@
+package edu.jhu.pacaya.gm.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.jhu.pacaya.gm.model.FactorGraph;
+import edu.jhu.pacaya.gm.model.FactorGraphsForTests;
+import edu.jhu.pacaya.gm.model.Var;
+import edu.jhu.pacaya.gm.model.VarConfig;
+import edu.jhu.pacaya.util.cache.Codecs;
+import edu.jhu.pacaya.util.cache.Codecs.CodecType;
+import edu.jhu.prim.arrays.IntArrays;
+
+public class FgExampleStreamTest {
+
+    /** Writes examples which record their index as their weight. */
+    private static FgExampleFileSource getSource(int n) {
+        List<LFgExample> examples = new ArrayList<>();
+        for (int i=0; i<n; i++) {
+            FactorGraph fg = FactorGraphsForTests.getLinearChainGraph();
+            VarConfig vc = new VarConfig();
+            for (Var v : fg.getVars()) {
+                vc.put(v, 0);
+            }
+            LabeledFgExample ex = new LabeledFgExample(fg, vc);
+            ex.setWeight(i);
+            examples.add(ex);
+        }
+        File path = new File("./tmp/fgexstream/examples.binary");
+        assertEquals(n, FgExampleFileSource.write(path, examples.iterator(), Codecs.get(CodecType.LZ4, 0)));
+        return new FgExampleFileSource(path);
+    }
+
+    @Test
+    public void testFileSource() {
+        FgExampleFileSource source = getSource(7);
+        assertEquals(7, source.size());
+        for (int pass=0; pass<2; pass++) {
+            Iterator<LFgExample> iter = source.iterator();
+            for (int i=0; i<7; i++) {
+                assertEquals(i, iter.next().getWeight(), 0);
+            }
+            assertFalse(iter.hasNext());
+        }
+    }
+
+    @Test
+    public void testEachEpochIsPermutation() {
+        int n = 20;
+        FgExampleStream stream = new FgExampleStream(getSource(n), 5, 42);
+        assertEquals(n, stream.size());
+        for (int epoch=0; epoch<3; epoch++) {
+            int[] order = new int[n];
+            for (int b=0; b<n/4; b++) {
+                int[] batch = stream.nextBatch(4);
+                for (int i=0; i<batch.length; i++) {
+                    assertEquals(batch[i], stream.get(batch[i]).getWeight(), 0);
+                    order[4*b + i] = batch[i];
+                }
+            }
+            // An example is only drawn once it is in the shuffle buffer.
+            for (int i=0; i<n; i++) {
+                assertTrue(order[i] < i + 5);
+            }
+            Arrays.sort(order);
+            assertArrayEquals(IntArrays.range(n), order);
+        }
+        assertEquals(3, stream.getNumEpochs());
+        try {
+            stream.get(stream.nextBatch(1)[0] == 0 ? 1 : 0);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testDeterministicSeed() {
+        FgExampleFileSource source = getSource(30);
+        FgExampleStream s1 = new FgExampleStream(source, 8, 42);
+        FgExampleStream s2 = new FgExampleStream(source, 8, 42);
+        FgExampleStream s3 = new FgExampleStream(source, 8, 43);
+        int[] o1 = s1.nextBatch(60);
+        assertArrayEquals(o1, s2.nextBatch(60));
+        assertFalse(Arrays.equals(o1, s3.nextBatch(60)));
+        // The two epochs are shuffled differently.
+        assertFalse(Arrays.equals(Arrays.copyOfRange(o1, 0, 30), Arrays.copyOfRange(o1, 30, 60)));
+    }
+
+    @Test
+    public void testFullPass() {
+        FgExampleStream stream = new FgExampleStream(getSource(10), 4, 42);
+        int[] before = stream.nextBatch(3);
+        Iterator<int[]> parts = stream.fullPass(4);
+        int pos = 0;
+        while (parts.hasNext()) {
+            int[] part = parts.next();
+            for (int i : part) {
+                assertEquals(pos++, i);
+                assertEquals(i, stream.get(i).getWeight(), 0);
+            }
+        }
+        assertEquals(10, pos);
+        // The shuffled order continues where it was.
+        FgExampleStream other = new FgExampleStream(getSource(10), 4, 42);
+        assertArrayEquals(before, other.nextBatch(3));
+        assertArrayEquals(other.nextBatch(7), stream.nextBatch(7));
+    }
+
+}
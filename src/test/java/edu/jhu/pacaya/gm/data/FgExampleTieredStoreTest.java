@@ -0,0 +1,99 @@
+package edu.jhu.pacaya.gm.data;
+
+import static edu.jhu.pacaya.gm.data.FgExamplesForTests.assertSameExample;
+import static edu.jhu.pacaya.gm.data.FgExamplesForTests.getExample;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.pacaya.gm.data.FgExampleListBuilder.CacheType;
+import edu.jhu.pacaya.gm.data.FgExampleListBuilder.FgExamplesBuilderPrm;
+import edu.jhu.pacaya.util.cache.Codecs;
+import edu.jhu.pacaya.util.cache.Codecs.CodecType;
+import edu.jhu.pacaya.util.cache.ConcurrentFastDiskStore.ReadMode;
+
+public class FgExampleTieredStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testTiers() {
+        int n = 8;
+        long exBytes = new FgExampleWeigher().weigh(getExample(0));
+        byte[] encoded = Codecs.get(CodecType.LZ4, 0).encode(getExample(0));
+        // Room for about half the examples in the hot tier, and a quarter in the warm tier.
+        FgExampleTieredStore store = new FgExampleTieredStore(tmp.getRoot(), Codecs.get(CodecType.LZ4, 0),
+                (n / 2) * exBytes + 1, (n / 4) * (encoded.length + 16) + 1, 2, ReadMode.CHANNEL);
+        for (int i=0; i<n; i++) {
+            store.add(getExample(i));
+        }
+        assertEquals(n, store.size());
+        // The first epoch reads from the warm tier or disk.
+        for (int i=0; i<n; i++) {
+            assertSameExample(i, store.get(i));
+        }
+        assertEquals(0, store.getHotTier().size());
+        assertTrue(store.getNumColdReads() > 0);
+        // Later epochs promote examples to the hot tier.
+        for (int epoch=0; epoch<3; epoch++) {
+            for (int i=0; i<n; i++) {
+                assertSameExample(i, store.get(i));
+            }
+        }
+        assertTrue(store.getHotTier().size() > 0);
+        assertTrue(store.getHotTier().getWeight() <= store.getHotTier().getMaxWeight());
+        assertTrue(store.getWarmTier().getWeight() <= store.getWarmTier().getMaxWeight());
+        // A frequently read example stays hot.
+        for (int r=0; r<10; r++) {
+            assertSameExample(3, store.get(3));
+        }
+        assertTrue(store.getHotTier().containsKey(3));
+        store.report();
+        store.close();
+    }
+
+    @Test
+    public void testCloseDeletesFile() {
+        FgExampleTieredStore store = new FgExampleTieredStore(tmp.getRoot(), Codecs.get(CodecType.LZ4, 0), 1000,
+                1000, 2, ReadMode.CHANNEL);
+        store.add(getExample(0));
+        File cachePath = store.getCachePath();
+        assertTrue(cachePath.exists());
+        store.close();
+        assertFalse(cachePath.exists());
+        assertEquals(0, tmp.getRoot().list().length);
+    }
+
+    @Test
+    public void testBuilder() {
+        FgExamplesBuilderPrm prm = new FgExamplesBuilderPrm();
+        prm.cacheType = CacheType.TIERED;
+        prm.cacheDir = tmp.getRoot();
+        FgExampleList data = new FgExampleList() {
+            @Override
+            public LFgExample get(int i) {
+                return getExample(i);
+            }
+
+            @Override
+            public int size() {
+                return 5;
+            }
+        };
+        FgExampleList store = new FgExampleListBuilder(prm).getInstance(data);
+        assertTrue(store instanceof FgExampleTieredStore);
+        assertEquals(5, store.size());
+        for (int i=0; i<5; i++) {
+            assertSameExample(i, store.get(i));
+        }
+        ((FgExampleTieredStore) store).close();
+    }
+
+}
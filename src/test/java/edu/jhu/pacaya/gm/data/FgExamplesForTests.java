@@ -0,0 +1,44 @@
+package edu.jhu.pacaya.gm.data;
+
+import static org.junit.Assert.assertEquals;
+
+import edu.jhu.pacaya.gm.model.ExplicitFactor;
+import edu.jhu.pacaya.gm.model.FactorGraph;
+import edu.jhu.pacaya.gm.model.FactorGraphsForTests;
+import edu.jhu.pacaya.gm.model.Var;
+import edu.jhu.pacaya.gm.model.VarConfig;
+
+/** Examples for the tests of the example stores. */
+public class FgExamplesForTests {
+
+    private FgExamplesForTests() {
+        // Private constructor.
+    }
+
+    /** Gets a linear chain example whose gold config is the i'th config of its variables. */
+    public static LFgExample getExample(int i) {
+        FactorGraph fg = FactorGraphsForTests.getLinearChainGraph();
+        VarConfig vc = new VarConfig();
+        int k = i;
+        for (Var v : fg.getVars()) {
+            vc.put(v, k % v.getNumStates());
+            k /= v.getNumStates();
+        }
+        return new LabeledFgExample(fg, vc);
+    }
+
+    /** Asserts that the example has the gold config and factor values of {@link #getExample(int)}. */
+    public static void assertSameExample(int i, LFgExample ex) {
+        LFgExample expected = getExample(i);
+        assertEquals(expected.getGoldConfig().getConfigIndex(), ex.getGoldConfig().getConfigIndex());
+        FactorGraph fg = expected.getFactorGraph();
+        for (int a=0; a<fg.getNumFactors(); a++) {
+            ExplicitFactor f = (ExplicitFactor) fg.getFactor(a);
+            ExplicitFactor g = (ExplicitFactor) ex.getFactorGraph().getFactor(a);
+            for (int c=0; c<f.size(); c++) {
+                assertEquals(f.getValue(c), g.getValue(c), 0);
+            }
+        }
+    }
+
+}
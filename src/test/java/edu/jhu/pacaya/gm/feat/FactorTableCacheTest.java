@@ -0,0 +1,121 @@
+package edu.jhu.pacaya.gm.feat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import edu.jhu.pacaya.gm.data.FgExampleMemoryStore;
+import edu.jhu.pacaya.gm.data.LabeledFgExample;
+import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner.ObsFeatureConjoinerPrm;
+import edu.jhu.pacaya.gm.model.FactorGraph;
+import edu.jhu.pacaya.gm.model.FactorGraphsForTests;
+import edu.jhu.pacaya.gm.model.FactorGraphsForTests.FgAndVars;
+import edu.jhu.pacaya.gm.model.FgModel;
+import edu.jhu.pacaya.gm.model.VarConfig;
+import edu.jhu.pacaya.gm.train.SimpleVCObsFeatureExtractor;
+import edu.jhu.pacaya.util.JUnitUtils;
+import edu.jhu.prim.util.random.Prng;
+
+public class FactorTableCacheTest {
+
+    private static class FgAndOfc {
+        FactorGraph fg;
+        ObsFeatureConjoiner ofc;
+    }
+
+    private static FgAndOfc getFg(boolean shareFactorTables) {
+        FactorTemplateList fts = new FactorTemplateList();
+        ObsFeatureExtractor obsFe = new SimpleVCObsFeatureExtractor(fts);
+        ObsFeatureConjoinerPrm prm = new ObsFeatureConjoinerPrm();
+        prm.featCountCutoff = 0;
+        prm.shareFactorTables = shareFactorTables;
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(prm, fts);
+        FgAndVars fgv = FactorGraphsForTests.getLinearChainFgWithVars(ofc, obsFe);
+        FgExampleMemoryStore data = new FgExampleMemoryStore();
+        VarConfig trainConfig = new VarConfig();
+        trainConfig.put(fgv.w0, 0);
+        trainConfig.put(fgv.w1, 1);
+        trainConfig.put(fgv.w2, 0);
+        trainConfig.put(fgv.t0, 0);
+        trainConfig.put(fgv.t1, 1);
+        trainConfig.put(fgv.t2, 1);
+        data.add(new LabeledFgExample(fgv.fg, trainConfig, fts));
+        ofc.init(data);
+        FgAndOfc fo = new FgAndOfc();
+        fo.fg = fgv.fg;
+        fo.ofc = ofc;
+        return fo;
+    }
+
+    private static FgModel getModel(int numParams) {
+        Prng.seed(123);
+        FgModel model = new FgModel(numParams);
+        model.setRandomStandardNormal();
+        model.setParams(model.getParams());
+        return model;
+    }
+
+    @Test
+    public void testSharedTablesMatchUnshared() {
+        FgAndOfc shared = getFg(true);
+        FgAndOfc unshared = getFg(false);
+        FgModel model = getModel(shared.ofc.getNumParams());
+        shared.fg.updateFromModel(model);
+        unshared.fg.updateFromModel(model);
+        for (int a=0; a<shared.fg.getNumFactors(); a++) {
+            JUnitUtils.assertArrayEquals(((ObsFeExpFamFactor) unshared.fg.getFactor(a)).getValues(),
+                    ((ObsFeExpFamFactor) shared.fg.getFactor(a)).getValues(), 1e-13);
+        }
+        // The three emission factors share one table, and the two transition factors another.
+        FactorTableCache cache = shared.ofc.getTableCache();
+        assertEquals(2, cache.getNumTables());
+        assertEquals(5, cache.getNumLookups());
+        assertEquals(3, cache.getNumHits());
+        ObsFeExpFamFactor emit0 = (ObsFeExpFamFactor) shared.fg.getFactor(0);
+        ObsFeExpFamFactor emit1 = (ObsFeExpFamFactor) shared.fg.getFactor(1);
+        ObsFeExpFamFactor emit2 = (ObsFeExpFamFactor) shared.fg.getFactor(2);
+        assertSame(emit0.getValues(), emit1.getValues());
+        assertSame(emit0.getValues(), emit2.getValues());
+        FactorTableCache.SharedTable table = cache.get(model, emit0.getTemplateId(), emit0.getObsFeatures());
+        assertEquals(4, table.getRefCount());
+        table.release();
+    }
+
+    @Test
+    public void testCopyOnWrite() {
+        FgAndOfc shared = getFg(true);
+        FgModel model = getModel(shared.ofc.getNumParams());
+        shared.fg.updateFromModel(model);
+        ObsFeExpFamFactor emit0 = (ObsFeExpFamFactor) shared.fg.getFactor(0);
+        ObsFeExpFamFactor emit1 = (ObsFeExpFamFactor) shared.fg.getFactor(1);
+        double orig = emit1.getValue(0);
+        emit0.setValue(0, 100);
+        assertNotSame(emit0.getValues(), emit1.getValues());
+        assertEquals(100, emit0.getValue(0), 1e-13);
+        assertEquals(orig, emit1.getValue(0), 1e-13);
+        FactorTableCache cache = shared.ofc.getTableCache();
+        FactorTableCache.SharedTable table = cache.get(model, emit1.getTemplateId(), emit1.getObsFeatures());
+        assertEquals(2 + 1, table.getRefCount());
+        table.release();
+    }
+
+    @Test
+    public void testNewRoundDropsTables() {
+        FgAndOfc shared = getFg(true);
+        FgModel model = getModel(shared.ofc.getNumParams());
+        shared.fg.updateFromModel(model);
+        ObsFeExpFamFactor emit0 = (ObsFeExpFamFactor) shared.fg.getFactor(0);
+        double[] before = emit0.getValues().clone();
+        model.getParams().scale(2.0);
+        model.setParams(model.getParams());
+        shared.fg.updateFromModel(model);
+        FactorTableCache cache = shared.ofc.getTableCache();
+        assertEquals(2, cache.getNumTables());
+        for (int c=0; c<before.length; c++) {
+            assertEquals(2 * before[c], emit0.getValue(c), 1e-13);
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package edu.jhu.pacaya.gm.feat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+
+import edu.jhu.pacaya.gm.data.FgExampleListBuilder;
+import edu.jhu.pacaya.gm.data.FgExampleListBuilder.CacheType;
+import edu.jhu.pacaya.gm.data.FgExampleListBuilder.FgExamplesBuilderPrm;
+import edu.jhu.pacaya.gm.data.FgExampleMemoryStore;
+import edu.jhu.pacaya.gm.data.LabeledFgExample;
+import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner.ObsFeatureConjoinerPrm;
+import edu.jhu.pacaya.gm.model.FactorGraph;
+import edu.jhu.pacaya.gm.model.FeExpFamFactor;
+import edu.jhu.pacaya.gm.model.Var;
+import edu.jhu.pacaya.gm.model.Var.VarType;
+import edu.jhu.pacaya.gm.model.VarConfig;
+import edu.jhu.pacaya.gm.model.VarSet;
+import edu.jhu.pacaya.util.FeatureAlphabet;
+import edu.jhu.pacaya.util.FeatureNames;
+import edu.jhu.pacaya.util.OrderedFeatureNames;
+import edu.jhu.pacaya.util.OrderedGrowth;
+import edu.jhu.pacaya.util.collections.QLists;
+
+public class FeatureExtractionProfilerTest {
+
+    private static class MockFeatureExtractor implements FeatureExtractor {
+        @Override
+        public FeatureVector calcFeatureVector(FeExpFamFactor factor, int configId) {
+            FeatureVector fv = new FeatureVector();
+            fv.add(configId, 1.0);
+            return fv;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        FeatureExtractionProfiler.setEnabled(false);
+        FeatureExtractionProfiler.clear();
+    }
+
+    @Test
+    public void testStatsByTemplate() {
+        FeatureExtractionProfiler.setEnabled(true);
+        final FactorTemplateList fts = new FactorTemplateList();
+        Var v = new Var(VarType.PREDICTED, 2, "v", QLists.getList("a", "b"));
+        fts.add(new FactorTemplate(new VarSet(v), new FeatureNames(), "tpl"));
+        ObsFeatureConjoinerPrm prm = new ObsFeatureConjoinerPrm();
+        prm.featCountCutoff = 0;
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(prm, fts);
+        FgExampleMemoryStore data = new FgExampleMemoryStore();
+        for (int i=0; i<4; i++) {
+            final int ex = i;
+            FactorGraph fg = new FactorGraph();
+            fg.addFactor(new ObsFeExpFamFactor(new VarSet(v), "tpl", ofc, new ObsFeatureExtractor() {
+                @Override
+                public FeatureVector calcObsFeatureVector(ObsFeExpFamFactor factor) {
+                    FeatureAlphabet alphabet = fts.getTemplate(factor).getAlphabet();
+                    FeatureVector fv = new FeatureVector();
+                    fv.add(alphabet.lookupIndex("shared"), 1.0);
+                    fv.add(alphabet.lookupIndex("ex" + ex), 1.0);
+                    return fv;
+                }
+            }));
+            fg.addFactor(new FeExpFamFactor(new VarSet(v), new MockFeatureExtractor()));
+            VarConfig vc = new VarConfig();
+            vc.put(v, 0);
+            data.add(new LabeledFgExample(fg, vc, fts));
+        }
+        ofc.init(data);
+        
+        assertEquals(4, FeatureExtractionProfiler.getNumCalls("tpl"));
+        assertEquals(8, FeatureExtractionProfiler.getNumFeats("tpl"));
+        assertEquals(5, FeatureExtractionProfiler.getAlphabetGrowth("tpl"));
+        
+        // The features of the other factors are attributed to the extractor class.
+        String key = MockFeatureExtractor.class.getName();
+        for (int i=0; i<data.size(); i++) {
+            FeExpFamFactor f = (FeExpFamFactor) data.get(i).getFactorGraph().getFactor(1);
+            f.getFeatures(0);
+            f.getFeatures(1);
+        }
+        assertEquals(8, FeatureExtractionProfiler.getNumCalls(key));
+        assertEquals(0, FeatureExtractionProfiler.getAlphabetGrowth(key));
+        FeatureExtractionProfiler.report("test");
+        // Reporting a phase does not reset the totals.
+        assertEquals(8, FeatureExtractionProfiler.getNumCalls(key));
+    }
+
+    @Test
+    public void testGrowthCountedPerThread() throws Exception {
+        // The alphabet is grown in order by the two tasks, as in a parallel construction of the examples.
+        final OrderedGrowth growth = new OrderedGrowth();
+        final OrderedFeatureNames alphabet = new OrderedFeatureNames(new FeatureNames());
+        final CountDownLatch started = new CountDownLatch(2);
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int t=0; t<2; t++) {
+            final int thread = t;
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    growth.begin(thread);
+                    try {
+                        FeatureExtractionProfiler.Probe probe = FeatureExtractionProfiler.start(alphabet);
+                        // Both probes are open while both threads add their features.
+                        started.countDown();
+                        started.await();
+                        FeatureVector fv = new FeatureVector();
+                        for (int i=0; i<5; i++) {
+                            fv.add(alphabet.lookupIndex("t" + thread + "_" + i), 1.0);
+                            fv.add(alphabet.lookupIndex("shared"), 1.0);
+                        }
+                        probe.stop("tpl" + thread, fv);
+                    } finally {
+                        growth.end(thread);
+                    }
+                    return null;
+                }
+            });
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            for (Future<Object> f : pool.invokeAll(tasks)) {
+                f.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        // Each thread counts only its own additions. The shared feature is added by the first task.
+        assertEquals(6, FeatureExtractionProfiler.getAlphabetGrowth("tpl0"));
+        assertEquals(5, FeatureExtractionProfiler.getAlphabetGrowth("tpl1"));
+        assertEquals(11, alphabet.size());
+    }
+
+    @Test
+    public void testBuilderRestoresProfiling() {
+        FgExamplesBuilderPrm prm = new FgExamplesBuilderPrm();
+        prm.cacheType = CacheType.NONE;
+        prm.profileFeatureExtraction = true;
+        new FgExampleListBuilder(prm).getInstance(new FgExampleMemoryStore());
+        assertFalse(FeatureExtractionProfiler.isEnabled());
+    }
+
+}
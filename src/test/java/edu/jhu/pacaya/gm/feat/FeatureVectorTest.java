@@ -0,0 +1,115 @@
+package edu.jhu.pacaya.gm.feat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class FeatureVectorTest {
+
+    @Test
+    public void testFreezeSortsAndMergesDuplicates() {
+        FeatureVector fv = new FeatureVector();
+        fv.add(5, 1.5);
+        fv.add(2, 1.0);
+        fv.add(5, 2.0);
+        fv.add(0, 3.0);
+        fv.freeze();
+        assertTrue(fv.isFrozen());
+        assertFalse(fv.isBinary());
+        assertEquals(3, fv.getUsed());
+        assertArrayEquals(new int[]{0, 2, 5}, Arrays.copyOf(fv.getInternalIndices(), fv.getUsed()));
+        assertArrayEquals(new double[]{3.0, 1.0, 3.5}, Arrays.copyOf(fv.getInternalValues(), fv.getUsed()), 1e-13);
+        assertEquals(0, fv.getMinIdxFrozen());
+        assertEquals(5, fv.getMaxIdx());
+    }
+
+    @Test
+    public void testFreezeBinary() {
+        FeatureVector fv1 = new FeatureVector(new int[]{3, 1, 7}, new double[]{1, 1, 1}).freeze();
+        FeatureVector fv2 = new FeatureVector(new int[]{4, 2}, new double[]{1, 1}).freeze();
+        assertTrue(fv1.isBinary());
+        assertTrue(fv2.isBinary());
+        // Each vector has its own values.
+        assertNotSame(fv1.getInternalValues(), fv2.getInternalValues());
+        assertEquals(3, fv1.getInternalValues().length);
+        assertEquals(1.0, fv1.get(7), 1e-13);
+        assertEquals(0.0, fv1.get(2), 1e-13);
+    }
+
+    @Test
+    public void testFreezeCopiesSortedArrays() {
+        int[] idx = new int[]{1, 4, 6};
+        double[] vals = new double[]{0.5, 1.0, 2.0};
+        FeatureVector fv = new FeatureVector(idx, vals).freeze();
+        assertNotSame(idx, fv.getInternalIndices());
+        assertNotSame(vals, fv.getInternalValues());
+        // The caller may reuse its arrays.
+        idx[1] = 5;
+        vals[1] = 9.0;
+        assertEquals(1.0, fv.get(4), 1e-13);
+        assertEquals(0.0, fv.get(5), 1e-13);
+    }
+
+    @Test
+    public void testDotMatchesUnfrozen() {
+        double[] params = new double[]{0.5, -1.0, 2.0, 3.0, 0.25, -2.0, 1.0, 4.0};
+        FeatureVector fv = new FeatureVector(new int[]{6, 1, 3, 1}, new double[]{2.0, 1.0, -0.5, 3.0});
+        double expected = fv.dot(params);
+        assertEquals(expected, new FeatureVector(fv).freeze().dot(params), 1e-13);
+        FeatureVector bin = new FeatureVector(new int[]{7, 0, 4}, new double[]{1, 1, 1});
+        expected = bin.dot(params);
+        assertEquals(expected, new FeatureVector(bin).freeze().dot(params), 1e-13);
+    }
+
+    @Test
+    public void testFrozenIsImmutable() {
+        FeatureVector fv = new FeatureVector(new int[]{1, 2}, new double[]{1, 1}).freeze();
+        try {
+            fv.add(3, 1.0);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        try {
+            fv.scale(2.0);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        // Copies are mutable.
+        FeatureVector copy = new FeatureVector(fv);
+        copy.add(3, 1.0);
+        assertEquals(3, copy.getUsed());
+        assertEquals(2, fv.getUsed());
+    }
+
+    @Test
+    public void testSerializeFrozen() throws Exception {
+        FeatureVector fv = new FeatureVector(new int[]{9, 4}, new double[]{1, 1}).freeze();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+            oos.writeObject(fv);
+        }
+        FeatureVector read;
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+            read = (FeatureVector) ois.readObject();
+        }
+        assertTrue(read.isFrozen());
+        assertTrue(read.isBinary());
+        assertEquals(2, read.getUsed());
+        assertEquals(1.0, read.get(9), 1e-13);
+        assertEquals(0.0, read.get(5), 1e-13);
+    }
+
+}
@@ -1,6 +1,14 @@
 package edu.jhu.pacaya.gm.feat;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -10,12 +18,22 @@ import edu.jhu.pacaya.gm.data.LabeledFgExample;
 import edu.jhu.pacaya.gm.data.UFgExample;
 import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner.ObsFeatureConjoinerPrm;
 import edu.jhu.pacaya.gm.model.FactorGraph;
+import edu.jhu.pacaya.gm.model.FeExpFamFactor;
+import edu.jhu.pacaya.gm.model.FgModel;
 import edu.jhu.pacaya.gm.model.Var;
 import edu.jhu.pacaya.gm.model.Var.VarType;
 import edu.jhu.pacaya.gm.model.VarConfig;
 import edu.jhu.pacaya.gm.model.VarSet;
+import edu.jhu.pacaya.gm.model.VarTensor;
+import edu.jhu.pacaya.util.ConcurrentFeatureNames;
+import edu.jhu.pacaya.util.FeatureAlphabet;
 import edu.jhu.pacaya.util.FeatureNames;
+import edu.jhu.pacaya.util.HashedFeatureNames;
+import edu.jhu.pacaya.util.Threads;
+import edu.jhu.pacaya.util.cache.Codecs.JavaCodec;
 import edu.jhu.pacaya.util.collections.QLists;
+import edu.jhu.pacaya.util.semiring.RealAlgebra;
+import edu.jhu.prim.util.random.Prng;
 
 public class ObsFeatureConjoinerTest {
 
@@ -59,6 +77,394 @@ public class ObsFeatureConjoinerTest {
         checkNumParams(useLat, includeUnsupportedFeatures, 6+6);
     }
 
+    @Test
+    public void testBinaryReadWrite() throws IOException {
+        FactorTemplateList fts = getFtl(false);
+        ObsFeatureConjoinerPrm prm = new ObsFeatureConjoinerPrm();
+        prm.featCountCutoff = 1;
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(prm, fts);        
+        FgExampleMemoryStore data = new FgExampleMemoryStore();
+        data.add(getExForFts("1a", "2a", ofc, fts, false));
+        data.add(getExForFts("1b", "2c", ofc, fts, false));
+        ofc.init(data);
+        
+        File file = File.createTempFile("ofc", ".bin.gz");
+        file.deleteOnExit();
+        ofc.writeBinary(file, true);
+        ObsFeatureConjoiner copy = ObsFeatureConjoiner.readBinary(file);
+        
+        assertTrue(copy.isInitialized());
+        assertEquals(ofc.getNumParams(), copy.getNumParams());
+        assertEquals(ofc.toString(), copy.toString());
+        assertEquals(fts.size(), copy.getTemplates().size());
+        for (int t=0; t<fts.size(); t++) {
+            FeatureAlphabet alphabet = fts.get(t).getAlphabet();
+            FeatureAlphabet copyAlphabet = copy.getTemplates().get(t).getAlphabet();
+            assertEquals(alphabet.getObjects(), copyAlphabet.getObjects());
+            assertEquals(fts.get(t).getKey(), copy.getTemplates().get(t).getKey());
+            for (int k=0; k<alphabet.size(); k++) {
+                assertEquals(alphabet.isBiasFeature(k), copyAlphabet.isBiasFeature(k));
+            }
+        }
+    }
+
+    @Test
+    public void testFactoredScoringEqualsPerConfig() {
+        checkFactoredScoringEqualsPerConfig(0.0);
+    }
+    
+    @Test
+    public void testFactoredScoringEqualsPerConfigSparse() {
+        checkFactoredScoringEqualsPerConfig(1.0);
+    }
+    
+    private void checkFactoredScoringEqualsPerConfig(double maxSparseFraction) {
+        FactorTemplateList fts = getFtl(false);
+        ObsFeatureConjoinerPrm prm = new ObsFeatureConjoinerPrm();
+        // Exclude some of the parameters.
+        prm.featCountCutoff = 1;
+        prm.maxSparseFraction = maxSparseFraction;
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(prm, fts);
+        FgExampleMemoryStore data = new FgExampleMemoryStore();
+        data.add(getExForFts("1a", "2a", ofc, fts, false));
+        data.add(getExForFts("1b", "2c", ofc, fts, false));
+        ofc.init(data);
+
+        Prng.seed(12345);
+        FgModel model = new FgModel(ofc.getNumParams());
+        model.setRandomStandardNormal();
+        ObsFeExpFamFactor f = (ObsFeExpFamFactor) data.get(0).getFactorGraph().getFactor(0);
+        int numConfigs = f.getVars().calcNumConfigs();
+        
+        // Scores.
+        f.updateFromModel(model);
+        for (int c=0; c<numConfigs; c++) {
+            assertEquals(model.dot(f.getFeatures(c)), f.getLogUnormalizedScore(c), 1e-13);
+        }
+        
+        // Expected feature counts.
+        VarTensor marg = new VarTensor(RealAlgebra.getInstance(), f.getVars());
+        for (int c=0; c<numConfigs; c++) {
+            marg.setValue(c, Prng.nextDouble());
+        }
+        FgModel expected = new FgModel(ofc.getNumParams());
+        for (int c=0; c<numConfigs; c++) {
+            expected.addAfterScaling(f.getFeatures(c), 2.0 * marg.getValue(c));
+        }
+        FgModel actual = new FgModel(ofc.getNumParams());
+        f.addExpectedPartials(actual, marg, 2.0);
+        for (int i=0; i<ofc.getNumParams(); i++) {
+            assertEquals(expected.getParams().get(i), actual.getParams().get(i), 1e-13);
+        }
+    }
+
+    @Test
+    public void testSparseIndicesMatchDense() {
+        for (boolean useLat : new boolean[] { false, true }) {
+            ObsFeatureConjoiner dense = initWithCutoff(useLat, 0.0);
+            ObsFeatureConjoiner sparse = initWithCutoff(useLat, 1.0);
+            assertEquals(dense.getNumParams(), sparse.getNumParams());
+            FactorTemplateList fts = dense.getTemplates();
+            for (int t=0; t<fts.size(); t++) {
+                assertNull(sparse.getFeatConfigIndices(t));
+                for (int c=0; c<fts.get(t).getNumConfigs(); c++) {
+                    for (int k=0; k<fts.get(t).getAlphabet().size(); k++) {
+                        assertEquals(dense.getFeatIndex(t, c, k), sparse.getFeatIndex(t, c, k));
+                    }
+                }
+            }
+        }
+    }
+
+    private ObsFeatureConjoiner initWithCutoff(boolean useLat, double maxSparseFraction) {
+        FactorTemplateList fts = getFtl(useLat);
+        ObsFeatureConjoinerPrm prm = new ObsFeatureConjoinerPrm();
+        prm.featCountCutoff = 1;
+        prm.maxSparseFraction = maxSparseFraction;
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(prm, fts);
+        FgExampleMemoryStore data = new FgExampleMemoryStore();
+        data.add(getExForFts("1a", "2a", ofc, fts, useLat));
+        data.add(getExForFts("1a", "2c", ofc, fts, useLat));
+        data.add(getExForFts("1b", "2b", ofc, fts, useLat));
+        ofc.init(data);
+        return ofc;
+    }
+
+    @Test
+    public void testDenseIndicesAt10MEntries() {
+        int numConfigs = 100;
+        int numFeats = 100000;
+        FactorTemplateList fts = getLargeFtl(numConfigs, numFeats);
+        ObsFeatureConjoinerPrm prm = new ObsFeatureConjoinerPrm();
+        prm.featCountCutoff = 0;
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(prm, fts);
+        ofc.init(null);
+        
+        assertEquals(numConfigs * numFeats, ofc.getNumParams());
+        // A single array of indices, in feature-major order.
+        assertEquals(numConfigs * numFeats, ofc.getFeatConfigIndices(0).length);
+        assertEquals(3 * numFeats + 7, ofc.getFeatConfigIndices(0)[7 * numConfigs + 3]);
+        assertEquals(0, ofc.getFeatIndex(0, 0, 0));
+        assertEquals(3 * numFeats + 7, ofc.getFeatIndex(0, 3, 7));
+        assertEquals(numConfigs * numFeats - 1, ofc.getFeatIndex(0, numConfigs - 1, numFeats - 1));
+    }
+    
+    @Test
+    public void testSparseIndicesAt10MEntries() throws IOException {
+        int numConfigs = 100;
+        int numFeats = 100000;
+        final FactorTemplateList fts = getLargeFtl(numConfigs, numFeats);
+        ObsFeatureConjoinerPrm prm = new ObsFeatureConjoinerPrm();
+        prm.featCountCutoff = 1;
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(prm, fts);
+        
+        // A single example which observes only the bias feature and feature 7.
+        Var v = fts.get(0).getVars().get(0);
+        FactorGraph fg = new FactorGraph();
+        fg.addFactor(new ObsFeExpFamFactor(new VarSet(v), "large", ofc, new ObsFeatureExtractor() {
+            @Override
+            public FeatureVector calcObsFeatureVector(ObsFeExpFamFactor factor) {
+                FeatureVector fv = new FeatureVector();
+                fv.add(0, 1.0);
+                fv.add(7, 1.0);
+                return fv;
+            }
+        }));
+        VarConfig vc = new VarConfig();
+        vc.put(v, 3);
+        FgExampleMemoryStore data = new FgExampleMemoryStore();
+        data.add(new LabeledFgExample(fg, vc, fts));
+        ofc.init(data);
+        
+        // The bias feature for every config, and feature 7 for config 3.
+        assertEquals(numConfigs + 1, ofc.getNumParams());
+        // Few parameters are included, so the indices are stored sparsely.
+        assertNull(ofc.getFeatConfigIndices(0));
+        assertEquals(3, ofc.getFeatIndex(0, 3, 0));
+        assertEquals(4, ofc.getFeatIndex(0, 3, 7));
+        assertEquals(-1, ofc.getFeatIndex(0, 2, 7));
+        assertTrue(ofc.isIncluded(0, 3, 7));
+        assertTrue(!ofc.isIncluded(0, 4, 7));
+        assertTrue(!ofc.isIncluded(0, 4, numFeats - 1));
+        int count = 0;
+        for (String name : ofc.getParamNames()) {
+            assertTrue(name.startsWith("large_"));
+            count++;
+        }
+        assertEquals(numConfigs + 1, count);
+        
+        File file = File.createTempFile("ofc", ".bin");
+        file.deleteOnExit();
+        ofc.writeBinary(file, false);
+        ObsFeatureConjoiner copy = ObsFeatureConjoiner.readBinary(file);
+        assertEquals(ofc.getNumParams(), copy.getNumParams());
+        assertNull(copy.getFeatConfigIndices(0));
+        for (int c=0; c<numConfigs; c++) {
+            for (int k : new int[]{ 0, 7, 8, numFeats - 1 }) {
+                assertEquals(ofc.getFeatIndex(0, c, k), copy.getFeatIndex(0, c, k));
+            }
+        }
+    }
+    
+    @Test
+    public void testReadsOldSerializedForm() throws Exception {
+        FactorTemplateList fts = getFtl();
+        ObsFeatureConjoinerPrm prm = new ObsFeatureConjoinerPrm();
+        prm.featCountCutoff = 0;
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(prm, fts);
+        ofc.init(null);
+        
+        // Put the object in the form serialized before the flat index arrays.
+        int numTemplates = fts.size();
+        int[][][] indices = new int[numTemplates][][];
+        boolean[][][] included = new boolean[numTemplates][][];
+        for (int t=0; t<numTemplates; t++) {
+            int nc = fts.get(t).getNumConfigs();
+            int nf = fts.get(t).getAlphabet().size();
+            indices[t] = new int[nc][nf];
+            included[t] = new boolean[nc][nf];
+            for (int c=0; c<nc; c++) {
+                for (int k=0; k<nf; k++) {
+                    indices[t][c][k] = ofc.getFeatIndex(t, c, k);
+                    included[t][c][k] = ofc.isIncluded(t, c, k);
+                }
+            }
+        }
+        ObsFeatureConjoiner old = new ObsFeatureConjoiner(prm, fts);
+        old.init(null);
+        setField(old, "indices", indices);
+        setField(old, "included", included);
+        for (String name : new String[] { "denseIndices", "sparseIndices", "numConfigs", "numFeats" }) {
+            setField(old, name, null);
+        }
+        
+        ObsFeatureConjoiner copy = (ObsFeatureConjoiner) new JavaCodec().decode(new JavaCodec().encode(old));
+        assertEquals(ofc.getNumParams(), copy.getNumParams());
+        for (int t=0; t<numTemplates; t++) {
+            for (int c=0; c<indices[t].length; c++) {
+                for (int k=0; k<indices[t][c].length; k++) {
+                    assertEquals(ofc.getFeatIndex(t, c, k), copy.getFeatIndex(t, c, k));
+                }
+            }
+        }
+    }
+
+    private static void setField(Object obj, String name, Object value) throws Exception {
+        Field field = ObsFeatureConjoiner.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(obj, value);
+    }
+    
+    @Test
+    public void testHashedTemplatesSkipAlphabetPass() {
+        final FactorTemplateList fts = new FactorTemplateList();
+        fts.setFeatureHashMod(1000, false);
+        ObsFeatureConjoinerPrm prm = new ObsFeatureConjoinerPrm();
+        prm.featCountCutoff = 0;
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(prm, fts);
+        final int[] numCalls = new int[1];
+        Var v = new Var(VarType.PREDICTED, 2, "v", QLists.getList("a", "b"));
+        FactorGraph fg = new FactorGraph();
+        ObsFeExpFamFactor f = new ObsFeExpFamFactor(new VarSet(v), "key", ofc, new StringObsFeatureExtractor(fts) {
+            @Override
+            protected Iterable<String> getObsFeatures(ObsFeExpFamFactor factor) {
+                numCalls[0]++;
+                List<String> feats = new ArrayList<>();
+                for (int i=0; i<100; i++) {
+                    feats.add("feat" + i);
+                }
+                return feats;
+            }
+        });
+        fg.addFactor(f);
+        VarConfig vc = new VarConfig();
+        vc.put(v, 1);
+        FgExampleMemoryStore data = new FgExampleMemoryStore();
+        data.add(new LabeledFgExample(fg, vc, fts));
+        ofc.init(data);
+        
+        // The features were not extracted to build the alphabets.
+        assertEquals(0, numCalls[0]);
+        assertEquals(2 * 1000, ofc.getNumParams());
+        // Each feature has the sign of its hash as its value.
+        HashedFeatureNames alphabet = (HashedFeatureNames) fts.get(0).getAlphabet();
+        FeatureVector fv = f.getObsFeatures();
+        int numNegative = 0;
+        for (int i=0; i<100; i++) {
+            int h = alphabet.hash("feat" + i);
+            if (alphabet.getSign(h) < 0) {
+                numNegative++;
+            }
+        }
+        double sum = 0;
+        for (double val : fv.getInternalValues()) {
+            sum += val;
+        }
+        assertTrue(numNegative > 0);
+        assertEquals(100 - 2 * numNegative, sum, 1e-13);
+    }
+
+    @Test
+    public void testHashingFeatureExtractor() {
+        FactorTemplateList fts = new FactorTemplateList();
+        ObsFeatureConjoinerPrm prm = new ObsFeatureConjoinerPrm();
+        prm.featCountCutoff = 0;
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(prm, fts);
+        HashingFeatureExtractor fe = new HashingFeatureExtractor(ofc, 500, true) {
+            @Override
+            protected Iterable<String> getFeatures(FeExpFamFactor factor, int configId) {
+                return QLists.getList("bias_" + configId, "word=dog_" + configId);
+            }
+        };
+        ofc.init(null);
+        assertEquals(500, ofc.getNumParams());
+        
+        Var v = new Var(VarType.PREDICTED, 2, "v", QLists.getList("a", "b"));
+        FeatureVector fv = fe.calcFeatureVector(new FeExpFamFactor(new VarSet(v), fe), 1);
+        HashedFeatureNames alphabet = fe.getAlphabet();
+        int h = alphabet.hash("word=dog_1");
+        assertEquals(alphabet.getSign(h), fv.get(alphabet.getIndex(h)), 0);
+        assertTrue(alphabet.getIndex(h) < ofc.getNumParams());
+        assertEquals(2, alphabet.getNumDistinctFeats());
+    }
+
+    @Test
+    public void testParallelInitMatchesSerial() {
+        List<String> serial = getParamNamesAfterInit(1);
+        try {
+            Threads.initDefaultPool(4);
+            for (int trial=0; trial<5; trial++) {
+                assertEquals(serial, getParamNamesAfterInit(4));
+            }
+        } finally {
+            Threads.shutdownDefaultPool();
+            Threads.initDefaultPool(1);
+        }
+    }
+
+    /**
+     * Grows the alphabets over examples which each add new features, and gets the parameter names followed by the
+     * cached features of each example.
+     */
+    private List<String> getParamNamesAfterInit(int numThreads) {
+        assertEquals(numThreads, Threads.numThreads);
+        final FactorTemplateList fts = getFtl(false);
+        fts.startGrowth();
+        ObsFeatureConjoinerPrm prm = new ObsFeatureConjoinerPrm();
+        prm.featCountCutoff = 2;
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(prm, fts);
+        FgExampleMemoryStore data = new FgExampleMemoryStore();
+        for (int i=0; i<200; i++) {
+            final int ex = i;
+            Var v1 = new Var(VarType.PREDICTED, 2, "1", QLists.getList("1a", "1b"));
+            FactorGraph fg = new FactorGraph();
+            fg.addFactor(new ObsFeExpFamFactor(new VarSet(v1), "key1", ofc, new ObsFeatureExtractor() {
+                @Override
+                public FeatureVector calcObsFeatureVector(ObsFeExpFamFactor factor) {
+                    FeatureAlphabet alphabet = fts.getTemplate(factor).getAlphabet();
+                    FeatureVector fv = new FeatureVector();
+                    fv.add(alphabet.lookupIndex("feat" + (ex * 7 % 31)), 1.0);
+                    fv.add(alphabet.lookupIndex("feat" + (ex * 13 % 37)), 1.0);
+                    fv.add(alphabet.lookupIndex("ex" + ex), 1.0);
+                    return fv;
+                }
+            }));
+            VarConfig vc = new VarConfig();
+            vc.put(v1, ex % 2);
+            data.add(new LabeledFgExample(fg, vc, fts));
+        }
+        ofc.init(data);
+        if (numThreads > 1) {
+            assertTrue(fts.get(0).getAlphabet() instanceof ConcurrentFeatureNames);
+        }
+        List<String> names = new ArrayList<>();
+        for (String name : ofc.getParamNames()) {
+            names.add(name);
+        }
+        assertEquals(ofc.getNumParams(), names.size());
+        // The cached features, which a parallel pass extracts under provisional ids, must have the serial ids.
+        for (int i=0; i<data.size(); i++) {
+            names.add(((ObsFeExpFamFactor) data.get(i).getFactorGraph().getFactor(0)).getObsFeatures().toString());
+        }
+        return names;
+    }
+    
+    private static FactorTemplateList getLargeFtl(int numConfigs, int numFeats) {
+        FactorTemplateList fts = new FactorTemplateList();
+        List<String> stateNames = new ArrayList<>();
+        for (int c=0; c<numConfigs; c++) {
+            stateNames.add("s" + c);
+        }
+        Var v = new Var(VarType.PREDICTED, numConfigs, "large", stateNames);
+        FeatureNames alphabet = new FeatureNames();
+        alphabet.setIsBias(alphabet.lookupIndex("BIAS_FEATURE"));
+        for (int k=1; k<numFeats; k++) {
+            alphabet.lookupIndex(k);
+        }
+        fts.add(new FactorTemplate(new VarSet(v), alphabet, "large"));
+        return fts;
+    }
+
     private void checkNumParams(boolean useLat, boolean includeUnsupportedFeatures,
             int expectedNumParams) {
         FactorTemplateList fts = getFtl(useLat);
@@ -89,7 +495,7 @@ public class ObsFeatureConjoinerTest {
         @Override
         public FeatureVector calcObsFeatureVector(ObsFeExpFamFactor factor) {
             FeatureVector fv = new FeatureVector();
-            FeatureNames alphabet = fts.getTemplate(factor).getAlphabet();
+            FeatureAlphabet alphabet = fts.getTemplate(factor).getAlphabet();
 
             int featIdx = alphabet.lookupIndex("BIAS_FEATURE", true);
             alphabet.setIsBias(featIdx);
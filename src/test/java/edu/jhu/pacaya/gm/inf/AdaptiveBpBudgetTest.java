@@ -0,0 +1,124 @@
+package edu.jhu.pacaya.gm.inf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import edu.jhu.pacaya.gm.inf.AdaptiveBpBudget.AdaptiveBpBudgetPrm;
+import edu.jhu.pacaya.gm.inf.BeliefPropagation.BeliefPropagationPrm;
+import edu.jhu.pacaya.gm.model.FactorGraph;
+import edu.jhu.pacaya.util.semiring.LogSemiring;
+
+public class AdaptiveBpBudgetTest {
+
+    @Test
+    public void testSchedule() {
+        AdaptiveBpBudget budget = new AdaptiveBpBudget(getBudgetPrm());
+        assertEquals(2, budget.getMaxIterations(0.0, 200));
+        assertEquals(11, budget.getMaxIterations(0.5, 200));
+        assertEquals(20, budget.getMaxIterations(1.0, 200));
+        assertEquals(1e-2, budget.getConvergenceThreshold(0.0), 1e-13);
+        assertEquals(1e-4, budget.getConvergenceThreshold(0.5), 1e-13);
+        assertEquals(1e-6, budget.getConvergenceThreshold(1.0), 1e-13);
+    }
+
+    @Test
+    public void testCapRaisedByConvergenceHistory() {
+        AdaptiveBpBudget budget = new AdaptiveBpBudget(getBudgetPrm());
+        budget.addRun(2, 3, false, 0.1, 0);
+        assertEquals(2, budget.getMaxIterations(0.0, 200));
+        budget.addRun(20, 8, true, 0.0, 0);
+        assertEquals(12, budget.getMaxIterations(0.0, 200));
+        // The cap never exceeds the final cap.
+        budget.addRun(20, 19, true, 0.0, 0);
+        assertEquals(20, budget.getMaxIterations(0.0, 200));
+
+        assertEquals(3, budget.getNumRuns());
+        assertEquals(2. / 3, budget.getConvergedRate(), 1e-13);
+    }
+
+    @Test
+    public void testCapBoundedByFixedCap() {
+        AdaptiveBpBudget budget = new AdaptiveBpBudget(getBudgetPrm());
+        assertEquals(10, budget.getMaxIterations(1.0, 10));
+        budget.addRun(10, 10, true, 0.0, 0);
+        assertEquals(10, budget.getMaxIterations(0.0, 10));
+    }
+
+    @Test
+    public void testNoRuns() {
+        AdaptiveBpBudget budget = new AdaptiveBpBudget(getBudgetPrm());
+        assertEquals(0, budget.getConvergedRate(), 0);
+        assertEquals(0, budget.getAvgIters(), 0);
+        assertEquals(0, budget.getAvgMaxResidual(), 0);
+        assertEquals(0, budget.getEstItersSaved(), 0);
+        budget.report();
+    }
+
+    @Test
+    public void testEstimatedSavings() {
+        AdaptiveBpBudgetPrm bprm = getBudgetPrm();
+        bprm.auditInterval = 2;
+        AdaptiveBpBudget budget = new AdaptiveBpBudget(bprm);
+        assertTrue(budget.addRun(2, 2, false, 0.1, 2000000));
+        budget.addAudit(2, 10, 10000000);
+        assertTrue(!budget.addRun(2, 2, false, 0.1, 2000000));
+        assertTrue(budget.addRun(2, 2, false, 0.1, 2000000));
+        budget.addAudit(2, 6, 6000000);
+        // Averages 6 iterations saved over 2 audits, scaled to 3 runs, at 1 ms per iteration.
+        assertEquals(2, budget.getNumAudits());
+        assertEquals(18, budget.getEstItersSaved(), 1e-13);
+        assertEquals(18, budget.getEstMsSaved(), 1e-9);
+    }
+
+    @Test
+    public void testNoAuditsByDefault() {
+        AdaptiveBpBudget budget = new AdaptiveBpBudget(getBudgetPrm());
+        for (int i=0; i<100; i++) {
+            assertTrue(!budget.addRun(2, 2, false, 0.1, 2000000));
+        }
+        assertEquals(0, budget.getNumAudits());
+    }
+
+    @Test
+    public void testBpUsesBudgetOnlyDuringTraining() throws IOException {
+        FactorGraph fg = BruteForceInferencerTest.readSimpleFg();
+        AdaptiveBpBudgetPrm bprm = getBudgetPrm();
+        bprm.auditInterval = 20;
+        AdaptiveBpBudget budget = new AdaptiveBpBudget(bprm);
+        BeliefPropagationPrm prm = new BeliefPropagationPrm();
+        prm.s = LogSemiring.getInstance();
+        prm.maxIterations = 200;
+        prm.convergenceThreshold = 1e-10;
+        prm.budget = budget;
+
+        BeliefPropagation fixed = new BeliefPropagation(fg, prm);
+        fixed.run();
+        assertEquals(0, budget.getNumRuns());
+
+        BeliefPropagation early = new BeliefPropagation(fg, prm.withContext(new InferenceContext(0, 0, 0, 10)));
+        early.run();
+        assertEquals(1, budget.getNumRuns());
+        // The iteration count includes the initial pass.
+        assertTrue(early.getNumIterations() <= 2 + 1);
+        assertTrue(early.getNumIterations() < fixed.getNumIterations());
+        // The first run is audited by repeating it with the fixed settings.
+        assertEquals(1, budget.getNumAudits());
+        assertEquals(fixed.getNumIterations() - early.getNumIterations(), budget.getEstItersSaved(), 1e-13);
+    }
+
+    private static AdaptiveBpBudgetPrm getBudgetPrm() {
+        AdaptiveBpBudgetPrm prm = new AdaptiveBpBudgetPrm();
+        prm.startMaxIterations = 2;
+        prm.endMaxIterations = 20;
+        prm.startThreshold = 1e-2;
+        prm.endThreshold = 1e-6;
+        prm.slack = 1.5;
+        prm.decay = 0.5;
+        return prm;
+    }
+
+}
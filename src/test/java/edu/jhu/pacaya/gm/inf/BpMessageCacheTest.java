@@ -0,0 +1,157 @@
+package edu.jhu.pacaya.gm.inf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import edu.jhu.pacaya.gm.inf.BeliefPropagation.BeliefPropagationPrm;
+import edu.jhu.pacaya.gm.inf.BpMessageCache.BpMessageCachePrm;
+import edu.jhu.pacaya.gm.model.FactorGraph;
+import edu.jhu.pacaya.util.semiring.LogSemiring;
+
+public class BpMessageCacheTest {
+
+    @Test
+    public void testWarmStartConvergesFaster() throws IOException {
+        FactorGraph fg = BruteForceInferencerTest.readSimpleFg();
+        BpMessageCache cache = new BpMessageCache(new BpMessageCachePrm());
+        BeliefPropagationPrm prm = getBpPrm(cache);
+
+        BeliefPropagation cold = new BeliefPropagation(fg, prm.withContext(new InferenceContext(0, 0, 0, 10)));
+        cold.run();
+        assertTrue(cold.isConverged());
+
+        BeliefPropagation warm = new BeliefPropagation(fg, prm.withContext(new InferenceContext(0, 0, 1, 10)));
+        warm.run();
+        assertTrue(warm.isConverged());
+
+        assertEquals(1, cache.getNumColdRuns());
+        assertEquals(1, cache.getNumWarmRuns());
+        assertTrue(warm.getNumIterations() < cold.getNumIterations());
+        BeliefPropagationTest.assertEqualMarginals(fg, cold, warm, 1e-6);
+    }
+
+    @Test
+    public void testNoCachingWithoutContext() throws IOException {
+        FactorGraph fg = BruteForceInferencerTest.readSimpleFg();
+        BpMessageCache cache = new BpMessageCache(new BpMessageCachePrm());
+        BeliefPropagationPrm prm = getBpPrm(cache);
+
+        new BeliefPropagation(fg, prm).run();
+        assertEquals(0, cache.getNumColdRuns());
+        assertEquals(0, cache.getNumEntriesInMemory());
+    }
+
+    @Test
+    public void testSlotsPerExample() {
+        InferenceContext ctx = new InferenceContext(0, 3, 0, 10);
+        long k0 = ctx.nextCacheKey();
+        long k1 = ctx.nextCacheKey();
+        assertTrue(k0 != k1);
+        // The runs of the next evaluation of the example take the same slots.
+        assertEquals(k0, new InferenceContext(0, 3, 1, 10).nextCacheKey());
+        assertEquals(-1, new InferenceContext(0, -1, 0, 10).nextCacheKey());
+    }
+
+    @Test
+    public void testScopes() {
+        int scope = BpMessageCache.newScope();
+        long k0 = BpMessageCache.getKey(0, 3, 0);
+        // The same example of another data set has its own key.
+        long k1 = BpMessageCache.getKey(scope, 3, 0);
+        assertTrue(k0 != k1);
+        assertEquals(k1, BpMessageCache.getKey(scope, 3, 0));
+    }
+
+    @Test
+    public void testNoRuns() {
+        BpMessageCache cache = new BpMessageCache(new BpMessageCachePrm());
+        assertEquals(0, cache.getAvgColdIters(), 0);
+        assertEquals(0, cache.getAvgWarmIters(), 0);
+    }
+
+    @Test
+    public void testSpillFileDoesNotGrow() throws IOException {
+        File spillFile = File.createTempFile("bpmsgs", ".bin");
+        spillFile.deleteOnExit();
+        BpMessageCachePrm cprm = new BpMessageCachePrm();
+        cprm.maxEntriesInMemory = 1;
+        cprm.spillFile = spillFile;
+        BpMessageCache cache = new BpMessageCache(cprm);
+        // Alternate between two entries, so that each is spilled on every "epoch".
+        long size = 0;
+        for (int epoch = 0; epoch < 20; epoch++) {
+            cache.put(0, new double[][] { { epoch, 1 } });
+            cache.put(1, new double[][] { { epoch, 2, 3 } });
+            if (epoch == 1) {
+                size = cache.getSpillFileBytes();
+            }
+        }
+        assertEquals(size, cache.getSpillFileBytes());
+        assertArrayEquals(new double[] { 19, 1 }, cache.get(0)[0], 0.0);
+        cache.close();
+    }
+
+    @Test
+    public void testSpillFileCompaction() throws IOException {
+        File spillFile = File.createTempFile("bpmsgs", ".bin");
+        spillFile.deleteOnExit();
+        BpMessageCachePrm cprm = new BpMessageCachePrm();
+        cprm.maxEntriesInMemory = 1;
+        cprm.spillFile = spillFile;
+        BpMessageCache cache = new BpMessageCache(cprm);
+        // Each entry is larger than its last copy, so it cannot be overwritten in place.
+        for (int n = 1; n < 400; n++) {
+            cache.put(0, new double[][] { new double[n] });
+            cache.put(1, new double[][] { new double[n] });
+        }
+        // Without compaction, the file would hold more than 1 MB of stale copies.
+        assertTrue(cache.getSpillFileBytes() < (1 << 20));
+        assertEquals(399, cache.get(0)[0].length);
+        assertEquals(399, cache.get(1)[0].length);
+        cache.close();
+    }
+
+    @Test
+    public void testSpillToDisk() throws IOException {
+        File spillFile = File.createTempFile("bpmsgs", ".bin");
+        spillFile.deleteOnExit();
+        BpMessageCachePrm cprm = new BpMessageCachePrm();
+        cprm.maxEntriesInMemory = 1;
+        cprm.spillFile = spillFile;
+        BpMessageCache cache = new BpMessageCache(cprm);
+
+        double[][] msgs0 = new double[][] { { 0.1, 0.9 }, { 0.3, 0.3, 0.4 } };
+        double[][] msgs1 = new double[][] { { 0.5, 0.5 } };
+        cache.put(0, msgs0);
+        cache.put(1, msgs1);
+        assertEquals(1, cache.getNumEntriesInMemory());
+        assertNull(cache.get(2));
+
+        double[][] actual = cache.get(0);
+        assertEquals(msgs0.length, actual.length);
+        for (int e = 0; e < msgs0.length; e++) {
+            assertArrayEquals(msgs0[e], actual[e], 0.0);
+        }
+        // Reading entry 0 back should have spilled entry 1.
+        assertArrayEquals(msgs1[0], cache.get(1)[0], 0.0);
+        cache.close();
+    }
+
+    private static BeliefPropagationPrm getBpPrm(BpMessageCache cache) {
+        BeliefPropagationPrm prm = new BeliefPropagationPrm();
+        prm.s = LogSemiring.getInstance();
+        prm.maxIterations = 200;
+        prm.convergenceThreshold = 1e-8;
+        prm.normalizeMessages = true;
+        prm.msgCache = cache;
+        return prm;
+    }
+
+}
@@ -1,6 +1,8 @@
 package edu.jhu.pacaya.gm.model;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import org.junit.Test;
 
@@ -36,6 +38,69 @@ public class ExplicitExpFamFactorTest {
         assertEquals((1+2), y.get(2), 1e-1);
     }
     
+    @Test
+    public void testIncrementalUpdate() throws Exception {
+        FgModel model = new FgModel(4);
+        for (int i=0; i<model.getNumParams(); i++) {
+            model.getParams().set(i, i+1);
+        }
+        model.setTrackChanges(true);
+        ExplicitExpFamFactor f = getFactor();
+        f.updateFromModel(model);
+        assertEquals(1+2, f.getValue(0), 1e-13);
+        assertEquals(2+3+4, f.getValue(1), 1e-13);
+        ParamChangeLog changeLog = model.getChangeLog();
+        assertEquals(1.0, changeLog.getRescoredFrac(), 1e-13);
+
+        // Only config 1 uses f-d.
+        model.getParams().set(3, 10);
+        model.setParams(model.getParams(), new int[]{3});
+        f.updateFromModel(model);
+        assertEquals(1+2, f.getValue(0), 1e-13);
+        assertEquals(2+3+10, f.getValue(1), 1e-13);
+        assertEquals(1+2, f.getValue(2), 1e-13);
+        assertEquals(4.0 / 6.0, changeLog.getRescoredFrac(), 1e-13);
+
+        // Changes not yet recorded with setParams are not seen.
+        model.getParams().set(0, 5);
+        f.updateFromModel(model);
+        assertEquals(1+2, f.getValue(0), 1e-13);
+        model.setParams(model.getParams(), new int[]{0});
+        f.updateFromModel(model);
+        assertEquals(5+2, f.getValue(0), 1e-13);
+        assertEquals(5+2, f.getValue(2), 1e-13);
+
+        // Unknown changes rescore every entry.
+        model.getParams().set(2, 7);
+        model.setParams(model.getParams());
+        f.updateFromModel(model);
+        assertEquals(2+7+10, f.getValue(1), 1e-13);
+
+        // Without tracking, the factor is rescored from scratch.
+        model.setTrackChanges(false);
+        model.getParams().set(1, 0);
+        f.updateFromModel(model);
+        assertEquals(5, f.getValue(0), 1e-13);
+        assertEquals(0+7+10, f.getValue(1), 1e-13);
+    }
+
+    @Test
+    public void testParamChangeLogHistory() throws Exception {
+        ParamChangeLog changeLog = new ParamChangeLog(2, 0.5);
+        changeLog.record(null, 4);
+        int v1 = changeLog.getVersion();
+        changeLog.record(new int[]{2}, 4);
+        changeLog.record(new int[]{0, 2}, 4);
+        assertArrayEquals(new int[]{0, 2}, changeLog.getChangesSince(v1).getParams());
+        assertArrayEquals(new int[]{}, changeLog.getChangesSince(changeLog.getVersion()).getParams());
+        // Too many changes in one step.
+        int v3 = changeLog.getVersion();
+        changeLog.record(new int[]{1, 3, 0}, 4);
+        assertNull(changeLog.getChangesSince(v3));
+        // Too old.
+        assertNull(changeLog.getChangesSince(v1));
+    }
+
     protected VarTensor getOutputOfModule(Algebra s) {
         // Model - 4 for a,b,c,d.
         FgModel model = new FgModel(4);
@@ -44,6 +109,15 @@ public class ExplicitExpFamFactorTest {
             model.getParams().set(i, i+1);
         }
         FgModelIdentity id1 = new FgModelIdentity(model);
+        ExplicitExpFamFactor f = getFactor();
+        
+        Module<VarTensor> fm = (Module<VarTensor>) f.getFactorModule(id1, s);
+        VarTensor y = fm.forward();
+        System.out.println(fm.getOutput());
+        return y;
+    }
+
+    private static ExplicitExpFamFactor getFactor() {
         // Features
         FeatureNames alphabet = new FeatureNames();
         FeatureVector f1 = new FeatureVector();
@@ -60,11 +134,7 @@ public class ExplicitExpFamFactorTest {
         f.setFeatures(0, f1);
         f.setFeatures(1, f2);
         f.setFeatures(2, f1);
-        
-        Module<VarTensor> fm = (Module<VarTensor>) f.getFactorModule(id1, s);
-        VarTensor y = fm.forward();
-        System.out.println(fm.getOutput());
-        return y;
+        return f;
     }
     
 }
@@ -4,9 +4,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 import edu.jhu.pacaya.util.JUnitUtils;
@@ -127,6 +129,21 @@ public class FgModelTest {
 
     }
 
+    @Test
+    public void testBinaryReadWrite() throws IOException {
+        Prng.seed(1l);
+        FgModel model = new FgModel(10000);
+        model.setRandomStandardNormal();
+        for (boolean compress : new boolean[]{ false, true }) {
+            File file = File.createTempFile("model", ".bin");
+            file.deleteOnExit();
+            model.writeBinary(file, compress);
+            FgModel copy = FgModel.readBinary(file);
+            assertEquals(model.getNumParams(), copy.getNumParams());
+            Assert.assertArrayEquals(getParams(model), getParams(copy), 1e-13);
+        }
+    }
+
     public static double[] getParams(FgModel model) {
         return model.getParams().toNativeArray();
     }
@@ -1,11 +1,15 @@
 package edu.jhu.pacaya.gm.train;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import org.junit.Test;
 
 import edu.jhu.pacaya.gm.model.FgModel;
+import edu.jhu.pacaya.gm.model.ParamChangeLog;
 import edu.jhu.pacaya.gm.train.AvgBatchObjective.ExampleObjective;
+import edu.jhu.prim.vector.IntDoubleVector;
 
 public class AvgBatchObjectiveTest {
 
@@ -46,4 +50,37 @@ public class AvgBatchObjectiveTest {
         assertEquals(3*6, exObj.numChecks);
     }
 
+    @Test
+    public void testChangesReadOffSparseGradient() {
+        FgModel model = new FgModel(10);
+        model.setTrackChanges(true);
+        ParamChangeLog changeLog = model.getChangeLog();
+        // The i'th example has a gradient only on the i'th parameter.
+        ExampleObjective exObj = new MockExObj() {
+            @Override
+            public void accum(FgModel model, int i, Accumulator vg) {
+                if (vg.accumGradient) {
+                    vg.gradient.add(i, 1.0);
+                }
+            }
+        };
+        AvgBatchObjective avg = new AvgBatchObjective(exObj, model);
+        avg.setSparseSteps(true);
+        IntDoubleVector params = model.getParams();
+
+        avg.getGradient(params, new int[]{ 1, 3 });
+        int v = changeLog.getVersion();
+        avg.getGradient(params, new int[]{ 2 });
+        assertArrayEquals(new int[]{ 1, 3 }, changeLog.getChangesSince(v).getParams());
+        // At another point, the changes are not known.
+        v = changeLog.getVersion();
+        avg.getGradient(params.copy(), new int[]{ 2 });
+        assertNull(changeLog.getChangesSince(v));
+        // Nor after the full dataset.
+        avg.getGradient(params, new int[]{ 0, 1, 2, 3, 4, 5 });
+        v = changeLog.getVersion();
+        avg.getGradient(params, new int[]{ 2 });
+        assertNull(changeLog.getChangesSince(v));
+    }
+
 }
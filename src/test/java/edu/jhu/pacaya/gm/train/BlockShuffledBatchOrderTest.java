@@ -0,0 +1,122 @@
+package edu.jhu.pacaya.gm.train;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import edu.jhu.pacaya.gm.model.FgModel;
+import edu.jhu.pacaya.gm.train.AvgBatchObjective.ExampleObjective;
+import edu.jhu.prim.arrays.IntArrays;
+import edu.jhu.prim.util.random.Prng;
+
+public class BlockShuffledBatchOrderTest {
+
+    @Test
+    public void testEachEpochIsBlockShuffledPermutation() {
+        Prng.seed(123456789101112l);
+        int n = 23;
+        int blockSize = 5;
+        BlockShuffledBatchOrder order = new BlockShuffledBatchOrder(n, blockSize);
+        for (int epoch=0; epoch<3; epoch++) {
+            // Draw one epoch with batches of 1, so that the epochs align with the batches.
+            int[] visited = new int[n];
+            for (int i=0; i<n; i++) {
+                visited[i] = order.getBatch(new int[]{ 0 }).next()[0];
+            }
+            // The examples of each block are visited consecutively.
+            for (int start=0; start<n; ) {
+                int block = visited[start] / blockSize;
+                int end = start;
+                while (end < n && visited[end] / blockSize == block) {
+                    end++;
+                }
+                assertEquals(Math.min(n, (block + 1) * blockSize) - block * blockSize, end - start);
+                start = end;
+            }
+            int[] sorted = Arrays.copyOf(visited, n);
+            Arrays.sort(sorted);
+            assertArrayEquals(IntArrays.range(n), sorted);
+        }
+    }
+
+    @Test
+    public void testBatchesSpanEpochs() {
+        int n = 10;
+        BlockShuffledBatchOrder order = new BlockShuffledBatchOrder(n, 3);
+        int[] counts = new int[n];
+        for (int b=0; b<5; b++) {
+            int[] batch = order.getBatch(new int[4]).next();
+            assertEquals(4, batch.length);
+            for (int i : batch) {
+                counts[i]++;
+            }
+        }
+        // Two full epochs are visited.
+        for (int i=0; i<n; i++) {
+            assertEquals(2, counts[i]);
+        }
+    }
+
+    @Test
+    public void testFullDatasetInOrder() {
+        BlockShuffledBatchOrder order = new BlockShuffledBatchOrder(4, 2);
+        assertArrayEquals(new int[]{ 0, 1, 2, 3 }, order.getBatch(new int[]{ 3, 1, 0, 2 }).next());
+    }
+
+    @Test
+    public void testAvgBatchObjectiveUsesBatchOrder() {
+        Prng.seed(123456789101112l);
+        final int[] counts = new int[6];
+        ExampleObjective exObj = new ExampleObjective() {
+            @Override
+            public void accum(FgModel model, int i, Accumulator vg) {
+                counts[i]++;
+            }
+
+            @Override
+            public int getNumExamples() {
+                return 6;
+            }
+
+            @Override
+            public void report() {
+                // no-op
+            }
+        };
+        FgModel model = new FgModel(10);
+        AvgBatchObjective avg = new AvgBatchObjective(exObj, model);
+        avg.setBatchOrder(new BlockShuffledBatchOrder(6, 2));
+        for (int b=0; b<3; b++) {
+            // The optimizer samples the same examples every time.
+            avg.getGradient(model.getParams(), new int[]{ 0, 0 });
+        }
+        // One epoch is visited.
+        for (int i=0; i<6; i++) {
+            assertEquals(1, counts[i]);
+        }
+        // A batch evaluated without a gradient keeps the sampled examples.
+        avg.getValue(model.getParams(), new int[]{ 4, 4 });
+        assertEquals(3, counts[4]);
+    }
+
+    @Test
+    public void testRepeatedEvalSampleGetsSameExamples() {
+        BlockShuffledBatchOrder order = new BlockShuffledBatchOrder(6, 2);
+        assertArrayEquals(new int[]{ 1, 4 }, order.getEvalBatch(new int[]{ 4, 1 }).next());
+        assertArrayEquals(new int[]{ 1, 4 }, order.getEvalBatch(new int[]{ 4, 1 }).next());
+        // The evaluations do not advance the epoch.
+        int[] counts = new int[6];
+        for (int b=0; b<3; b++) {
+            for (int i : order.getBatch(new int[2]).next()) {
+                counts[i]++;
+            }
+        }
+        for (int i=0; i<6; i++) {
+            assertEquals(1, counts[i]);
+        }
+    }
+
+}
@@ -1,5 +1,10 @@
 package edu.jhu.pacaya.gm.train;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Iterator;
 import java.util.List;
 
 import org.junit.Before;
@@ -11,8 +16,11 @@ import edu.jhu.hlt.optimize.SGD;
 import edu.jhu.hlt.optimize.SGD.SGDPrm;
 import edu.jhu.hlt.optimize.function.BatchFunctionOpts;
 import edu.jhu.hlt.optimize.function.DifferentiableFunctionOpts;
+import edu.jhu.hlt.optimize.function.Function;
 import edu.jhu.pacaya.gm.data.FgExampleList;
 import edu.jhu.pacaya.gm.data.FgExampleMemoryStore;
+import edu.jhu.pacaya.gm.data.FgExampleStream;
+import edu.jhu.pacaya.gm.data.LFgExample;
 import edu.jhu.pacaya.gm.data.LabeledFgExample;
 import edu.jhu.pacaya.gm.feat.FactorTemplateList;
 import edu.jhu.pacaya.gm.feat.ObsFeExpFamFactor;
@@ -20,6 +28,8 @@ import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner;
 import edu.jhu.pacaya.gm.feat.ObsFeatureConjoiner.ObsFeatureConjoinerPrm;
 import edu.jhu.pacaya.gm.feat.ObsFeatureExtractor;
 import edu.jhu.pacaya.gm.inf.BeliefPropagation.BeliefPropagationPrm;
+import edu.jhu.pacaya.gm.inf.BpMessageCache;
+import edu.jhu.pacaya.gm.inf.BpMessageCache.BpMessageCachePrm;
 import edu.jhu.pacaya.gm.inf.BeliefPropagation.BpScheduleType;
 import edu.jhu.pacaya.gm.inf.BeliefPropagation.BpUpdateOrder;
 import edu.jhu.pacaya.gm.maxent.LogLinearEDs;
@@ -41,12 +51,14 @@ import edu.jhu.pacaya.gm.model.globalfac.ProjDepTreeFactor;
 import edu.jhu.pacaya.gm.train.CrfTrainer.CrfTrainerPrm;
 import edu.jhu.pacaya.gm.train.CrfTrainer.Trainer;
 import edu.jhu.pacaya.gm.train.L2Distance.L2DistanceFactory;
+import edu.jhu.pacaya.gm.train.LazyAdaGradComid.LazyAdaGradComidPrm;
 import edu.jhu.pacaya.util.JUnitUtils;
 import edu.jhu.pacaya.util.collections.QLists;
 import edu.jhu.pacaya.util.semiring.LogSemiring;
 import edu.jhu.pacaya.util.semiring.RealAlgebra;
 import edu.jhu.prim.arrays.DoubleArrays;
 import edu.jhu.prim.util.random.Prng;
+import edu.jhu.prim.vector.IntDoubleVector;
 
 public class CrfTrainerTest {
 
@@ -118,6 +130,172 @@ public class CrfTrainerTest {
         checkTrainNoLatentVars(false);
     }
     
+    @Test
+    public void testTrainIncrementalUpdates() {
+        double[] params1 = FgModelTest.getParams(trainLinearChainAdaGrad(false, false));
+        double[] params2 = FgModelTest.getParams(trainLinearChainAdaGrad(true, false));
+        JUnitUtils.assertArrayEquals(params1, params2, 1e-10);
+    }
+
+    @Test
+    public void testTrainSharedFactorTables() {
+        double[] params1 = FgModelTest.getParams(trainLinearChainAdaGrad(false, false));
+        double[] params2 = FgModelTest.getParams(trainLinearChainAdaGrad(false, true));
+        JUnitUtils.assertArrayEquals(params1, params2, 1e-10);
+    }
+
+    @Test
+    public void testTrainWarmStartsFromMessageCache() {
+        BpMessageCache cache = new BpMessageCache(new BpMessageCachePrm());
+        trainLinearChainAdaGrad(false, false, cache);
+        // Each of the two examples is only run cold on its first pass.
+        assertEquals(2, cache.getNumColdRuns());
+        assertTrue(cache.getNumWarmRuns() > 0);
+    }
+
+    @Test
+    public void testTrainFromStream() {
+        FactorTemplateList fts = new FactorTemplateList();        
+        ObsFeatureExtractor obsFe = new SimpleVCObsFeatureExtractor(fts);
+        ObsFeatureConjoinerPrm ofcPrm = new ObsFeatureConjoinerPrm();
+        ofcPrm.featCountCutoff = 0;
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(ofcPrm, fts);
+        FgAndVars fgv = FactorGraphsForTests.getLinearChainFgWithVars(ofc, obsFe);
+        VarConfig trainConfig = new VarConfig();
+        trainConfig.put(fgv.w0, 0);
+        trainConfig.put(fgv.w1, 1);
+        trainConfig.put(fgv.w2, 0);
+        trainConfig.put(fgv.t0, 0);
+        trainConfig.put(fgv.t1, 1);
+        trainConfig.put(fgv.t2, 1);
+        // Copies of one example, so that every batch has the same gradient in any order.
+        FgExampleMemoryStore data = new FgExampleMemoryStore();
+        for (int i=0; i<3; i++) {
+            data.add(new LabeledFgExample(fgv.fg, trainConfig, fts));
+        }
+        ofc.init(data);
+        // Stream the examples as if constructed from raw data.
+        final FgExampleMemoryStore raw = data;
+        Iterable<LFgExample> source = new Iterable<LFgExample>() {
+            @Override
+            public Iterator<LFgExample> iterator() {
+                return raw.iterator();
+            }
+        };
+        FgExampleStream stream = new FgExampleStream(source, data.size(), 2, 42);
+
+        for (boolean sgd : new boolean[]{ true, false }) {
+            FgModel model1 = train(new FgModel(ofc.getNumParams()), data, sgd);
+            FgModel model2 = train(new FgModel(ofc.getNumParams()), stream, sgd);
+            JUnitUtils.assertArrayEquals(FgModelTest.getParams(model1), FgModelTest.getParams(model2), 1e-10);
+        }
+    }
+
+    @Test
+    public void testTrainFromStreamChecksPreconditions() {
+        FactorTemplateList fts = new FactorTemplateList();        
+        ObsFeatureExtractor obsFe = new SimpleVCObsFeatureExtractor(fts);
+        ObsFeatureConjoinerPrm ofcPrm = new ObsFeatureConjoinerPrm();
+        ofcPrm.featCountCutoff = 0;
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(ofcPrm, fts);
+        FgAndVars fgv = FactorGraphsForTests.getLinearChainFgWithVars(ofc, obsFe);
+        final FgExampleMemoryStore data = new FgExampleMemoryStore();
+        for (int i=0; i<3; i++) {
+            data.add(new LabeledFgExample(fgv.fg, fgv.goldConfig, fts));
+        }
+        Iterable<LFgExample> source = new Iterable<LFgExample>() {
+            @Override
+            public Iterator<LFgExample> iterator() {
+                return data.iterator();
+            }
+        };
+        FgExampleStream stream = new FgExampleStream(source, data.size(), 2, 42);
+        CrfTrainerPrm prm = new CrfTrainerPrm();
+        SGDPrm optPrm = new SGDPrm();
+        optPrm.autoSelectLr = false;
+        prm.batchOptimizer = new SGD(optPrm);
+
+        // The conjoiner is not yet initialized.
+        try {
+            new CrfTrainer(prm).train(new FgModel(1), stream, null);
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("ObsFeatureConjoiner"));
+        }
+        ofc.init(data);
+        final int numParams = ofc.getNumParams();
+        Function validation = new Function() {
+            @Override
+            public double getValue(IntDoubleVector point) {
+                return 0;
+            }
+
+            @Override
+            public int getNumDimensions() {
+                return numParams;
+            }
+        };
+        try {
+            new CrfTrainer(prm).train(new FgModel(numParams), stream, validation);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // pass
+        }
+        // The sample on which autoSelectLr compares learning rates cannot be read.
+        optPrm.autoSelectLr = true;
+        try {
+            new CrfTrainer(prm).train(new FgModel(numParams), stream, null);
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("autoSelectLr"));
+        }
+    }
+
+    private static FgModel trainLinearChainAdaGrad(boolean incrementalUpdates, boolean shareFactorTables) {
+        return trainLinearChainAdaGrad(incrementalUpdates, shareFactorTables, null);
+    }
+
+    private static FgModel trainLinearChainAdaGrad(boolean incrementalUpdates, boolean shareFactorTables,
+            BpMessageCache msgCache) {
+        FactorTemplateList fts = new FactorTemplateList();        
+        ObsFeatureExtractor obsFe = new SimpleVCObsFeatureExtractor(fts);
+        ObsFeatureConjoinerPrm ofcPrm = new ObsFeatureConjoinerPrm();
+        ofcPrm.featCountCutoff = 0;
+        ofcPrm.shareFactorTables = shareFactorTables;
+        ObsFeatureConjoiner ofc = new ObsFeatureConjoiner(ofcPrm, fts);
+        FgAndVars fgv = FactorGraphsForTests.getLinearChainFgWithVars(ofc, obsFe);
+        VarConfig trainConfig = new VarConfig();
+        trainConfig.put(fgv.w0, 0);
+        trainConfig.put(fgv.w1, 1);
+        trainConfig.put(fgv.w2, 0);
+        trainConfig.put(fgv.t0, 0);
+        trainConfig.put(fgv.t1, 1);
+        trainConfig.put(fgv.t2, 1);
+        // Two examples, so that each mini-batch has a sparse gradient.
+        FgExampleMemoryStore data = new FgExampleMemoryStore();
+        data.add(new LabeledFgExample(fgv.fg, trainConfig, fts));
+        data.add(new LabeledFgExample(fgv.fg, trainConfig, fts));
+        ofc.init(data);
+        FgModel model = new FgModel(ofc.getNumParams());
+
+        BeliefPropagationPrm bpPrm = new BeliefPropagationPrm();
+        bpPrm.s = LogSemiring.getInstance();
+        bpPrm.schedule = BpScheduleType.TREE_LIKE;
+        bpPrm.updateOrder = BpUpdateOrder.SEQUENTIAL;
+        bpPrm.normalizeMessages = false;
+        bpPrm.msgCache = msgCache;
+        CrfTrainerPrm prm = new CrfTrainerPrm();
+        prm.infFactory = bpPrm;
+        LazyAdaGradComidPrm optPrm = new LazyAdaGradComidPrm();
+        optPrm.numPasses = 10;
+        optPrm.batchSize = 1;
+        optPrm.autoSelectLr = false;
+        prm.batchOptimizer = new LazyAdaGradComid(optPrm);
+        prm.incrementalUpdates = incrementalUpdates;
+        new CrfTrainer(prm).train(model, data, null);
+        return model;
+    }
+
     public void checkTrainNoLatentVars(boolean sgd) {
         // Boiler plate feature extraction code.
         FactorTemplateList fts = new FactorTemplateList();        
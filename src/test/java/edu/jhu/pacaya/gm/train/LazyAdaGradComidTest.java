@@ -0,0 +1,164 @@
+package edu.jhu.pacaya.gm.train;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.optimize.AdaGradComidL2;
+import edu.jhu.hlt.optimize.AdaGradComidL2.AdaGradComidL2Prm;
+import edu.jhu.hlt.optimize.Optimizer;
+import edu.jhu.hlt.optimize.function.AbstractDifferentiableBatchFunction;
+import edu.jhu.hlt.optimize.function.DifferentiableBatchFunction;
+import edu.jhu.hlt.optimize.function.ValueGradient;
+import edu.jhu.pacaya.gm.train.LazyAdaGradComid.LazyAdaGradComidPrm;
+import edu.jhu.prim.util.random.Prng;
+import edu.jhu.prim.vector.IntDoubleDenseVector;
+import edu.jhu.prim.vector.IntDoubleHashVector;
+import edu.jhu.prim.vector.IntDoubleVector;
+
+public class LazyAdaGradComidTest {
+
+    /**
+     * An average of per-example quadratics, each of which touches only a few of the parameters:
+     * f_i(x) = 1/2 \sum_{j \in S_i} (x_j - c_{ij})^2
+     */
+    private static class SparseQuadratic extends AbstractDifferentiableBatchFunction {
+
+        private int numParams;
+        private int[][] feats;
+        private double[][] targets;
+        /** Whether to return a gradient with an explicit zero for every parameter. */
+        private boolean dense;
+
+        public SparseQuadratic(int numExamples, int numParams, int numFeatsPerEx, boolean dense) {
+            this.numParams = numParams;
+            this.dense = dense;
+            this.feats = new int[numExamples][numFeatsPerEx];
+            this.targets = new double[numExamples][numFeatsPerEx];
+            for (int i=0; i<numExamples; i++) {
+                for (int k=0; k<numFeatsPerEx; k++) {
+                    // Examples touch distinct parameters.
+                    feats[i][k] = (i * numFeatsPerEx + k) % numParams;
+                    targets[i][k] = (k % 2 == 0) ? 1.0 + i : -2.0 - k;
+                }
+            }
+        }
+
+        @Override
+        public double getValue(IntDoubleVector point, int[] batch) {
+            return getValueGradient(point, batch).getValue();
+        }
+
+        @Override
+        public IntDoubleVector getGradient(IntDoubleVector point, int[] batch) {
+            return getValueGradient(point, batch).getGradient();
+        }
+
+        @Override
+        public ValueGradient getValueGradient(IntDoubleVector point, int[] batch) {
+            IntDoubleVector grad = dense ? new IntDoubleDenseVector(new double[numParams]) : new IntDoubleHashVector();
+            double value = 0;
+            for (int i : batch) {
+                for (int k=0; k<feats[i].length; k++) {
+                    int j = feats[i][k];
+                    double diff = point.get(j) - targets[i][k];
+                    value += 0.5 * diff * diff / batch.length;
+                    grad.add(j, diff / batch.length);
+                }
+            }
+            return new ValueGradient(value, grad);
+        }
+
+        @Override
+        public int getNumDimensions() {
+            return numParams;
+        }
+
+        @Override
+        public int getNumExamples() {
+            return feats.length;
+        }
+
+    }
+
+    @Test
+    public void testLazyEqualsEagerL1L2() {
+        double[] sparse = runLazy(false, 0.01, 0.1);
+        double[] dense = runLazy(true, 0.01, 0.1);
+        assertArrayEquals(dense, sparse, 1e-10);
+        // Some of the parameters should have been clipped to zero by the L1 penalty.
+        int numZeros = 0;
+        for (int j=0; j<sparse.length; j++) {
+            if (sparse[j] == 0.0) { numZeros++; }
+        }
+        assertTrue(numZeros > 0);
+    }
+
+    @Test
+    public void testLazyEqualsEagerL1() {
+        double[] sparse = runLazy(false, 0.05, 0.0);
+        double[] dense = runLazy(true, 0.05, 0.0);
+        assertArrayEquals(dense, sparse, 1e-10);
+    }
+
+    @Test
+    public void testLazyL2EqualsAdaGradComidL2() {
+        double l2Lambda = 0.1;
+        double[] lazy = runLazy(false, 0.0, l2Lambda);
+
+        AdaGradComidL2Prm prm = new AdaGradComidL2Prm();
+        prm.l2Lambda = l2Lambda;
+        setCommon(prm);
+        prm.eta = 0.5;
+        // With a dense gradient, AdaGradComidL2 applies the regularizer to every parameter on every step.
+        double[] eager = run(new AdaGradComidL2(prm), true);
+        assertArrayEquals(eager, lazy, 1e-10);
+    }
+
+    @Test
+    public void testScheduleSharesEta() {
+        LazyAdaGradComidPrm prm = new LazyAdaGradComidPrm();
+        prm.eta = 0.5;
+        new LazyAdaGradComid(prm);
+        assertEquals(0.5, prm.sched.getEta0(), 1e-13);
+        prm.sched.setEta0(0.25);
+        assertEquals(0.25, prm.eta, 1e-13);
+        assertEquals(0.25, prm.sched.copy().getEta0(), 1e-13);
+    }
+
+    private static double[] runLazy(boolean dense, double l1Lambda, double l2Lambda) {
+        LazyAdaGradComidPrm prm = new LazyAdaGradComidPrm();
+        prm.l1Lambda = l1Lambda;
+        prm.l2Lambda = l2Lambda;
+        setCommon(prm);
+        prm.eta = 0.5;
+        return run(new LazyAdaGradComid(prm), dense);
+    }
+
+    private static void setCommon(edu.jhu.hlt.optimize.SGD.SGDPrm prm) {
+        prm.numPasses = 5;
+        prm.batchSize = 2;
+        prm.autoSelectLr = false;
+        prm.withReplacement = false;
+    }
+
+    private static double[] run(Optimizer<DifferentiableBatchFunction> opt, boolean dense) {
+        Prng.seed(123456789101112l);
+        SparseQuadratic fn = new SparseQuadratic(20, 100, 3, dense);
+        IntDoubleDenseVector point = new IntDoubleDenseVector(fn.getNumDimensions());
+        for (int j=0; j<fn.getNumDimensions(); j++) {
+            point.set(j, (j % 3) - 1.0);
+        }
+        opt.minimize(fn, point);
+        return point.toNativeArray();
+    }
+
+    private static void assertArrayEquals(double[] expected, double[] actual, double delta) {
+        assertEquals(expected.length, actual.length);
+        for (int j=0; j<expected.length; j++) {
+            assertEquals("index=" + j, expected[j], actual[j], delta);
+        }
+    }
+
+}
@@ -61,13 +61,13 @@ public class NegLogLikelihoodFactoryTest {
         mid.forward();
         {
             FgAndVars fgv = FactorGraphsForTests.getLinearChainFgWithVars();
-            Module<Tensor> mt = mtf.getInstance(mid, fgv.fg, fgv.goldConfig, weight, curIter, maxIter);
+            Module<Tensor> mt = mtf.getInstance(mid, fgv.fg, fgv.goldConfig, weight, curIter, maxIter, null);
             Tensor ll = mt.forward();
             assertEquals(3.341, ll.getValue(0), 1e-3);
         }
         {
             FgAndVars fgv = FactorGraphsForTests.getLinearChainFgWithVarsLatent();
-            Module<Tensor> mt = mtf.getInstance(mid, fgv.fg, fgv.goldConfig, weight, curIter, maxIter);
+            Module<Tensor> mt = mtf.getInstance(mid, fgv.fg, fgv.goldConfig, weight, curIter, maxIter, null);
             Tensor ll = mt.forward();
             assertEquals(1.865, ll.getValue(0), 1e-3);
         }
@@ -5,7 +5,7 @@ import edu.jhu.pacaya.gm.feat.FactorTemplateList;
 import edu.jhu.pacaya.gm.feat.FeatureVector;
 import edu.jhu.pacaya.gm.feat.ObsFeExpFamFactor;
 import edu.jhu.pacaya.gm.feat.ObsFeatureExtractor;
-import edu.jhu.pacaya.util.FeatureNames;
+import edu.jhu.pacaya.util.FeatureAlphabet;
 
 /**
  * Constructs features for each factor graph configuration by creating a
@@ -27,7 +27,7 @@ public class SimpleVCObsFeatureExtractor implements ObsFeatureExtractor {
     @Override
     public FeatureVector calcObsFeatureVector(ObsFeExpFamFactor factor) {
         FeatureVector fv = new FeatureVector();
-        FeatureNames alphabet = fts.getTemplate(factor).getAlphabet();            
+        FeatureAlphabet alphabet = fts.getTemplate(factor).getAlphabet();            
         int featIdx = alphabet.lookupIndex("BIAS_FEATURE");
         assert featIdx != -1;
         alphabet.setIsBias(featIdx);
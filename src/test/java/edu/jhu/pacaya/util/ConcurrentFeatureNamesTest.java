@@ -0,0 +1,124 @@
+package edu.jhu.pacaya.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+public class ConcurrentFeatureNamesTest {
+
+    @Test
+    public void testLookupAndGrowth() {
+        ConcurrentFeatureNames names = new ConcurrentFeatureNames();
+        assertEquals(0, names.lookupIndex("a"));
+        assertEquals(1, names.lookupIndex("b"));
+        assertEquals(0, names.lookupIndex("a"));
+        assertEquals(-1, names.lookupIndex("c", false));
+        names.setIsBias(1);
+        names.stopGrowth();
+        assertEquals(-1, names.lookupIndex("c"));
+        names.setIsBias(0);
+        assertEquals(2, names.size());
+        assertEquals("b", names.lookupObject(1));
+        assertFalse(names.isBiasFeature(0));
+        assertTrue(names.isBiasFeature(1));
+    }
+
+    @Test
+    public void testConcurrentAdditionsAndCounts() throws Exception {
+        final int numThreads = 8;
+        final int numObjects = 10000;
+        final ConcurrentFeatureNames names = new ConcurrentFeatureNames(true);
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int t=0; t<numThreads; t++) {
+            final int offset = t * 997;
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    for (int i=0; i<numObjects; i++) {
+                        int idx = names.lookupIndex("feat" + ((i + offset) % numObjects));
+                        assertEquals("feat" + ((i + offset) % numObjects), names.lookupObject(idx));
+                    }
+                    return null;
+                }
+            });
+        }
+        Threads.invokeAndAwaitAll(pool, tasks);
+        Threads.shutdownSafelyOrDie(pool);
+
+        assertEquals(numObjects, names.size());
+        Set<Object> objects = new HashSet<>(names.getObjects());
+        assertEquals(numObjects, objects.size());
+        for (int i=0; i<numObjects; i++) {
+            assertEquals(i, names.lookupIndex(names.lookupObject(i), false));
+            // The lookup just above is counted too.
+            assertEquals(numThreads + 1, names.lookupObjectCount(i));
+        }
+    }
+
+    @Test
+    public void testCopies() {
+        CountingFeatureNames counting = new CountingFeatureNames();
+        counting.lookupIndex("a");
+        counting.lookupIndex("b");
+        counting.lookupIndex("a");
+        counting.setIsBias(1);
+        ConcurrentFeatureNames names = new ConcurrentFeatureNames(counting);
+        assertEquals(counting.getObjects(), names.getObjects());
+        assertEquals(2, names.lookupObjectCount(0));
+        assertTrue(names.isBiasFeature(1));
+        assertTrue(names.isGrowing());
+        names.stopGrowth();
+        
+        ConcurrentFeatureNames clone = (ConcurrentFeatureNames) names.clone();
+        assertEquals(names.getObjects(), clone.getObjects());
+        assertEquals(2, clone.lookupObjectCount(0));
+        assertTrue(clone.isBiasFeature(1));
+        assertFalse(clone.isGrowing());
+        // The copy is independent of the original.
+        clone.startGrowth();
+        clone.lookupIndex("c");
+        assertEquals(2, names.size());
+        
+        ConcurrentFeatureNames copy = new ConcurrentFeatureNames(names);
+        assertEquals(names.getObjects(), copy.getObjects());
+        assertEquals(2, copy.lookupObjectCount(0));
+        assertEquals(1, copy.lookupIndex("b"));
+        assertFalse(copy.isGrowing());
+    }
+
+    @Test
+    public void testBinaryRoundTrip() throws IOException {
+        ConcurrentFeatureNames names = new ConcurrentFeatureNames(true);
+        names.lookupIndex("a");
+        names.lookupIndex("b");
+        names.lookupIndex("a");
+        names.setIsBias(names.lookupIndex("bias"));
+        names.stopGrowth();
+        
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        names.writeBinary(new DataOutputStream(baos));
+        FeatureAlphabet copy = FeatureAlphabets.readBinary(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        assertTrue(copy instanceof CountingFeatureNames);
+        assertEquals(names.getObjects(), copy.getObjects());
+        assertEquals(2, ((CountingFeatureNames) copy).lookupObjectCount(0));
+        assertTrue(copy.isBiasFeature(2));
+        assertFalse(copy.isGrowing());
+    }
+
+}
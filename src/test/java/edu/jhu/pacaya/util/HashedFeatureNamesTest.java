@@ -0,0 +1,109 @@
+package edu.jhu.pacaya.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class HashedFeatureNamesTest {
+
+    @Test
+    public void testIndicesAndSigns() {
+        HashedFeatureNames names = new HashedFeatureNames(1000);
+        int numNegative = 0;
+        for (int i=0; i<1000; i++) {
+            String feat = "feat" + i;
+            int h = names.hash(feat);
+            int idx = names.getIndex(h);
+            assertTrue(0 <= idx && idx < 1000);
+            assertEquals(idx, names.lookupIndex(feat));
+            assertEquals(names.getSign(h), names.lookupSign(feat), 0);
+            if (names.getSign(h) < 0) {
+                numNegative++;
+            }
+        }
+        // The signs are roughly balanced.
+        assertTrue(400 < numNegative && numNegative < 600);
+        
+        // Features are never missing, even when the alphabet is not growing.
+        names.stopGrowth();
+        assertEquals(names.getIndex(names.hash("new")), names.lookupIndex("new", false));
+        assertEquals(1000, names.size());
+        assertEquals("hash7", names.lookupObject(7));
+        assertEquals(-1, names.getNumCollisions());
+    }
+
+    @Test
+    public void testUnsigned() {
+        HashedFeatureNames names = new HashedFeatureNames(10, false, false);
+        for (int i=0; i<100; i++) {
+            assertEquals(1.0, names.lookupSign("feat" + i), 0);
+        }
+    }
+    
+    @Test
+    public void testCollisions() {
+        HashedFeatureNames names = new HashedFeatureNames(10, true, true);
+        for (int rep=0; rep<2; rep++) {
+            for (int i=0; i<100; i++) {
+                names.lookupIndex("feat" + i);
+            }
+        }
+        assertEquals(100, names.getNumDistinctFeats());
+        // At most 10 buckets are occupied.
+        assertTrue(names.getNumCollisions() >= 90);
+        
+        names = new HashedFeatureNames(1 << 20, true, true);
+        names.lookupIndex("a");
+        names.lookupIndex("b");
+        assertEquals(2, names.getNumDistinctFeats());
+        assertEquals(0, names.getNumCollisions());
+    }
+    
+    @Test
+    public void testCopies() {
+        HashedFeatureNames names = new HashedFeatureNames(1000, true, true);
+        names.setIsBias(names.lookupIndex("BIAS_FEATURE"));
+        names.lookupIndex("a");
+        names.stopGrowth();
+        HashedFeatureNames copy = new HashedFeatureNames(names);
+        HashedFeatureNames clone = (HashedFeatureNames) names.clone();
+        for (HashedFeatureNames other : new HashedFeatureNames[] { copy, clone }) {
+            assertEquals(1000, other.size());
+            assertEquals(names.hash("a"), other.hash("a"));
+            assertTrue(other.isBiasFeature(names.lookupIndex("BIAS_FEATURE")));
+            assertFalse(other.isGrowing());
+            assertEquals(names.getNumDistinctFeats(), other.getNumDistinctFeats());
+        }
+        // The collision statistics are independent of the original.
+        copy.lookupIndex("b");
+        assertEquals(2, names.getNumDistinctFeats());
+        assertEquals(3, copy.getNumDistinctFeats());
+    }
+
+    @Test
+    public void testBinaryRoundTrip() throws IOException {
+        HashedFeatureNames names = new HashedFeatureNames(12345);
+        names.setIsBias(names.lookupIndex("BIAS_FEATURE"));
+        names.stopGrowth();
+        
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        names.writeBinary(new DataOutputStream(baos));
+        FeatureAlphabet copy = FeatureAlphabets.readBinary(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        assertTrue(copy instanceof HashedFeatureNames);
+        assertEquals(12345, copy.size());
+        for (int i=0; i<100; i++) {
+            assertEquals(names.lookupIndex("feat" + i), copy.lookupIndex("feat" + i));
+            assertEquals(names.lookupSign("feat" + i), ((HashedFeatureNames) copy).lookupSign("feat" + i), 0);
+        }
+        assertTrue(copy.isBiasFeature(names.lookupIndex("BIAS_FEATURE")));
+    }
+
+}
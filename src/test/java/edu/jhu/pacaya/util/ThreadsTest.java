@@ -1,8 +1,11 @@
 package edu.jhu.pacaya.util;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
@@ -50,6 +53,83 @@ public class ThreadsTest {
         assertArrayEquals(batch, res);
     }
 
+    @Test
+    public void testSafelyParallizeWithCosts() {
+        ExecutorService pool = Executors.newFixedThreadPool(10);
+        int[] batch = new int[]{ 0, 0, 1, 1, 2, 2, 2, 3, 3, 4, 5, 5, 1};
+        TaskCosts costs = new TaskCosts(6);
+        // The results should be in the same order as without costs.
+        List<Integer> expected = Threads.safelyParallelizeBatch(pool, batch, new MockTaskFactory());
+        List<Integer> results = Threads.safelyParallelizeBatch(pool, batch, new MockTaskFactory(), costs, 10);
+        assertEquals(expected, results);
+        // Every task should have been timed.
+        for (int i=0; i<6; i++) {
+            assertTrue(costs.getCost(i) < Double.POSITIVE_INFINITY);
+        }
+        assertTrue(costs.getTotalIdleMs() >= 0);
+        pool.shutdown();
+    }
+    
+    @Test
+    public void testWaitTimeExcludedFromCost() {
+        ExecutorService pool = Executors.newFixedThreadPool(1);
+        TaskCosts costs = new TaskCosts(1);
+        TaskFactory<Integer> factory = new TaskFactory<Integer>() {
+            @Override
+            public Callable<Integer> getTask(final int i) {
+                return new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        // Sleep as if waiting for a lock held by another thread.
+                        long t0 = System.nanoTime();
+                        Thread.sleep(200);
+                        TaskCosts.addWaitNanos(System.nanoTime() - t0);
+                        return i;
+                    }
+                };
+            }
+        };
+        Threads.safelyParallelizeBatch(pool, new int[]{ 0 }, factory, costs, 1);
+        assertTrue(costs.getCost(0) < 100);
+        // The waiting time counts as idle time of the batch.
+        assertTrue(costs.getTotalIdleMs() >= 200);
+        pool.shutdown();
+    }
+
+    @Test
+    public void testNoBatches() {
+        assertEquals(0, new TaskCosts(1).getAvgIdleMs(), 0);
+    }
+    
+    @Test
+    public void testSafelyParallizeLongestFirst() {
+        // With a single thread, the tasks are run in the order they are submitted.
+        ExecutorService pool = Executors.newFixedThreadPool(1);
+        TaskCosts costs = new TaskCosts(5);
+        costs.addTime(0, 1.0);
+        costs.addTime(1, 30.0);
+        costs.addTime(2, 2.0);
+        costs.addTime(3, 20.0);
+        // Task 4 has never been run, so it should go first.
+        final List<Integer> runOrder = Collections.synchronizedList(new ArrayList<Integer>());
+        TaskFactory<Integer> factory = new TaskFactory<Integer>() {
+            @Override
+            public Callable<Integer> getTask(final int i) {
+                return new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        runOrder.add(i);
+                        return i;
+                    }
+                };
+            }
+        };
+        List<Integer> results = Threads.safelyParallelizeBatch(pool, new int[]{ 0, 1, 2, 3, 4 }, factory, costs, 1);
+        assertEquals(QLists.getList(4, 1, 3, 2, 0), runOrder);
+        assertEquals(QLists.getList(0, 1, 2, 3, 4), results);
+        pool.shutdown();
+    }
+
     public static class MockCallable implements Callable<Object> {
 
         private int i;
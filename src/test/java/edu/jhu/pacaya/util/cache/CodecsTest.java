@@ -0,0 +1,85 @@
+package edu.jhu.pacaya.util.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.jhu.pacaya.util.cache.Codecs.CodecType;
+import edu.jhu.pacaya.util.cache.ConcurrentFastDiskStore.ReadMode;
+
+public class CodecsTest {
+
+    private static byte[][] getInputs() {
+        Random rand = new Random(7);
+        byte[] random = new byte[5000];
+        rand.nextBytes(random);
+        byte[] repetitive = new byte[100000];
+        for (int i=0; i<repetitive.length; i++) {
+            repetitive[i] = (byte) ((i % 37 == 0) ? rand.nextInt() : i % 7);
+        }
+        // Matches at offsets beyond the window, and long runs of a single byte.
+        byte[] farRepeat = new byte[200000];
+        rand.nextBytes(farRepeat);
+        System.arraycopy(farRepeat, 0, farRepeat, 100000, 30000);
+        for (int i=150000; i<160000; i++) {
+            farRepeat[i] = 5;
+        }
+        return new byte[][] { new byte[0], new byte[] { 1, 2, 3 }, "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa".getBytes(),
+                random, repetitive, farRepeat };
+    }
+
+    @Test
+    public void testLz4RoundTrip() {
+        for (byte[] input : getInputs()) {
+            byte[] comp = Lz4.compress(input);
+            assertArrayEquals(input, Lz4.decompress(comp, input.length));
+        }
+    }
+
+    @Test
+    public void testLz4Compresses() {
+        byte[] repetitive = getInputs()[4];
+        assertTrue(Lz4.compress(repetitive).length < repetitive.length / 4);
+    }
+
+    @Test
+    public void testCodecRoundTrip() {
+        for (CodecType type : CodecType.values()) {
+            Codec codec = Codecs.get(type, 6);
+            for (byte[] input : getInputs()) {
+                assertArrayEquals(type.toString(), input, (byte[]) codec.decode(codec.encode(input)));
+            }
+            ArrayList<String> list = new ArrayList<>();
+            for (int i=0; i<100; i++) {
+                list.add("item" + (i % 10));
+            }
+            assertEquals(list, codec.decode(codec.encode(list)));
+        }
+    }
+
+    @Test
+    public void testReopenWithCodec() throws Exception {
+        File path = new File("./tmp/cfds/cache-codec.binary");
+        byte[][] inputs = getInputs();
+        try (ConcurrentFastDiskStore<Integer, byte[]> store = new ConcurrentFastDiskStore<>(path,
+                Codecs.get(CodecType.LZ4, 0), ReadMode.CHANNEL)) {
+            for (int i=0; i<inputs.length; i++) {
+                store.put(i, inputs[i]);
+            }
+            store.finish(null);
+        }
+        // The reopened store decodes with the codec it was written with.
+        try (ConcurrentFastDiskStore<Integer, byte[]> store = new ConcurrentFastDiskStore<>(path, ReadMode.MMAP)) {
+            for (int i=0; i<inputs.length; i++) {
+                assertArrayEquals(inputs[i], store.get(i));
+            }
+        }
+    }
+
+}
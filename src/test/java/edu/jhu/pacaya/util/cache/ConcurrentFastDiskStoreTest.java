@@ -0,0 +1,181 @@
+package edu.jhu.pacaya.util.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import edu.jhu.pacaya.util.Threads;
+import edu.jhu.pacaya.util.cache.ConcurrentFastDiskStore.ReadMode;
+
+public class ConcurrentFastDiskStoreTest {
+
+    private static byte[] getValue(int i) {
+        // Values of varying sizes, so that some straddle the segment boundaries.
+        byte[] val = new byte[100 + (i * 37) % 400];
+        for (int k=0; k<val.length; k++) {
+            val[k] = (byte) (i + k);
+        }
+        return val;
+    }
+
+    @Test
+    public void testPutGetChannel() throws Exception {
+        checkPutGet(ReadMode.CHANNEL, false);
+    }
+
+    @Test
+    public void testPutGetMmap() throws Exception {
+        checkPutGet(ReadMode.MMAP, false);
+    }
+
+    @Test
+    public void testPutGetBlock() throws Exception {
+        checkPutGet(ReadMode.BLOCK, false);
+    }
+
+    @Test
+    public void testPutGetMmapGzipped() throws Exception {
+        checkPutGet(ReadMode.MMAP, true);
+    }
+
+    private void checkPutGet(ReadMode readMode, boolean gzip) throws Exception {
+        // Use small segments (or blocks) so that the values straddle them.
+        try (ConcurrentFastDiskStore<Integer, byte[]> store = new ConcurrentFastDiskStore<>(new File(
+                "./tmp/cfds/cache-" + readMode + ".binary"), gzip, readMode, 10)) {
+            int n = 200;
+            for (int i=0; i<n; i++) {
+                store.put(i, getValue(i));
+                // Read while writing, so that the last segment is remapped as it grows.
+                assertArrayEquals(getValue(i), store.get(i));
+                assertArrayEquals(getValue(i/2), store.get(i/2));
+            }
+            assertEquals(n, store.size());
+            assertNull(store.get(n));
+            for (int i=0; i<n; i++) {
+                assertArrayEquals(getValue(i), store.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testSecondPutRejected() throws Exception {
+        try (ConcurrentFastDiskStore<Integer, byte[]> store = new ConcurrentFastDiskStore<>(new File(
+                "./tmp/cfds/cache-dup.binary"), false)) {
+            store.put(1, getValue(1));
+            try {
+                store.put(1, getValue(2));
+                fail();
+            } catch (IllegalStateException e) {
+                // Expected.
+            }
+            try {
+                store.putBytes(1, new byte[] { 1 });
+                fail();
+            } catch (IllegalStateException e) {
+                // Expected.
+            }
+            assertArrayEquals(getValue(1), store.get(1));
+        }
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        for (final ReadMode readMode : ReadMode.values()) {
+            try (final ConcurrentFastDiskStore<Integer, byte[]> store = new ConcurrentFastDiskStore<>(new File(
+                    "./tmp/cfds/cache-concurrent.binary"), false, readMode, 12)) {
+                final int n = 500;
+                for (int i=0; i<n; i++) {
+                    store.put(i, getValue(i));
+                }
+                ExecutorService pool = Executors.newFixedThreadPool(4);
+                List<Callable<Object>> tasks = new ArrayList<>();
+                for (int t=0; t<8; t++) {
+                    final int offset = t;
+                    tasks.add(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            for (int i=0; i<n; i++) {
+                                int j = (i * 7 + offset) % n;
+                                assertArrayEquals(getValue(j), store.get(j));
+                            }
+                            return null;
+                        }
+                    });
+                }
+                Threads.invokeAndAwaitAll(pool, tasks);
+                Threads.shutdownSafelyOrDie(pool);
+            }
+        }
+    }
+
+    @Test
+    public void testFinishAndReopen() throws Exception {
+        for (ReadMode readMode : ReadMode.values()) {
+            File path = new File("./tmp/cfds/cache-reopen.binary");
+            int n = 100;
+            try (ConcurrentFastDiskStore<Integer, byte[]> store = new ConcurrentFastDiskStore<>(path, true, readMode)) {
+                for (int i=0; i<n; i++) {
+                    store.put(i, getValue(i));
+                }
+                assertFalse(ConcurrentFastDiskStore.isReopenable(path, null));
+                store.finish("abc");
+                assertTrue(store.isFinished());
+                try {
+                    store.put(n, getValue(n));
+                    fail();
+                } catch (IllegalStateException e) {
+                    // Expected.
+                }
+            }
+            assertTrue(ConcurrentFastDiskStore.isReopenable(path, null));
+            assertTrue(ConcurrentFastDiskStore.isReopenable(path, "abc"));
+            assertFalse(ConcurrentFastDiskStore.isReopenable(path, "abd"));
+            try (ConcurrentFastDiskStore<Integer, byte[]> store = new ConcurrentFastDiskStore<>(path, readMode, 10)) {
+                assertTrue(store.isFinished());
+                assertEquals("abc", store.getContentHash());
+                assertEquals(n, store.size());
+                for (int i=0; i<n; i++) {
+                    assertArrayEquals(getValue(i), store.get(i));
+                }
+                assertNull(store.get(n));
+                try {
+                    store.put(n, getValue(n));
+                    fail();
+                } catch (IllegalStateException e) {
+                    // Expected.
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnfinishedNotReopenable() throws Exception {
+        File path = new File("./tmp/cfds/cache-unfinished.binary");
+        try (ConcurrentFastDiskStore<Integer, byte[]> store = new ConcurrentFastDiskStore<>(path, false)) {
+            for (int i=0; i<10; i++) {
+                store.put(i, getValue(i));
+            }
+        }
+        assertFalse(ConcurrentFastDiskStore.isReopenable(path, null));
+        assertFalse(ConcurrentFastDiskStore.isReopenable(new File("./tmp/cfds/does-not-exist.binary"), null));
+        try {
+            new ConcurrentFastDiskStore<Integer, byte[]>(path, ReadMode.CHANNEL);
+            fail();
+        } catch (java.io.IOException e) {
+            // Expected.
+        }
+    }
+
+}
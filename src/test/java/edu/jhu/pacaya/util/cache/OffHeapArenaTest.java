@@ -0,0 +1,37 @@
+package edu.jhu.pacaya.util.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class OffHeapArenaTest {
+
+    @Test
+    public void testPutGet() {
+        OffHeapArena arena = new OffHeapArena(10);
+        long a = arena.put(new byte[] { 1, 2, 3, 4, 5, 6 });
+        long b = arena.put(new byte[] { 7, 8, 9 });
+        // Does not fit in the first chunk.
+        long c = arena.put(new byte[] { 10, 11, 12 });
+        // Larger than a chunk.
+        long d = arena.put(new byte[25]);
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6 }, arena.get(a, 6));
+        assertArrayEquals(new byte[] { 7, 8, 9 }, arena.get(b, 3));
+        assertArrayEquals(new byte[] { 10, 11, 12 }, arena.get(c, 3));
+        assertArrayEquals(new byte[25], arena.get(d, 25));
+        assertEquals(3, arena.getNumChunks());
+        assertEquals(10 + 10 + 25, arena.getAllocatedBytes());
+        assertEquals(6 + 3 + 3 + 25, arena.getUsedBytes());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClose() {
+        OffHeapArena arena = new OffHeapArena(10);
+        long a = arena.put(new byte[] { 1 });
+        arena.close();
+        assertEquals(0, arena.getAllocatedBytes());
+        arena.get(a, 1);
+    }
+
+}
@@ -0,0 +1,104 @@
+package edu.jhu.pacaya.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import edu.jhu.pacaya.util.Threads;
+import edu.jhu.pacaya.util.cache.WeightedCache.ByteArrayWeigher;
+
+public class WeightedCacheTest {
+
+    @Test
+    public void testBoundedByWeight() {
+        WeightedCache<Integer, byte[]> cache = new WeightedCache<>(10000, new ByteArrayWeigher(), 1);
+        for (int i=0; i<100; i++) {
+            // Values of varying sizes.
+            cache.put(i, new byte[(i % 10 + 1) * 100]);
+            assertTrue(cache.getWeight() <= 10000);
+        }
+        assertTrue(cache.getNumEvictions() > 0);
+        assertEquals(100 - cache.getNumEvictions(), cache.size());
+        // The most recent entry is kept.
+        assertNotNull(cache.get(99));
+        assertNull(cache.get(0));
+        assertEquals(1, cache.getNumHits());
+        assertEquals(1, cache.getNumMisses());
+        assertEquals(0.5, cache.getHitRate(), 1e-13);
+    }
+
+    @Test
+    public void testScanResistant() {
+        WeightedCache<Integer, byte[]> cache = new WeightedCache<>(1000 * 116, new ByteArrayWeigher(), 1);
+        // Read a small working set twice, so that it is promoted.
+        for (int rep=0; rep<2; rep++) {
+            for (int i=0; i<100; i++) {
+                if (cache.get(i) == null) {
+                    cache.put(i, new byte[100]);
+                }
+            }
+        }
+        // Scan many entries, each read only once.
+        for (int i=1000; i<5000; i++) {
+            if (cache.get(i) == null) {
+                cache.put(i, new byte[100]);
+            }
+        }
+        for (int i=0; i<100; i++) {
+            assertNotNull(cache.get(i));
+        }
+    }
+
+    @Test
+    public void testRemoveAndReplace() {
+        WeightedCache<Integer, byte[]> cache = new WeightedCache<>(1000, new ByteArrayWeigher(), 2);
+        cache.put(1, new byte[100]);
+        cache.put(1, new byte[200]);
+        assertEquals(216, cache.getWeight());
+        assertEquals(1, cache.size());
+        cache.get(1);
+        assertEquals(200, cache.remove(1).length);
+        assertEquals(0, cache.getWeight());
+        assertTrue(cache.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final WeightedCache<Integer, byte[]> cache = new WeightedCache<>(50 * 116, new ByteArrayWeigher(), 4);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int t=0; t<8; t++) {
+            final int offset = t;
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    for (int i=0; i<2000; i++) {
+                        int k = (i * 13 + offset) % 200;
+                        byte[] val = cache.get(k);
+                        if (val == null) {
+                            val = new byte[100];
+                            val[0] = (byte) k;
+                            cache.put(k, val);
+                        }
+                        assertEquals((byte) k, val[0]);
+                    }
+                    return null;
+                }
+            });
+        }
+        Threads.invokeAndAwaitAll(pool, tasks);
+        Threads.shutdownSafelyOrDie(pool);
+        assertEquals(8 * 2000, cache.getNumHits() + cache.getNumMisses());
+        assertTrue(cache.getWeight() <= cache.getMaxWeight());
+    }
+
+}